@@ -0,0 +1,147 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AbstractAsyncContentProvider;
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.AsyncContentUtil;
+import org.everit.http.client.async.ChunkedDecodingAsyncContentProvider;
+import org.everit.http.client.async.ChunkedEncodingAsyncContentProvider;
+import org.everit.http.client.async.GatheringAsyncContentListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how fast {@link ChunkedEncodingAsyncContentProvider} frames and
+ * {@link ChunkedDecodingAsyncContentProvider} unframes 64 MiB of payload that is read in chunks of
+ * the size of a typical socket buffer. The throughput is the payload size divided by the average
+ * time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkedTransferCodingBenchmark {
+
+  /**
+   * Provides the slices of a byte array.
+   */
+  private static final class SlicingAsyncContentProvider extends AbstractAsyncContentProvider {
+
+    private final int chunkSize;
+
+    private final byte[] content;
+
+    private int position = 0;
+
+    SlicingAsyncContentProvider(byte[] content, int chunkSize) {
+      this.content = content;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected void doClose() {
+      // Nothing to close
+    }
+
+    @Override
+    public Optional<Long> getContentLength() {
+      return Optional.of((long) this.content.length);
+    }
+
+    @Override
+    public Optional<MediaType> getContentType() {
+      return Optional.empty();
+    }
+
+    @Override
+    protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+      if (this.position == this.content.length) {
+        handleSuccess();
+        return;
+      }
+      int length = Math.min(this.chunkSize, this.content.length - this.position);
+      ByteBuffer chunk = ByteBuffer.wrap(this.content, this.position, length);
+      this.position += length;
+      callback.accept(chunk);
+    }
+  }
+
+  private static final int PAYLOAD_SIZE = 64 * 1024 * 1024;
+
+  private static long read(AsyncContentProvider provider) {
+    long[] length = new long[1];
+    try {
+      provider.onContent((GatheringAsyncContentListener) (chunks, callback) -> {
+        for (ByteBuffer chunk : chunks) {
+          length[0] += chunk.remaining();
+        }
+        callback.processed();
+      });
+    } finally {
+      provider.close();
+    }
+    return length[0];
+  }
+
+  @Param({ "8192", "65536" })
+  public int chunkSize;
+
+  private byte[] encoded;
+
+  private byte[] payload;
+
+  @Benchmark
+  public long decode() {
+    return ChunkedTransferCodingBenchmark.read(new ChunkedDecodingAsyncContentProvider(
+        new SlicingAsyncContentProvider(this.encoded, this.chunkSize)));
+  }
+
+  @Benchmark
+  public long encode() {
+    return ChunkedTransferCodingBenchmark.read(new ChunkedEncodingAsyncContentProvider(
+        new SlicingAsyncContentProvider(this.payload, this.chunkSize)));
+  }
+
+  /**
+   * Creates the payload and its chunked form.
+   */
+  @Setup
+  public void setup() {
+    this.payload = new byte[ChunkedTransferCodingBenchmark.PAYLOAD_SIZE];
+    new Random().nextBytes(this.payload);
+    this.encoded = AsyncContentUtil.readAllBytes(new ChunkedEncodingAsyncContentProvider(
+        new SlicingAsyncContentProvider(this.payload, this.chunkSize))).blockingGet();
+  }
+}
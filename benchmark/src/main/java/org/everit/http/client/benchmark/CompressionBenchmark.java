@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.AsyncContentUtil;
+import org.everit.http.client.async.ByteArrayAsyncContentProvider;
+import org.everit.http.client.async.ByteBufferPool;
+import org.everit.http.client.async.CompressingAsyncContentProvider;
+import org.everit.http.client.async.ContentCoding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes to compress a CSV export with the different compression levels. The
+ * compression ratio of every level is printed during the setup of the benchmark, so the time and
+ * the size can be compared.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+  private static final int CHUNK_SIZE = 16 * 1024;
+
+  private static final int CONTENT_LENGTH = 8 * 1024 * 1024;
+
+  private byte[] content;
+
+  @Param({ "GZIP" })
+  public ContentCoding contentCoding;
+
+  @Param({ "1", "6", "9" })
+  public int level;
+
+  private static byte[] createCsvContent() {
+    final int maxId = 1_000_000;
+    final int maxValue = 100_000;
+    final int valueScale = 100;
+    String[] names = { "apple", "banana", "cherry", "date", "elderberry", "fig", "grape" };
+
+    Random random = new Random(0);
+    StringBuilder sb = new StringBuilder(CompressionBenchmark.CONTENT_LENGTH);
+    sb.append("id,name,amount,created\n");
+    while (sb.length() < CompressionBenchmark.CONTENT_LENGTH) {
+      sb.append(random.nextInt(maxId)).append(',')
+          .append(names[random.nextInt(names.length)]).append(',')
+          .append(random.nextInt(maxValue) / (double) valueScale).append(",2018-0")
+          .append(random.nextInt(9) + 1).append('-').append(random.nextInt(18) + 10)
+          .append('\n');
+    }
+    sb.setLength(CompressionBenchmark.CONTENT_LENGTH);
+    return sb.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Benchmark
+  public int compress() {
+    AsyncContentProvider provider = new CompressingAsyncContentProvider(
+        new ByteArrayAsyncContentProvider(this.content, Optional.empty()), this.contentCoding,
+        this.level, CompressionBenchmark.CHUNK_SIZE, ByteBufferPool.getDefault());
+    try {
+      return AsyncContentUtil.readAllBytes(provider).blockingGet().length;
+    } finally {
+      provider.close();
+    }
+  }
+
+  /**
+   * Creates the content and prints the compression ratio of the level.
+   */
+  @Setup
+  public void setup() {
+    this.content = CompressionBenchmark.createCsvContent();
+    final double percent = 100.0;
+    int compressedLength = compress();
+    System.out.printf("%n%s level %d: %d -> %d bytes (%.1f%%)%n", this.contentCoding, this.level,
+        this.content.length, compressedLength, compressedLength * percent / this.content.length);
+  }
+}
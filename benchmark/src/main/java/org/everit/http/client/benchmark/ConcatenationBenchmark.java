@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.benchmark;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.ByteArrayAsyncContentProvider;
+import org.everit.http.client.async.ConcatenatedAsyncContentProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the lock-free {@link ConcatenatedAsyncContentProvider} with the previous monitor based
+ * implementation by reading many small parts, like the parts of a big multipart request. The
+ * chunks are processed either synchronously or on another thread, so the handover happens between
+ * two threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcatenationBenchmark {
+
+  private static final int PART_SIZE = 16;
+
+  @Param({ "lockFree", "monitor" })
+  public String implementation;
+
+  @Param({ "1000", "10000" })
+  public int partCount;
+
+  @Param({ "1", "4" })
+  public int prefetch;
+
+  private ExecutorService processingExecutor;
+
+  private AsyncContentProvider createProvider() {
+    AsyncContentProvider[] parts = new AsyncContentProvider[this.partCount];
+    for (int i = 0; i < parts.length; i++) {
+      parts[i] = new ByteArrayAsyncContentProvider(new byte[ConcatenationBenchmark.PART_SIZE],
+          Optional.empty());
+    }
+    if ("monitor".equals(this.implementation)) {
+      return new MonitorConcatenatedAsyncContentProvider(Optional.empty(), parts);
+    }
+    return new ConcatenatedAsyncContentProvider(Optional.empty(), parts);
+  }
+
+  private long read(boolean processOnOtherThread)
+      throws InterruptedException, ExecutionException {
+
+    AsyncContentProvider provider = createProvider();
+    AtomicLong byteCount = new AtomicLong();
+    CompletableFuture<Long> result = new CompletableFuture<>();
+
+    provider.onSuccess(() -> result.complete(byteCount.get()))
+        .onError(result::completeExceptionally)
+        .onContent((chunk, callback) -> {
+          byteCount.addAndGet(chunk.remaining());
+          if (processOnOtherThread) {
+            this.processingExecutor.execute(callback::processed);
+          } else {
+            callback.processed();
+          }
+        }, this.prefetch);
+
+    return result.get();
+  }
+
+  @Benchmark
+  public long readOnProcessingThread() throws InterruptedException, ExecutionException {
+    return read(true);
+  }
+
+  @Benchmark
+  public long readSynchronously() throws InterruptedException, ExecutionException {
+    return read(false);
+  }
+
+  /**
+   * Starts the thread that processes the chunks.
+   */
+  @Setup
+  public void setup() {
+    this.processingExecutor = Executors.newSingleThreadExecutor();
+  }
+
+  /**
+   * Stops the thread that processes the chunks.
+   */
+  @TearDown
+  public void tearDown() {
+    this.processingExecutor.shutdown();
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.http.client.FormUrlencodedAsyncContentProvider;
+import org.everit.http.client.StreamingFormUrlencodedAsyncContentProvider;
+import org.everit.http.client.async.AsyncContentProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the encoding of a form with {@link URLEncoder}, as it was done before, to the encoding
+ * of {@link FormUrlencodedAsyncContentProvider} and
+ * {@link StreamingFormUrlencodedAsyncContentProvider}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormUrlencodedBenchmark {
+
+  private static long read(AsyncContentProvider provider) {
+    long[] length = new long[1];
+    try {
+      provider.onContent((chunk, callback) -> {
+        length[0] += chunk.remaining();
+        callback.processed();
+      });
+    } finally {
+      provider.close();
+    }
+    return length[0];
+  }
+
+  @Param({ "5", "50" })
+  public int fieldCount;
+
+  private List<Entry<String, String>> parameterList;
+
+  private Map<String, Collection<String>> parameters;
+
+  @Benchmark
+  public long encode() {
+    return FormUrlencodedBenchmark.read(new FormUrlencodedAsyncContentProvider(this.parameters));
+  }
+
+  @Benchmark
+  public long encodeStreaming() {
+    return FormUrlencodedBenchmark.read(
+        new StreamingFormUrlencodedAsyncContentProvider(this.parameterList.iterator()));
+  }
+
+  /**
+   * The encoding that was used before, with {@link URLEncoder} and a
+   * {@link ByteArrayOutputStream}.
+   */
+  @Benchmark
+  public int encodeWithUrlEncoder() throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    boolean first = true;
+    for (Entry<String, Collection<String>> parameter : this.parameters.entrySet()) {
+      for (String value : parameter.getValue()) {
+        if (!first) {
+          bout.write("&".getBytes(StandardCharsets.UTF_8));
+        }
+        first = false;
+        bout.write((URLEncoder.encode(parameter.getKey(), "UTF-8") + '='
+            + URLEncoder.encode(value, "UTF-8")).getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    return ByteBuffer.wrap(bout.toByteArray()).remaining();
+  }
+
+  /**
+   * Creates a form with short ASCII names and values that contain some characters that need to be
+   * escaped.
+   */
+  @Setup
+  public void setup() {
+    this.parameters = new LinkedHashMap<>();
+    this.parameterList = new ArrayList<>();
+    for (int i = 0; i < this.fieldCount; i++) {
+      String name = "field" + i;
+      String value = "value of field " + i
+          + (i % 2 == 0 ? " & more" : "/\u00e1rv\u00edzt\u0171r\u0151");
+      this.parameters.put(name, Collections.singletonList(value));
+      this.parameterList.add(new SimpleEntry<>(name, value));
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.everit.http.client.HttpClient;
+import org.everit.http.client.HttpMethod;
+import org.everit.http.client.HttpRequest;
+import org.everit.http.client.HttpResponse;
+import org.everit.http.client.async.AsyncContentUtil;
+import org.everit.http.client.async.ByteArrayAsyncContentProvider;
+import org.everit.http.client.jdk.JdkHttpClient;
+import org.everit.http.client.nio.NioHttp2Client;
+import org.everit.http.client.nio.NioHttpClient;
+import org.everit.http.client.testbase.HttpClientTestServlet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.reactivex.Single;
+
+/**
+ * Compares the throughput of the {@link JdkHttpClient} with the NIO implementations: a batch of
+ * small GET requests that are sent at the same time, and a request whose body is echoed back by
+ * the test servlet. The JDK client sends requests with a body over HTTP/1.1 even if it prefers
+ * h2c, so the echo only measures the streaming of the bodies in that case. The benchmark is
+ * compiled only on Java 11 and newer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JdkHttpClientBenchmark {
+
+  private static final int BATCH_SIZE = 64;
+
+  private static final int BODY_SIZE = 1024 * 1024;
+
+  private static final String CONTEXT_PATH = "/test";
+
+  private byte[] body;
+
+  private String bodyUrl;
+
+  @Param({ "nio", "nio-h2c", "jdk-http1.1", "jdk-h2c" })
+  public String client;
+
+  private HttpClient httpClient;
+
+  private HttpRequest noBodyRequest;
+
+  private Server server;
+
+  /**
+   * Sends a request with a body and reads the echoed body.
+   */
+  @Benchmark
+  public int echoBody() {
+    HttpRequest request = HttpRequest.builder()
+        .method(HttpMethod.POST)
+        .url(this.bodyUrl)
+        .body(Optional.of(new ByteArrayAsyncContentProvider(this.body, Optional.empty())))
+        .build();
+    return this.httpClient.send(request)
+        .flatMap(response -> AsyncContentUtil.readAllBytes(response.getBody())
+            .doFinally(response::close))
+        .blockingGet().length;
+  }
+
+  /**
+   * Sends a batch of requests without body at the same time and waits for all of the responses.
+   */
+  @Benchmark
+  @OperationsPerInvocation(JdkHttpClientBenchmark.BATCH_SIZE)
+  public int sendBatch() {
+    List<Single<Integer>> responses = new ArrayList<>(JdkHttpClientBenchmark.BATCH_SIZE);
+    for (int i = 0; i < JdkHttpClientBenchmark.BATCH_SIZE; i++) {
+      responses.add(this.httpClient.send(this.noBodyRequest).map(response -> {
+        try (HttpResponse r = response) {
+          return r.getStatus();
+        }
+      }));
+    }
+    return Single.merge(responses).reduce(0, Integer::sum).blockingGet();
+  }
+
+  /**
+   * Starts the server that accepts HTTP/1.1 and h2c on the same port and the client.
+   */
+  @Setup
+  public void setup() throws Exception {
+    this.server = new Server();
+    ServletContextHandler servletContextHandler =
+        new ServletContextHandler(this.server, JdkHttpClientBenchmark.CONTEXT_PATH);
+    servletContextHandler.addServlet(new ServletHolder(new HttpClientTestServlet()), "/*");
+    this.server.setHandler(servletContextHandler);
+    HttpConfiguration httpConfiguration = new HttpConfiguration();
+    ServerConnector serverConnector = new ServerConnector(this.server,
+        new HttpConnectionFactory(httpConfiguration),
+        new HTTP2CServerConnectionFactory(httpConfiguration));
+    this.server.addConnector(serverConnector);
+    this.server.start();
+
+    String baseUrl =
+        "http://localhost:" + serverConnector.getLocalPort() + JdkHttpClientBenchmark.CONTEXT_PATH;
+    this.bodyUrl = baseUrl + HttpClientTestServlet.PATH_TEST_WITH_BODY;
+    this.noBodyRequest = HttpRequest.builder()
+        .method(HttpMethod.GET)
+        .url(baseUrl + HttpClientTestServlet.PATH_TEST_WITH_NO_BODY)
+        .build();
+    this.body = new byte[JdkHttpClientBenchmark.BODY_SIZE];
+
+    switch (this.client) {
+      case "nio":
+        this.httpClient = NioHttpClient.builder()
+            .maxConnectionsPerHost(JdkHttpClientBenchmark.BATCH_SIZE)
+            .build();
+        break;
+      case "nio-h2c":
+        this.httpClient = NioHttp2Client.builder()
+            .maxConcurrentStreams(JdkHttpClientBenchmark.BATCH_SIZE)
+            .build();
+        break;
+      case "jdk-http1.1":
+        this.httpClient = JdkHttpClient.builder()
+            .version(java.net.http.HttpClient.Version.HTTP_1_1)
+            .build();
+        break;
+      default:
+        this.httpClient = JdkHttpClient.builder()
+            .version(java.net.http.HttpClient.Version.HTTP_2)
+            .build();
+        break;
+    }
+  }
+
+  /**
+   * Stops the client and the server.
+   */
+  @TearDown
+  public void tearDown() throws Exception {
+    this.httpClient.close();
+    this.server.stop();
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.benchmark;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.everit.http.client.MediaType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the regular expression based parsing of media types, as it was done before, to
+ * {@link MediaType#parse(String)}. The values in the cache are parsed again and again, while the
+ * values not in the cache are different every time, so they are always parsed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MediaTypeBenchmark {
+
+  /**
+   * The previous implementation of {@link MediaType#parse(String)}, which resolves the charset
+   * when it is queried.
+   */
+  private static final class RegexMediaTypeParser {
+
+    private static final Pattern PARAMETER;
+
+    private static final int PARAMETER_MATCHER_GROUP_QUOTED_VALUE = 3;
+
+    private static final String QUOTED = "\"([^\"]*)\"";
+
+    private static final String TOKEN = "([a-zA-Z0-9-!#$%&'*+.^_`{|}~]+)";
+
+    private static final Pattern TYPE_SUBTYPE = Pattern.compile(
+        RegexMediaTypeParser.TOKEN + "/" + RegexMediaTypeParser.TOKEN);
+
+    static {
+      PARAMETER = Pattern.compile(";\\s*(?:" + RegexMediaTypeParser.TOKEN + "=(?:"
+          + RegexMediaTypeParser.TOKEN + "|" + RegexMediaTypeParser.QUOTED + "))?");
+    }
+
+    static Optional<Charset> parseCharset(String string) {
+      Matcher typeSubtype = RegexMediaTypeParser.TYPE_SUBTYPE.matcher(string);
+      if (!typeSubtype.lookingAt()) {
+        throw new IllegalArgumentException("No subtype found for: \"" + string + '"');
+      }
+      String type = typeSubtype.group(1).toLowerCase(Locale.US);
+      String subtype = typeSubtype.group(2).toLowerCase(Locale.US);
+      if (type.isEmpty() || subtype.isEmpty()) {
+        throw new IllegalArgumentException(string);
+      }
+
+      String charset = null;
+      Matcher parameter = RegexMediaTypeParser.PARAMETER.matcher(string);
+      for (int s = typeSubtype.end(); s < string.length(); s = parameter.end()) {
+        parameter.region(s, string.length());
+        if (!parameter.lookingAt()) {
+          throw new IllegalArgumentException(string);
+        }
+        String name = parameter.group(1);
+        if (name != null && "charset".equalsIgnoreCase(name)) {
+          String token = parameter.group(2);
+          charset = token != null
+              ? token
+              : parameter.group(RegexMediaTypeParser.PARAMETER_MATCHER_GROUP_QUOTED_VALUE);
+        }
+      }
+
+      if (charset == null) {
+        return Optional.empty();
+      }
+      try {
+        return Optional.of(Charset.forName(charset));
+      } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+        return Optional.empty();
+      }
+    }
+  }
+
+  /**
+   * More than the size of the cache of {@link MediaType}, so the unique values are evicted before
+   * they are parsed again.
+   */
+  private static final int UNIQUE_VALUE_COUNT = 4096;
+
+  private int nextUniqueValue = 0;
+
+  private String[] uniqueValues;
+
+  @Param({ "application/json; charset=utf-8",
+      "multipart/form-data; boundary=EveritHttpClientBoundaryq4Ru3bZ9X1kLs0aP" })
+  public String value;
+
+  /**
+   * Parses the value with the new parser.
+   */
+  @Benchmark
+  public Optional<Charset> parse() {
+    return MediaType.parse(this.value).charset();
+  }
+
+  /**
+   * Parses the value with the regular expressions.
+   */
+  @Benchmark
+  public Optional<Charset> parseRegex() {
+    return RegexMediaTypeParser.parseCharset(this.value);
+  }
+
+  /**
+   * Parses a value that is not in the cache with the new parser.
+   */
+  @Benchmark
+  public Optional<Charset> parseUnique() {
+    return MediaType.parse(nextUniqueValue()).charset();
+  }
+
+  /**
+   * Parses a value that is not in the cache with the regular expressions.
+   */
+  @Benchmark
+  public Optional<Charset> parseUniqueRegex() {
+    return RegexMediaTypeParser.parseCharset(nextUniqueValue());
+  }
+
+  private String nextUniqueValue() {
+    String result = this.uniqueValues[this.nextUniqueValue];
+    this.nextUniqueValue = (this.nextUniqueValue + 1) % MediaTypeBenchmark.UNIQUE_VALUE_COUNT;
+    return result;
+  }
+
+  /**
+   * Creates the values that are not in the cache.
+   */
+  @Setup
+  public void setup() {
+    this.uniqueValues = new String[MediaTypeBenchmark.UNIQUE_VALUE_COUNT];
+    for (int i = 0; i < this.uniqueValues.length; i++) {
+      this.uniqueValues[i] = this.value + "; x-id=" + i;
+    }
+  }
+}
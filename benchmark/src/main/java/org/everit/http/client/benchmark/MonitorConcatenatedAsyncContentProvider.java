@@ -0,0 +1,247 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AbstractAsyncContentProvider;
+import org.everit.http.client.async.AsyncCallback;
+import org.everit.http.client.async.AsyncContentListener;
+import org.everit.http.client.async.AsyncContentProvider;
+
+/**
+ * Copy of the previous implementation of
+ * {@link org.everit.http.client.async.ConcatenatedAsyncContentProvider} that synchronized on a
+ * mutex at every handover of a chunk. It is kept as the baseline of {@link ConcatenationBenchmark}.
+ */
+public class MonitorConcatenatedAsyncContentProvider extends AbstractAsyncContentProvider {
+
+  /**
+   * A chunk of a wrapped provider and the callback that must be notified when the chunk is
+   * processed.
+   */
+  private static final class WrappedChunk {
+
+    private final AsyncCallback callback;
+
+    private final ByteBuffer chunk;
+
+    WrappedChunk(ByteBuffer chunk, AsyncCallback callback) {
+      this.chunk = chunk;
+      this.callback = callback;
+    }
+  }
+
+  private final AsyncContentProvider[] contentProviders;
+
+  private final Optional<MediaType> contentType;
+
+  /**
+   * Chunks that are passed to the listener of this provider and are not processed yet.
+   */
+  private final Deque<WrappedChunk> inFlightChunks = new ArrayDeque<>();
+
+  private Consumer<ByteBuffer> lastProvideCallback = null;
+
+  private final Optional<Long> length;
+
+  private final Object mutex = new Object();
+
+  private int positionOfNextProvider = 0;
+
+  /**
+   * Chunks that are provided by the wrapped providers but not requested by this provider yet.
+   */
+  private final Deque<WrappedChunk> queuedChunks = new ArrayDeque<>();
+
+  private final AtomicInteger registrationWip = new AtomicInteger();
+
+  private boolean started = false;
+
+  /**
+   * Constructor.
+   *
+   * @param contentType
+   *          The optional content type that this instance provides. See {@link #getContentType()}.
+   * @param contentProviders
+   *          The providers whose processing are concatenated with each other.
+   */
+  public MonitorConcatenatedAsyncContentProvider(Optional<MediaType> contentType,
+      AsyncContentProvider... contentProviders) {
+    this.contentType = contentType;
+    this.contentProviders = contentProviders.clone();
+    this.length = calculateLength();
+  }
+
+  private Optional<Long> calculateLength() {
+    long sumLength = 0;
+    for (AsyncContentProvider contentProvider : this.contentProviders) {
+      Optional<Long> contentLength = contentProvider.getContentLength();
+      if (!contentLength.isPresent()) {
+        return Optional.empty();
+      }
+      sumLength += contentLength.get();
+    }
+
+    return Optional.of(sumLength);
+  }
+
+  @Override
+  protected void doClose() {
+    Throwable error = null;
+    for (AsyncContentProvider contentProvider : this.contentProviders) {
+      try {
+        contentProvider.close();
+      } catch (Throwable e) {
+        if (error == null) {
+          error = e;
+        } else {
+          error.addSuppressed(e);
+        }
+      }
+    }
+    if (error != null) {
+      if (error instanceof RuntimeException) {
+        throw (RuntimeException) error;
+      }
+      if (error instanceof Error) {
+        throw (Error) error;
+      }
+      throw new RuntimeException(error);
+    }
+  }
+
+  @Override
+  public Optional<Long> getContentLength() {
+    return this.length;
+  }
+
+  @Override
+  public Optional<MediaType> getContentType() {
+    return this.contentType;
+  }
+
+  private void handleErrorFromWrappedProvider(Throwable error) {
+    if (getFailure().isPresent()) {
+      // The wrapped provider was notified about the failure of this provider
+      return;
+    }
+    handleErrorFromInput(error);
+  }
+
+  @Override
+  protected void provideNextChunk(Consumer<ByteBuffer> provideCallback) {
+    WrappedChunk nextChunk;
+    boolean start = false;
+
+    synchronized (this.mutex) {
+      nextChunk = this.queuedChunks.poll();
+      if (nextChunk == null) {
+        this.lastProvideCallback = provideCallback;
+        start = !this.started;
+        this.started = true;
+      } else {
+        this.inFlightChunks.add(nextChunk);
+      }
+    }
+
+    if (nextChunk != null) {
+      provideCallback.accept(nextChunk.chunk);
+    } else if (start) {
+      registerNextContentProvider();
+    }
+  }
+
+  private void registerNextContentProvider() {
+    if (this.registrationWip.getAndIncrement() != 0) {
+      return;
+    }
+
+    do {
+      registerNextContentProviderInLoop();
+    } while (this.registrationWip.decrementAndGet() != 0);
+  }
+
+  private void registerNextContentProviderInLoop() {
+    if (this.positionOfNextProvider == this.contentProviders.length) {
+      handleSuccess();
+      return;
+    }
+
+    AsyncContentProvider contentProvider = this.contentProviders[this.positionOfNextProvider];
+    this.positionOfNextProvider++;
+
+    contentProvider.onSuccess(this::registerNextContentProvider)
+        .onError(this::handleErrorFromWrappedProvider)
+        .onContent(new AsyncContentListener() {
+
+          @Override
+          public void onContent(ByteBuffer content, AsyncCallback callback) {
+            WrappedChunk wrappedChunk = new WrappedChunk(content, callback);
+            Consumer<ByteBuffer> tmpLastProvideCallback;
+
+            synchronized (MonitorConcatenatedAsyncContentProvider.this.mutex) {
+              tmpLastProvideCallback =
+                  MonitorConcatenatedAsyncContentProvider.this.lastProvideCallback;
+
+              if (tmpLastProvideCallback == null) {
+                MonitorConcatenatedAsyncContentProvider.this.queuedChunks.add(wrappedChunk);
+                return;
+              }
+
+              MonitorConcatenatedAsyncContentProvider.this.lastProvideCallback = null;
+              MonitorConcatenatedAsyncContentProvider.this.inFlightChunks.add(wrappedChunk);
+            }
+
+            tmpLastProvideCallback.accept(content);
+          }
+        }, getPrefetch());
+  }
+
+  @Override
+  protected void releaseChunk(ByteBuffer chunk) {
+    AsyncCallback callback = null;
+    synchronized (this.mutex) {
+      Iterator<WrappedChunk> iterator = this.inFlightChunks.iterator();
+      while (callback == null && iterator.hasNext()) {
+        WrappedChunk wrappedChunk = iterator.next();
+        if (wrappedChunk.chunk == chunk) {
+          iterator.remove();
+          callback = wrappedChunk.callback;
+        }
+      }
+    }
+
+    if (callback == null) {
+      return;
+    }
+
+    Optional<Throwable> failure = getFailure();
+    if (failure.isPresent()) {
+      callback.failed(failure.get());
+    } else {
+      callback.processed();
+    }
+  }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.http.client.MultiPartAsyncContentProvider;
+import org.everit.http.client.Part;
+import org.everit.http.client.async.AsyncCallback;
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.GatheringAsyncContentListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how much time it takes to create the multipart body of a small form and to emit it to a
+ * listener that writes the chunks to a channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartBenchmark {
+
+  /**
+   * Counts the bytes of the chunks like a listener that writes them to a channel.
+   */
+  private static final class CountingListener implements GatheringAsyncContentListener {
+
+    long byteCount;
+
+    @Override
+    public void onContent(ByteBuffer[] contents, AsyncCallback callback) {
+      for (ByteBuffer content : contents) {
+        this.byteCount += content.remaining();
+      }
+      callback.processed();
+    }
+  }
+
+  @Param({ "1", "5", "20" })
+  public int fieldCount;
+
+  private MultiPartAsyncContentProvider createBody() {
+    Part[] parts = new Part[this.fieldCount];
+    for (int i = 0; i < parts.length; i++) {
+      parts[i] = Part.createFieldPart("field" + i, "value of field " + i);
+    }
+    return MultiPartAsyncContentProvider.create(Optional.empty(), parts);
+  }
+
+  @Benchmark
+  public long create() {
+    try (AsyncContentProvider body = createBody()) {
+      return body.getContentLength().get();
+    }
+  }
+
+  @Benchmark
+  public long createAndEmit() {
+    try (AsyncContentProvider body = createBody()) {
+      CountingListener listener = new CountingListener();
+      body.onContent(listener);
+      return listener.byteCount;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.everit.http.client.HttpMethod;
+import org.everit.http.client.HttpRequest;
+import org.everit.http.client.HttpResponse;
+import org.everit.http.client.nio.NioHttpClient;
+import org.everit.http.client.testbase.HttpClientTestServlet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.reactivex.Single;
+
+/**
+ * Measures the throughput of small GET requests that are sent at the same time to the test
+ * servlet over a few connections. Without pipelining, every connection waits for a response before
+ * sending the next request; with pipelining, the requests are written back-to-back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipeliningBenchmark {
+
+  private static final int BATCH_SIZE = 64;
+
+  private static final String CONTEXT_PATH = "/test";
+
+  private static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+  private NioHttpClient client;
+
+  @Param({ "1", "8" })
+  public int pipelining;
+
+  private HttpRequest request;
+
+  private Server server;
+
+  /**
+   * Sends a batch of requests at the same time and waits for all of the responses.
+   */
+  @Benchmark
+  @OperationsPerInvocation(PipeliningBenchmark.BATCH_SIZE)
+  public int sendBatch() {
+    List<Single<Integer>> responses = new ArrayList<>(PipeliningBenchmark.BATCH_SIZE);
+    for (int i = 0; i < PipeliningBenchmark.BATCH_SIZE; i++) {
+      responses.add(this.client.send(this.request).map(response -> {
+        try (HttpResponse r = response) {
+          return r.getStatus();
+        }
+      }));
+    }
+    return Single.merge(responses).reduce(0, Integer::sum).blockingGet();
+  }
+
+  /**
+   * Starts the server with the test servlet and the client.
+   */
+  @Setup
+  public void setup() throws Exception {
+    this.server = new Server();
+    ServletContextHandler servletContextHandler =
+        new ServletContextHandler(this.server, PipeliningBenchmark.CONTEXT_PATH);
+    servletContextHandler.addServlet(new ServletHolder(new HttpClientTestServlet()), "/*");
+    this.server.setHandler(servletContextHandler);
+    ServerConnector serverConnector = new ServerConnector(this.server);
+    this.server.addConnector(serverConnector);
+    this.server.start();
+
+    this.request = HttpRequest.builder()
+        .method(HttpMethod.GET)
+        .url("http://localhost:" + serverConnector.getLocalPort()
+            + PipeliningBenchmark.CONTEXT_PATH + HttpClientTestServlet.PATH_TEST_WITH_NO_BODY)
+        .build();
+    this.client = NioHttpClient.builder()
+        .maxConnectionsPerHost(PipeliningBenchmark.MAX_CONNECTIONS_PER_HOST)
+        .pipelining(this.pipelining)
+        .build();
+  }
+
+  /**
+   * Stops the client and the server.
+   */
+  @TearDown
+  public void tearDown() throws Exception {
+    this.client.close();
+    this.server.stop();
+  }
+}
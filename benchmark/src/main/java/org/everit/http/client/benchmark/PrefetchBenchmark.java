@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AbstractAsyncContentProvider;
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.ByteArrayAsyncContentProvider;
+import org.everit.http.client.async.ConcatenatedAsyncContentProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how much time it takes to read a body from a source where every read has a latency
+ * (like a disk or a network connection) with a listener that also needs time to process every
+ * chunk. With a prefetch of one, reading and processing alternate; with a bigger prefetch, the
+ * next chunks are read while the listener processes the previous ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrefetchBenchmark {
+
+  /**
+   * A provider that reads every chunk on an I/O thread after waiting for the configured latency.
+   */
+  private static final class HighLatencyAsyncContentProvider
+      extends AbstractAsyncContentProvider {
+
+    private final byte[] chunk;
+
+    private final ExecutorService ioExecutor;
+
+    private final long latencyNanos;
+
+    private int remainingChunks;
+
+    HighLatencyAsyncContentProvider(ExecutorService ioExecutor, int chunkCount, int chunkSize,
+        long latencyNanos) {
+      this.ioExecutor = ioExecutor;
+      this.remainingChunks = chunkCount;
+      this.chunk = new byte[chunkSize];
+      this.latencyNanos = latencyNanos;
+    }
+
+    @Override
+    protected void doClose() {
+      // Nothing to close
+    }
+
+    @Override
+    public Optional<Long> getContentLength() {
+      return Optional.empty();
+    }
+
+    @Override
+    public Optional<MediaType> getContentType() {
+      return Optional.empty();
+    }
+
+    @Override
+    protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+      if (this.remainingChunks == 0) {
+        handleSuccess();
+        return;
+      }
+      this.remainingChunks--;
+      this.ioExecutor.execute(() -> {
+        LockSupport.parkNanos(this.latencyNanos);
+        callback.accept(ByteBuffer.wrap(this.chunk));
+      });
+    }
+  }
+
+  private static final int CHUNK_COUNT = 200;
+
+  private static final int CHUNK_SIZE = 8192;
+
+  private ExecutorService ioExecutor;
+
+  @Param({ "50" })
+  public int latencyMicros;
+
+  @Param({ "1", "2", "4", "16" })
+  public int prefetch;
+
+  private ExecutorService processingExecutor;
+
+  private AsyncContentProvider createSource() {
+    return new HighLatencyAsyncContentProvider(this.ioExecutor, PrefetchBenchmark.CHUNK_COUNT,
+        PrefetchBenchmark.CHUNK_SIZE, TimeUnit.MICROSECONDS.toNanos(this.latencyMicros));
+  }
+
+  private long read(AsyncContentProvider provider)
+      throws InterruptedException, ExecutionException {
+
+    long latencyNanos = TimeUnit.MICROSECONDS.toNanos(this.latencyMicros);
+    AtomicLong byteCount = new AtomicLong();
+    CompletableFuture<Long> result = new CompletableFuture<>();
+
+    provider.onSuccess(() -> result.complete(byteCount.get()))
+        .onError(result::completeExceptionally)
+        .onContent((chunk, callback) -> this.processingExecutor.execute(() -> {
+          LockSupport.parkNanos(latencyNanos);
+          byteCount.addAndGet(chunk.remaining());
+          callback.processed();
+        }), this.prefetch);
+
+    try {
+      return result.get();
+    } finally {
+      provider.close();
+    }
+  }
+
+  @Benchmark
+  public long readConcatenatedSource() throws InterruptedException, ExecutionException {
+    return read(new ConcatenatedAsyncContentProvider(Optional.empty(),
+        new ByteArrayAsyncContentProvider(new byte[1], Optional.empty()), createSource()));
+  }
+
+  @Benchmark
+  public long readSource() throws InterruptedException, ExecutionException {
+    return read(createSource());
+  }
+
+  /**
+   * Starts the threads that read and process the chunks.
+   */
+  @Setup
+  public void setup() {
+    this.ioExecutor = Executors.newSingleThreadExecutor();
+    this.processingExecutor = Executors.newSingleThreadExecutor();
+  }
+
+  /**
+   * Stops the threads that read and process the chunks.
+   */
+  @TearDown
+  public void tearDown() {
+    this.ioExecutor.shutdown();
+    this.processingExecutor.shutdown();
+  }
+}
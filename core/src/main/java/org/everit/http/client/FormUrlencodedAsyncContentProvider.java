@@ -15,12 +15,9 @@
  */
 package org.everit.http.client;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
@@ -28,41 +25,52 @@ import java.util.Optional;
 import org.everit.http.client.async.ByteArrayAsyncContentProvider;
 
 /**
+ * <p>
  * Helper class to send HTTP requests with application/x-www-form-urlencoded content type.
+ * </p>
+ *
+ * <p>
+ * The length of the encoded form is calculated first, so the parameters are encoded directly into
+ * an array of the exact size. For very large forms, see
+ * {@link StreamingFormUrlencodedAsyncContentProvider}.
+ * </p>
  */
 public class FormUrlencodedAsyncContentProvider extends ByteArrayAsyncContentProvider {
 
+  static final MediaType CONTENT_TYPE =
+      MediaType.parse("application/x-www-form-urlencoded;charset=UTF-8");
+
+  private static final Collection<String> NO_VALUE = Collections.singletonList("");
+
   private static byte[] convertParametersToByteArray(Map<String, Collection<String>> parameters) {
-    ByteArrayOutputStream bout = new ByteArrayOutputStream();
-    boolean first = true;
+    int length = 0;
     for (Entry<String, Collection<String>> parameter : parameters.entrySet()) {
-      Collection<String> values = parameter.getValue();
+      int keyLength = PercentEncoder.encodedLength(parameter.getKey());
+      for (String value : FormUrlencodedAsyncContentProvider.valuesOf(parameter)) {
+        // The separator, the key, the equals sign and the value
+        length += 1 + keyLength + 1 + PercentEncoder.encodedLength(value);
+      }
+    }
 
-      try {
-        String key = parameter.getKey();
-        if (values == null || values.isEmpty()) {
-          if (!first) {
-            bout.write("&".getBytes(StandardCharsets.UTF_8));
-          }
-          first = false;
-          bout.write(
-              (URLEncoder.encode(key, "UTF-8") + '=').getBytes(StandardCharsets.UTF_8));
-        } else {
-          for (String value : values) {
-            if (!first) {
-              bout.write("&".getBytes(StandardCharsets.UTF_8));
-            }
-            first = false;
-            bout.write(
-                (URLEncoder.encode(key, "UTF-8") + '=' + URLEncoder.encode(value, "UTF-8"))
-                    .getBytes(StandardCharsets.UTF_8));
-          }
+    // The first parameter is not preceded by a separator
+    ByteBuffer buffer = ByteBuffer.allocate(Math.max(length - 1, 0));
+    for (Entry<String, Collection<String>> parameter : parameters.entrySet()) {
+      for (String value : FormUrlencodedAsyncContentProvider.valuesOf(parameter)) {
+        if (buffer.position() > 0) {
+          buffer.put((byte) '&');
         }
-      } catch (IOException e) {
-        throw new UncheckedIOException(e);
+        PercentEncoder.encode(parameter.getKey(), 0, buffer);
+        buffer.put((byte) '=');
+        PercentEncoder.encode(value, 0, buffer);
       }
     }
-    return bout.toByteArray();
+    return buffer.array();
+  }
+
+  private static Collection<String> valuesOf(Entry<String, Collection<String>> parameter) {
+    Collection<String> values = parameter.getValue();
+    return values == null || values.isEmpty() ? FormUrlencodedAsyncContentProvider.NO_VALUE
+        : values;
   }
 
   /**
@@ -73,7 +81,7 @@ public class FormUrlencodedAsyncContentProvider extends ByteArrayAsyncContentPro
    */
   public FormUrlencodedAsyncContentProvider(Map<String, Collection<String>> parameters) {
     super(FormUrlencodedAsyncContentProvider.convertParametersToByteArray(parameters),
-        Optional.of(MediaType.parse("application/x-www-form-urlencoded;charset=UTF-8")));
+        Optional.of(FormUrlencodedAsyncContentProvider.CONTENT_TYPE));
   }
 
 }
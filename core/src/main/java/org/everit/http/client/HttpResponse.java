@@ -26,7 +26,9 @@ import javax.annotation.Generated;
 import org.everit.http.client.async.AsyncContentProvider;
 
 /**
- * An HTTP response that is returned as the result of a {@link HttpRequest}.
+ * An HTTP response that is returned as the result of a {@link HttpRequest}. The response must be
+ * closed; responses that are garbage collected without closing them are reported by the default
+ * {@link LeakDetector}.
  */
 public final class HttpResponse implements Closeable {
 
@@ -106,10 +108,10 @@ public final class HttpResponse implements Closeable {
 
   private final AsyncContentProvider body;
 
-  private boolean closed = false;
-
   private final Map<String, String> headers;
 
+  private final LeakDetector.Tracker leakTracker;
+
   private final int status;
 
   @Generated("SparkTools")
@@ -117,6 +119,7 @@ public final class HttpResponse implements Closeable {
     this.status = builder.status;
     this.headers = Collections.unmodifiableMap(new HashMap<>(builder.headers));
     this.body = Objects.requireNonNull(builder.body);
+    this.leakTracker = LeakDetector.getDefault().track(this);
   }
 
   /**
@@ -126,18 +129,10 @@ public final class HttpResponse implements Closeable {
    */
   @Override
   public void close() {
-    this.closed = true;
+    this.leakTracker.close();
     this.body.close();
   }
 
-  @Override
-  protected void finalize() throws Throwable {
-    if (!this.closed) {
-      System.err.println(
-          "HEY DEVELOPER! YOU FORGOT TO CLOSE YOUR " + this.getClass().getName() + " INSTANCE");
-    }
-  }
-
   /**
    * The body of the HTTP response.
    */
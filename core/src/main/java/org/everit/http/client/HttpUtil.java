@@ -15,7 +15,14 @@
  */
 package org.everit.http.client;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
 import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.CompressingAsyncContentProvider;
+import org.everit.http.client.async.ContentCoding;
+import org.everit.http.client.async.DecompressingAsyncContentProvider;
 
 /**
  * Helper functions to use the library.
@@ -34,6 +41,81 @@ public final class HttpUtil {
     content.onContent((chunk, callback) -> callback.processed());
   }
 
+  /**
+   * Returns a copy of the request whose body is compressed with a
+   * {@link CompressingAsyncContentProvider}. The coding is added to the <i>Content-Encoding</i>
+   * header and the <i>Content-Length</i> header is removed, as the length of the compressed body
+   * is not known in advance. If the request has no body, it is returned as it is.
+   *
+   * @param request
+   *          The request whose body is compressed.
+   * @param contentCoding
+   *          The format of the compressed body.
+   * @return The request with the compressed body.
+   */
+  public static HttpRequest compressBody(HttpRequest request, ContentCoding contentCoding) {
+    Optional<AsyncContentProvider> body = request.getBody();
+    if (!body.isPresent()) {
+      return request;
+    }
+
+    String contentEncoding = contentCoding.getToken();
+    Map<String, String> headers = new LinkedHashMap<>();
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      String name = header.getKey();
+      if ("Content-Encoding".equalsIgnoreCase(name)) {
+        contentEncoding = header.getValue() + ", " + contentEncoding;
+      } else if (!"Content-Length".equalsIgnoreCase(name)) {
+        headers.put(name, header.getValue());
+      }
+    }
+    headers.put("Content-Encoding", contentEncoding);
+
+    return HttpRequest.builderFrom(request)
+        .body(Optional.of(new CompressingAsyncContentProvider(body.get(), contentCoding)))
+        .headers(headers)
+        .build();
+  }
+
+  /**
+   * Returns the body of the response decompressed according to the <i>Content-Encoding</i> header
+   * of the response. If the header is missing or it is <i>identity</i>, the body is returned as it
+   * is. If more codings are listed in the header, they are removed in reverse order. Closing the
+   * returned provider closes the body of the response.
+   *
+   * @param response
+   *          The HTTP response whose body is decompressed.
+   * @return The provider of the decompressed content.
+   * @throws IllegalArgumentException
+   *           if the response is encoded with a coding that is not supported. See
+   *           {@link DecompressingAsyncContentProvider}.
+   */
+  public static AsyncContentProvider decodeBody(HttpResponse response) {
+    AsyncContentProvider body = response.getBody();
+
+    String contentEncoding = null;
+    for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+      if ("Content-Encoding".equalsIgnoreCase(header.getKey())) {
+        contentEncoding = header.getValue();
+      }
+    }
+    if (contentEncoding == null) {
+      return body;
+    }
+
+    String[] codings = contentEncoding.split(",");
+    for (int i = codings.length - 1; i >= 0; i--) {
+      String coding = codings[i].trim();
+      if (!coding.isEmpty() && !"identity".equalsIgnoreCase(coding)) {
+        ContentCoding contentCoding = ContentCoding.fromToken(coding)
+            .orElseThrow(() -> new IllegalArgumentException("Unsupported content coding: "
+                + coding));
+        body = new DecompressingAsyncContentProvider(body, contentCoding);
+      }
+    }
+    return body;
+  }
+
   private HttpUtil() {
   }
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Detects resources that became unreachable without being closed, like {@link HttpResponse}
+ * instances that the programmer forgot to close. A tracked resource is referenced by a
+ * {@link PhantomReference}, so unlike <code>finalize()</code>, tracking does not delay the
+ * reclamation of the resource and untracked resources do not cost anything for the garbage
+ * collector.
+ * </p>
+ *
+ * <p>
+ * The garbage collected references are checked when the next resource is tracked, so there is no
+ * background thread. Leaks are logged via {@link java.util.logging} and counted, see
+ * {@link #getLeakCount()}.
+ * </p>
+ *
+ * <p>
+ * The default instance is configured with the following system properties:
+ * </p>
+ * <ul>
+ * <li><code>org.everit.http.client.leakDetection.level</code>: One of the values of
+ * {@link Level}. Default is {@link Level#SAMPLED}.</li>
+ * <li><code>org.everit.http.client.leakDetection.samplingInterval</code>: One of this many
+ * resources is tracked on the {@link Level#SAMPLED} level. Default is 128.</li>
+ * </ul>
+ */
+public final class LeakDetector {
+
+  /**
+   * The level of leak detection.
+   */
+  public enum Level {
+
+    /**
+     * No resource is tracked.
+     */
+    DISABLED,
+
+    /**
+     * One of every sampling interval resources is tracked, without the stack trace of creating
+     * them. The overhead is small enough to use this level in production.
+     */
+    SAMPLED,
+
+    /**
+     * Every resource is tracked and the stack trace of creating the resource is logged together
+     * with the leak. This has a significant overhead, so it is recommended only for tests.
+     */
+    PARANOID
+  }
+
+  /**
+   * Tracks one resource. The resource must call {@link #close()} when it is closed.
+   */
+  public interface Tracker {
+
+    /**
+     * Marks the tracked resource as closed, so it is not reported as a leak.
+     */
+    void close();
+  }
+
+  /**
+   * Phantom reference of a tracked resource.
+   */
+  private final class LeakReference extends PhantomReference<Object> implements Tracker {
+
+    private final Throwable allocationStackTrace;
+
+    private final String resourceType;
+
+    LeakReference(Object resource, Throwable allocationStackTrace) {
+      super(resource, LeakDetector.this.referenceQueue);
+      this.resourceType = resource.getClass().getName();
+      this.allocationStackTrace = allocationStackTrace;
+    }
+
+    @Override
+    public void close() {
+      if (LeakDetector.this.openReferences.remove(this)) {
+        clear();
+      }
+    }
+  }
+
+  private static final int DEFAULT_SAMPLING_INTERVAL = 128;
+
+  private static final String LEVEL_PROPERTY = "org.everit.http.client.leakDetection.level";
+
+  private static final Logger LOGGER = Logger.getLogger(LeakDetector.class.getName());
+
+  private static final Tracker NOOP_TRACKER = () -> {
+    // Untracked resource
+  };
+
+  private static final String SAMPLING_INTERVAL_PROPERTY =
+      "org.everit.http.client.leakDetection.samplingInterval";
+
+  private static final LeakDetector DEFAULT_INSTANCE = LeakDetector.createDefault();
+
+  private static LeakDetector createDefault() {
+    Level level = Level.SAMPLED;
+    String levelName = System.getProperty(LeakDetector.LEVEL_PROPERTY);
+    if (levelName != null) {
+      try {
+        level = Level.valueOf(levelName.trim().toUpperCase(Locale.ENGLISH));
+      } catch (IllegalArgumentException e) {
+        LeakDetector.LOGGER.warning("Invalid value of system property "
+            + LeakDetector.LEVEL_PROPERTY + ": " + levelName + ", using " + level);
+      }
+    }
+
+    int samplingInterval = Integer.getInteger(LeakDetector.SAMPLING_INTERVAL_PROPERTY,
+        LeakDetector.DEFAULT_SAMPLING_INTERVAL);
+    if (samplingInterval <= 0) {
+      LeakDetector.LOGGER.warning("Invalid value of system property "
+          + LeakDetector.SAMPLING_INTERVAL_PROPERTY + ": " + samplingInterval + ", using "
+          + LeakDetector.DEFAULT_SAMPLING_INTERVAL);
+      samplingInterval = LeakDetector.DEFAULT_SAMPLING_INTERVAL;
+    }
+
+    return new LeakDetector(level, samplingInterval);
+  }
+
+  /**
+   * Returns the instance that is configured with system properties.
+   */
+  public static LeakDetector getDefault() {
+    return LeakDetector.DEFAULT_INSTANCE;
+  }
+
+  private final AtomicLong leakCount = new AtomicLong();
+
+  private final Level level;
+
+  /**
+   * The references of the tracked resources that are not closed yet. The references must be
+   * strongly reachable, otherwise they would be garbage collected together with the resource.
+   */
+  private final Set<LeakReference> openReferences = ConcurrentHashMap.newKeySet();
+
+  private final ReferenceQueue<Object> referenceQueue = new ReferenceQueue<>();
+
+  private final int samplingInterval;
+
+  /**
+   * Constructor.
+   *
+   * @param level
+   *          The level of leak detection.
+   * @param samplingInterval
+   *          One of this many resources is tracked on the {@link Level#SAMPLED} level.
+   */
+  public LeakDetector(Level level, int samplingInterval) {
+    this.level = Objects.requireNonNull(level);
+    if (samplingInterval <= 0) {
+      throw new IllegalArgumentException("Sampling interval must be greater than zero");
+    }
+    this.samplingInterval = samplingInterval;
+  }
+
+  /**
+   * Returns the number of leaks that were detected by this instance.
+   */
+  public long getLeakCount() {
+    return this.leakCount.get();
+  }
+
+  /**
+   * Returns the level of leak detection.
+   */
+  public Level getLevel() {
+    return this.level;
+  }
+
+  /**
+   * Logs and counts the resources whose references were garbage collected without closing them.
+   */
+  void reportLeaks() {
+    Reference<?> reference = this.referenceQueue.poll();
+    while (reference != null) {
+      LeakReference leakReference = (LeakReference) reference;
+      if (this.openReferences.remove(leakReference)) {
+        this.leakCount.incrementAndGet();
+        if (leakReference.allocationStackTrace != null) {
+          LeakDetector.LOGGER.log(java.util.logging.Level.SEVERE, "A "
+              + leakReference.resourceType + " instance was garbage collected without closing it."
+              + " The stack trace shows where it was created.",
+              leakReference.allocationStackTrace);
+        } else {
+          LeakDetector.LOGGER.severe("A " + leakReference.resourceType
+              + " instance was garbage collected without closing it. Set the system property "
+              + LeakDetector.LEVEL_PROPERTY + " to PARANOID to see where it was created.");
+        }
+      }
+      reference = this.referenceQueue.poll();
+    }
+  }
+
+  /**
+   * Starts tracking a resource if the level and the sampling allows it. Leaks of the previously
+   * tracked resources are reported during the call.
+   *
+   * @param resource
+   *          The resource that must be closed before it becomes unreachable.
+   * @return The tracker whose {@link Tracker#close()} function must be called when the resource is
+   *         closed.
+   */
+  public Tracker track(Object resource) {
+    Objects.requireNonNull(resource);
+    if (this.level == Level.DISABLED) {
+      return LeakDetector.NOOP_TRACKER;
+    }
+
+    reportLeaks();
+
+    Throwable allocationStackTrace = null;
+    if (this.level == Level.SAMPLED) {
+      if (ThreadLocalRandom.current().nextInt(this.samplingInterval) != 0) {
+        return LeakDetector.NOOP_TRACKER;
+      }
+    } else {
+      allocationStackTrace = new Throwable("Resource was created here");
+    }
+
+    LeakReference reference = new LeakReference(resource, allocationStackTrace);
+    this.openReferences.add(reference);
+    return reference;
+  }
+}
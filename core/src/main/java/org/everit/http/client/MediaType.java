@@ -16,35 +16,73 @@
 package org.everit.http.client;
 
 import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * <p>
  * An <a href="http://tools.ietf.org/html/rfc2045">RFC 2045</a> Media Type, appropriate to describe
  * the content type of an HTTP request or response body.
+ * </p>
+ *
+ * <p>
+ * Media types are parsed in one pass without regular expressions, and the charset is resolved
+ * during parsing. The most recently parsed strings are cached, so parsing the same Content-Type
+ * header value again (e.g. <code>application/json; charset=utf-8</code> in every response)
+ * returns the same instance.
+ * </p>
  */
 public final class MediaType {
-  private static final Pattern PARAMETER;
 
-  private static final int PARAMETER_MATCHER_GROUP_CHARSET = 3;
+  /**
+   * The maximum number of media types in {@link #CACHE}. When the cache is full, it is cleared, so
+   * values that are parsed only once (e.g. multipart types with random boundaries) cannot push
+   * the frequently parsed ones out for long.
+   */
+  private static final int CACHE_MAX_SIZE = 256;
+
+  private static final ConcurrentMap<String, MediaType> CACHE = new ConcurrentHashMap<>();
+
+  private static final String CHARSET = "charset";
 
-  private static final String QUOTED = "\"([^\"]*)\"";
+  private static final int INITIAL_PARAMETER_ARRAY_LENGTH = 4;
 
-  private static final String TOKEN = "([a-zA-Z0-9-!#$%&'*+.^_`{|}~]+)";
+  private static final String[] NO_PARAMETERS = new String[0];
 
-  private static final Pattern TYPE_SUBTYPE =
-      Pattern.compile(MediaType.TOKEN + "/" + MediaType.TOKEN);
+  private static final String TOKEN_SPECIAL_CHARS = "!#$%&'*+-.^_`{|}~";
+
+  /**
+   * Whether an ASCII character can be part of a token according to
+   * <a href="https://tools.ietf.org/html/rfc7230#section-3.2.6">RFC 7230</a>.
+   */
+  private static final boolean[] TOKEN_CHARS;
 
   static {
-    PARAMETER = Pattern.compile(
-        ";\\s*(?:" + MediaType.TOKEN + "=(?:" + MediaType.TOKEN + "|" + MediaType.QUOTED + "))?");
+    final int asciiLength = 128;
+    TOKEN_CHARS = new boolean[asciiLength];
+    for (char c = '0'; c <= '9'; c++) {
+      MediaType.TOKEN_CHARS[c] = true;
+    }
+    for (char c = 'a'; c <= 'z'; c++) {
+      MediaType.TOKEN_CHARS[c] = true;
+      MediaType.TOKEN_CHARS[Character.toUpperCase(c)] = true;
+    }
+    for (int i = 0; i < MediaType.TOKEN_SPECIAL_CHARS.length(); i++) {
+      MediaType.TOKEN_CHARS[MediaType.TOKEN_SPECIAL_CHARS.charAt(i)] = true;
+    }
   }
 
-  private static void checkOnlyOneCharsetDefined(String string, Optional<String> charset,
+  private static void checkOnlyOneCharsetDefined(String string, String charset,
       String charsetParameter) {
-    if (charset.isPresent() && !charsetParameter.equalsIgnoreCase(charset.get())) {
+    if (charset != null && !charsetParameter.equalsIgnoreCase(charset)) {
       throw new IllegalArgumentException("Multiple charsets defined: \""
           + charset
           + "\" and: \""
@@ -55,6 +93,18 @@ public final class MediaType {
     }
   }
 
+  private static IllegalArgumentException malformedParameter(String string, int position) {
+    return new IllegalArgumentException("Parameter is not formatted correctly: \""
+        + string.substring(position)
+        + "\" for: \""
+        + string
+        + '"');
+  }
+
+  private static IllegalArgumentException noSubtype(String string) {
+    return new IllegalArgumentException("No subtype found for: \"" + string + '"');
+  }
+
   /**
    * Returns a media type for {@code string}.
    *
@@ -62,67 +112,205 @@ public final class MediaType {
    *           if {@code string} is not a well-formed media type.
    */
   public static MediaType parse(String string) {
-    Matcher typeSubtype = MediaType.TYPE_SUBTYPE.matcher(string);
-    if (!typeSubtype.lookingAt()) {
-      throw new IllegalArgumentException("No subtype found for: \"" + string + '"');
-    }
-    String type = typeSubtype.group(1).toLowerCase(Locale.US);
-    String subtype = typeSubtype.group(2).toLowerCase(Locale.US);
-
-    Optional<String> charset = Optional.empty();
-    Matcher parameter = MediaType.PARAMETER.matcher(string);
-    for (int s = typeSubtype.end(); s < string.length(); s = parameter.end()) {
-      parameter.region(s, string.length());
-      if (!parameter.lookingAt()) {
-        throw new IllegalArgumentException("Parameter is not formatted correctly: \""
-            + string.substring(s)
-            + "\" for: \""
-            + string
-            + '"');
+    MediaType mediaType = MediaType.CACHE.get(string);
+    if (mediaType == null) {
+      mediaType = MediaType.parseUncached(string);
+      if (MediaType.CACHE.size() >= MediaType.CACHE_MAX_SIZE) {
+        MediaType.CACHE.clear();
       }
+      MediaType.CACHE.putIfAbsent(string, mediaType);
+    }
+    return mediaType;
+  }
 
-      String name = parameter.group(1);
-      if (name == null || !"charset".equalsIgnoreCase(name)) {
+  /**
+   * Parses a media type without looking it up in or adding it to the cache. Used for media types
+   * that are known to be unique, like the ones with random multipart boundaries.
+   */
+  static MediaType parseUncached(String string) {
+    int length = string.length();
+    int typeEnd = MediaType.tokenEnd(string, 0);
+    if (typeEnd == 0 || typeEnd == length || string.charAt(typeEnd) != '/') {
+      throw MediaType.noSubtype(string);
+    }
+    int subtypeEnd = MediaType.tokenEnd(string, typeEnd + 1);
+    if (subtypeEnd == typeEnd + 1) {
+      throw MediaType.noSubtype(string);
+    }
+    String type = MediaType.toLowerCase(string, 0, typeEnd);
+    String subtype = MediaType.toLowerCase(string, typeEnd + 1, subtypeEnd);
+
+    String[] parameters = MediaType.NO_PARAMETERS;
+    int parameterArrayLength = 0;
+    String charset = null;
+    int position = subtypeEnd;
+    while (position < length) {
+      int parameterStart = position;
+      position = MediaType.whitespaceEnd(string, position);
+      if (position == length) {
+        break;
+      }
+      if (string.charAt(position) != ';') {
+        throw MediaType.malformedParameter(string, parameterStart);
+      }
+      position = MediaType.whitespaceEnd(string, position + 1);
+      int nameEnd = MediaType.tokenEnd(string, position);
+      if (nameEnd == position) {
+        // Empty parameter, like in "text/plain;"
         continue;
       }
-      String charsetParameter;
-      String token = parameter.group(2);
-      if (token != null) {
-        // If the token is 'single-quoted' it's invalid! But we're lenient and strip the quotes.
-        charsetParameter = token.startsWith("'") && token.endsWith("'") && token.length() > 2
-            ? token.substring(1, token.length() - 1)
-            : token;
+      if (nameEnd == length || string.charAt(nameEnd) != '=') {
+        throw MediaType.malformedParameter(string, parameterStart);
+      }
+      String name = MediaType.toLowerCase(string, position, nameEnd);
+
+      String value;
+      position = nameEnd + 1;
+      if (position < length && string.charAt(position) == '"') {
+        int valueEnd = MediaType.quotedStringEnd(string, position);
+        if (valueEnd < 0) {
+          throw MediaType.malformedParameter(string, parameterStart);
+        }
+        value = MediaType.unquote(string, position + 1, valueEnd - 1);
+        position = valueEnd;
       } else {
-        // Value is "double-quoted". That's valid and our regex group already strips the quotes.
-        charsetParameter = parameter.group(MediaType.PARAMETER_MATCHER_GROUP_CHARSET);
+        int valueEnd = MediaType.tokenEnd(string, position);
+        if (valueEnd == position) {
+          throw MediaType.malformedParameter(string, parameterStart);
+        }
+        value = string.substring(position, valueEnd);
+        if (MediaType.CHARSET.equals(name) && value.length() > 2 && value.startsWith("'")
+            && value.endsWith("'")) {
+          // If the token is 'single-quoted' it's invalid! But we're lenient and strip the quotes.
+          value = value.substring(1, value.length() - 1);
+        }
+        position = valueEnd;
+      }
+
+      if (MediaType.CHARSET.equals(name)) {
+        MediaType.checkOnlyOneCharsetDefined(string, charset, value);
+        charset = value;
+      }
+      if (parameterArrayLength == parameters.length) {
+        parameters = Arrays.copyOf(parameters,
+            Math.max(MediaType.INITIAL_PARAMETER_ARRAY_LENGTH, parameters.length * 2));
+      }
+      parameters[parameterArrayLength++] = name;
+      parameters[parameterArrayLength++] = value;
+    }
+
+    if (parameterArrayLength < parameters.length) {
+      parameters = Arrays.copyOf(parameters, parameterArrayLength);
+    }
+    return new MediaType(string, type, subtype, parameters, MediaType.resolveCharset(charset));
+  }
+
+  /**
+   * Returns the position after the closing quote of a quoted string or -1 if the quoted string is
+   * not closed.
+   */
+  private static int quotedStringEnd(String string, int openingQuotePosition) {
+    int length = string.length();
+    int position = openingQuotePosition + 1;
+    while (position < length) {
+      char c = string.charAt(position);
+      if (c == '"') {
+        return position + 1;
+      }
+      position += c == '\\' ? 2 : 1;
+    }
+    return -1;
+  }
+
+  private static Optional<Charset> resolveCharset(String charset) {
+    if (charset == null) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(Charset.forName(charset));
+    } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+      return Optional.empty();
+    }
+  }
+
+  private static int tokenEnd(String string, int from) {
+    int length = string.length();
+    int position = from;
+    while (position < length) {
+      char c = string.charAt(position);
+      if (c >= MediaType.TOKEN_CHARS.length || !MediaType.TOKEN_CHARS[c]) {
+        break;
       }
-      MediaType.checkOnlyOneCharsetDefined(string, charset, charsetParameter);
-      charset = Optional.ofNullable(charsetParameter);
+      position++;
     }
+    return position;
+  }
 
-    return new MediaType(string, type, subtype, charset);
+  private static String toLowerCase(String string, int from, int to) {
+    for (int i = from; i < to; i++) {
+      char c = string.charAt(i);
+      if (c >= 'A' && c <= 'Z') {
+        return string.substring(from, to).toLowerCase(Locale.US);
+      }
+    }
+    return string.substring(from, to);
   }
 
-  private final Optional<String> charset;
+  private static String unquote(String string, int from, int to) {
+    int backslash = string.indexOf('\\', from);
+    if (backslash < 0 || backslash >= to) {
+      return string.substring(from, to);
+    }
+    StringBuilder sb = new StringBuilder(to - from);
+    for (int i = from; i < to; i++) {
+      char c = string.charAt(i);
+      if (c == '\\') {
+        i++;
+        c = string.charAt(i);
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  private static int whitespaceEnd(String string, int from) {
+    int length = string.length();
+    int position = from;
+    while (position < length && (string.charAt(position) == ' '
+        || string.charAt(position) == '\t')) {
+      position++;
+    }
+    return position;
+  }
+
+  private final Optional<Charset> charset;
 
   private final String mediaType;
 
+  /**
+   * The lowercase names and the unquoted values of the parameters after each other.
+   */
+  private final String[] parameters;
+
   private final String subtype;
 
   private final String type;
 
-  private MediaType(String mediaType, String type, String subtype, Optional<String> charset) {
+  private MediaType(String mediaType, String type, String subtype, String[] parameters,
+      Optional<Charset> charset) {
     this.mediaType = mediaType;
     this.type = type;
     this.subtype = subtype;
+    this.parameters = parameters;
     this.charset = charset;
   }
 
   /**
-   * Returns the charset of this media type, or null if this media type doesn't specify a charset.
+   * Returns the charset of this media type, or {@link Optional#empty()} if this media type doesn't
+   * specify a charset or its charset is unsupported by the current runtime.
    */
   public Optional<Charset> charset() {
-    return charset(null);
+    return this.charset;
   }
 
   /**
@@ -130,8 +318,7 @@ public final class MediaType {
    * doesn't specify a charset, of it its charset is unsupported by the current runtime.
    */
   public Optional<Charset> charset(Optional<Charset> defaultValue) {
-    return this.charset.isPresent() ? Optional.of(Charset.forName(this.charset.get()))
-        : defaultValue;
+    return this.charset.isPresent() ? this.charset : defaultValue;
   }
 
   @Override
@@ -144,6 +331,34 @@ public final class MediaType {
     return this.mediaType.hashCode();
   }
 
+  /**
+   * Returns the value of a parameter of this media type, e.g. the <i>boundary</i> of a multipart
+   * type, or {@link Optional#empty()} if the parameter is not specified. The name of the parameter
+   * is case insensitive and the quotes of a quoted value are stripped. If the parameter is
+   * specified more than once, the first value is returned.
+   */
+  public Optional<String> parameter(String name) {
+    for (int i = 0; i < this.parameters.length; i += 2) {
+      if (this.parameters[i].equalsIgnoreCase(name)) {
+        return Optional.of(this.parameters[i + 1]);
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Returns the parameters of this media type in the order they are specified. The names of the
+   * parameters are lowercase and the quotes of the quoted values are stripped. If a parameter is
+   * specified more than once, the first value is returned.
+   */
+  public Map<String, String> parameters() {
+    Map<String, String> result = new LinkedHashMap<>();
+    for (int i = 0; i < this.parameters.length; i += 2) {
+      result.putIfAbsent(this.parameters[i], this.parameters[i + 1]);
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
   /**
    * Returns a specific media subtype, such as "plain" or "png", "mpeg", "mp4" or "xml".
    */
@@ -15,22 +15,36 @@
  */
 package org.everit.http.client;
 
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Optional;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.everit.http.client.async.AsyncContentProvider;
 import org.everit.http.client.async.ByteArrayAsyncContentProvider;
 import org.everit.http.client.async.ConcatenatedAsyncContentProvider;
 
 /**
+ * <p>
  * Helper class to send HTTP requests with <i>multipart/form-data</i> content type.
+ * </p>
+ *
+ * <p>
+ * The boundary line and the headers of every part are encoded into one array, so the body
+ * consists of the framing array and the content of every part plus the close delimiter. If the
+ * length of the content of every part is known, the length of the body is known in advance too.
+ * </p>
  */
 public final class MultiPartAsyncContentProvider extends ConcatenatedAsyncContentProvider {
 
+  private static final char[] BOUNDARY_ALPHABET =
+      "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+
+  private static final String BOUNDARY_PREFIX = "EveritHttpClientBoundary";
+
+  private static final int BOUNDARY_RANDOM_LENGTH = 16;
+
+  private static final byte[] CLOSE_DELIMITER_END = { '-', '-', '\r', '\n' };
+
   /**
    * Constructor.
    *
@@ -58,61 +72,55 @@ public final class MultiPartAsyncContentProvider extends ConcatenatedAsyncConten
   }
 
   private static String makeBoundary() {
-    Random random = new Random();
-    StringBuilder builder = new StringBuilder("EveritHttpClientBoundary");
-    int length = builder.length();
-    final int lengthOfStringRepresentationOfLong = 16;
-    while (builder.length() < length + lengthOfStringRepresentationOfLong) {
-      long rnd = random.nextLong();
-      final int radix = 36;
-      builder.append(Long.toString(rnd < 0 ? -rnd : rnd, radix));
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int prefixLength = MultiPartAsyncContentProvider.BOUNDARY_PREFIX.length();
+    char[] boundary = new char[prefixLength + MultiPartAsyncContentProvider.BOUNDARY_RANDOM_LENGTH];
+    MultiPartAsyncContentProvider.BOUNDARY_PREFIX.getChars(0, prefixLength, boundary, 0);
+    for (int i = prefixLength; i < boundary.length; i++) {
+      boundary[i] = MultiPartAsyncContentProvider.BOUNDARY_ALPHABET[
+          random.nextInt(MultiPartAsyncContentProvider.BOUNDARY_ALPHABET.length)];
     }
-    builder.setLength(length + lengthOfStringRepresentationOfLong);
-    return builder.toString();
+    return new String(boundary);
   }
 
   private static AsyncContentProvider[] resolveContentProviders(Part[] parts,
       String boundary) {
-    Charset charset = StandardCharsets.US_ASCII;
-    String onlyBoundaryLine = "--" + boundary + "--\r\n";
 
-    if (parts.length == 0) {
-      return new AsyncContentProvider[] {
-          new ByteArrayAsyncContentProvider(onlyBoundaryLine.getBytes(charset), Optional.empty()) };
-    }
-
-    List<AsyncContentProvider> result = new ArrayList<>();
+    // The line break that precedes the boundary belongs to it, so the delimiter of every part
+    // except the first one is "\r\n--boundary\r\n"
+    byte[] delimiterLine = ("\r\n--" + boundary + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    final int lineBreakLength = 2;
 
-    String firstBoundaryLine = "--" + boundary + "\r\n";
-    result.add(
-        new ByteArrayAsyncContentProvider(firstBoundaryLine.getBytes(charset), Optional.empty()));
+    AsyncContentProvider[] result = new AsyncContentProvider[parts.length * 2 + 1];
+    for (int i = 0; i < parts.length; i++) {
+      int offset = i == 0 ? lineBreakLength : 0;
+      int delimiterLength = delimiterLine.length - offset;
+      byte[] headerBytes = parts[i].getHeaderBytes();
 
-    for (int i = 0, n = parts.length; i < n; i++) {
-      Part part = parts[i];
-      result.add(
-          new ByteArrayAsyncContentProvider(part.getHeaders().getBytes(StandardCharsets.UTF_8),
-              Optional.empty()));
+      byte[] prefix = new byte[delimiterLength + headerBytes.length];
+      System.arraycopy(delimiterLine, offset, prefix, 0, delimiterLength);
+      System.arraycopy(headerBytes, 0, prefix, delimiterLength, headerBytes.length);
 
-      result.add(part.getContent());
-
-      if (i < n - 1) {
-        String middleBoundaryLine = "\r\n" + firstBoundaryLine;
-        result.add(
-            new ByteArrayAsyncContentProvider(middleBoundaryLine.getBytes(charset),
-                Optional.empty()));
-      }
+      result[i * 2] = new ByteArrayAsyncContentProvider(prefix, Optional.empty());
+      result[i * 2 + 1] = parts[i].getContent();
     }
 
-    String lastBoundaryLine = "\r\n" + onlyBoundaryLine;
-    result.add(
-        new ByteArrayAsyncContentProvider(lastBoundaryLine.getBytes(charset),
-            Optional.empty()));
-
-    return result.toArray(new AsyncContentProvider[result.size()]);
+    // "\r\n--boundary--\r\n", without the leading line break if there are no parts
+    int offset = parts.length == 0 ? lineBreakLength : 0;
+    int boundaryEnd = delimiterLine.length - lineBreakLength;
+    byte[] closeDelimiterLine = new byte[boundaryEnd - offset
+        + MultiPartAsyncContentProvider.CLOSE_DELIMITER_END.length];
+    System.arraycopy(delimiterLine, offset, closeDelimiterLine, 0, boundaryEnd - offset);
+    System.arraycopy(MultiPartAsyncContentProvider.CLOSE_DELIMITER_END, 0, closeDelimiterLine,
+        boundaryEnd - offset, MultiPartAsyncContentProvider.CLOSE_DELIMITER_END.length);
+    result[result.length - 1] =
+        new ByteArrayAsyncContentProvider(closeDelimiterLine, Optional.empty());
+
+    return result;
   }
 
   private MultiPartAsyncContentProvider(String boundary, AsyncContentProvider... contentProviders) {
-    super(Optional.of(MediaType.parse("multipart/form-data; boundary="
+    super(Optional.of(MediaType.parseUncached("multipart/form-data; boundary="
         + boundary)), contentProviders);
 
   }
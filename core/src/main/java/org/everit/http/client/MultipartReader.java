@@ -0,0 +1,702 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.http.client.async.AbstractAsyncContentProvider;
+import org.everit.http.client.async.AsyncCallback;
+import org.everit.http.client.async.AsyncContentProvider;
+
+/**
+ * <p>
+ * Reads a multipart body (e.g. <i>multipart/mixed</i> or <i>multipart/byteranges</i>) part by part
+ * while the chunks of the body arrive. The content of every part is provided by its own
+ * {@link AsyncContentProvider} whose chunks are slices of the chunks of the body, so the memory
+ * usage does not depend on the size of the parts. Only the headers of the parts and the bytes of a
+ * boundary that is split between two chunks are copied.
+ * </p>
+ *
+ * <p>
+ * The parts are passed one after the other to the listener registered via
+ * {@link #onPart(Consumer)}: the next part is passed when all content of the previous part was
+ * provided. The content of every part must be read or closed; closing it skips the rest of the
+ * part. The next chunk of the body is requested only when all slices of the previous chunk are
+ * processed, so the backpressure of the part listeners is propagated to the body.
+ * </p>
+ *
+ * <p>
+ * The boundaries are searched with the Boyer-Moore-Horspool algorithm, which skips most of the
+ * bytes of the content without comparing them.
+ * </p>
+ */
+public class MultipartReader implements Closeable {
+
+  /**
+   * Provides the content of a part.
+   */
+  private final class PartContentProvider extends AbstractAsyncContentProvider {
+
+    private final Optional<MediaType> contentType;
+
+    private volatile boolean discarded = false;
+
+    private volatile Consumer<ByteBuffer> nextChunkCallback;
+
+    PartContentProvider(Optional<MediaType> contentType) {
+      this.contentType = contentType;
+    }
+
+    @Override
+    protected void doClose() {
+      this.discarded = true;
+      MultipartReader.this.drain();
+    }
+
+    void fail(Throwable e) {
+      handleErrorFromInput(e);
+    }
+
+    void finish() {
+      handleSuccess();
+    }
+
+    @Override
+    public Optional<Long> getContentLength() {
+      return Optional.empty();
+    }
+
+    @Override
+    public Optional<MediaType> getContentType() {
+      return this.contentType;
+    }
+
+    @Override
+    protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+      this.nextChunkCallback = callback;
+      MultipartReader.this.drain();
+    }
+
+    @Override
+    protected void releaseChunk(ByteBuffer chunk) {
+      MultipartReader.this.releaseSlice();
+    }
+  }
+
+  /**
+   * The part of the multipart body that is read.
+   */
+  private enum State {
+    BODY, CLOSE_DELIMITER, DELIMITER_END, DELIMITER_LF, EPILOGUE, HEADERS, PREAMBLE,
+    TRANSPORT_PADDING
+  }
+
+  private static final int ALPHABET_SIZE = 256;
+
+  private static final int DEFAULT_MAX_HEADER_LENGTH = 16 * 1024;
+
+  private static final int INITIAL_HEADER_BUFFER_SIZE = 256;
+
+  private static final Logger LOGGER = Logger.getLogger(MultipartReader.class.getName());
+
+  /**
+   * Creates a reader for a multipart body with the boundary of the content type of the body.
+   *
+   * @param body
+   *          The multipart body.
+   * @param contentType
+   *          The content type of the body, e.g. the <i>Content-Type</i> header of the response.
+   * @return The reader.
+   * @throws IllegalArgumentException
+   *           if the content type does not have a <i>boundary</i> parameter.
+   */
+  public static MultipartReader create(AsyncContentProvider body, MediaType contentType) {
+    String boundary = contentType.parameter("boundary").orElseThrow(
+        () -> new IllegalArgumentException("No boundary in content type: " + contentType));
+    return new MultipartReader(body, boundary);
+  }
+
+  private static int[] createSkipTable(byte[] pattern) {
+    int[] skipTable = new int[MultipartReader.ALPHABET_SIZE];
+    Arrays.fill(skipTable, pattern.length);
+    final int byteMask = 0xff;
+    int last = pattern.length - 1;
+    for (int i = 0; i < last; i++) {
+      skipTable[pattern[i] & byteMask] = last - i;
+    }
+    return skipTable;
+  }
+
+  private static Map<String, String> parseHeaders(byte[] buffer, int length)
+      throws MalformedMultipartException {
+
+    Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    String previousName = null;
+    for (String line : new String(buffer, 0, length, StandardCharsets.UTF_8).split("\r\n")) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      if (previousName != null && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+        // Obsolete line folding
+        headers.put(previousName, headers.get(previousName) + ' ' + line.trim());
+        continue;
+      }
+      int colon = line.indexOf(':');
+      if (colon <= 0) {
+        throw new MalformedMultipartException("Invalid header line in part: " + line);
+      }
+      String name = line.substring(0, colon).trim();
+      headers.merge(name, line.substring(colon + 1).trim(),
+          (previous, next) -> previous + ", " + next);
+      previousName = name;
+    }
+    return Collections.unmodifiableMap(headers);
+  }
+
+  private static Optional<MediaType> parseMediaType(Optional<String> value) {
+    try {
+      return value.map(MediaType::parse);
+    } catch (IllegalArgumentException e) {
+      return Optional.empty();
+    }
+  }
+
+  private static ByteBuffer slice(ByteBuffer chunk, int from, int to) {
+    ByteBuffer slice = chunk.duplicate();
+    slice.limit(to).position(from);
+    return slice.slice();
+  }
+
+  /**
+   * The beginning of a delimiter at the end of the previous chunk of the body.
+   */
+  private final byte[] carry;
+
+  private int carryLength;
+
+  private volatile boolean completed = false;
+
+  /**
+   * The delimiter that precedes every boundary line: CRLF, two dashes and the boundary.
+   */
+  private final byte[] delimiter;
+
+  private volatile Throwable error;
+
+  private volatile Consumer<Throwable> errorAction;
+
+  private byte[] headerBuffer;
+
+  private int headerLength;
+
+  private final int maxHeaderLength;
+
+  private volatile PartContentProvider part;
+
+  private Consumer<ReceivedPart> partListener;
+
+  /**
+   * The number of slices of the current chunk of the body that are not processed yet plus one
+   * while the chunk is scanned. The chunk is processed when the number drops to zero.
+   */
+  private final AtomicInteger pendingSlices = new AtomicInteger();
+
+  private final int[] skipTable;
+
+  private final AsyncContentProvider source;
+
+  private volatile AsyncCallback sourceCallback;
+
+  private volatile ByteBuffer sourceChunk;
+
+  private volatile Throwable sourceError;
+
+  private volatile boolean sourceFinished = false;
+
+  private State state = State.PREAMBLE;
+
+  private volatile Runnable successAction;
+
+  /**
+   * Helper array to check whether the carried bytes and the beginning of the next chunk form a
+   * delimiter.
+   */
+  private final byte[] window;
+
+  private final AtomicInteger wip = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param body
+   *          The multipart body.
+   * @param boundary
+   *          The boundary that separates the parts.
+   */
+  public MultipartReader(AsyncContentProvider body, String boundary) {
+    this(body, boundary, MultipartReader.DEFAULT_MAX_HEADER_LENGTH);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param body
+   *          The multipart body.
+   * @param boundary
+   *          The boundary that separates the parts.
+   * @param maxHeaderLength
+   *          The maximum length of the headers of a part in bytes. If the headers of a part are
+   *          longer, the reader fails with a {@link MalformedMultipartException}.
+   */
+  public MultipartReader(AsyncContentProvider body, String boundary, int maxHeaderLength) {
+    this.source = Objects.requireNonNull(body);
+    if (boundary.isEmpty()) {
+      throw new IllegalArgumentException("Boundary must not be empty");
+    }
+    if (maxHeaderLength <= 0) {
+      throw new IllegalArgumentException("Maximum header length must be greater than zero");
+    }
+    this.maxHeaderLength = maxHeaderLength;
+    this.headerBuffer =
+        new byte[Math.min(MultipartReader.INITIAL_HEADER_BUFFER_SIZE, maxHeaderLength)];
+
+    this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+    this.skipTable = MultipartReader.createSkipTable(this.delimiter);
+    this.carry = new byte[this.delimiter.length];
+    this.window = new byte[this.delimiter.length * 2];
+
+    // The first boundary line may be at the beginning of the body without a preceding line break
+    this.carry[this.carryLength++] = '\r';
+    this.carry[this.carryLength++] = '\n';
+  }
+
+  @Override
+  public void close() {
+    this.source.close();
+  }
+
+  private void drain() {
+    if (this.wip.getAndIncrement() != 0) {
+      return;
+    }
+
+    int missed = 1;
+    do {
+      if (this.error == null && !this.completed) {
+        scan();
+      }
+      missed = this.wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void emit(ByteBuffer content) {
+    PartContentProvider part = this.part;
+    Consumer<ByteBuffer> callback = part.nextChunkCallback;
+    part.nextChunkCallback = null;
+    if (callback != null) {
+      this.pendingSlices.incrementAndGet();
+      callback.accept(content);
+    }
+  }
+
+  private void emit(ByteBuffer chunk, int from, int to) {
+    if (to > from && isDelivering()) {
+      emit(MultipartReader.slice(chunk, from, to));
+    }
+  }
+
+  private void emitCopy(byte[] bytes, int length) {
+    if (length > 0 && isDelivering()) {
+      emit(ByteBuffer.wrap(Arrays.copyOf(bytes, length)));
+    }
+  }
+
+  private void finish() {
+    if (this.state != State.EPILOGUE) {
+      handleError(
+          new MalformedMultipartException("Multipart body ended before the close delimiter"));
+      return;
+    }
+
+    this.completed = true;
+    Runnable successAction = this.successAction;
+    if (successAction != null) {
+      runSuccessAction(successAction);
+    }
+  }
+
+  private void handleError(Throwable e) {
+    if (this.error != null) {
+      return;
+    }
+    this.error = e;
+
+    if (this.state == State.BODY) {
+      this.part.fail(e);
+    }
+    if (this.sourceChunk != null) {
+      this.sourceChunk = null;
+      releaseSlice();
+    }
+
+    Consumer<Throwable> errorAction = this.errorAction;
+    if (errorAction != null) {
+      runErrorAction(errorAction, e);
+    }
+  }
+
+  private int indexOfDelimiter(ByteBuffer chunk, int from, int to) {
+    final int byteMask = 0xff;
+    int last = this.delimiter.length - 1;
+    byte lastByte = this.delimiter[last];
+    int i = from;
+    while (i + last < to) {
+      byte b = chunk.get(i + last);
+      if (b == lastByte && matchesDelimiter(chunk, i, last)) {
+        return i;
+      }
+      i += this.skipTable[b & byteMask];
+    }
+    return -1;
+  }
+
+  private boolean isDelivering() {
+    return this.state == State.BODY && !this.part.discarded;
+  }
+
+  private boolean isEndOfHeaders() {
+    byte[] buffer = this.headerBuffer;
+    int length = this.headerLength;
+    final int emptyLineLength = 4;
+    if (length == 2) {
+      return buffer[0] == '\r';
+    }
+    return length >= emptyLineLength && buffer[length - 2] == '\r'
+        && buffer[length - emptyLineLength + 1] == '\n' && buffer[length - emptyLineLength] == '\r';
+  }
+
+  private boolean matchesDelimiter(ByteBuffer chunk, int index, int length) {
+    for (int i = 0; i < length; i++) {
+      if (chunk.get(index + i) != this.delimiter[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean matchesDelimiterInWindow(int index, int windowLength) {
+    int length = Math.min(this.delimiter.length, windowLength - index);
+    for (int i = 0; i < length; i++) {
+      if (this.window[index + i] != this.delimiter[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void onDelimiter() {
+    if (this.state == State.BODY) {
+      this.part.finish();
+    }
+    this.state = State.DELIMITER_END;
+  }
+
+  /**
+   * Registers the listener that is notified if the body cannot be read or it is not a well-formed
+   * multipart body. The content of the current part also fails with the same error.
+   *
+   * @param action
+   *          The listener.
+   * @return This reader.
+   */
+  public MultipartReader onError(Consumer<Throwable> action) {
+    this.errorAction = action;
+    Throwable error = this.error;
+    if (error != null) {
+      runErrorAction(action, error);
+    }
+    return this;
+  }
+
+  /**
+   * Registers the listener of the parts and starts reading the body. The listeners of
+   * {@link #onSuccess(Runnable)} and {@link #onError(Consumer)} should be registered before.
+   *
+   * @param listener
+   *          The listener that is notified about every part of the body.
+   * @return This reader.
+   */
+  public MultipartReader onPart(Consumer<ReceivedPart> listener) {
+    this.partListener = Objects.requireNonNull(listener);
+    this.source
+        .onError(this::onSourceError)
+        .onSuccess(this::onSourceSuccess)
+        .onContent(this::onSourceChunk);
+    return this;
+  }
+
+  private void onSourceChunk(ByteBuffer chunk, AsyncCallback callback) {
+    this.pendingSlices.set(1);
+    this.sourceCallback = callback;
+    this.sourceChunk = chunk.duplicate();
+    drain();
+  }
+
+  private void onSourceError(Throwable e) {
+    this.sourceError = e;
+    drain();
+  }
+
+  private void onSourceSuccess() {
+    this.sourceFinished = true;
+    drain();
+  }
+
+  /**
+   * Registers the listener that is notified when the close delimiter and the end of the body is
+   * reached. At that time the whole content of every part was provided, but the listener of the
+   * last part may still be processing its last chunk.
+   *
+   * @param action
+   *          The listener.
+   * @return This reader.
+   */
+  public MultipartReader onSuccess(Runnable action) {
+    this.successAction = action;
+    if (this.completed) {
+      runSuccessAction(action);
+    }
+    return this;
+  }
+
+  /**
+   * Returns the length of the longest suffix of the range that is the beginning of the delimiter.
+   */
+  private int partialDelimiterLength(ByteBuffer chunk, int from, int to) {
+    for (int length = Math.min(this.delimiter.length - 1, to - from); length > 0; length--) {
+      if (matchesDelimiter(chunk, to - length, length)) {
+        return length;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Reads the end of the boundary line: either the two dashes of the close delimiter or the
+   * optional transport padding and the line break before the headers of the next part.
+   */
+  private void readDelimiterEnd(ByteBuffer chunk) throws MalformedMultipartException {
+    while (chunk.hasRemaining() && this.state != State.HEADERS && this.state != State.EPILOGUE) {
+      byte b = chunk.get();
+      State nextState = null;
+      if (this.state == State.CLOSE_DELIMITER) {
+        nextState = b == '-' ? State.EPILOGUE : null;
+      } else if (this.state == State.DELIMITER_LF) {
+        nextState = b == '\n' ? State.HEADERS : null;
+      } else if (b == '\r') {
+        nextState = State.DELIMITER_LF;
+      } else if (b == ' ' || b == '\t') {
+        nextState = State.TRANSPORT_PADDING;
+      } else if (b == '-' && this.state == State.DELIMITER_END) {
+        nextState = State.CLOSE_DELIMITER;
+      }
+
+      if (nextState == null) {
+        throw new MalformedMultipartException("Invalid character after boundary: " + b);
+      }
+      this.state = nextState;
+    }
+    this.headerLength = 0;
+  }
+
+  private void readHeaders(ByteBuffer chunk) throws MalformedMultipartException {
+    while (chunk.hasRemaining()) {
+      if (this.headerLength == this.headerBuffer.length) {
+        if (this.headerLength == this.maxHeaderLength) {
+          throw new MalformedMultipartException(
+              "Headers of part are longer than " + this.maxHeaderLength + " bytes");
+        }
+        this.headerBuffer = Arrays.copyOf(this.headerBuffer,
+            Math.min(this.headerLength * 2, this.maxHeaderLength));
+      }
+
+      byte b = chunk.get();
+      this.headerBuffer[this.headerLength++] = b;
+      if (b == '\n' && isEndOfHeaders()) {
+        startPart();
+        return;
+      }
+    }
+  }
+
+  private void releaseSlice() {
+    if (this.pendingSlices.decrementAndGet() != 0) {
+      return;
+    }
+    Throwable error = this.error;
+    if (error == null) {
+      this.sourceCallback.processed();
+    } else {
+      this.sourceCallback.failed(error);
+    }
+  }
+
+  /**
+   * Checks whether the carried bytes and the beginning of the chunk form a delimiter. The carried
+   * bytes that cannot be part of a delimiter are provided as content.
+   */
+  private void resolveCarry(ByteBuffer chunk) {
+    int length = Math.min(this.delimiter.length, chunk.remaining());
+    System.arraycopy(this.carry, 0, this.window, 0, this.carryLength);
+    chunk.duplicate().get(this.window, this.carryLength, length);
+    int windowLength = this.carryLength + length;
+
+    int start = 0;
+    while (start < this.carryLength && !matchesDelimiterInWindow(start, windowLength)) {
+      start++;
+    }
+
+    if (start == this.carryLength) {
+      this.carryLength = 0;
+      emitCopy(this.window, start);
+    } else if (start + this.delimiter.length <= windowLength) {
+      chunk.position(chunk.position() + start + this.delimiter.length - this.carryLength);
+      this.carryLength = 0;
+      emitCopy(this.window, start);
+      onDelimiter();
+    } else {
+      chunk.position(chunk.limit());
+      this.carryLength = windowLength - start;
+      System.arraycopy(this.window, start, this.carry, 0, this.carryLength);
+      emitCopy(this.window, start);
+    }
+  }
+
+  private void runErrorAction(Consumer<Throwable> errorAction, Throwable e) {
+    try {
+      errorAction.accept(e);
+    } catch (RuntimeException ex) {
+      MultipartReader.LOGGER.log(Level.SEVERE, "Error during handling exception", ex);
+    }
+  }
+
+  private void runSuccessAction(Runnable successAction) {
+    try {
+      successAction.run();
+    } catch (RuntimeException e) {
+      MultipartReader.LOGGER.log(Level.SEVERE, "Error during handling success", e);
+    }
+  }
+
+  private void scan() {
+    while (true) {
+      Throwable sourceError = this.sourceError;
+      if (sourceError != null) {
+        handleError(sourceError);
+        return;
+      }
+
+      ByteBuffer chunk = this.sourceChunk;
+      if (chunk == null) {
+        if (this.sourceFinished) {
+          finish();
+        }
+        return;
+      }
+      if (!chunk.hasRemaining()) {
+        this.sourceChunk = null;
+        releaseSlice();
+        continue;
+      }
+      if (isDelivering() && this.part.nextChunkCallback == null) {
+        return;
+      }
+
+      try {
+        step(chunk);
+      } catch (MalformedMultipartException | RuntimeException e) {
+        handleError(e);
+        return;
+      }
+    }
+  }
+
+  private void scanContent(ByteBuffer chunk) {
+    if (this.carryLength > 0) {
+      resolveCarry(chunk);
+      return;
+    }
+
+    int position = chunk.position();
+    int limit = chunk.limit();
+    int index = indexOfDelimiter(chunk, position, limit);
+    if (index >= 0) {
+      chunk.position(index + this.delimiter.length);
+      emit(chunk, position, index);
+      onDelimiter();
+    } else {
+      int partialLength = partialDelimiterLength(chunk, position, limit);
+      int end = limit - partialLength;
+      for (int i = 0; i < partialLength; i++) {
+        this.carry[i] = chunk.get(end + i);
+      }
+      this.carryLength = partialLength;
+      chunk.position(limit);
+      emit(chunk, position, end);
+    }
+  }
+
+  private void startPart() throws MalformedMultipartException {
+    Map<String, String> headers =
+        MultipartReader.parseHeaders(this.headerBuffer, this.headerLength);
+    PartContentProvider part = new PartContentProvider(
+        MultipartReader.parseMediaType(Optional.ofNullable(headers.get("Content-Type"))));
+
+    this.part = part;
+    this.state = State.BODY;
+    this.partListener.accept(new ReceivedPart(headers, part));
+  }
+
+  private void step(ByteBuffer chunk) throws MalformedMultipartException {
+    switch (this.state) {
+      case PREAMBLE:
+      case BODY:
+        scanContent(chunk);
+        break;
+      case HEADERS:
+        readHeaders(chunk);
+        break;
+      case EPILOGUE:
+        chunk.position(chunk.limit());
+        break;
+      default:
+        readDelimiterEnd(chunk);
+        break;
+    }
+  }
+}
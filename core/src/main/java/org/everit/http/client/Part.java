@@ -66,6 +66,8 @@ public class Part {
 
   private final Optional<String> fileName;
 
+  private final byte[] headerBytes;
+
   private final String headers;
 
   private final String name;
@@ -105,37 +107,35 @@ public class Part {
     this.content = content;
     this.fields = fields;
     this.headers = headers();
+    this.headerBytes = this.headers.getBytes(StandardCharsets.UTF_8);
   }
 
   public AsyncContentProvider getContent() {
     return this.content;
   }
 
+  /**
+   * Returns the headers encoded with UTF-8. The headers are encoded only once, so a part can be
+   * added to multiple multipart bodies cheaply. The returned array must not be modified.
+   */
+  byte[] getHeaderBytes() {
+    return this.headerBytes;
+  }
+
   public String getHeaders() {
     return this.headers;
   }
 
   private String headers() {
-    // Compute the Content-Disposition.
-    String contentDisposition = "Content-Disposition: form-data; name=\"" + this.name + "\"";
+    StringBuilder sb = new StringBuilder();
+    sb.append("Content-Disposition: form-data; name=\"").append(this.name).append('"');
     if (this.fileName.isPresent()) {
-      contentDisposition += "; filename=\"" + this.fileName.get() + "\"";
+      sb.append("; filename=\"").append(this.fileName.get()).append('"');
     }
-    contentDisposition += "\r\n";
-
-    String contentType = resolveContentTypeHeader();
+    sb.append("\r\n");
 
-    if (this.fields.isEmpty()) {
-      String headers = contentDisposition;
-      headers += contentType;
-      headers += "\r\n";
-      return headers;
-    }
+    resolveContentTypeHeader(sb);
 
-    StringBuilder sb =
-        new StringBuilder();
-    sb.append(contentDisposition);
-    sb.append(contentType);
     for (Entry<String, String> field : this.fields.entrySet()) {
       if (Part.HEADER_CONTENT_TYPE.equals(field.getKey())) {
         continue;
@@ -150,10 +150,9 @@ public class Part {
     }
     sb.append("\r\n");
     return sb.toString();
-
   }
 
-  private String resolveContentTypeHeader() {
+  private void resolveContentTypeHeader(StringBuilder sb) {
     // Compute the Content-Type.
     String contentType = null;
     if (this.contentType.isPresent()) {
@@ -169,8 +168,7 @@ public class Part {
       contentType = "text/plain";
     }
 
-    contentType = "Content-Type: " + contentType + "\r\n";
-    return contentType;
+    sb.append("Content-Type: ").append(contentType).append("\r\n");
   }
 
   @Override
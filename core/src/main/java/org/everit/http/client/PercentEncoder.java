@@ -0,0 +1,186 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes strings in the <i>application/x-www-form-urlencoded</i> format with UTF-8. The result is
+ * the same as the result of {@link java.net.URLEncoder#encode(String, String)}, but the bytes are
+ * written directly into the target buffer without creating intermediate strings, byte arrays or
+ * charset encoders.
+ */
+final class PercentEncoder {
+
+  /**
+   * The maximum number of bytes that one code point is encoded to: four UTF-8 bytes, three
+   * characters each.
+   */
+  static final int MAX_ENCODED_CODE_POINT_LENGTH = 12;
+
+  private static final int ASCII_LIMIT = 0x80;
+
+  private static final int CONTINUATION_BITS = 6;
+
+  private static final int CONTINUATION_MARKER = 0x80;
+
+  private static final int CONTINUATION_MASK = 0x3f;
+
+  private static final int ESCAPED_BYTE_LENGTH = 3;
+
+  private static final byte[] HEX_DIGITS = {
+      '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+  /**
+   * The markers of the leading bytes shifted left by eight bits, so shifting them right by the
+   * number of bytes of a character gives the marker of that length.
+   */
+  private static final int LEADING_BYTE_MARKERS = 0xff00;
+
+  private static final int MAX_THREE_BYTE_CODE_POINT = 0xffff;
+
+  private static final int MAX_TWO_BYTE_CODE_POINT = 0x7ff;
+
+  private static final boolean[] UNRESERVED = PercentEncoder.createUnreservedTable();
+
+  /**
+   * Returns the code point at the index. An unpaired surrogate is replaced with a question mark,
+   * like {@link String#getBytes(java.nio.charset.Charset)} does.
+   */
+  private static int codePointAt(CharSequence s, int index, int length) {
+    char c = s.charAt(index);
+    if (!Character.isSurrogate(c)) {
+      return c;
+    }
+    if (Character.isHighSurrogate(c) && index + 1 < length
+        && Character.isLowSurrogate(s.charAt(index + 1))) {
+      return Character.toCodePoint(c, s.charAt(index + 1));
+    }
+    return '?';
+  }
+
+  private static boolean[] createUnreservedTable() {
+    boolean[] unreserved = new boolean[PercentEncoder.ASCII_LIMIT];
+    for (char c = 'a'; c <= 'z'; c++) {
+      unreserved[c] = true;
+      unreserved[Character.toUpperCase(c)] = true;
+    }
+    for (char c = '0'; c <= '9'; c++) {
+      unreserved[c] = true;
+    }
+    unreserved['-'] = true;
+    unreserved['.'] = true;
+    unreserved['_'] = true;
+    unreserved['*'] = true;
+    return unreserved;
+  }
+
+  /**
+   * Encodes the characters of a string into a buffer until all characters are encoded or the
+   * next character does not fit into the buffer.
+   *
+   * @param s
+   *          The string to encode.
+   * @param from
+   *          The index of the first character that is encoded.
+   * @param target
+   *          The buffer that the encoded bytes are written to.
+   * @return The index of the first character that was not encoded, or the length of the string if
+   *         all characters were encoded.
+   */
+  static int encode(CharSequence s, int from, ByteBuffer target) {
+    int length = s.length();
+    int i = from;
+    while (i < length) {
+      char c = s.charAt(i);
+      if (c < PercentEncoder.ASCII_LIMIT && (PercentEncoder.UNRESERVED[c] || c == ' ')) {
+        if (!target.hasRemaining()) {
+          return i;
+        }
+        target.put(c == ' ' ? (byte) '+' : (byte) c);
+        i++;
+        continue;
+      }
+
+      int codePoint = PercentEncoder.codePointAt(s, i, length);
+      int byteCount = PercentEncoder.utf8Length(codePoint);
+      if (target.remaining() < byteCount * PercentEncoder.ESCAPED_BYTE_LENGTH) {
+        return i;
+      }
+      PercentEncoder.putEscapedUtf8(target, codePoint, byteCount);
+      i += Character.isSupplementaryCodePoint(codePoint) ? 2 : 1;
+    }
+    return length;
+  }
+
+  /**
+   * Returns the number of bytes that a string is encoded to.
+   */
+  static int encodedLength(CharSequence s) {
+    int length = s.length();
+    int encodedLength = 0;
+    int i = 0;
+    while (i < length) {
+      char c = s.charAt(i);
+      if (c < PercentEncoder.ASCII_LIMIT && (PercentEncoder.UNRESERVED[c] || c == ' ')) {
+        encodedLength++;
+        i++;
+      } else {
+        int codePoint = PercentEncoder.codePointAt(s, i, length);
+        encodedLength +=
+            PercentEncoder.utf8Length(codePoint) * PercentEncoder.ESCAPED_BYTE_LENGTH;
+        i += Character.isSupplementaryCodePoint(codePoint) ? 2 : 1;
+      }
+    }
+    return encodedLength;
+  }
+
+  private static void putEscaped(ByteBuffer target, int b) {
+    final int nibbleBits = 4;
+    final int nibbleMask = 0xf;
+    target.put((byte) '%');
+    target.put(PercentEncoder.HEX_DIGITS[b >> nibbleBits & nibbleMask]);
+    target.put(PercentEncoder.HEX_DIGITS[b & nibbleMask]);
+  }
+
+  private static void putEscapedUtf8(ByteBuffer target, int codePoint, int byteCount) {
+    final int byteMask = 0xff;
+    int shift = (byteCount - 1) * PercentEncoder.CONTINUATION_BITS;
+    int leadingByteMarker =
+        byteCount == 1 ? 0 : PercentEncoder.LEADING_BYTE_MARKERS >> byteCount & byteMask;
+    PercentEncoder.putEscaped(target, leadingByteMarker | codePoint >> shift);
+    for (shift -= PercentEncoder.CONTINUATION_BITS; shift >= 0;
+        shift -= PercentEncoder.CONTINUATION_BITS) {
+      PercentEncoder.putEscaped(target, PercentEncoder.CONTINUATION_MARKER
+          | codePoint >> shift & PercentEncoder.CONTINUATION_MASK);
+    }
+  }
+
+  private static int utf8Length(int codePoint) {
+    if (codePoint < PercentEncoder.ASCII_LIMIT) {
+      return 1;
+    }
+    if (codePoint <= PercentEncoder.MAX_TWO_BYTE_CODE_POINT) {
+      return 2;
+    }
+    final int threeBytes = 3;
+    final int fourBytes = 4;
+    return codePoint <= PercentEncoder.MAX_THREE_BYTE_CODE_POINT ? threeBytes : fourBytes;
+  }
+
+  private PercentEncoder() {
+  }
+}
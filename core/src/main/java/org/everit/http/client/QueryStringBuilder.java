@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+
+/**
+ * <p>
+ * Appends parameters to the query string of a URL with the same encoding that
+ * {@link FormUrlencodedAsyncContentProvider} uses for forms. The result can be passed to
+ * {@link HttpRequest.Builder#url(String)}:
+ * </p>
+ *
+ * <pre>
+ * HttpRequest request = HttpRequest.builder()
+ *     .url(new QueryStringBuilder("https://example.com/search")
+ *         .add("q", "multipart parser")
+ *         .add("page", "2")
+ *         .build())
+ *     .build();
+ * </pre>
+ *
+ * <p>
+ * The parameters are encoded directly into a byte array that grows as needed, the encoded
+ * parameters are not created as intermediate strings.
+ * </p>
+ */
+public final class QueryStringBuilder {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private ByteBuffer buffer;
+
+  private final String fragment;
+
+  /**
+   * Whether the URL already had a query string or a parameter was added.
+   */
+  private boolean hasParameter;
+
+  private final String url;
+
+  /**
+   * Constructor.
+   *
+   * @param url
+   *          The URL that the parameters are appended to. If the URL already has a query string,
+   *          the parameters are appended to it. The fragment of the URL is kept at the end.
+   */
+  public QueryStringBuilder(String url) {
+    int fragmentIndex = url.indexOf('#');
+    if (fragmentIndex >= 0) {
+      this.url = url.substring(0, fragmentIndex);
+      this.fragment = url.substring(fragmentIndex);
+    } else {
+      this.url = url;
+      this.fragment = "";
+    }
+    this.hasParameter = this.url.indexOf('?') >= 0;
+    this.buffer = ByteBuffer.allocate(QueryStringBuilder.INITIAL_CAPACITY);
+  }
+
+  /**
+   * Appends a parameter to the query string.
+   *
+   * @param name
+   *          The name of the parameter.
+   * @param value
+   *          The value of the parameter.
+   * @return This builder.
+   */
+  public QueryStringBuilder add(String name, String value) {
+    Objects.requireNonNull(name);
+    Objects.requireNonNull(value);
+    ensureCapacity(
+        PercentEncoder.encodedLength(name) + PercentEncoder.encodedLength(value) + 2);
+
+    this.buffer.put(this.hasParameter ? (byte) '&' : (byte) '?');
+    this.hasParameter = true;
+    PercentEncoder.encode(name, 0, this.buffer);
+    this.buffer.put((byte) '=');
+    PercentEncoder.encode(value, 0, this.buffer);
+    return this;
+  }
+
+  /**
+   * Appends every value of every parameter to the query string.
+   *
+   * @param parameters
+   *          The parameters with their values.
+   * @return This builder.
+   */
+  public QueryStringBuilder addAll(Map<String, ? extends Collection<String>> parameters) {
+    for (Entry<String, ? extends Collection<String>> parameter : parameters.entrySet()) {
+      for (String value : parameter.getValue()) {
+        add(parameter.getKey(), value);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Returns the URL with the appended parameters.
+   */
+  public String build() {
+    return this.url
+        + new String(this.buffer.array(), 0, this.buffer.position(), StandardCharsets.US_ASCII)
+        + this.fragment;
+  }
+
+  private void ensureCapacity(int length) {
+    if (this.buffer.remaining() < length) {
+      int capacity = Math.max(this.buffer.capacity() * 2, this.buffer.position() + length);
+      ByteBuffer grown = ByteBuffer.wrap(Arrays.copyOf(this.buffer.array(), capacity));
+      grown.position(this.buffer.position());
+      this.buffer = grown;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return build();
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client;
+
+import java.util.Map;
+import java.util.Optional;
+
+import org.everit.http.client.async.AsyncContentProvider;
+
+/**
+ * A part of a multipart body that is read by a {@link MultipartReader}.
+ */
+public class ReceivedPart {
+
+  private final AsyncContentProvider content;
+
+  private final Map<String, String> headers;
+
+  ReceivedPart(Map<String, String> headers, AsyncContentProvider content) {
+    this.headers = headers;
+    this.content = content;
+  }
+
+  /**
+   * Returns the content of the part. The content must be read or closed, otherwise the
+   * {@link MultipartReader} does not continue with the next part. The content type of the provider
+   * is the value of the <i>Content-Type</i> header of the part if it is valid.
+   */
+  public AsyncContentProvider getContent() {
+    return this.content;
+  }
+
+  /**
+   * Returns the value of a header of the part. The name of the header is case insensitive. If the
+   * header is specified multiple times, the values are joined with a comma.
+   */
+  public Optional<String> getHeader(String name) {
+    return Optional.ofNullable(this.headers.get(name));
+  }
+
+  /**
+   * Returns the unmodifiable map of the headers of the part with case insensitive keys.
+   */
+  public Map<String, String> getHeaders() {
+    return this.headers;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s@%x[headers=%s]", getClass().getSimpleName(), hashCode(),
+        this.headers);
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.everit.http.client.async.AbstractAsyncContentProvider;
+import org.everit.http.client.async.ByteBufferPool;
+
+/**
+ * <p>
+ * Provides a form with application/x-www-form-urlencoded content type chunk by chunk. The
+ * parameters are taken from the iterator only when the next chunk is needed and they are encoded
+ * directly into buffers that are leased from a {@link ByteBufferPool}, so a very large form is
+ * never held in memory as a whole. The iterator may even generate the parameters on the fly.
+ * </p>
+ *
+ * <p>
+ * The length of the content is not known in advance. If the parameters are available in a map
+ * and the form is not large, {@link FormUrlencodedAsyncContentProvider} is a better choice.
+ * </p>
+ */
+public class StreamingFormUrlencodedAsyncContentProvider extends AbstractAsyncContentProvider {
+
+  /**
+   * The part of the current parameter that is encoded.
+   */
+  private enum State {
+    EQUALS_SIGN, KEY, SEPARATOR, VALUE
+  }
+
+  private static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+  private final ByteBufferPool bufferPool;
+
+  private final int chunkSize;
+
+  private Entry<String, String> current;
+
+  private boolean first = true;
+
+  /**
+   * The index of the next character of the key or value of the current parameter that is encoded.
+   */
+  private int index;
+
+  private final Iterator<? extends Entry<String, String>> parameters;
+
+  private State state = State.SEPARATOR;
+
+  /**
+   * Constructor.
+   *
+   * @param parameters
+   *          The parameters of the form. A <code>null</code> value is encoded like an empty one.
+   */
+  public StreamingFormUrlencodedAsyncContentProvider(
+      Iterator<? extends Entry<String, String>> parameters) {
+    this(parameters, StreamingFormUrlencodedAsyncContentProvider.DEFAULT_CHUNK_SIZE,
+        ByteBufferPool.getDefault());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param parameters
+   *          The parameters of the form. A <code>null</code> value is encoded like an empty one.
+   * @param chunkSize
+   *          The size of the chunks that are passed to the listener. Must be at least twelve bytes,
+   *          so any encoded character fits into a chunk.
+   * @param bufferPool
+   *          The pool that the chunks are leased from.
+   */
+  public StreamingFormUrlencodedAsyncContentProvider(
+      Iterator<? extends Entry<String, String>> parameters, int chunkSize,
+      ByteBufferPool bufferPool) {
+
+    this.parameters = Objects.requireNonNull(parameters);
+    this.bufferPool = Objects.requireNonNull(bufferPool);
+    if (chunkSize < PercentEncoder.MAX_ENCODED_CODE_POINT_LENGTH) {
+      throw new IllegalArgumentException(
+          "Chunk size must be at least " + PercentEncoder.MAX_ENCODED_CODE_POINT_LENGTH);
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  protected void doClose() {
+    // Nothing to close
+  }
+
+  /**
+   * Encodes the next part of the form into the chunk until the chunk is full or there are no more
+   * parameters.
+   */
+  private void fill(ByteBuffer chunk) {
+    while (chunk.hasRemaining()) {
+      switch (this.state) {
+        case SEPARATOR:
+          if (!this.parameters.hasNext()) {
+            return;
+          }
+          this.current = this.parameters.next();
+          if (!this.first) {
+            chunk.put((byte) '&');
+          }
+          this.first = false;
+          this.state = State.KEY;
+          break;
+        case KEY:
+          if (!fillString(chunk, this.current.getKey())) {
+            return;
+          }
+          this.state = State.EQUALS_SIGN;
+          break;
+        case EQUALS_SIGN:
+          chunk.put((byte) '=');
+          this.state = State.VALUE;
+          break;
+        default:
+          String value = this.current.getValue();
+          if (value != null && !fillString(chunk, value)) {
+            return;
+          }
+          this.current = null;
+          this.state = State.SEPARATOR;
+          break;
+      }
+    }
+  }
+
+  private boolean fillString(ByteBuffer chunk, String s) {
+    this.index = PercentEncoder.encode(s, this.index, chunk);
+    if (this.index < s.length()) {
+      return false;
+    }
+    this.index = 0;
+    return true;
+  }
+
+  @Override
+  public Optional<Long> getContentLength() {
+    return Optional.empty();
+  }
+
+  @Override
+  public Optional<MediaType> getContentType() {
+    return Optional.of(FormUrlencodedAsyncContentProvider.CONTENT_TYPE);
+  }
+
+  @Override
+  protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+    ByteBuffer chunk = this.bufferPool.acquire(this.chunkSize, false);
+    try {
+      fill(chunk);
+    } catch (RuntimeException e) {
+      this.bufferPool.release(chunk);
+      throw e;
+    }
+
+    chunk.flip();
+    if (chunk.hasRemaining()) {
+      callback.accept(chunk);
+    } else {
+      this.bufferPool.release(chunk);
+      handleSuccess();
+    }
+  }
+
+  @Override
+  protected void releaseChunk(ByteBuffer chunk) {
+    this.bufferPool.release(chunk);
+  }
+}
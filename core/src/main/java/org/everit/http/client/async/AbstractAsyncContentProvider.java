@@ -17,6 +17,8 @@ package org.everit.http.client.async;
 
 import java.nio.ByteBuffer;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -28,9 +30,68 @@ import java.util.logging.Logger;
  * Subclasses of this class should call {@link #handleErrorFromInput(Throwable)} in case an error
  * happened during reading from the dataSource and call {@link #handleSuccess()} when the end of the
  * stream is reached successfully.
+ *
+ * Chunks are pulled in a drain loop: if the listener calls {@link AsyncCallback#processed()}
+ * synchronously from {@link AsyncContentListener#onContent(ByteBuffer, AsyncCallback)}, the next
+ * chunk is provided by the next iteration of the loop that is already running instead of a nested
+ * call. This way the depth of the call stack does not depend on the number of chunks. If the
+ * listener calls {@link AsyncCallback#processed()} later from another thread, that thread starts
+ * the drain loop.
+ *
+ * If the listener is registered via {@link #onContent(AsyncContentListener, int)}, the loop keeps
+ * calling {@link #provideNextChunk(Consumer)} until the specified number of chunks are waiting for
+ * {@link AsyncCallback#processed()}. Only one {@link #provideNextChunk(Consumer)} call is pending
+ * at a time: the next call happens after the listener returned from the chunk of the previous one,
+ * so the listener is never called concurrently even if the chunks arrive on different threads.
+ * The listener registered via {@link #onSuccess(Runnable)} is notified when the subclass called
+ * {@link #handleSuccess()} and all chunks are processed.
+ *
+ * Subclasses that can provide more than one buffer at once may override
+ * {@link #provideNextChunks(Consumer, Consumer)} and pass a batch of buffers if
+ * {@link #isBatchAccepted()} returns true. A batch counts as one chunk for the prefetch and it is
+ * passed to a {@link GatheringAsyncContentListener} as it is.
  */
 public abstract class AbstractAsyncContentProvider implements AsyncContentProvider {
 
+  /**
+   * The callback of a chunk or a batch of chunks that is passed to the listener.
+   */
+  private final class ChunkCallback implements AsyncCallback {
+
+    private final ByteBuffer chunk;
+
+    private final ByteBuffer[] chunks;
+
+    ChunkCallback(ByteBuffer chunk, ByteBuffer[] chunks) {
+      this.chunk = chunk;
+      this.chunks = chunks;
+    }
+
+    @Override
+    public void failed(Throwable e) {
+      AbstractAsyncContentProvider.this.error = e;
+      release();
+      AbstractAsyncContentProvider.this.inFlight.decrementAndGet();
+      callErrorListenerIfNecessary();
+    }
+
+    @Override
+    public void processed() {
+      release();
+      AbstractAsyncContentProvider.this.inFlight.decrementAndGet();
+      callSuccessListenerIfNecessary();
+      drain();
+    }
+
+    private void release() {
+      if (this.chunks != null) {
+        releaseChunks(this.chunks);
+      } else {
+        releaseChunk(this.chunk);
+      }
+    }
+  }
+
   /**
    * Helper interface to ease the implementation of an {@link AsyncContentProvider}. Subclasses of
    * {@link AbstractAsyncContentProvider} must not handle failures via the callback of
@@ -49,14 +110,35 @@ public abstract class AbstractAsyncContentProvider implements AsyncContentProvid
 
   private AsyncContentListener contentListener;
 
-  private Throwable error;
+  private volatile Throwable error;
 
   private Consumer<Throwable> errorAction;
 
-  private boolean finished = false;
+  private volatile boolean finished = false;
+
+  /**
+   * The number of chunks that are passed to the listener and not processed yet.
+   */
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private int prefetch = 1;
+
+  /**
+   * Whether {@link #provideNextChunk(Consumer)} was called and its callback was not called yet.
+   */
+  private volatile boolean providing = false;
 
   private Runnable successAction;
 
+  private final AtomicBoolean successNotified = new AtomicBoolean();
+
+  /**
+   * The number of times the drain loop was signaled. A non-zero value means that a drain loop is
+   * running, so re-entrant signals only increment the counter and the running loop checks again
+   * whether more chunks can be provided.
+   */
+  private final AtomicInteger wip = new AtomicInteger();
+
   private void callErrorListenerIfNecessary() {
     if (this.error != null && this.errorAction != null) {
       try {
@@ -68,7 +150,8 @@ public abstract class AbstractAsyncContentProvider implements AsyncContentProvid
   }
 
   private void callSuccessListenerIfNecessary() {
-    if (this.error == null && this.finished && this.successAction != null) {
+    if (this.error == null && this.finished && this.inFlight.get() == 0
+        && this.successAction != null && this.successNotified.compareAndSet(false, true)) {
       try {
         this.successAction.run();
       } catch (Throwable e) {
@@ -94,11 +177,36 @@ public abstract class AbstractAsyncContentProvider implements AsyncContentProvid
 
   protected abstract void doClose();
 
+  private void drain() {
+    if (this.wip.getAndIncrement() != 0) {
+      return;
+    }
+
+    int missed = 1;
+    do {
+      while (!this.finished && this.error == null && !this.providing
+          && this.inFlight.get() < this.prefetch) {
+
+        this.providing = true;
+        provideNextChunkHandleError();
+      }
+      missed = this.wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
   @Override
   public final Optional<Throwable> getFailure() {
     return Optional.ofNullable(this.error);
   }
 
+  /**
+   * Returns the maximum number of chunks that the listener accepts without processing them. See
+   * {@link #onContent(AsyncContentListener, int)}.
+   */
+  protected final int getPrefetch() {
+    return this.prefetch;
+  }
+
   protected void handleErrorFromInput(Throwable failure) {
     this.error = failure;
     callErrorListenerIfNecessary();
@@ -109,36 +217,79 @@ public abstract class AbstractAsyncContentProvider implements AsyncContentProvid
     callSuccessListenerIfNecessary();
   }
 
+  /**
+   * Returns whether the registered listener accepts a batch of buffers in one call, so it is worth
+   * passing the chunks to the batch callback of {@link #provideNextChunks(Consumer, Consumer)}.
+   */
+  protected final boolean isBatchAccepted() {
+    return this.contentListener instanceof GatheringAsyncContentListener;
+  }
+
   @Override
   public final boolean isClosed() {
     return this.closed;
   }
 
+  /**
+   * Copies a batch of chunks into one heap buffer for listeners and callers that do not accept
+   * batches. The positions of the chunks are not changed.
+   */
+  static ByteBuffer joinChunks(ByteBuffer[] chunks) {
+    int length = 0;
+    for (ByteBuffer chunk : chunks) {
+      length += chunk.remaining();
+    }
+    ByteBuffer joined = ByteBuffer.allocate(length);
+    for (ByteBuffer chunk : chunks) {
+      joined.put(chunk.duplicate());
+    }
+    joined.flip();
+    return joined;
+  }
+
+  private void nextBatchCallback(ByteBuffer[] chunks) {
+    this.inFlight.incrementAndGet();
+
+    ChunkCallback callback = new ChunkCallback(null, chunks);
+    if (this.contentListener instanceof GatheringAsyncContentListener) {
+      ((GatheringAsyncContentListener) this.contentListener).onContent(chunks, callback);
+    } else {
+      this.contentListener.onContent(AbstractAsyncContentProvider.joinChunks(chunks), callback);
+    }
+
+    this.providing = false;
+    drain();
+  }
+
   private void nextChunkCallback(ByteBuffer chunk) {
-    this.contentListener.onContent(chunk, new AsyncCallback() {
+    this.inFlight.incrementAndGet();
 
-      @Override
-      public void failed(Throwable e) {
-        AbstractAsyncContentProvider.this.error = e;
-        callErrorListenerIfNecessary();
-      }
+    this.contentListener.onContent(chunk, new ChunkCallback(chunk, null));
 
-      @Override
-      public void processed() {
-        provideNextChunkHandleError(AbstractAsyncContentProvider.this::nextChunkCallback);
-      }
-    });
+    // The next chunk is provided only after the listener returned, otherwise a drain loop on
+    // another thread could pass it to the listener before this one
+    this.providing = false;
+    drain();
   }
 
   @Override
   public final AsyncContentProvider onContent(AsyncContentListener listener) {
+    return onContent(listener, 1);
+  }
+
+  @Override
+  public final AsyncContentProvider onContent(AsyncContentListener listener, int prefetch) {
     if (this.closed) {
       throw new IllegalStateException("This provider is already closed");
     }
+    if (prefetch <= 0) {
+      throw new IllegalArgumentException("Prefetch must be greater than zero");
+    }
 
     this.contentListener = listener;
+    this.prefetch = prefetch;
 
-    provideNextChunkHandleError(this::nextChunkCallback);
+    drain();
 
     return this;
   }
@@ -165,11 +316,54 @@ public abstract class AbstractAsyncContentProvider implements AsyncContentProvid
 
   protected abstract void provideNextChunk(Consumer<ByteBuffer> callback);
 
-  private void provideNextChunkHandleError(Consumer<ByteBuffer> callback) {
+  private void provideNextChunkHandleError() {
     try {
-      provideNextChunk(callback);
+      provideNextChunks(this::nextChunkCallback, this::nextBatchCallback);
     } catch (Throwable e) {
       handleErrorFromInput(e);
     }
   }
+
+  /**
+   * Provides the next chunk or the next batch of chunks. Exactly one of the callbacks must be
+   * called once. The default implementation calls {@link #provideNextChunk(Consumer)}.
+   *
+   * @param chunkCallback
+   *          The callback that accepts the next chunk.
+   * @param batchCallback
+   *          The callback that accepts the next chunks in one batch. If the listener is not a
+   *          {@link GatheringAsyncContentListener}, the batch is copied into one buffer, so it
+   *          should be used only if {@link #isBatchAccepted()} returns true.
+   */
+  protected void provideNextChunks(Consumer<ByteBuffer> chunkCallback,
+      Consumer<ByteBuffer[]> batchCallback) {
+    provideNextChunk(chunkCallback);
+  }
+
+  /**
+   * Called when the listener does not use a chunk anymore that was passed to the callback of
+   * {@link #provideNextChunk(Consumer)}, either because {@link AsyncCallback#processed()} or
+   * {@link AsyncCallback#failed(Throwable)} was called. Subclasses that lease their chunks from a
+   * {@link ByteBufferPool} should return them here. The default implementation does nothing.
+   *
+   * @param chunk
+   *          The chunk that was processed by the listener.
+   */
+  protected void releaseChunk(ByteBuffer chunk) {
+    // Do nothing by default
+  }
+
+  /**
+   * Called when the listener does not use a batch of chunks anymore that was passed to the batch
+   * callback of {@link #provideNextChunks(Consumer, Consumer)}. The default implementation calls
+   * {@link #releaseChunk(ByteBuffer)} for every chunk of the batch.
+   *
+   * @param chunks
+   *          The batch that was processed by the listener.
+   */
+  protected void releaseChunks(ByteBuffer[] chunks) {
+    for (ByteBuffer chunk : chunks) {
+      releaseChunk(chunk);
+    }
+  }
 }
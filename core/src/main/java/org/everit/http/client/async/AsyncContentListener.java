@@ -27,7 +27,9 @@ public interface AsyncContentListener {
    * Called by the {@link AsyncContentProvider} when new chunk of data has arrived.
    *
    * @param content
-   *          The chunk of data.
+   *          The chunk of data. The buffer may be reused by the provider as soon as
+   *          {@link AsyncCallback#processed()} or {@link AsyncCallback#failed(Throwable)} is
+   *          called, so the listener must copy the data if it needs it later.
    * @param callback
    *          The implementation of the function must call {@link AsyncCallback#processed()} to
    *          notify the {@link AsyncContentProvider} that the next chunk of data can be pulled or
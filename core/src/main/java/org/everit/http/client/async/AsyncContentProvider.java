@@ -64,6 +64,31 @@ public interface AsyncContentProvider extends Closeable {
    */
   AsyncContentProvider onContent(AsyncContentListener listener);
 
+  /**
+   * Registering a listener that will be notified if new content is available and that accepts
+   * more than one chunk before the previous chunks are processed. This allows the provider to read
+   * the next chunks while the listener is still processing the previous ones. The chunks are passed
+   * to the listener in order, but the listener may call the callbacks of them in any order.
+   *
+   * <p>
+   * The default implementation ignores the <code>prefetch</code> parameter and calls
+   * {@link #onContent(AsyncContentListener)}, so the listener receives one chunk at a time.
+   * </p>
+   *
+   * @param listener
+   *          The listener that is called when new data chunk is available.
+   * @param prefetch
+   *          The maximum number of chunks that are passed to the listener without being processed.
+   *          Must be greater than zero.
+   * @return The current {@link AsyncContentProvider}.
+   */
+  default AsyncContentProvider onContent(AsyncContentListener listener, int prefetch) {
+    if (prefetch <= 0) {
+      throw new IllegalArgumentException("Prefetch must be greater than zero");
+    }
+    return onContent(listener);
+  }
+
   /**
    * Registering a listener that is called if there is an error delivering the data or processing of
    * the data is failed either via {@link AsyncCallback#failed(Throwable)} call or via an error
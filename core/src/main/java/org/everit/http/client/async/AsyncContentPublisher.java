@@ -0,0 +1,311 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * <p>
+ * A Reactive Streams {@link Publisher} that emits the chunks of an {@link AsyncContentProvider}.
+ * The provider can be read only once, so the publisher accepts only one {@link Subscriber}. Further
+ * subscribers are notified with an {@link IllegalStateException}.
+ * </p>
+ *
+ * <p>
+ * The demand of the subscriber is mapped to the {@link AsyncCallback} of the chunks: the callback
+ * of an emitted chunk is called with {@link AsyncCallback#processed()} when
+ * {@link Subscriber#onNext(Object)} returned and the subscriber requested the next chunk. This
+ * means that the provider reads the next chunk only if there is demand for it and that the emitted
+ * buffer may be reused by the provider after the subscriber requested the next chunk. Subscribers
+ * that keep the buffers after requesting more (e.g. by queueing them) should copy them.
+ * </p>
+ *
+ * <p>
+ * Cancelling the subscription closes the provider. When the provider completes or fails, it is not
+ * closed by the publisher; wrap it into an {@link AutoCloseAsyncContentProvider} if needed.
+ * </p>
+ */
+public class AsyncContentPublisher implements Publisher<ByteBuffer> {
+
+  /**
+   * The subscription of the only subscriber. Every signal of the subscriber is emitted from a drain
+   * loop, so the signals are serialized even if {@link #request(long)} is called from a different
+   * thread than the one that provides the chunks.
+   */
+  private final class AsyncContentSubscription implements Subscription {
+
+    private volatile boolean cancelled = false;
+
+    private volatile boolean completed = false;
+
+    /**
+     * The callback of the chunk that was emitted last and that is not processed yet as there was
+     * no demand for the next chunk. Only accessed from the drain loop.
+     */
+    private AsyncCallback emittedCallback;
+
+    private volatile Throwable error;
+
+    private volatile Throwable invalidRequest;
+
+    private volatile PendingChunk pendingChunk;
+
+    private final AtomicLong requested = new AtomicLong();
+
+    /**
+     * Whether {@link Subscriber#onSubscribe(Subscription)} returned. Until then, the drain loop
+     * does not signal the subscriber.
+     */
+    private volatile boolean started = false;
+
+    private volatile Subscriber<? super ByteBuffer> subscriber;
+
+    /**
+     * Whether the subscriber was notified about the end of the stream or the subscription was
+     * cancelled. Only accessed from the drain loop.
+     */
+    private boolean terminated = false;
+
+    private final AtomicInteger wip = new AtomicInteger();
+
+    AsyncContentSubscription(Subscriber<? super ByteBuffer> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void cancel() {
+      this.cancelled = true;
+      drain();
+    }
+
+    private void drain() {
+      if (this.wip.getAndIncrement() != 0) {
+        return;
+      }
+
+      int missed = 1;
+      do {
+        if (this.started && !this.terminated) {
+          drainActive();
+        }
+        if (this.terminated) {
+          releaseChunks();
+        }
+        missed = this.wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    private void drainActive() {
+      Throwable invalidRequest = this.invalidRequest;
+      if (this.cancelled || invalidRequest != null) {
+        this.terminated = true;
+        AsyncContentPublisher.this.closeProvider();
+        if (invalidRequest != null && !this.cancelled) {
+          this.subscriber.onError(invalidRequest);
+        }
+        this.subscriber = null;
+        return;
+      }
+
+      PendingChunk pendingChunk = this.pendingChunk;
+      if (pendingChunk != null && this.requested.get() > 0) {
+        this.pendingChunk = null;
+        this.emittedCallback = pendingChunk.callback;
+        if (this.requested.get() != Long.MAX_VALUE) {
+          this.requested.decrementAndGet();
+        }
+        try {
+          this.subscriber.onNext(pendingChunk.chunk);
+        } catch (Throwable e) {
+          AsyncContentPublisher.LOGGER.log(Level.SEVERE,
+              "Subscriber threw an exception from onNext, cancelling the subscription", e);
+          this.cancelled = true;
+          drainActive();
+          return;
+        }
+      }
+
+      if (this.emittedCallback != null && this.requested.get() > 0) {
+        AsyncCallback callback = this.emittedCallback;
+        this.emittedCallback = null;
+        callback.processed();
+      }
+
+      Throwable error = this.error;
+      if (error != null) {
+        this.terminated = true;
+        this.subscriber.onError(error);
+        this.subscriber = null;
+      } else if (this.completed && this.pendingChunk == null && this.emittedCallback == null) {
+        this.terminated = true;
+        this.subscriber.onComplete();
+        this.subscriber = null;
+      }
+    }
+
+    void onChunk(ByteBuffer chunk, AsyncCallback callback) {
+      this.pendingChunk = new PendingChunk(chunk, callback);
+      drain();
+    }
+
+    void onError(Throwable e) {
+      if (this.error == null) {
+        this.error = e;
+      }
+      drain();
+    }
+
+    void onSuccess() {
+      this.completed = true;
+      drain();
+    }
+
+    private void releaseChunk(AsyncCallback callback) {
+      Throwable cause = this.error;
+      if (cause == null) {
+        cause = this.invalidRequest;
+      }
+      if (cause == null) {
+        cause = new CancellationException("Subscription is cancelled");
+      }
+      callback.failed(cause);
+    }
+
+    private void releaseChunks() {
+      PendingChunk pendingChunk = this.pendingChunk;
+      if (pendingChunk != null) {
+        this.pendingChunk = null;
+        releaseChunk(pendingChunk.callback);
+      }
+      if (this.emittedCallback != null) {
+        AsyncCallback callback = this.emittedCallback;
+        this.emittedCallback = null;
+        releaseChunk(callback);
+      }
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        this.invalidRequest = new IllegalArgumentException(
+            "Rule 3.9: the number of requested elements must be positive, got " + n);
+      } else {
+        long current;
+        long next;
+        do {
+          current = this.requested.get();
+          if (current == Long.MAX_VALUE) {
+            break;
+          }
+          next = current + n;
+          if (next < 0) {
+            next = Long.MAX_VALUE;
+          }
+        } while (!this.requested.compareAndSet(current, next));
+      }
+      drain();
+    }
+
+    void start() {
+      this.started = true;
+      drain();
+    }
+  }
+
+  /**
+   * A chunk that was passed by the provider and that is not emitted yet.
+   */
+  private static final class PendingChunk {
+
+    final AsyncCallback callback;
+
+    final ByteBuffer chunk;
+
+    PendingChunk(ByteBuffer chunk, AsyncCallback callback) {
+      this.chunk = chunk;
+      this.callback = callback;
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(AsyncContentPublisher.class.getName());
+
+  private final AsyncContentProvider provider;
+
+  private final AtomicBoolean subscribed = new AtomicBoolean();
+
+  /**
+   * Constructor.
+   *
+   * @param provider
+   *          The provider whose chunks are emitted. The provider must not have listeners
+   *          registered.
+   */
+  public AsyncContentPublisher(AsyncContentProvider provider) {
+    this.provider = Objects.requireNonNull(provider);
+  }
+
+  private void closeProvider() {
+    try {
+      this.provider.close();
+    } catch (RuntimeException e) {
+      AsyncContentPublisher.LOGGER.log(Level.WARNING,
+          "Error during closing the provider of a cancelled subscription", e);
+    }
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+    Objects.requireNonNull(subscriber);
+
+    if (!this.subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(new Subscription() {
+
+        @Override
+        public void cancel() {
+          // Nothing to cancel
+        }
+
+        @Override
+        public void request(long n) {
+          // No elements will be emitted
+        }
+      });
+      subscriber.onError(new IllegalStateException(
+          "The content of an AsyncContentProvider can be published only to one subscriber"));
+      return;
+    }
+
+    AsyncContentSubscription subscription = new AsyncContentSubscription(subscriber);
+    this.provider
+        .onError(subscription::onError)
+        .onSuccess(subscription::onSuccess)
+        .onContent(subscription::onChunk);
+
+    subscriber.onSubscribe(subscription);
+    subscription.start();
+  }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.http.client.MediaType;
+
+/**
+ * <p>
+ * Splits one {@link AsyncContentProvider} into more child providers that provide the same content,
+ * so e.g. a response body can be written to a file and parsed at the same time without reading it
+ * into memory. The source is read when a listener is registered on every child (or the child is
+ * closed), and every chunk of the source is passed to the children as a read-only view of the same
+ * buffer.
+ * </p>
+ *
+ * <p>
+ * By default, the next chunk of the source is requested only when every child processed the
+ * previous one, so the slowest child determines the pace and nothing is copied. With a quorum that
+ * is smaller than the number of children, the chunks of the source are copied into a lag buffer
+ * and the next chunk is requested as soon as the quorum of children processed the previous one, so
+ * the faster children can get ahead of the slower ones. The size of the lag buffer is bounded: when
+ * it is full, the chunks are not copied and the next chunk of the source is requested only when
+ * every child processed the current one.
+ * </p>
+ *
+ * <p>
+ * A closed or failed child does not hold back the others. If the source fails, every child fails
+ * with the same error, and if every child is closed, the source is closed.
+ * </p>
+ */
+public class AsyncContentTee implements Closeable {
+
+  /**
+   * A provider that provides the chunks of the source to one consumer.
+   */
+  private final class Child extends AbstractAsyncContentProvider {
+
+    /**
+     * The index of the next chunk that is passed to the listener.
+     */
+    private long cursor;
+
+    private boolean detached = false;
+
+    /**
+     * The chunks that are passed to the listener and not processed yet.
+     */
+    private final Map<ByteBuffer, Entry> inFlight = new IdentityHashMap<>();
+
+    private boolean registered = false;
+
+    private Consumer<ByteBuffer> waitingCallback;
+
+    @Override
+    protected void doClose() {
+      AsyncContentTee.this.detach(this);
+    }
+
+    void fail(Throwable error) {
+      handleErrorFromInput(error);
+    }
+
+    void finish() {
+      handleSuccess();
+    }
+
+    @Override
+    public Optional<Long> getContentLength() {
+      return AsyncContentTee.this.source.getContentLength();
+    }
+
+    @Override
+    public Optional<MediaType> getContentType() {
+      return AsyncContentTee.this.source.getContentType();
+    }
+
+    @Override
+    protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+      AsyncContentTee.this.request(this, callback);
+    }
+
+    @Override
+    protected void releaseChunk(ByteBuffer chunk) {
+      AsyncContentTee.this.release(this, chunk);
+    }
+  }
+
+  /**
+   * A chunk of the source that is not processed by every child yet.
+   */
+  private static final class Entry {
+
+    ByteBuffer buffer;
+
+    boolean copied = false;
+
+    /**
+     * The number of children that the chunk is passed to and that did not process it yet.
+     */
+    int inFlight = 0;
+
+    /**
+     * The number of children that processed the chunk or were detached before processing it.
+     */
+    int processed = 0;
+
+    /**
+     * The number of children that did not process the chunk yet, including the ones that it is
+     * not passed to yet.
+     */
+    int remaining;
+
+    /**
+     * The callback of the source chunk or null if the chunk is copied or was processed.
+     */
+    AsyncCallback sourceCallback;
+
+    Entry(ByteBuffer buffer, AsyncCallback sourceCallback, int remaining) {
+      this.buffer = buffer;
+      this.sourceCallback = sourceCallback;
+      this.remaining = remaining;
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(AsyncContentTee.class.getName());
+
+  private static Entry entryAt(ArrayDeque<Entry> window, long position) {
+    Iterator<Entry> iterator = window.iterator();
+    for (long i = 0; i < position; i++) {
+      iterator.next();
+    }
+    return iterator.next();
+  }
+
+  private static void run(List<Runnable> actions) {
+    for (Runnable action : actions) {
+      try {
+        action.run();
+      } catch (RuntimeException e) {
+        AsyncContentTee.LOGGER.log(Level.SEVERE, "Error during passing a chunk to a child", e);
+      }
+    }
+  }
+
+  private final List<Child> children;
+
+  private final List<AsyncContentProvider> childrenView;
+
+  /**
+   * The index of the first chunk in the window.
+   */
+  private long firstIndex = 0;
+
+  private long lagBytes = 0;
+
+  private int liveChildCount;
+
+  private final long maxLagBytes;
+
+  private final Object mutex = new Object();
+
+  private final int quorum;
+
+  private final AsyncContentProvider source;
+
+  private Throwable sourceError;
+
+  private boolean sourceFinished = false;
+
+  private boolean sourceRegistered = false;
+
+  /**
+   * The chunks of the source that are not processed by every child yet.
+   */
+  private final ArrayDeque<Entry> window = new ArrayDeque<>();
+
+  /**
+   * Constructor of a tee that reads the source only as fast as the slowest child.
+   *
+   * @param source
+   *          The provider whose content is passed to the children.
+   * @param childCount
+   *          The number of child providers.
+   */
+  public AsyncContentTee(AsyncContentProvider source, int childCount) {
+    this(source, childCount, childCount, 0);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param source
+   *          The provider whose content is passed to the children.
+   * @param childCount
+   *          The number of child providers.
+   * @param quorum
+   *          The number of children that must process a chunk before the next chunk of the source
+   *          is requested, from one to the number of children.
+   * @param maxLagBytes
+   *          The maximum amount of bytes that are copied for the children that are behind the
+   *          quorum. Zero means that no chunks are copied, so the quorum is not used.
+   */
+  public AsyncContentTee(AsyncContentProvider source, int childCount, int quorum,
+      long maxLagBytes) {
+
+    this.source = Objects.requireNonNull(source);
+    if (childCount <= 0) {
+      throw new IllegalArgumentException("Child count must be greater than zero");
+    }
+    if (quorum <= 0 || quorum > childCount) {
+      throw new IllegalArgumentException("Quorum must be between one and the child count");
+    }
+    if (maxLagBytes < 0) {
+      throw new IllegalArgumentException("Maximum lag cannot be negative");
+    }
+    this.quorum = quorum;
+    this.maxLagBytes = maxLagBytes;
+
+    Child[] children = new Child[childCount];
+    for (int i = 0; i < childCount; i++) {
+      children[i] = new Child();
+    }
+    this.children = Arrays.asList(children);
+    this.childrenView = Collections.unmodifiableList(this.children);
+    this.liveChildCount = childCount;
+  }
+
+  /**
+   * Returns whether the listeners of the source should be registered now, that is when every child
+   * that is not detached has a registered listener. Must be called with the mutex held.
+   */
+  private boolean checkSourceRegistration() {
+    if (this.sourceRegistered) {
+      return false;
+    }
+    for (Child child : this.children) {
+      if (!child.registered && !child.detached) {
+        return false;
+      }
+    }
+    this.sourceRegistered = true;
+    return true;
+  }
+
+  /**
+   * Closes every child and the source.
+   */
+  @Override
+  public void close() {
+    for (Child child : this.children) {
+      child.close();
+    }
+    this.source.close();
+  }
+
+  /**
+   * Copies the chunk into the lag buffer if the lag buffer has room for it, so the chunk of the
+   * source can be released before every child processed it. Must be called with the mutex held.
+   */
+  private boolean copyToLagBuffer(Entry entry) {
+    int size = entry.buffer.remaining();
+    if (this.lagBytes + size > this.maxLagBytes) {
+      return false;
+    }
+    ByteBuffer copy = ByteBuffer.allocate(size);
+    copy.put(entry.buffer.duplicate()).flip();
+    entry.buffer = copy.asReadOnlyBuffer();
+    entry.copied = true;
+    this.lagBytes += size;
+    return true;
+  }
+
+  private void detach(Child child) {
+    List<Runnable> actions = new ArrayList<>();
+    boolean closeSource;
+    boolean registerSource = false;
+    synchronized (this.mutex) {
+      if (child.detached) {
+        return;
+      }
+      child.detached = true;
+      child.waitingCallback = null;
+      this.liveChildCount--;
+
+      long index = this.firstIndex;
+      for (Entry entry : this.window) {
+        if (index >= child.cursor) {
+          entry.remaining--;
+          entry.processed++;
+        }
+        index++;
+      }
+      for (Entry entry : child.inFlight.values()) {
+        entry.inFlight--;
+        entry.remaining--;
+        entry.processed++;
+      }
+      child.inFlight.clear();
+
+      closeSource = this.liveChildCount == 0;
+      if (!closeSource) {
+        registerSource = checkSourceRegistration();
+        pump(actions);
+      }
+    }
+    if (closeSource) {
+      this.source.close();
+    }
+    AsyncContentTee.run(actions);
+    if (registerSource) {
+      registerSource();
+    }
+  }
+
+  /**
+   * Returns the child providers. Each of them must be read or closed, otherwise the source is not
+   * read further.
+   */
+  public List<AsyncContentProvider> getChildren() {
+    return this.childrenView;
+  }
+
+  private void onSourceContent(ByteBuffer chunk, AsyncCallback callback) {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this.mutex) {
+      Entry entry = new Entry(chunk.asReadOnlyBuffer(), callback, this.liveChildCount);
+      if (this.quorum < this.liveChildCount) {
+        // The children out of the quorum may still read the chunk when the source reuses it
+        copyToLagBuffer(entry);
+      }
+      this.window.addLast(entry);
+      pump(actions);
+    }
+    AsyncContentTee.run(actions);
+  }
+
+  private void onSourceError(Throwable error) {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this.mutex) {
+      this.sourceError = error;
+      pump(actions);
+    }
+    AsyncContentTee.run(actions);
+  }
+
+  private void onSourceSuccess() {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this.mutex) {
+      this.sourceFinished = true;
+      pump(actions);
+    }
+    AsyncContentTee.run(actions);
+  }
+
+  /**
+   * Passes the available chunks to the waiting children, finishes the children and requests the
+   * next chunk of the source if possible. Must be called with the mutex held; the returned actions
+   * call the listeners and must be run after the mutex is released.
+   */
+  private void pump(List<Runnable> actions) {
+    for (Child child : this.children) {
+      Consumer<ByteBuffer> callback = child.waitingCallback;
+      if (child.detached || callback == null) {
+        continue;
+      }
+
+      long position = child.cursor - this.firstIndex;
+      if (position < this.window.size()) {
+        Entry entry = AsyncContentTee.entryAt(this.window, position);
+        ByteBuffer view = entry.buffer.duplicate();
+        entry.inFlight++;
+        child.inFlight.put(view, entry);
+        child.cursor++;
+        child.waitingCallback = null;
+        actions.add(() -> callback.accept(view));
+      } else if (this.sourceError != null) {
+        child.waitingCallback = null;
+        Throwable error = this.sourceError;
+        actions.add(() -> child.fail(error));
+      } else if (this.sourceFinished) {
+        child.waitingCallback = null;
+        actions.add(child::finish);
+      }
+    }
+
+    // The entries are dropped before the lag buffer is used, so their room can be reused
+    while (!this.window.isEmpty() && this.window.peekFirst().remaining == 0
+        && this.window.peekFirst().sourceCallback == null) {
+      Entry first = this.window.removeFirst();
+      if (first.copied) {
+        this.lagBytes -= first.buffer.capacity();
+      }
+      this.firstIndex++;
+    }
+
+    Entry last = this.window.peekLast();
+    if (last != null && last.sourceCallback != null) {
+      boolean quorumReached = last.processed >= Math.min(this.quorum, this.liveChildCount);
+      if (last.remaining == 0 && last.inFlight == 0
+          || quorumReached && (last.copied || last.inFlight == 0 && copyToLagBuffer(last))) {
+        AsyncCallback sourceCallback = last.sourceCallback;
+        last.sourceCallback = null;
+        actions.add(sourceCallback::processed);
+      }
+    }
+  }
+
+  private void registerSource() {
+    this.source.onSuccess(this::onSourceSuccess)
+        .onError(this::onSourceError)
+        .onContent(this::onSourceContent);
+  }
+
+  private void release(Child child, ByteBuffer chunk) {
+    if (child.getFailure().isPresent()) {
+      // A child that failed does not read further, so it must not hold back the others
+      detach(child);
+      return;
+    }
+
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this.mutex) {
+      Entry entry = child.inFlight.remove(chunk);
+      if (entry == null) {
+        return;
+      }
+      entry.inFlight--;
+      entry.remaining--;
+      entry.processed++;
+      pump(actions);
+    }
+    AsyncContentTee.run(actions);
+  }
+
+  private void request(Child child, Consumer<ByteBuffer> callback) {
+    List<Runnable> actions = new ArrayList<>();
+    boolean registerSource = false;
+    synchronized (this.mutex) {
+      child.waitingCallback = callback;
+      if (!child.registered) {
+        child.registered = true;
+        registerSource = checkSourceRegistration();
+      }
+      pump(actions);
+    }
+    AsyncContentTee.run(actions);
+    if (registerSource) {
+      registerSource();
+    }
+  }
+}
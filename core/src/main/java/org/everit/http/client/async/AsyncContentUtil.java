@@ -15,11 +15,19 @@
  */
 package org.everit.http.client.async;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 
+import org.everit.http.client.MediaType;
+import org.reactivestreams.Publisher;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
 import io.reactivex.Single;
 
 /**
@@ -27,6 +35,98 @@ import io.reactivex.Single;
  */
 public final class AsyncContentUtil {
 
+  /**
+   * Collects chunks into one byte array.
+   */
+  private static final class ByteArrayCollector {
+
+    private final List<byte[]> chunks = new ArrayList<>();
+
+    private int length = 0;
+
+    private final int maxLength;
+
+    /**
+     * The array that has the size of the content length of the provider or null if the content
+     * length is unknown. Chunks are copied into this array until it is full.
+     */
+    private final byte[] preallocated;
+
+    ByteArrayCollector(Optional<Long> contentLength, int maxLength) {
+      this.maxLength = maxLength;
+      this.preallocated = contentLength.isPresent()
+          ? new byte[contentLength.get().intValue()]
+          : null;
+    }
+
+    boolean add(ByteBuffer chunk) {
+      int remaining = chunk.remaining();
+      if (remaining > this.maxLength - this.length) {
+        return false;
+      }
+
+      if (this.preallocated != null && this.length < this.preallocated.length) {
+        int preallocatedPart = Math.min(remaining, this.preallocated.length - this.length);
+        chunk.get(this.preallocated, this.length, preallocatedPart);
+        this.length += preallocatedPart;
+        remaining -= preallocatedPart;
+      }
+
+      if (remaining > 0) {
+        byte[] bytes = new byte[remaining];
+        chunk.get(bytes);
+        this.chunks.add(bytes);
+        this.length += remaining;
+      }
+      return true;
+    }
+
+    byte[] toByteArray() {
+      if (this.preallocated != null && this.chunks.isEmpty()
+          && this.length == this.preallocated.length) {
+        return this.preallocated;
+      }
+      if (this.preallocated == null && this.chunks.size() == 1) {
+        return this.chunks.get(0);
+      }
+
+      byte[] result = new byte[this.length];
+      int position = 0;
+      if (this.preallocated != null) {
+        position = Math.min(this.length, this.preallocated.length);
+        System.arraycopy(this.preallocated, 0, result, 0, position);
+      }
+      for (byte[] chunk : this.chunks) {
+        System.arraycopy(chunk, 0, result, position, chunk.length);
+        position += chunk.length;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Some JVMs cannot allocate arrays that are as big as the maximum value of an integer.
+   */
+  private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+  /**
+   * Creates a provider that provides the elements of a Reactive Streams {@link Publisher}, e.g. an
+   * RxJava {@link Flowable}. See {@link PublisherAsyncContentProvider}.
+   *
+   * @param publisher
+   *          The publisher whose elements are provided.
+   * @param contentLength
+   *          The sum of the remaining bytes of the elements of the publisher if known in advance.
+   * @param contentType
+   *          The type of the content if known.
+   * @return The provider that subscribes to the publisher when a listener is registered.
+   */
+  public static AsyncContentProvider fromPublisher(Publisher<ByteBuffer> publisher,
+      Optional<Long> contentLength, Optional<MediaType> contentType) {
+
+    return new PublisherAsyncContentProvider(publisher, contentLength, contentType);
+  }
+
   /**
    * Reads all chunks from an {@link AsyncContentProvider} and returns the result as one byte array.
    *
@@ -35,30 +135,57 @@ public final class AsyncContentUtil {
    * @return A single instance that is notified when processing all chunks are ready.
    */
   public static Single<byte[]> readAllBytes(AsyncContentProvider asyncContentProvider) {
+    return AsyncContentUtil.readAllBytes(asyncContentProvider, AsyncContentUtil.MAX_ARRAY_LENGTH);
+  }
+
+  /**
+   * Reads all chunks from an {@link AsyncContentProvider} and returns the result as one byte array.
+   * If the content length of the provider is known, the chunks are copied directly into an array of
+   * that size. Otherwise every chunk is copied into an array of its own and the arrays are joined
+   * once when all chunks are read.
+   *
+   * @param asyncContentProvider
+   *          The provider that is consumed.
+   * @param maxLength
+   *          The maximum amount of bytes that are accepted. If the content length of the provider
+   *          or the amount of bytes that are read is bigger, the provider is closed and the
+   *          returned single fails with a {@link ContentTooLargeException}.
+   * @return A single instance that is notified when processing all chunks are ready.
+   */
+  public static Single<byte[]> readAllBytes(AsyncContentProvider asyncContentProvider,
+      int maxLength) {
 
-    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    if (maxLength < 0) {
+      throw new IllegalArgumentException("Maximum length cannot be negative: " + maxLength);
+    }
 
     return Single.create((subscriber) -> {
+      Optional<Long> contentLength = asyncContentProvider.getContentLength();
+      if (contentLength.isPresent() && contentLength.get() > maxLength) {
+        asyncContentProvider.close();
+        subscriber.onError(new ContentTooLargeException(maxLength));
+        return;
+      }
+
+      ByteArrayCollector collector = new ByteArrayCollector(contentLength, maxLength);
       asyncContentProvider
+          .onSuccess(() -> subscriber.onSuccess(collector.toByteArray()))
+          .onError(subscriber::onError)
           .onContent((buffer, callback) -> {
-            byte[] b = new byte[buffer.remaining()];
-            buffer.get(b);
-            try {
-              bout.write(b);
-            } catch (IOException e) {
-              throw new UncheckedIOException(e);
+            if (collector.add(buffer)) {
+              callback.processed();
+            } else {
+              callback.failed(new ContentTooLargeException(maxLength));
+              asyncContentProvider.close();
             }
-
-            callback.processed();
-          })
-          .onSuccess(() -> subscriber.onSuccess(bout.toByteArray()))
-          .onError(subscriber::onError);
+          });
     });
 
   }
 
   /**
-   * Reads all chunks from a provider and converts them to string.
+   * Reads all chunks from a provider and converts them to string. The chunks are decoded one by
+   * one, so the undecoded content is not held in memory.
    *
    * @param asyncContentProvider
    *          The provider that is consumed.
@@ -69,11 +196,108 @@ public final class AsyncContentUtil {
   public static Single<String> readString(AsyncContentProvider asyncContentProvider,
       Charset charset) {
 
-    return AsyncContentUtil.readAllBytes(asyncContentProvider).map((content) -> {
-      return new String(content, charset);
+    return Single.defer(() -> {
+      StringBuilder sb = new StringBuilder();
+      return AsyncContentUtil.readText(asyncContentProvider, charset, (text, callback) -> {
+        sb.append(text);
+        callback.processed();
+      }, false).toSingle(sb::toString);
+    });
+  }
+
+  /**
+   * Reads all chunks from a provider and passes the decoded text to a listener segment by segment.
+   * The chunks are decoded incrementally with one {@link java.nio.charset.CharsetDecoder}, so the
+   * whole content is never held in memory and characters that are split between two chunks are
+   * decoded correctly. The next segment is decoded only after the listener processed the previous
+   * one. Malformed input is replaced with the replacement character of the charset.
+   *
+   * @param asyncContentProvider
+   *          The provider that is consumed.
+   * @param defaultCharset
+   *          The charset that is used if the content type of the provider does not specify one.
+   * @param listener
+   *          The listener that receives the segments of the decoded text.
+   * @return A completable that is notified when the listener processed all segments of the text or
+   *         when the provider or the listener failed.
+   */
+  public static Completable readText(AsyncContentProvider asyncContentProvider,
+      Charset defaultCharset, AsyncTextListener listener) {
+
+    return AsyncContentUtil.readText(asyncContentProvider, defaultCharset, listener, true);
+  }
+
+  private static Completable readText(AsyncContentProvider asyncContentProvider, Charset charset,
+      AsyncTextListener listener, boolean useDeclaredCharset) {
+
+    return Completable.create((emitter) -> {
+      Charset effectiveCharset = charset;
+      if (useDeclaredCharset) {
+        effectiveCharset = asyncContentProvider.getContentType()
+            .flatMap((contentType) -> contentType.charset(Optional.of(charset)))
+            .orElse(charset);
+      }
+
+      CharsetDecodingAsyncContentListener decodingListener =
+          new CharsetDecodingAsyncContentListener(effectiveCharset, listener, emitter::onComplete,
+              emitter::tryOnError);
+
+      asyncContentProvider
+          .onSuccess(decodingListener::endOfInput)
+          .onError(emitter::tryOnError)
+          .onContent(decodingListener);
     });
   }
 
+  /**
+   * Converts a provider to a {@link Flowable} that emits the chunks of the provider. The provider
+   * reads the next chunk when the subscriber requested it, and the emitted buffers may be reused
+   * from then on. See {@link AsyncContentPublisher} for details.
+   *
+   * @param asyncContentProvider
+   *          The provider that is consumed by the only subscriber of the returned flowable.
+   * @return The flowable that emits the chunks of the provider.
+   */
+  public static Flowable<ByteBuffer> toFlowable(AsyncContentProvider asyncContentProvider) {
+    return Flowable.fromPublisher(new AsyncContentPublisher(asyncContentProvider));
+  }
+
+  /**
+   * Writes the content of a provider to a blocking channel. The listener is a
+   * {@link GatheringAsyncContentListener}, so providers that pass the chunks in batches (e.g.
+   * {@link ConcatenatedAsyncContentProvider} with adjacent in-memory providers) are written with
+   * one {@link GatheringByteChannel#write(ByteBuffer[])} call per batch.
+   *
+   * @param asyncContentProvider
+   *          The provider that is consumed.
+   * @param channel
+   *          The channel that the content is written to. The channel is not closed.
+   * @return A completable that is notified when all chunks are written or when reading the provider
+   *         or writing the channel failed.
+   */
+  public static Completable writeTo(AsyncContentProvider asyncContentProvider,
+      GatheringByteChannel channel) {
+
+    return Completable.create((emitter) -> asyncContentProvider
+        .onSuccess(emitter::onComplete)
+        .onError(emitter::tryOnError)
+        .onContent((GatheringAsyncContentListener) (buffers, callback) -> {
+          try {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+              remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+              remaining -= channel.write(buffers);
+            }
+          } catch (IOException e) {
+            callback.failed(e);
+            return;
+          }
+          callback.processed();
+        }));
+  }
+
   private AsyncContentUtil() {
   }
 }
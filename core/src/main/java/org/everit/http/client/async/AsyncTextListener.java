@@ -0,0 +1,40 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.nio.CharBuffer;
+
+/**
+ * Listener interface to receive the content of an {@link AsyncContentProvider} as decoded text. See
+ * {@link AsyncContentUtil#readText(AsyncContentProvider, java.nio.charset.Charset,
+ * AsyncTextListener)}.
+ */
+public interface AsyncTextListener {
+
+  /**
+   * Called when the next segment of the text is decoded.
+   *
+   * @param text
+   *          The next segment of the text. The buffer is reused for the next segment as soon as
+   *          {@link AsyncCallback#processed()} or {@link AsyncCallback#failed(Throwable)} is
+   *          called, so the listener must copy the characters if it needs them later.
+   * @param callback
+   *          The implementation of the function must call {@link AsyncCallback#processed()} when
+   *          the next segment can be decoded or {@link AsyncCallback#failed(Throwable)} if the
+   *          processing of the text failed and no more segments should be decoded.
+   */
+  void onText(CharBuffer text, AsyncCallback callback);
+}
@@ -122,6 +122,13 @@ public class AutoCloseAsyncContentProvider implements AsyncContentProvider {
     return this;
   }
 
+  @Override
+  @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT")
+  public AsyncContentProvider onContent(AsyncContentListener listener, int prefetch) {
+    this.wrapped.onContent(listener, prefetch);
+    return this;
+  }
+
   @Override
   public AsyncContentProvider onError(Consumer<Throwable> action) {
     this.wrapped.onError((error) -> {
@@ -65,4 +65,13 @@ public class ByteArrayAsyncContentProvider extends AbstractAsyncContentProvider
     callback.accept(ByteBuffer.wrap(this.content));
   }
 
+  /**
+   * Returns a buffer that wraps the content without copying it. Used by
+   * {@link ConcatenatedAsyncContentProvider} to pass the content of adjacent instances in one
+   * batch.
+   */
+  ByteBuffer wrapContent() {
+    return ByteBuffer.wrap(this.content);
+  }
+
 }
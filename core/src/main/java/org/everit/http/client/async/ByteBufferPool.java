@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of {@link ByteBuffer} instances that {@link AsyncContentProvider} implementations lease
+ * their chunks from, so a new buffer does not have to be allocated for every chunk. A leased buffer
+ * is returned to the pool when the listener calls {@link AsyncCallback#processed()} or
+ * {@link AsyncCallback#failed(Throwable)} for the chunk.
+ */
+public interface ByteBufferPool {
+
+  /**
+   * Returns the pool that the built-in providers use if no pool is specified explicitly.
+   */
+  static ByteBufferPool getDefault() {
+    return SizeClassByteBufferPool.DEFAULT;
+  }
+
+  /**
+   * Leases a buffer from the pool.
+   *
+   * @param size
+   *          The number of bytes that the caller needs. The capacity of the returned buffer may be
+   *          bigger.
+   * @param direct
+   *          Whether a direct or a heap buffer is needed.
+   * @return A buffer with zero position and a limit of <code>size</code>. The content of the
+   *         buffer is undefined.
+   */
+  ByteBuffer acquire(int size, boolean direct);
+
+  /**
+   * Returns a buffer to the pool that was leased via {@link #acquire(int, boolean)}. The caller
+   * must not use the buffer after calling this function. Implementations may drop buffers that they
+   * cannot reuse.
+   *
+   * @param buffer
+   *          The buffer that is not used anymore.
+   */
+  void release(ByteBuffer buffer);
+}
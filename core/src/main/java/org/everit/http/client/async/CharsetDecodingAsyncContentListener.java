@@ -0,0 +1,270 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Decodes the chunks of an {@link AsyncContentProvider} incrementally and passes the decoded text
+ * to an {@link AsyncTextListener} segment by segment. The bytes of a character that is split
+ * between two chunks are kept until the next chunk arrives. Malformed and unmappable input is
+ * replaced with the replacement character of the charset.
+ *
+ * <p>
+ * The next chunk is requested from the provider as soon as the current one is decoded, but a chunk
+ * is not decoded until the listener processed the previous segment of the text. The decoding
+ * happens in a drain loop like in {@link AbstractAsyncContentProvider}, so the depth of the call
+ * stack does not depend on the number of segments if the listener processes them synchronously.
+ * </p>
+ *
+ * <p>
+ * If the listener fails processing a segment after the chunk of the segment was processed, the
+ * failure is kept until the provider passes its next chunk, and that chunk is failed, so the
+ * provider is notified and can release its resources. The failure handler is called only if the
+ * provider has no more chunks.
+ * </p>
+ */
+final class CharsetDecodingAsyncContentListener implements AsyncContentListener {
+
+  /**
+   * More than the number of bytes of one character in any supported charset.
+   */
+  private static final int CARRY_CAPACITY = 16;
+
+  private static final int TEXT_BUFFER_SIZE = 8192;
+
+  /**
+   * The bytes of an incomplete character at the end of the previous chunk, in read mode.
+   */
+  private final ByteBuffer carry;
+
+  private ByteBuffer chunk;
+
+  private AsyncCallback chunkCallback;
+
+  private boolean completed = false;
+
+  private final CharsetDecoder decoder;
+
+  private boolean decoderFlushed = false;
+
+  private boolean emitting = false;
+
+  private boolean endOfInput = false;
+
+  private boolean endOfInputDecoded = false;
+
+  private volatile Throwable failure;
+
+  private boolean failureHandled = false;
+
+  private final Consumer<Throwable> failureHandler;
+
+  private final Runnable successHandler;
+
+  private final CharBuffer text;
+
+  private final AsyncCallback textCallback = new AsyncCallback() {
+
+    @Override
+    public void failed(Throwable e) {
+      CharsetDecodingAsyncContentListener.this.failure = e;
+      drain();
+    }
+
+    @Override
+    public void processed() {
+      CharsetDecodingAsyncContentListener.this.text.clear();
+      CharsetDecodingAsyncContentListener.this.emitting = false;
+      drain();
+    }
+  };
+
+  private final AsyncTextListener textListener;
+
+  private final AtomicInteger wip = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param charset
+   *          The charset that the content is decoded with.
+   * @param textListener
+   *          The listener that receives the decoded text.
+   * @param successHandler
+   *          Called when {@link #endOfInput()} was called and all text was processed by the
+   *          listener.
+   * @param failureHandler
+   *          Called if the listener fails processing a segment of the text when the provider has
+   *          no more chunks.
+   */
+  CharsetDecodingAsyncContentListener(Charset charset, AsyncTextListener textListener,
+      Runnable successHandler, Consumer<Throwable> failureHandler) {
+
+    this.decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.textListener = textListener;
+    this.successHandler = successHandler;
+    this.failureHandler = failureHandler;
+
+    this.carry = ByteBuffer.allocate(CharsetDecodingAsyncContentListener.CARRY_CAPACITY);
+    this.carry.flip();
+    this.text = CharBuffer.allocate(CharsetDecodingAsyncContentListener.TEXT_BUFFER_SIZE);
+  }
+
+  private CoderResult decodeChunk() {
+    while (this.carry.hasRemaining() && this.chunk.hasRemaining()) {
+      this.carry.compact();
+      this.carry.put(this.chunk.get());
+      this.carry.flip();
+      CoderResult result = this.decoder.decode(this.carry, this.text, false);
+      if (result.isOverflow()) {
+        return result;
+      }
+    }
+    if (this.carry.hasRemaining()) {
+      return CoderResult.UNDERFLOW;
+    }
+
+    CoderResult result = this.decoder.decode(this.chunk, this.text, false);
+    if (result.isUnderflow() && this.chunk.hasRemaining()) {
+      this.carry.clear();
+      this.carry.put(this.chunk);
+      this.carry.flip();
+    }
+    return result;
+  }
+
+  private void drain() {
+    if (this.wip.getAndIncrement() != 0) {
+      return;
+    }
+
+    int missed = 1;
+    do {
+      while (step()) {
+        // Keep stepping until the listener or the provider has to be waited for
+      }
+      missed = this.wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void emitText() {
+    this.text.flip();
+    this.emitting = true;
+    try {
+      this.textListener.onText(this.text, this.textCallback);
+    } catch (RuntimeException e) {
+      this.failure = e;
+    }
+  }
+
+  /**
+   * Notifies the decoder that the provider has no more chunks.
+   */
+  void endOfInput() {
+    this.endOfInput = true;
+    drain();
+  }
+
+  private void handleFailure() {
+    if (this.chunkCallback != null) {
+      // Chunks that arrive after the failure was handled are failed as well
+      AsyncCallback callback = this.chunkCallback;
+      this.chunk = null;
+      this.chunkCallback = null;
+      this.failureHandled = true;
+      callback.failed(this.failure);
+    } else if (this.endOfInput && !this.failureHandled) {
+      this.failureHandled = true;
+      this.failureHandler.accept(this.failure);
+    }
+    // Otherwise the failure is kept until the next chunk or the end of the input arrives
+  }
+
+  @Override
+  public void onContent(ByteBuffer content, AsyncCallback callback) {
+    this.chunk = content;
+    this.chunkCallback = callback;
+    drain();
+  }
+
+  private boolean step() {
+    if (this.failure != null) {
+      handleFailure();
+      return false;
+    }
+    if (this.emitting || this.completed) {
+      return false;
+    }
+
+    if (this.chunk != null) {
+      if (decodeChunk().isOverflow()) {
+        emitText();
+        return true;
+      }
+
+      if (this.text.position() > 0) {
+        emitText();
+      }
+      if (this.failure == null) {
+        AsyncCallback callback = this.chunkCallback;
+        this.chunk = null;
+        this.chunkCallback = null;
+        callback.processed();
+      }
+      return true;
+    }
+
+    if (this.endOfInput) {
+      return stepEndOfInput();
+    }
+    return false;
+  }
+
+  private boolean stepEndOfInput() {
+    if (!this.endOfInputDecoded) {
+      if (this.decoder.decode(this.carry, this.text, true).isOverflow()) {
+        emitText();
+        return true;
+      }
+      this.endOfInputDecoded = true;
+    }
+    if (!this.decoderFlushed) {
+      if (this.decoder.flush(this.text).isOverflow()) {
+        emitText();
+        return true;
+      }
+      this.decoderFlushed = true;
+    }
+    if (this.text.position() > 0) {
+      emitText();
+      return true;
+    }
+
+    this.completed = true;
+    this.successHandler.run();
+    return false;
+  }
+}
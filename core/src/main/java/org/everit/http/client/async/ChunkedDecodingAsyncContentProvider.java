@@ -0,0 +1,416 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.everit.http.client.MediaType;
+
+/**
+ * <p>
+ * A wrapper around another {@link AsyncContentProvider} that decodes the <i>chunked</i> transfer
+ * coding of HTTP/1.1: the wrapped provider provides the raw bytes of a chunked message body and
+ * this provider provides the payload. The chunk extensions are ignored and the trailer fields are
+ * available from {@link #getTrailers()} when the provider succeeded.
+ * </p>
+ *
+ * <p>
+ * The payload is not copied: the chunks of this provider are read-only slices of the chunks of the
+ * wrapped provider. A chunk of the wrapped provider is processed when all slices of it are
+ * processed by the listener, and the next chunk of the wrapped provider is requested only then.
+ * If the listener accepts more than one chunk (see {@link #onContent(AsyncContentListener, int)}),
+ * the slices of one chunk of the wrapped provider can be passed without waiting for the previous
+ * ones.
+ * </p>
+ *
+ * <p>
+ * The provider succeeds as soon as the end of the chunked body is read. The bytes that follow it in
+ * the same chunk of the wrapped provider are not consumed, so the position of that chunk points to
+ * the first byte after the chunked body. Further chunks of the wrapped provider are ignored.
+ * </p>
+ */
+public class ChunkedDecodingAsyncContentProvider extends AbstractAsyncContentProvider {
+
+  /**
+   * The part of the chunked body that is read.
+   */
+  private enum State {
+    CHUNK_EXTENSION, CHUNK_SIZE, CHUNK_SIZE_LF, DATA, DATA_CR, DATA_LF, END, TRAILER
+  }
+
+  private static final int DEFAULT_MAX_LINE_LENGTH = 8 * 1024;
+
+  private static final int HEX_DIGIT_BITS = 4;
+
+  private static final int HEX_LETTER_OFFSET = 10;
+
+  /**
+   * Chunk sizes bigger than this cannot be shifted by one more hexadecimal digit.
+   */
+  private static final long MAX_CHUNK_SIZE = Long.MAX_VALUE >>> HEX_DIGIT_BITS;
+
+  private static int hexDigit(byte b) {
+    if (b >= '0' && b <= '9') {
+      return b - '0';
+    }
+    if (b >= 'a' && b <= 'f') {
+      return b - 'a' + ChunkedDecodingAsyncContentProvider.HEX_LETTER_OFFSET;
+    }
+    if (b >= 'A' && b <= 'F') {
+      return b - 'A' + ChunkedDecodingAsyncContentProvider.HEX_LETTER_OFFSET;
+    }
+    return -1;
+  }
+
+  private long chunkRemaining = 0;
+
+  private boolean chunkSizeDigitRead = false;
+
+  private volatile ByteBuffer input;
+
+  private volatile AsyncCallback inputCallback;
+
+  /**
+   * Whether all bytes of the input chunk are parsed, so the input chunk can be processed when all
+   * of its slices are released.
+   */
+  private volatile boolean inputConsumed = false;
+
+  private volatile boolean inputFinished = false;
+
+  /**
+   * The bytes of the trailer line that are read so far.
+   */
+  private final byte[] line;
+
+  private int lineLength = 0;
+
+  private final AtomicInteger pendingSlices = new AtomicInteger();
+
+  private boolean registered = false;
+
+  private State state = State.CHUNK_SIZE;
+
+  private final Map<String, String> trailers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+  private volatile Consumer<ByteBuffer> waitingCallback;
+
+  private final AtomicInteger wip = new AtomicInteger();
+
+  private final AsyncContentProvider wrapped;
+
+  /**
+   * Constructor.
+   *
+   * @param wrapped
+   *          The provider of the raw chunked body.
+   */
+  public ChunkedDecodingAsyncContentProvider(AsyncContentProvider wrapped) {
+    this(wrapped, ChunkedDecodingAsyncContentProvider.DEFAULT_MAX_LINE_LENGTH);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param wrapped
+   *          The provider of the raw chunked body.
+   * @param maxLineLength
+   *          The maximum length of a chunk-size line (including the chunk extensions) and of a
+   *          trailer field line.
+   */
+  public ChunkedDecodingAsyncContentProvider(AsyncContentProvider wrapped, int maxLineLength) {
+    this.wrapped = Objects.requireNonNull(wrapped);
+    if (maxLineLength <= 0) {
+      throw new IllegalArgumentException("Maximum line length must be greater than zero");
+    }
+    this.line = new byte[maxLineLength];
+  }
+
+  private void addTrailerLine() throws ProtocolException {
+    String field = new String(this.line, 0, this.lineLength, StandardCharsets.UTF_8);
+    int colon = field.indexOf(':');
+    if (colon <= 0) {
+      throw new ProtocolException("Invalid trailer field: " + field);
+    }
+    this.trailers.putIfAbsent(field.substring(0, colon).trim(), field.substring(colon + 1).trim());
+  }
+
+  private void appendLineByte(byte b) throws ProtocolException {
+    if (this.lineLength == this.line.length) {
+      throw new ProtocolException("Line of chunked body is longer than " + this.line.length);
+    }
+    this.line[this.lineLength++] = b;
+  }
+
+  /**
+   * Parses the input chunk until a slice of the payload is found or the input chunk is consumed.
+   *
+   * @return The slice of the payload or null if the input chunk is consumed or the end of the
+   *         chunked body is reached.
+   */
+  private ByteBuffer decode(ByteBuffer input) throws IOException {
+    while (input.hasRemaining() && this.state != State.END) {
+      if (this.state == State.DATA) {
+        int length = (int) Math.min(this.chunkRemaining, input.remaining());
+        ByteBuffer slice = input.duplicate();
+        slice.limit(slice.position() + length);
+        input.position(input.position() + length);
+        this.chunkRemaining -= length;
+        if (this.chunkRemaining == 0) {
+          this.state = State.DATA_CR;
+        }
+        return slice.slice().asReadOnlyBuffer();
+      }
+
+      byte b = input.get();
+      switch (this.state) {
+        case CHUNK_SIZE:
+          readChunkSize(b);
+          break;
+        case CHUNK_EXTENSION:
+          readLineEnd(b, State.CHUNK_EXTENSION);
+          break;
+        case CHUNK_SIZE_LF:
+        case DATA_LF:
+          if (b != '\n') {
+            throw new ProtocolException("Missing line feed in chunked body");
+          }
+          this.state = this.state == State.DATA_LF ? State.CHUNK_SIZE : endOfChunkSizeLine();
+          break;
+        case DATA_CR:
+          if (b == '\r') {
+            this.state = State.DATA_LF;
+          } else if (b == '\n') {
+            this.state = State.CHUNK_SIZE;
+          } else {
+            throw new ProtocolException("Chunk data is longer than the chunk size");
+          }
+          break;
+        default:
+          readTrailer(b);
+          break;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  protected void doClose() {
+    this.wrapped.close();
+  }
+
+  private void drain() {
+    if (this.wip.getAndIncrement() != 0) {
+      return;
+    }
+
+    int missed = 1;
+    do {
+      try {
+        step();
+      } catch (Throwable e) {
+        fail(e);
+      }
+      missed = this.wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private State endOfChunkSizeLine() throws ProtocolException {
+    if (!this.chunkSizeDigitRead) {
+      throw new ProtocolException("Missing chunk size in chunked body");
+    }
+    this.chunkSizeDigitRead = false;
+    this.lineLength = 0;
+    return this.chunkRemaining == 0 ? State.TRAILER : State.DATA;
+  }
+
+  private void fail(Throwable error) {
+    AsyncCallback inputCallback = this.inputCallback;
+    this.input = null;
+    this.inputCallback = null;
+    this.waitingCallback = null;
+
+    handleErrorFromInput(error);
+    if (inputCallback != null) {
+      inputCallback.failed(error);
+    }
+  }
+
+  @Override
+  public Optional<Long> getContentLength() {
+    return Optional.empty();
+  }
+
+  @Override
+  public Optional<MediaType> getContentType() {
+    return this.wrapped.getContentType();
+  }
+
+  /**
+   * Returns the trailer fields of the chunked body with case insensitive names. The map is empty
+   * until the provider succeeded. If a field is specified more than once, the first value is
+   * returned.
+   */
+  public Map<String, String> getTrailers() {
+    if (this.state != State.END) {
+      return Collections.emptyMap();
+    }
+    return Collections.unmodifiableMap(this.trailers);
+  }
+
+  private void handleErrorFromWrappedProvider(Throwable error) {
+    if (getFailure().isPresent() || this.state == State.END) {
+      // The wrapped provider was notified about the failure of this provider or it is not needed
+      // anymore
+      return;
+    }
+    handleErrorFromInput(error);
+  }
+
+  /**
+   * Returns whether the last chunk and the trailer section were decoded. The wrapped provider is
+   * not read anymore afterwards, and the bytes that follow the chunked body in the last chunk of
+   * the wrapped provider are left unconsumed in that chunk.
+   */
+  public boolean isComplete() {
+    return this.state == State.END;
+  }
+
+  private void onWrappedContent(ByteBuffer chunk, AsyncCallback callback) {
+    this.inputCallback = callback;
+    this.inputConsumed = false;
+    this.input = chunk;
+    drain();
+  }
+
+  private void onWrappedSuccess() {
+    this.inputFinished = true;
+    drain();
+  }
+
+  @Override
+  protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+    this.waitingCallback = callback;
+    if (!this.registered) {
+      this.registered = true;
+      this.wrapped.onSuccess(this::onWrappedSuccess)
+          .onError(this::handleErrorFromWrappedProvider)
+          .onContent(this::onWrappedContent);
+    }
+    drain();
+  }
+
+  private void readChunkSize(byte b) throws ProtocolException {
+    int digit = ChunkedDecodingAsyncContentProvider.hexDigit(b);
+    if (digit >= 0) {
+      if (this.chunkRemaining > ChunkedDecodingAsyncContentProvider.MAX_CHUNK_SIZE) {
+        throw new ProtocolException("Chunk size is too big");
+      }
+      this.chunkRemaining =
+          (this.chunkRemaining << ChunkedDecodingAsyncContentProvider.HEX_DIGIT_BITS) | digit;
+      this.chunkSizeDigitRead = true;
+    } else if (b == ';' || b == ' ' || b == '\t') {
+      this.state = State.CHUNK_EXTENSION;
+    } else {
+      readLineEnd(b, State.CHUNK_SIZE);
+    }
+  }
+
+  /**
+   * Reads a byte of a chunk-size line after the chunk size.
+   */
+  private void readLineEnd(byte b, State currentState) throws ProtocolException {
+    if (b == '\r') {
+      this.state = State.CHUNK_SIZE_LF;
+    } else if (b == '\n') {
+      this.state = endOfChunkSizeLine();
+    } else if (currentState == State.CHUNK_SIZE) {
+      throw new ProtocolException("Invalid character in chunk size: " + (char) b);
+    } else {
+      appendLineByte(b);
+    }
+  }
+
+  private void readTrailer(byte b) throws ProtocolException {
+    if (b == '\r') {
+      return;
+    }
+    if (b != '\n') {
+      appendLineByte(b);
+      return;
+    }
+    if (this.lineLength == 0) {
+      this.state = State.END;
+      return;
+    }
+    addTrailerLine();
+    this.lineLength = 0;
+  }
+
+  @Override
+  protected void releaseChunk(ByteBuffer chunk) {
+    this.pendingSlices.decrementAndGet();
+    drain();
+  }
+
+  private void step() throws IOException {
+    if (getFailure().isPresent()) {
+      return;
+    }
+
+    Consumer<ByteBuffer> callback = this.waitingCallback;
+    ByteBuffer input = this.input;
+    if (callback != null && input != null && !this.inputConsumed) {
+      ByteBuffer slice = decode(input);
+      if (slice != null) {
+        this.pendingSlices.incrementAndGet();
+        this.waitingCallback = null;
+        callback.accept(slice);
+        return;
+      }
+      this.inputConsumed = true;
+    }
+
+    if (input != null && this.inputConsumed && this.pendingSlices.get() == 0) {
+      AsyncCallback inputCallback = this.inputCallback;
+      this.input = null;
+      this.inputCallback = null;
+      inputCallback.processed();
+    }
+
+    callback = this.waitingCallback;
+    if (callback == null) {
+      return;
+    }
+    if (this.state == State.END) {
+      this.waitingCallback = null;
+      handleSuccess();
+    } else if (this.input == null && this.inputFinished) {
+      throw new EOFException("Chunked body ended unexpectedly");
+    }
+  }
+}
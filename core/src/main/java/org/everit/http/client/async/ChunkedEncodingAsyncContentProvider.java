@@ -0,0 +1,340 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.everit.http.client.MediaType;
+
+/**
+ * <p>
+ * A wrapper around another {@link AsyncContentProvider} that frames the content of the wrapped
+ * provider with the <i>chunked</i> transfer coding of HTTP/1.1, so {@link
+ * org.everit.http.client.HttpClient} implementations that write to a connection directly can send
+ * bodies whose length is not known in advance. Every non-empty chunk of the wrapped provider
+ * becomes one chunk of the transfer coding, and the last chunk is followed by the optional trailer
+ * fields.
+ * </p>
+ *
+ * <p>
+ * The payload is not copied: the chunks of the wrapped provider are passed to the listener as they
+ * are, and only the chunk-size lines are written into small buffers. If the listener is a
+ * {@link GatheringAsyncContentListener}, the chunk-size line and the payload are passed in one
+ * batch, so they can be written with one gathering write. Other listeners receive them one after
+ * the other. The next chunk of the wrapped provider is requested when the listener processed the
+ * previous one.
+ * </p>
+ */
+public class ChunkedEncodingAsyncContentProvider extends AbstractAsyncContentProvider {
+
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  private static final byte[] HEX_DIGITS =
+      "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  private static final int HEX_DIGIT_BITS = 4;
+
+  private static final int HEX_DIGIT_MASK = 0xf;
+
+  private static final byte[] LAST_CHUNK = { '0', '\r', '\n' };
+
+  /**
+   * Writes the CRLF that closes the data of the previous chunk (if any), the size of the next chunk
+   * in hexadecimal and the CRLF that closes the chunk-size line.
+   */
+  private static ByteBuffer chunkSizeLine(int size, boolean closePreviousChunk) {
+    int digitCount = 1;
+    while ((size >>> (digitCount * ChunkedEncodingAsyncContentProvider.HEX_DIGIT_BITS)) != 0) {
+      digitCount++;
+    }
+
+    int crlfLength = ChunkedEncodingAsyncContentProvider.CRLF.length;
+    byte[] line = new byte[(closePreviousChunk ? crlfLength : 0) + digitCount + crlfLength];
+    int position = 0;
+    if (closePreviousChunk) {
+      line[position++] = '\r';
+      line[position++] = '\n';
+    }
+    for (int i = digitCount - 1; i >= 0; i--) {
+      line[position++] = ChunkedEncodingAsyncContentProvider.HEX_DIGITS[(size >>> (i
+          * ChunkedEncodingAsyncContentProvider.HEX_DIGIT_BITS))
+          & ChunkedEncodingAsyncContentProvider.HEX_DIGIT_MASK];
+    }
+    line[position++] = '\r';
+    line[position] = '\n';
+    return ByteBuffer.wrap(line);
+  }
+
+  /**
+   * The chunk of the wrapped provider that is passed to the listener and not processed yet.
+   */
+  private volatile ByteBuffer data;
+
+  private volatile AsyncCallback dataCallback;
+
+  private boolean dataWritten = false;
+
+  /**
+   * The buffers of the chunk that is being passed to the listener. Only the buffers from the frame
+   * position are not passed yet.
+   */
+  private ByteBuffer[] frame;
+
+  private int framePosition = 0;
+
+  private volatile ByteBuffer input;
+
+  private volatile AsyncCallback inputCallback;
+
+  private volatile boolean inputFinished = false;
+
+  private boolean lastChunkWritten = false;
+
+  private boolean registered = false;
+
+  private final Supplier<Map<String, String>> trailerSupplier;
+
+  private volatile Consumer<ByteBuffer[]> waitingBatchCallback;
+
+  private volatile Consumer<ByteBuffer> waitingCallback;
+
+  private final AtomicInteger wip = new AtomicInteger();
+
+  private final AsyncContentProvider wrapped;
+
+  /**
+   * Constructor of a provider without trailer fields.
+   *
+   * @param wrapped
+   *          The provider of the payload.
+   */
+  public ChunkedEncodingAsyncContentProvider(AsyncContentProvider wrapped) {
+    this(wrapped, Collections::emptyMap);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param wrapped
+   *          The provider of the payload.
+   * @param trailerSupplier
+   *          Supplies the trailer fields that are written after the last chunk. It is called when
+   *          the wrapped provider is finished, so the fields can depend on the payload (e.g. a
+   *          digest of it).
+   */
+  public ChunkedEncodingAsyncContentProvider(AsyncContentProvider wrapped,
+      Supplier<Map<String, String>> trailerSupplier) {
+    this.wrapped = Objects.requireNonNull(wrapped);
+    this.trailerSupplier = Objects.requireNonNull(trailerSupplier);
+  }
+
+  @Override
+  protected void doClose() {
+    this.wrapped.close();
+  }
+
+  private void drain() {
+    if (this.wip.getAndIncrement() != 0) {
+      return;
+    }
+
+    int missed = 1;
+    do {
+      try {
+        step();
+      } catch (Throwable e) {
+        fail(e);
+      }
+      missed = this.wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void fail(Throwable error) {
+    AsyncCallback inputCallback = this.inputCallback;
+    this.input = null;
+    this.inputCallback = null;
+    this.waitingCallback = null;
+    this.waitingBatchCallback = null;
+
+    handleErrorFromInput(error);
+    if (inputCallback != null) {
+      inputCallback.failed(error);
+    }
+  }
+
+  @Override
+  public Optional<Long> getContentLength() {
+    return Optional.empty();
+  }
+
+  @Override
+  public Optional<MediaType> getContentType() {
+    return this.wrapped.getContentType();
+  }
+
+  private void handleErrorFromWrappedProvider(Throwable error) {
+    if (getFailure().isPresent()) {
+      // The wrapped provider was notified about the failure of this provider
+      return;
+    }
+    handleErrorFromInput(error);
+  }
+
+  private ByteBuffer lastChunk() {
+    StringBuilder sb = new StringBuilder();
+    for (Entry<String, String> field : this.trailerSupplier.get().entrySet()) {
+      sb.append(field.getKey()).append(": ").append(field.getValue()).append("\r\n");
+    }
+    sb.append("\r\n");
+    byte[] trailer = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+    byte[] crlf = ChunkedEncodingAsyncContentProvider.CRLF;
+    byte[] lastChunk = ChunkedEncodingAsyncContentProvider.LAST_CHUNK;
+    int offset = this.dataWritten ? crlf.length : 0;
+    byte[] bytes = new byte[offset + lastChunk.length + trailer.length];
+    if (this.dataWritten) {
+      System.arraycopy(crlf, 0, bytes, 0, crlf.length);
+    }
+    System.arraycopy(lastChunk, 0, bytes, offset, lastChunk.length);
+    System.arraycopy(trailer, 0, bytes, offset + lastChunk.length, trailer.length);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  /**
+   * Creates the next frame from the next chunk of the wrapped provider or the last chunk.
+   *
+   * @return Whether a frame is created.
+   */
+  private boolean nextFrame() {
+    ByteBuffer input = this.input;
+    if (input != null) {
+      AsyncCallback inputCallback = this.inputCallback;
+      this.input = null;
+      this.inputCallback = null;
+      if (!input.hasRemaining()) {
+        inputCallback.processed();
+        return false;
+      }
+
+      this.data = input;
+      this.dataCallback = inputCallback;
+      this.frame = new ByteBuffer[] {
+          ChunkedEncodingAsyncContentProvider.chunkSizeLine(input.remaining(), this.dataWritten),
+          input };
+      this.framePosition = 0;
+      this.dataWritten = true;
+      return true;
+    }
+
+    if (this.inputFinished && !this.lastChunkWritten) {
+      this.lastChunkWritten = true;
+      this.frame = new ByteBuffer[] { lastChunk() };
+      this.framePosition = 0;
+      return true;
+    }
+    return false;
+  }
+
+  private void onWrappedContent(ByteBuffer chunk, AsyncCallback callback) {
+    this.inputCallback = callback;
+    this.input = chunk;
+    drain();
+  }
+
+  private void onWrappedSuccess() {
+    this.inputFinished = true;
+    drain();
+  }
+
+  @Override
+  protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+    provideNextChunks(callback, null);
+  }
+
+  @Override
+  protected void provideNextChunks(Consumer<ByteBuffer> chunkCallback,
+      Consumer<ByteBuffer[]> batchCallback) {
+
+    this.waitingBatchCallback = batchCallback;
+    this.waitingCallback = chunkCallback;
+    if (!this.registered) {
+      this.registered = true;
+      this.wrapped.onSuccess(this::onWrappedSuccess)
+          .onError(this::handleErrorFromWrappedProvider)
+          .onContent(this::onWrappedContent);
+    }
+    drain();
+  }
+
+  @Override
+  protected void releaseChunk(ByteBuffer chunk) {
+    if (chunk != this.data) {
+      return;
+    }
+
+    AsyncCallback dataCallback = this.dataCallback;
+    this.data = null;
+    this.dataCallback = null;
+    Optional<Throwable> failure = getFailure();
+    if (failure.isPresent()) {
+      dataCallback.failed(failure.get());
+    } else {
+      dataCallback.processed();
+    }
+  }
+
+  private void step() {
+    Consumer<ByteBuffer> callback = this.waitingCallback;
+    if (callback == null || getFailure().isPresent()) {
+      return;
+    }
+
+    if (this.frame == null || this.framePosition == this.frame.length) {
+      if (!nextFrame()) {
+        if (this.lastChunkWritten) {
+          this.waitingCallback = null;
+          this.waitingBatchCallback = null;
+          handleSuccess();
+        }
+        return;
+      }
+    }
+
+    Consumer<ByteBuffer[]> batchCallback = this.waitingBatchCallback;
+    this.waitingCallback = null;
+    this.waitingBatchCallback = null;
+    if (batchCallback != null && isBatchAccepted()
+        && this.frame.length - this.framePosition > 1) {
+      ByteBuffer[] batch = this.framePosition == 0
+          ? this.frame
+          : Arrays.copyOfRange(this.frame, this.framePosition, this.frame.length);
+      this.framePosition = this.frame.length;
+      batchCallback.accept(batch);
+    } else {
+      callback.accept(this.frame[this.framePosition++]);
+    }
+  }
+}
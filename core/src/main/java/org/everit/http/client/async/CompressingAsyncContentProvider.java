@@ -0,0 +1,399 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.everit.http.client.MediaType;
+
+/**
+ * <p>
+ * A wrapper around another {@link AsyncContentProvider} that compresses the content of the wrapped
+ * provider chunk by chunk, so a big request body can be compressed without reading it into memory.
+ * The length of the compressed content is not known in advance. The <i>Content-Encoding</i> header
+ * of the request must be set to the token of {@link #getContentCoding()}, see
+ * {@link org.everit.http.client.HttpUtil#compressBody(org.everit.http.client.HttpRequest,
+ * ContentCoding)}.
+ * </p>
+ *
+ * <p>
+ * The next chunk of the wrapped provider is requested only when the previous one is passed to the
+ * {@link Deflater}, and the {@link Deflater} is called only when the listener of this provider
+ * processed the previous output chunk, so the backpressure of the listener is propagated to the
+ * wrapped provider. The output chunks are leased from a {@link ByteBufferPool} and the
+ * {@link Deflater} instances are pooled.
+ * </p>
+ *
+ * <p>
+ * The {@link Deflater} of Java 8 can read and write only byte arrays, so the output chunks are heap
+ * buffers and the content of direct input chunks is copied into a heap array before compressing
+ * it.
+ * </p>
+ */
+public class CompressingAsyncContentProvider extends AbstractAsyncContentProvider {
+
+  /**
+   * The part of the compressed content that is written.
+   */
+  private enum State {
+    DATA, END, FINISHING, GZIP_HEADER, GZIP_TRAILER
+  }
+
+  private static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+  /**
+   * Gzip header without optional fields, extra flags and with unknown operating system.
+   */
+  private static final byte[] GZIP_HEADER = {
+      0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+  private static final int GZIP_TRAILER_LENGTH = 8;
+
+  private static void writeLittleEndianInt(byte[] bytes, int offset, int value) {
+    final int bitsPerByte = 8;
+    for (int i = 0; i < Integer.BYTES; i++) {
+      bytes[offset + i] = (byte) (value >>> (i * bitsPerByte));
+    }
+  }
+
+  private final ByteBufferPool bufferPool;
+
+  private final int chunkSize;
+
+  private final ContentCoding contentCoding;
+
+  private final CRC32 crc = new CRC32();
+
+  private Deflater deflater;
+
+  private final ZipCodecPool<Deflater> deflaterPool;
+
+  /**
+   * The bytes of the gzip header or trailer that are written. Only the part from the frame position
+   * is not written yet.
+   */
+  private byte[] frameBytes;
+
+  private int framePosition = 0;
+
+  private volatile ByteBuffer input;
+
+  private volatile AsyncCallback inputCallback;
+
+  private volatile boolean inputFinished = false;
+
+  private boolean registered = false;
+
+  /**
+   * Heap array that the content of direct input chunks is copied into.
+   */
+  private byte[] stagingArray;
+
+  private State state;
+
+  private volatile Consumer<ByteBuffer> waitingCallback;
+
+  private final AtomicInteger wip = new AtomicInteger();
+
+  private final AsyncContentProvider wrapped;
+
+  /**
+   * Constructor that compresses with the default compression level.
+   *
+   * @param wrapped
+   *          The provider of the content that is compressed.
+   * @param contentCoding
+   *          The format of the compressed content.
+   */
+  public CompressingAsyncContentProvider(AsyncContentProvider wrapped,
+      ContentCoding contentCoding) {
+    this(wrapped, contentCoding, Deflater.DEFAULT_COMPRESSION,
+        CompressingAsyncContentProvider.DEFAULT_CHUNK_SIZE, ByteBufferPool.getDefault());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param wrapped
+   *          The provider of the content that is compressed.
+   * @param contentCoding
+   *          The format of the compressed content.
+   * @param level
+   *          The compression level from {@link Deflater#NO_COMPRESSION} to
+   *          {@link Deflater#BEST_COMPRESSION} or {@link Deflater#DEFAULT_COMPRESSION}.
+   * @param chunkSize
+   *          The maximum size of the compressed chunks that are passed to the listener.
+   * @param bufferPool
+   *          The pool that the compressed chunks are leased from.
+   */
+  public CompressingAsyncContentProvider(AsyncContentProvider wrapped,
+      ContentCoding contentCoding, int level, int chunkSize, ByteBufferPool bufferPool) {
+
+    this.wrapped = Objects.requireNonNull(wrapped);
+    this.contentCoding = Objects.requireNonNull(contentCoding);
+    this.bufferPool = Objects.requireNonNull(bufferPool);
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("Chunk size must be greater than zero");
+    }
+    if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+        && level != Deflater.DEFAULT_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    this.chunkSize = chunkSize;
+
+    if (contentCoding == ContentCoding.GZIP) {
+      this.deflaterPool = ZipCodecPool.RAW_DEFLATERS;
+      this.state = State.GZIP_HEADER;
+      this.frameBytes = CompressingAsyncContentProvider.GZIP_HEADER;
+    } else {
+      this.deflaterPool = ZipCodecPool.ZLIB_DEFLATERS;
+      this.state = State.DATA;
+    }
+    this.deflater = this.deflaterPool.acquire();
+    this.deflater.setLevel(level);
+  }
+
+  private void compressLoop() {
+    if (this.wip.getAndIncrement() != 0) {
+      return;
+    }
+
+    int missed = 1;
+    do {
+      try {
+        compressStep();
+      } catch (Throwable e) {
+        fail(e);
+      }
+      missed = this.wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void compressStep() {
+    Consumer<ByteBuffer> callback = this.waitingCallback;
+    if (callback == null || getFailure().isPresent()) {
+      return;
+    }
+
+    ByteBuffer input = this.input;
+    if (this.state != State.END && input == null && !this.inputFinished) {
+      // Waiting for the next chunk of the wrapped provider
+      return;
+    }
+
+    ByteBuffer output = this.bufferPool.acquire(this.chunkSize, false);
+    try {
+      fill(output, input);
+    } catch (RuntimeException e) {
+      this.bufferPool.release(output);
+      throw e;
+    }
+
+    if (output.position() > 0) {
+      output.flip();
+      this.waitingCallback = null;
+      callback.accept(output);
+      return;
+    }
+    this.bufferPool.release(output);
+
+    if (this.state == State.END) {
+      this.waitingCallback = null;
+      handleSuccess();
+    } else if (input != null) {
+      // The deflater consumed the whole input chunk
+      AsyncCallback inputCallback = this.inputCallback;
+      this.input = null;
+      this.inputCallback = null;
+      inputCallback.processed();
+    }
+  }
+
+  private int deflate(ByteBuffer output) {
+    int written = this.deflater.deflate(output.array(), output.arrayOffset() + output.position(),
+        output.remaining());
+    output.position(output.position() + written);
+    return written;
+  }
+
+  @Override
+  protected void doClose() {
+    Deflater deflater = this.deflater;
+    this.deflater = null;
+    if (deflater != null) {
+      if (this.state == State.END) {
+        this.deflaterPool.release(deflater);
+      } else {
+        this.deflaterPool.end(deflater);
+      }
+    }
+    this.wrapped.close();
+  }
+
+  private void fail(Throwable error) {
+    AsyncCallback inputCallback = this.inputCallback;
+    this.input = null;
+    this.inputCallback = null;
+    this.waitingCallback = null;
+
+    handleErrorFromInput(error);
+    if (inputCallback != null) {
+      inputCallback.failed(error);
+    }
+  }
+
+  /**
+   * Writes compressed content into the output buffer until it is full, the input chunk is consumed
+   * or the end of the compressed content is reached.
+   */
+  private void fill(ByteBuffer output, ByteBuffer input) {
+    while (output.hasRemaining() && this.state != State.END) {
+      if (this.state == State.GZIP_HEADER || this.state == State.GZIP_TRAILER) {
+        if (!writeFrameBytes(output)) {
+          return;
+        }
+        this.state = this.state == State.GZIP_HEADER ? State.DATA : State.END;
+      } else if (this.state == State.DATA) {
+        if (this.deflater.needsInput()) {
+          if (input != null && input.hasRemaining()) {
+            setDeflaterInput(input);
+          } else if (input == null && this.inputFinished) {
+            this.deflater.finish();
+            this.state = State.FINISHING;
+          } else {
+            return;
+          }
+        }
+        deflate(output);
+      } else {
+        deflate(output);
+        if (this.deflater.finished()) {
+          startTrailer();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the format of the compressed content.
+   */
+  public ContentCoding getContentCoding() {
+    return this.contentCoding;
+  }
+
+  @Override
+  public Optional<Long> getContentLength() {
+    return Optional.empty();
+  }
+
+  @Override
+  public Optional<MediaType> getContentType() {
+    return this.wrapped.getContentType();
+  }
+
+  private void handleErrorFromWrappedProvider(Throwable error) {
+    if (getFailure().isPresent()) {
+      // The wrapped provider was notified about the failure of this provider
+      return;
+    }
+    handleErrorFromInput(error);
+  }
+
+  private void onWrappedContent(ByteBuffer chunk, AsyncCallback callback) {
+    this.inputCallback = callback;
+    this.input = chunk;
+    compressLoop();
+  }
+
+  private void onWrappedSuccess() {
+    this.inputFinished = true;
+    compressLoop();
+  }
+
+  @Override
+  protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+    this.waitingCallback = callback;
+    if (!this.registered) {
+      this.registered = true;
+      this.wrapped.onSuccess(this::onWrappedSuccess)
+          .onError(this::handleErrorFromWrappedProvider)
+          .onContent(this::onWrappedContent);
+    }
+    compressLoop();
+  }
+
+  @Override
+  protected void releaseChunk(ByteBuffer chunk) {
+    this.bufferPool.release(chunk);
+  }
+
+  private void setDeflaterInput(ByteBuffer input) {
+    int length = input.remaining();
+    byte[] array;
+    int offset;
+    if (input.hasArray()) {
+      array = input.array();
+      offset = input.arrayOffset() + input.position();
+    } else {
+      if (this.stagingArray == null) {
+        this.stagingArray = new byte[this.chunkSize];
+      }
+      length = Math.min(length, this.stagingArray.length);
+      input.duplicate().get(this.stagingArray, 0, length);
+      array = this.stagingArray;
+      offset = 0;
+    }
+
+    this.deflater.setInput(array, offset, length);
+    if (this.contentCoding == ContentCoding.GZIP) {
+      this.crc.update(array, offset, length);
+    }
+    input.position(input.position() + length);
+  }
+
+  private void startTrailer() {
+    if (this.contentCoding == ContentCoding.DEFLATE) {
+      this.state = State.END;
+      return;
+    }
+
+    byte[] trailer = new byte[CompressingAsyncContentProvider.GZIP_TRAILER_LENGTH];
+    CompressingAsyncContentProvider.writeLittleEndianInt(trailer, 0, (int) this.crc.getValue());
+    CompressingAsyncContentProvider.writeLittleEndianInt(trailer, Integer.BYTES,
+        (int) this.deflater.getBytesRead());
+    this.frameBytes = trailer;
+    this.framePosition = 0;
+    this.state = State.GZIP_TRAILER;
+  }
+
+  /**
+   * Writes the remaining frame bytes into the output buffer.
+   *
+   * @return Whether all frame bytes are written.
+   */
+  private boolean writeFrameBytes(ByteBuffer output) {
+    int length = Math.min(this.frameBytes.length - this.framePosition, output.remaining());
+    output.put(this.frameBytes, this.framePosition, length);
+    this.framePosition += length;
+    return this.framePosition == this.frameBytes.length;
+  }
+}
@@ -17,6 +17,9 @@ package org.everit.http.client.async;
 
 import java.nio.ByteBuffer;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Consumer;
 
 import org.everit.http.client.MediaType;
@@ -26,33 +29,88 @@ import org.everit.http.client.MediaType;
  * {@link AsyncContentProvider} instances. The success listener is called when the content of the
  * last wrapped provider is processed. In case the instance of this class is closed, all wrapped
  * content providers will be closed.
+ *
+ * Switching to the next wrapped provider happens in a loop: if a wrapped provider finishes
+ * synchronously while the next one is registered, the registration of the one after is done by the
+ * loop that is already running. This way concatenating many providers does not make the call
+ * stack deeper.
+ *
+ * A chunk of a wrapped provider is marked as processed only when the listener of this provider
+ * processed it, so wrapped providers that reuse their buffers can be concatenated safely. The
+ * wrapped providers are registered with the same prefetch as the listener of this provider, so they
+ * can read ahead while the listener processes the previous chunks. The first wrapped provider is
+ * registered when the listener of this provider is registered.
+ *
+ * The chunks of the wrapped providers are handed over to this provider without locking, through a
+ * single state word that is changed with compare-and-set. The state word holds either nothing, the
+ * callbacks of a provide call that waits for the next chunk, or the chunks that arrived while no
+ * call was waiting. A wrapped provider that finds waiting callbacks clears the state word and
+ * passes its chunk to them directly; otherwise it pushes its chunk to the state word. A provide
+ * call that finds arrived chunks takes all of them at once, so the next calls do not touch the
+ * state word until those chunks are passed. The chunks in flight are kept in one slot per chunk
+ * that the prefetch allows.
+ *
+ * If the listener of this provider is a {@link GatheringAsyncContentListener}, adjacent
+ * {@link ByteArrayAsyncContentProvider} instances are not registered one by one: their content is
+ * passed to the listener as one batch of buffers, so for example the boundary, the headers and the
+ * content of a small part of a multipart body can be written with one gathering write. Batches of
+ * wrapped providers are passed through as well.
  */
 public class ConcatenatedAsyncContentProvider extends AbstractAsyncContentProvider {
 
-  private static void callTwoFunctionsWithErrorHandling(Runnable action1, Runnable action2) {
-    Throwable error = null;
-    try {
-      action1.run();
-    } catch (Throwable e) {
-      error = e;
-    } finally {
-      try {
-        action2.run();
-      } catch (Throwable e) {
-        if (error != null) {
-          error.addSuppressed(e);
-        } else {
-          error = e;
-        }
+  /**
+   * The callbacks of a provide call that waits for the next chunk.
+   */
+  private static final class WaitingProvide {
 
-        if (error instanceof RuntimeException) {
-          throw (RuntimeException) error;
-        }
-        if (error instanceof Error) {
-          throw (Error) error;
-        }
-        throw new RuntimeException(error);
-      }
+    private final Consumer<ByteBuffer[]> batchCallback;
+
+    private final Consumer<ByteBuffer> chunkCallback;
+
+    WaitingProvide(Consumer<ByteBuffer> chunkCallback, Consumer<ByteBuffer[]> batchCallback) {
+      this.chunkCallback = chunkCallback;
+      this.batchCallback = batchCallback;
+    }
+  }
+
+  /**
+   * A chunk of a wrapped provider and the callback that must be notified when the chunk is
+   * processed.
+   */
+  private static final class WrappedChunk {
+
+    private final AsyncCallback callback;
+
+    private final ByteBuffer chunk;
+
+    private final ByteBuffer[] chunks;
+
+    /**
+     * The chunk that arrived before this one while this one is in the state word, or the chunk
+     * that arrived after this one when it is taken from the state word.
+     */
+    private WrappedChunk next;
+
+    WrappedChunk(ByteBuffer chunk, ByteBuffer[] chunks, AsyncCallback callback) {
+      this.chunk = chunk;
+      this.chunks = chunks;
+      this.callback = callback;
+    }
+  }
+
+  /**
+   * Listener of the wrapped providers if the listener of this provider accepts batches.
+   */
+  private final class WrappedGatheringListener implements GatheringAsyncContentListener {
+
+    @Override
+    public void onContent(ByteBuffer content, AsyncCallback callback) {
+      queueChunk(new WrappedChunk(content, null, callback));
+    }
+
+    @Override
+    public void onContent(ByteBuffer[] contents, AsyncCallback callback) {
+      queueChunk(new WrappedChunk(null, contents, callback));
     }
   }
 
@@ -60,17 +118,37 @@ public class ConcatenatedAsyncContentProvider extends AbstractAsyncContentProvid
 
   private final Optional<MediaType> contentType;
 
-  private AsyncCallback lastCallback = null;
+  /**
+   * Chunks that are passed to the listener of this provider and are not processed yet. The
+   * superclass passes at most as many chunks to the listener as its prefetch and releases a chunk
+   * before it counts it as processed, so there is a free slot whenever a chunk is passed. Created
+   * by the first provide call, when the prefetch is known.
+   */
+  private volatile AtomicReferenceArray<WrappedChunk> inFlightChunks;
 
-  private ByteBuffer lastChunk = null;
+  private final Optional<Long> length;
 
-  private Consumer<ByteBuffer> lastProvideCallback = null;
+  private int positionOfNextProvider = 0;
 
-  private final Optional<Long> length;
+  private final AtomicInteger registrationWip = new AtomicInteger();
 
-  private final Object mutex = new Object();
+  /**
+   * Whether the first wrapped provider was registered. Only accessed by the provide calls, which
+   * are never concurrent.
+   */
+  private boolean started = false;
 
-  private int positionOfNextProvider = 0;
+  /**
+   * Null, a {@link WaitingProvide} or the last {@link WrappedChunk} that arrived, linked to the
+   * ones that arrived before it.
+   */
+  private final AtomicReference<Object> state = new AtomicReference<>();
+
+  /**
+   * Chunks that were taken from the state word and are not passed yet, in the order of their
+   * arrival. Only accessed by the provide calls.
+   */
+  private WrappedChunk takenChunks;
 
   /**
    * Constructor.
@@ -85,8 +163,29 @@ public class ConcatenatedAsyncContentProvider extends AbstractAsyncContentProvid
     this.contentType = contentType;
     this.contentProviders = contentProviders.clone();
     this.length = calculateLength();
+  }
+
+  private void acceptChunk(WrappedChunk wrappedChunk, Consumer<ByteBuffer> chunkCallback,
+      Consumer<ByteBuffer[]> batchCallback) {
+
+    WrappedChunk acceptedChunk = joinIfBatchNotAccepted(wrappedChunk, batchCallback);
 
-    registerNextContentProvider();
+    // Only one chunk is passed at a time, so no other thread takes the free slot
+    AtomicReferenceArray<WrappedChunk> inFlightChunks = this.inFlightChunks;
+    int slot = 0;
+    while (inFlightChunks.get(slot) != null) {
+      slot++;
+      if (slot == inFlightChunks.length()) {
+        throw new IllegalStateException("More chunks are in flight than the prefetch allows");
+      }
+    }
+    inFlightChunks.set(slot, acceptedChunk);
+
+    if (acceptedChunk.chunks != null) {
+      batchCallback.accept(acceptedChunk.chunks);
+    } else {
+      chunkCallback.accept(acceptedChunk.chunk);
+    }
   }
 
   private Optional<Long> calculateLength() {
@@ -137,61 +236,232 @@ public class ConcatenatedAsyncContentProvider extends AbstractAsyncContentProvid
     return this.contentType;
   }
 
-  @Override
-  protected void provideNextChunk(Consumer<ByteBuffer> provideCallback) {
-    ByteBuffer tmpLastChunk;
-    AsyncCallback tmpCallback;
-
-    synchronized (this.mutex) {
-      tmpLastChunk = this.lastChunk;
-      if (tmpLastChunk == null) {
-        this.lastProvideCallback = provideCallback;
+  private void handleErrorFromWrappedProvider(Throwable error) {
+    if (getFailure().isPresent()) {
+      // The wrapped provider was notified about the failure of this provider
+      return;
+    }
+    handleErrorFromInput(error);
+  }
+
+  /**
+   * Joins the batch of a wrapped chunk into one buffer if it is passed to a
+   * {@link #provideNextChunk(Consumer)} call that does not accept batches. The joined buffer is
+   * recorded as the in-flight chunk, so it is found when the listener releases it.
+   */
+  private WrappedChunk joinIfBatchNotAccepted(WrappedChunk wrappedChunk,
+      Consumer<ByteBuffer[]> batchCallback) {
+
+    if (wrappedChunk.chunks == null || batchCallback != null) {
+      return wrappedChunk;
+    }
+    return new WrappedChunk(AbstractAsyncContentProvider.joinChunks(wrappedChunk.chunks), null,
+        wrappedChunk.callback);
+  }
+
+  /**
+   * Passes the next chunk to the callbacks or stores them until the next chunk arrives.
+   *
+   * @param chunkCallback
+   *          The callback that accepts the next chunk.
+   * @param batchCallback
+   *          The callback that accepts the next batch or null if batches must be joined.
+   */
+  private void provide(Consumer<ByteBuffer> chunkCallback, Consumer<ByteBuffer[]> batchCallback) {
+    if (this.inFlightChunks == null) {
+      this.inFlightChunks = new AtomicReferenceArray<>(getPrefetch());
+    }
+
+    WrappedChunk nextChunk = this.takenChunks;
+    if (nextChunk == null) {
+      nextChunk = takeArrivedChunksOrWait(chunkCallback, batchCallback);
+      if (nextChunk == null) {
+        if (!this.started) {
+          this.started = true;
+          registerNextContentProvider();
+        }
         return;
       }
-      this.lastChunk = null;
+    }
+
+    this.takenChunks = nextChunk.next;
+    nextChunk.next = null;
+    acceptChunk(nextChunk, chunkCallback, batchCallback);
+  }
+
+  @Override
+  protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+    provide(callback, null);
+  }
+
+  @Override
+  protected void provideNextChunks(Consumer<ByteBuffer> chunkCallback,
+      Consumer<ByteBuffer[]> batchCallback) {
+    provide(chunkCallback, batchCallback);
+  }
+
+  private void queueChunk(WrappedChunk wrappedChunk) {
+    Object currentState;
+    Object newState;
+    do {
+      currentState = this.state.get();
+      if (currentState instanceof WaitingProvide) {
+        newState = null;
+      } else {
+        wrappedChunk.next = (WrappedChunk) currentState;
+        newState = wrappedChunk;
+      }
+    } while (!this.state.compareAndSet(currentState, newState));
+
+    if (newState == null) {
+      wrappedChunk.next = null;
+      WaitingProvide waitingProvide = (WaitingProvide) currentState;
+      acceptChunk(wrappedChunk, waitingProvide.chunkCallback, waitingProvide.batchCallback);
+    }
+  }
 
-      tmpCallback = this.lastCallback;
-      this.lastCallback = null;
+  /**
+   * Queues the content of the adjacent {@link ByteArrayAsyncContentProvider} instances starting
+   * from the next provider as one batch if there are more than one of them.
+   *
+   * @return Whether a batch was queued.
+   */
+  private boolean queueInMemoryBatch() {
+    int end = this.positionOfNextProvider;
+    while (end < this.contentProviders.length
+        && this.contentProviders[end] instanceof ByteArrayAsyncContentProvider) {
+      end++;
+    }
+    if (end - this.positionOfNextProvider < 2) {
+      return false;
     }
 
-    ConcatenatedAsyncContentProvider.callTwoFunctionsWithErrorHandling(
-        () -> provideCallback.accept(tmpLastChunk),
-        tmpCallback::processed);
+    ByteBuffer[] batch = new ByteBuffer[end - this.positionOfNextProvider];
+    for (int i = 0; i < batch.length; i++) {
+      batch[i] = ((ByteArrayAsyncContentProvider) this.contentProviders[
+          this.positionOfNextProvider + i]).wrapContent();
+    }
+    this.positionOfNextProvider = end;
+
+    queueChunk(new WrappedChunk(null, batch, new AsyncCallback() {
+
+      @Override
+      public void failed(Throwable e) {
+        // The failure is handled by the superclass
+      }
+
+      @Override
+      public void processed() {
+        registerNextContentProvider();
+      }
+    }));
+    return true;
   }
 
   private void registerNextContentProvider() {
+    if (this.registrationWip.getAndIncrement() != 0) {
+      return;
+    }
+
+    do {
+      registerNextContentProviderInLoop();
+    } while (this.registrationWip.decrementAndGet() != 0);
+  }
+
+  private void registerNextContentProviderInLoop() {
     if (this.positionOfNextProvider == this.contentProviders.length) {
       handleSuccess();
       return;
     }
 
+    boolean batchAccepted = isBatchAccepted();
+    if (batchAccepted && queueInMemoryBatch()) {
+      return;
+    }
+
     AsyncContentProvider contentProvider = this.contentProviders[this.positionOfNextProvider];
     this.positionOfNextProvider++;
 
-    contentProvider.onSuccess(this::registerNextContentProvider).onError(this::handleErrorFromInput)
-        .onContent(new AsyncContentListener() {
+    AsyncContentListener listener = batchAccepted
+        ? new WrappedGatheringListener()
+        : (content, callback) -> queueChunk(new WrappedChunk(content, null, callback));
 
-          @Override
-          public void onContent(ByteBuffer content, AsyncCallback callback) {
-            Consumer<ByteBuffer> tmpLastProvideCallback;
+    contentProvider.onSuccess(this::registerNextContentProvider)
+        .onError(this::handleErrorFromWrappedProvider)
+        .onContent(listener, getPrefetch());
+  }
 
-            synchronized (ConcatenatedAsyncContentProvider.this.mutex) {
-              tmpLastProvideCallback =
-                  ConcatenatedAsyncContentProvider.this.lastProvideCallback;
+  @Override
+  protected void releaseChunk(ByteBuffer chunk) {
+    releaseWrappedChunk(chunk, null);
+  }
 
-              if (tmpLastProvideCallback == null) {
-                ConcatenatedAsyncContentProvider.this.lastCallback = callback;
-                ConcatenatedAsyncContentProvider.this.lastChunk = content;
-                return;
-              }
+  @Override
+  protected void releaseChunks(ByteBuffer[] chunks) {
+    releaseWrappedChunk(null, chunks);
+  }
 
-              ConcatenatedAsyncContentProvider.this.lastProvideCallback = null;
-            }
+  private void releaseWrappedChunk(ByteBuffer chunk, ByteBuffer[] chunks) {
+    AtomicReferenceArray<WrappedChunk> inFlightChunks = this.inFlightChunks;
+    if (inFlightChunks == null) {
+      return;
+    }
+
+    AsyncCallback callback = null;
+    for (int i = 0, n = inFlightChunks.length(); callback == null && i < n; i++) {
+      WrappedChunk wrappedChunk = inFlightChunks.get(i);
+      if (wrappedChunk != null && wrappedChunk.chunk == chunk && wrappedChunk.chunks == chunks
+          && inFlightChunks.compareAndSet(i, wrappedChunk, null)) {
+        callback = wrappedChunk.callback;
+      }
+    }
 
-            ConcatenatedAsyncContentProvider.callTwoFunctionsWithErrorHandling(
-                () -> tmpLastProvideCallback.accept(content), callback::processed);
-          }
-        });
+    if (callback == null) {
+      return;
+    }
+
+    Optional<Throwable> failure = getFailure();
+    if (failure.isPresent()) {
+      callback.failed(failure.get());
+    } else {
+      callback.processed();
+    }
   }
 
+  /**
+   * Takes all chunks that arrived since the last call or stores the callbacks as waiting ones if no
+   * chunk arrived.
+   *
+   * @return The chunk that arrived first, linked to the ones that arrived after it, or null if the
+   *         callbacks are waiting.
+   */
+  private WrappedChunk takeArrivedChunksOrWait(Consumer<ByteBuffer> chunkCallback,
+      Consumer<ByteBuffer[]> batchCallback) {
+
+    WaitingProvide waitingProvide = null;
+    Object currentState;
+    Object newState;
+    do {
+      currentState = this.state.get();
+      if (currentState == null) {
+        if (waitingProvide == null) {
+          waitingProvide = new WaitingProvide(chunkCallback, batchCallback);
+        }
+        newState = waitingProvide;
+      } else {
+        newState = null;
+      }
+    } while (!this.state.compareAndSet(currentState, newState));
+
+    // The chunks are linked from the last one that arrived, so the links are reversed
+    WrappedChunk first = null;
+    WrappedChunk arrived = (WrappedChunk) currentState;
+    while (arrived != null) {
+      WrappedChunk previous = arrived.next;
+      arrived.next = first;
+      first = arrived;
+      arrived = previous;
+    }
+    return first;
+  }
 }
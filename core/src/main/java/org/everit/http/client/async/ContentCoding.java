@@ -0,0 +1,70 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * The content codings of HTTP that are supported by {@link CompressingAsyncContentProvider} and
+ * {@link DecompressingAsyncContentProvider}.
+ */
+public enum ContentCoding {
+
+  /**
+   * The zlib format. When decompressing, raw deflate data is accepted as well.
+   */
+  DEFLATE("deflate"),
+
+  /**
+   * The gzip format.
+   */
+  GZIP("gzip");
+
+  /**
+   * Returns the content coding of a token of the <i>Content-Encoding</i> header.
+   *
+   * @param token
+   *          The token of the header, e.g. <i>gzip</i>. The legacy <i>x-gzip</i> token is accepted
+   *          as well.
+   * @return The content coding or {@link Optional#empty()} if the coding is not supported.
+   */
+  public static Optional<ContentCoding> fromToken(String token) {
+    String normalizedToken = token.trim().toLowerCase(Locale.ENGLISH);
+    if ("x-gzip".equals(normalizedToken)) {
+      return Optional.of(GZIP);
+    }
+    for (ContentCoding contentCoding : ContentCoding.values()) {
+      if (contentCoding.token.equals(normalizedToken)) {
+        return Optional.of(contentCoding);
+      }
+    }
+    return Optional.empty();
+  }
+
+  private final String token;
+
+  ContentCoding(String token) {
+    this.token = token;
+  }
+
+  /**
+   * Returns the token of the coding that is used in the <i>Content-Encoding</i> header.
+   */
+  public String getToken() {
+    return this.token;
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+/**
+ * Thrown when the content of an {@link AsyncContentProvider} is bigger than the amount of bytes
+ * that the reader accepts.
+ */
+public class ContentTooLargeException extends RuntimeException {
+
+  private static final long serialVersionUID = 2837465501923650123L;
+
+  private final long maxLength;
+
+  /**
+   * Constructor.
+   *
+   * @param maxLength
+   *          The maximum amount of bytes that the reader accepts.
+   */
+  public ContentTooLargeException(long maxLength) {
+    super("Content is larger than the maximum of " + maxLength + " bytes");
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * The maximum amount of bytes that the reader accepts.
+   */
+  public long getMaxLength() {
+    return this.maxLength;
+  }
+}
@@ -0,0 +1,583 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.everit.http.client.MediaType;
+
+/**
+ * <p>
+ * A wrapper around another {@link AsyncContentProvider} that decompresses the content of the
+ * wrapped provider chunk by chunk. The <i>gzip</i> (including multiple members) and the
+ * <i>deflate</i> content codings of HTTP are supported. As some servers send raw deflate data
+ * instead of the zlib format that the specification requires, both are accepted for the
+ * <i>deflate</i> coding.
+ * </p>
+ *
+ * <p>
+ * The next chunk of the wrapped provider is requested only when the previous one is fully
+ * decompressed, and a chunk is decompressed only when the listener of this provider processed the
+ * previous output chunk, so the backpressure of the listener is propagated to the wrapped provider.
+ * The output chunks are leased from a {@link ByteBufferPool} and the {@link Inflater} instances are
+ * pooled as well, as allocating their native state is expensive.
+ * </p>
+ *
+ * <p>
+ * The {@link Inflater} of Java 8 can read and write only byte arrays, so the output chunks are heap
+ * buffers and the content of direct input chunks is copied into a heap array before decompressing
+ * it.
+ * </p>
+ */
+public class DecompressingAsyncContentProvider extends AbstractAsyncContentProvider {
+
+  /**
+   * The part of the compressed content that is read.
+   */
+  private enum State {
+    DATA, DEFLATE_DETECTION, END, GZIP_HEADER, GZIP_TRAILER
+  }
+
+  private static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+  private static final int GZIP_FIXED_HEADER_LENGTH = 10;
+
+  private static final int GZIP_FLAG_FCOMMENT = 16;
+
+  private static final int GZIP_FLAG_FEXTRA = 4;
+
+  private static final int GZIP_FLAG_FHCRC = 2;
+
+  private static final int GZIP_FLAG_FNAME = 8;
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+
+  private static final int GZIP_TRAILER_LENGTH = 8;
+
+  private static final int HEADER_STAGE_COMMENT = 4;
+
+  private static final int HEADER_STAGE_CRC = 5;
+
+  private static final int HEADER_STAGE_EXTRA = 2;
+
+  private static final int HEADER_STAGE_EXTRA_LENGTH = 1;
+
+  private static final int HEADER_STAGE_FIXED = 0;
+
+  private static final int HEADER_STAGE_NAME = 3;
+
+  private static final int ZLIB_HEADER_LENGTH = 2;
+
+  private static int readLittleEndianInt(byte[] bytes, int offset) {
+    final int byteMask = 0xff;
+    final int bitsPerByte = 8;
+    int result = 0;
+    for (int i = Integer.BYTES - 1; i >= 0; i--) {
+      result = (result << bitsPerByte) | (bytes[offset + i] & byteMask);
+    }
+    return result;
+  }
+
+  private final ByteBufferPool bufferPool;
+
+  private final int chunkSize;
+
+  private final ContentCoding contentCoding;
+
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * The bytes of the gzip header, the gzip trailer or the zlib header that are read so far.
+   */
+  private final byte[] frameBytes =
+      new byte[DecompressingAsyncContentProvider.GZIP_FIXED_HEADER_LENGTH];
+
+  private int frameLength = 0;
+
+  private int gzipExtraRemaining;
+
+  private int gzipFlags;
+
+  private int gzipHeaderStage = DecompressingAsyncContentProvider.HEADER_STAGE_FIXED;
+
+  private Inflater inflater;
+
+  private ZipCodecPool<Inflater> inflaterPool;
+
+  /**
+   * Whether the input of the inflater is set from the current input chunk. Otherwise it is set from
+   * the frame bytes.
+   */
+  private boolean inflaterInputFromChunk = false;
+
+  private volatile ByteBuffer input;
+
+  private volatile AsyncCallback inputCallback;
+
+  private volatile boolean inputFinished = false;
+
+  private boolean inputReceived = false;
+
+  private boolean registered = false;
+
+  /**
+   * Heap array that the content of direct input chunks is copied into.
+   */
+  private byte[] stagingArray;
+
+  private State state;
+
+  private volatile Consumer<ByteBuffer> waitingCallback;
+
+  private final AtomicInteger wip = new AtomicInteger();
+
+  private final AsyncContentProvider wrapped;
+
+  /**
+   * Constructor.
+   *
+   * @param wrapped
+   *          The provider of the compressed content.
+   * @param contentCoding
+   *          The coding of the compressed content.
+   */
+  public DecompressingAsyncContentProvider(AsyncContentProvider wrapped,
+      ContentCoding contentCoding) {
+    this(wrapped, contentCoding, DecompressingAsyncContentProvider.DEFAULT_CHUNK_SIZE,
+        ByteBufferPool.getDefault());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param wrapped
+   *          The provider of the compressed content.
+   * @param contentCoding
+   *          The coding of the compressed content.
+   * @param chunkSize
+   *          The maximum size of the decompressed chunks that are passed to the listener.
+   * @param bufferPool
+   *          The pool that the decompressed chunks are leased from.
+   */
+  public DecompressingAsyncContentProvider(AsyncContentProvider wrapped,
+      ContentCoding contentCoding, int chunkSize, ByteBufferPool bufferPool) {
+
+    this.wrapped = Objects.requireNonNull(wrapped);
+    this.contentCoding = Objects.requireNonNull(contentCoding);
+    this.bufferPool = Objects.requireNonNull(bufferPool);
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("Chunk size must be greater than zero");
+    }
+    this.chunkSize = chunkSize;
+
+    if (contentCoding == ContentCoding.GZIP) {
+      this.state = State.GZIP_HEADER;
+      this.inflaterPool = ZipCodecPool.RAW_INFLATERS;
+      this.inflater = this.inflaterPool.acquire();
+    } else {
+      this.state = State.DEFLATE_DETECTION;
+    }
+  }
+
+  /**
+   * Decompresses the input chunk until an output chunk is produced or the input chunk is consumed.
+   *
+   * @return The output chunk or null if the input chunk is consumed.
+   */
+  private ByteBuffer decode(ByteBuffer input) throws IOException {
+    while (true) {
+      if (this.state == State.GZIP_HEADER) {
+        if (!readGzipHeader(input)) {
+          return null;
+        }
+        this.state = State.DATA;
+      } else if (this.state == State.DEFLATE_DETECTION) {
+        if (!readFrameBytes(input, DecompressingAsyncContentProvider.ZLIB_HEADER_LENGTH)) {
+          return null;
+        }
+        startDeflate();
+      } else if (this.state == State.DATA) {
+        ByteBuffer output = inflate(input);
+        if (output != null) {
+          return output;
+        }
+        if (!this.inflater.finished()) {
+          return null;
+        }
+        this.state = this.contentCoding == ContentCoding.GZIP ? State.GZIP_TRAILER : State.END;
+      } else if (this.state == State.GZIP_TRAILER) {
+        if (!readFrameBytes(input, DecompressingAsyncContentProvider.GZIP_TRAILER_LENGTH)) {
+          return null;
+        }
+        verifyGzipTrailer();
+        this.state = State.END;
+      } else {
+        if (!input.hasRemaining()) {
+          return null;
+        }
+        if (this.contentCoding == ContentCoding.DEFLATE) {
+          // Nothing can follow deflate data, ignore the garbage
+          input.position(input.limit());
+          return null;
+        }
+        // Next gzip member
+        this.inflater.reset();
+        this.crc.reset();
+        this.state = State.GZIP_HEADER;
+      }
+    }
+  }
+
+  private void decodeLoop() {
+    if (this.wip.getAndIncrement() != 0) {
+      return;
+    }
+
+    int missed = 1;
+    do {
+      try {
+        decodeStep();
+      } catch (Throwable e) {
+        fail(e);
+      }
+      missed = this.wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void decodeStep() throws IOException {
+    Consumer<ByteBuffer> callback = this.waitingCallback;
+    if (callback == null || getFailure().isPresent()) {
+      return;
+    }
+
+    ByteBuffer input = this.input;
+    if (input != null) {
+      ByteBuffer output = decode(input);
+      if (output != null) {
+        this.waitingCallback = null;
+        callback.accept(output);
+        return;
+      }
+
+      AsyncCallback inputCallback = this.inputCallback;
+      this.input = null;
+      this.inputCallback = null;
+      inputCallback.processed();
+      return;
+    }
+
+    if (this.inputFinished) {
+      if (this.state != State.END && this.inputReceived) {
+        throw new EOFException("Compressed content ended unexpectedly");
+      }
+      this.waitingCallback = null;
+      handleSuccess();
+    }
+  }
+
+  @Override
+  protected void doClose() {
+    Inflater inflater = this.inflater;
+    this.inflater = null;
+    if (inflater != null) {
+      if (this.state == State.END) {
+        this.inflaterPool.release(inflater);
+      } else {
+        this.inflaterPool.end(inflater);
+      }
+    }
+    this.wrapped.close();
+  }
+
+  private void fail(Throwable error) {
+    AsyncCallback inputCallback = this.inputCallback;
+    this.input = null;
+    this.inputCallback = null;
+    this.waitingCallback = null;
+
+    handleErrorFromInput(error);
+    if (inputCallback != null) {
+      inputCallback.failed(error);
+    }
+  }
+
+  @Override
+  public Optional<Long> getContentLength() {
+    return Optional.empty();
+  }
+
+  @Override
+  public Optional<MediaType> getContentType() {
+    return this.wrapped.getContentType();
+  }
+
+  private void handleErrorFromWrappedProvider(Throwable error) {
+    if (getFailure().isPresent()) {
+      // The wrapped provider was notified about the failure of this provider
+      return;
+    }
+    handleErrorFromInput(error);
+  }
+
+  private ByteBuffer inflate(ByteBuffer input) throws IOException {
+    ByteBuffer output = this.bufferPool.acquire(this.chunkSize, false);
+    int produced = 0;
+    try {
+      while (produced == 0 && !this.inflater.finished()) {
+        if (this.inflater.needsInput() && !setInflaterInput(input)) {
+          break;
+        }
+        produced = this.inflater.inflate(output.array(), output.arrayOffset() + output.position(),
+            output.remaining());
+        if (this.inflater.needsDictionary()) {
+          throw new ZipException("Preset dictionaries are not supported");
+        }
+      }
+    } catch (DataFormatException e) {
+      this.bufferPool.release(output);
+      throw new ZipException(e.getMessage());
+    } catch (IOException | RuntimeException e) {
+      this.bufferPool.release(output);
+      throw e;
+    }
+
+    if (this.inflater.finished() && this.inflaterInputFromChunk) {
+      // Give back the bytes that follow the compressed data
+      input.position(input.position() - this.inflater.getRemaining());
+      this.inflaterInputFromChunk = false;
+    }
+
+    if (produced == 0) {
+      this.bufferPool.release(output);
+      return null;
+    }
+
+    if (this.contentCoding == ContentCoding.GZIP) {
+      this.crc.update(output.array(), output.arrayOffset() + output.position(), produced);
+    }
+    output.limit(output.position() + produced);
+    return output;
+  }
+
+  private void onWrappedContent(ByteBuffer chunk, AsyncCallback callback) {
+    if (chunk.hasRemaining()) {
+      this.inputReceived = true;
+    }
+    this.inputCallback = callback;
+    this.input = chunk;
+    decodeLoop();
+  }
+
+  private void onWrappedSuccess() {
+    this.inputFinished = true;
+    decodeLoop();
+  }
+
+  @Override
+  protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+    this.waitingCallback = callback;
+    if (!this.registered) {
+      this.registered = true;
+      this.wrapped.onSuccess(this::onWrappedSuccess)
+          .onError(this::handleErrorFromWrappedProvider)
+          .onContent(this::onWrappedContent);
+    }
+    decodeLoop();
+  }
+
+  /**
+   * Copies bytes from the input chunk to the frame bytes until the specified amount of frame bytes
+   * are available.
+   *
+   * @return Whether the frame bytes are complete.
+   */
+  private boolean readFrameBytes(ByteBuffer input, int length) {
+    while (this.frameLength < length && input.hasRemaining()) {
+      this.frameBytes[this.frameLength++] = input.get();
+    }
+    return this.frameLength == length;
+  }
+
+  /**
+   * Reads the next part of the gzip header from the input chunk.
+   *
+   * @return Whether the whole header is read.
+   */
+  private boolean readGzipHeader(ByteBuffer input) throws IOException {
+    final int byteMask = 0xff;
+    final int bitsPerByte = 8;
+
+    if (this.gzipHeaderStage == DecompressingAsyncContentProvider.HEADER_STAGE_FIXED) {
+      if (!readFrameBytes(input, DecompressingAsyncContentProvider.GZIP_FIXED_HEADER_LENGTH)) {
+        return false;
+      }
+      int magic = (this.frameBytes[0] & byteMask) | (this.frameBytes[1] & byteMask) << bitsPerByte;
+      if (magic != DecompressingAsyncContentProvider.GZIP_MAGIC) {
+        throw new ZipException("Not in GZIP format");
+      }
+      final int deflateMethod = 8;
+      if (this.frameBytes[2] != deflateMethod) {
+        throw new ZipException("Unsupported compression method: " + this.frameBytes[2]);
+      }
+      this.gzipFlags = this.frameBytes[3] & byteMask;
+      this.frameLength = 0;
+      this.gzipHeaderStage = DecompressingAsyncContentProvider.HEADER_STAGE_EXTRA_LENGTH;
+    }
+
+    if (this.gzipHeaderStage == DecompressingAsyncContentProvider.HEADER_STAGE_EXTRA_LENGTH) {
+      this.gzipExtraRemaining = 0;
+      if ((this.gzipFlags & DecompressingAsyncContentProvider.GZIP_FLAG_FEXTRA) != 0) {
+        if (!readFrameBytes(input, 2)) {
+          return false;
+        }
+        this.gzipExtraRemaining =
+            (this.frameBytes[0] & byteMask) | (this.frameBytes[1] & byteMask) << bitsPerByte;
+        this.frameLength = 0;
+      }
+      this.gzipHeaderStage = DecompressingAsyncContentProvider.HEADER_STAGE_EXTRA;
+    }
+
+    if (this.gzipHeaderStage == DecompressingAsyncContentProvider.HEADER_STAGE_EXTRA) {
+      int skipped = Math.min(this.gzipExtraRemaining, input.remaining());
+      input.position(input.position() + skipped);
+      this.gzipExtraRemaining -= skipped;
+      if (this.gzipExtraRemaining > 0) {
+        return false;
+      }
+      this.gzipHeaderStage = DecompressingAsyncContentProvider.HEADER_STAGE_NAME;
+    }
+
+    if (this.gzipHeaderStage == DecompressingAsyncContentProvider.HEADER_STAGE_NAME) {
+      if ((this.gzipFlags & DecompressingAsyncContentProvider.GZIP_FLAG_FNAME) != 0
+          && !skipZeroTerminated(input)) {
+        return false;
+      }
+      this.gzipHeaderStage = DecompressingAsyncContentProvider.HEADER_STAGE_COMMENT;
+    }
+
+    if (this.gzipHeaderStage == DecompressingAsyncContentProvider.HEADER_STAGE_COMMENT) {
+      if ((this.gzipFlags & DecompressingAsyncContentProvider.GZIP_FLAG_FCOMMENT) != 0
+          && !skipZeroTerminated(input)) {
+        return false;
+      }
+      this.gzipHeaderStage = DecompressingAsyncContentProvider.HEADER_STAGE_CRC;
+    }
+
+    if ((this.gzipFlags & DecompressingAsyncContentProvider.GZIP_FLAG_FHCRC) != 0) {
+      if (!readFrameBytes(input, 2)) {
+        return false;
+      }
+      this.frameLength = 0;
+    }
+    this.gzipHeaderStage = DecompressingAsyncContentProvider.HEADER_STAGE_FIXED;
+    return true;
+  }
+
+  @Override
+  protected void releaseChunk(ByteBuffer chunk) {
+    this.bufferPool.release(chunk);
+  }
+
+  /**
+   * Sets the remaining bytes of the input chunk as the input of the inflater.
+   *
+   * @return Whether the input chunk had remaining bytes.
+   */
+  private boolean setInflaterInput(ByteBuffer input) {
+    int length = input.remaining();
+    if (length == 0) {
+      return false;
+    }
+
+    if (input.hasArray()) {
+      this.inflater.setInput(input.array(), input.arrayOffset() + input.position(), length);
+    } else {
+      if (this.stagingArray == null) {
+        this.stagingArray = new byte[this.chunkSize];
+      }
+      length = Math.min(length, this.stagingArray.length);
+      input.duplicate().get(this.stagingArray, 0, length);
+      this.inflater.setInput(this.stagingArray, 0, length);
+    }
+    input.position(input.position() + length);
+    this.inflaterInputFromChunk = true;
+    return true;
+  }
+
+  /**
+   * Skips the bytes of a zero terminated field of the gzip header.
+   *
+   * @return Whether the terminating zero was reached.
+   */
+  private boolean skipZeroTerminated(ByteBuffer input) {
+    while (input.hasRemaining()) {
+      if (input.get() == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Selects the inflater based on the first two bytes of the deflate content: if they are a valid
+   * zlib header, the content is in zlib format, otherwise it is raw deflate data.
+   */
+  private void startDeflate() {
+    final int byteMask = 0xff;
+    final int bitsPerByte = 8;
+    final int methodMask = 0x0f;
+    final int deflateMethod = 8;
+    final int checkDivisor = 31;
+
+    int cmf = this.frameBytes[0] & byteMask;
+    int flg = this.frameBytes[1] & byteMask;
+    boolean zlib =
+        (cmf & methodMask) == deflateMethod && ((cmf << bitsPerByte) | flg) % checkDivisor == 0;
+
+    this.inflaterPool = zlib ? ZipCodecPool.ZLIB_INFLATERS : ZipCodecPool.RAW_INFLATERS;
+    this.inflater = this.inflaterPool.acquire();
+
+    // The inflater keeps a reference to the array, but the frame bytes are not used anymore
+    this.inflater.setInput(this.frameBytes, 0, this.frameLength);
+    this.inflaterInputFromChunk = false;
+    this.frameLength = 0;
+    this.state = State.DATA;
+  }
+
+  private void verifyGzipTrailer() throws ZipException {
+    this.frameLength = 0;
+    int expectedCrc = DecompressingAsyncContentProvider.readLittleEndianInt(this.frameBytes, 0);
+    int expectedSize =
+        DecompressingAsyncContentProvider.readLittleEndianInt(this.frameBytes, Integer.BYTES);
+
+    if (expectedCrc != (int) this.crc.getValue()) {
+      throw new ZipException("Corrupt GZIP trailer: CRC mismatch");
+    }
+    if (expectedSize != (int) this.inflater.getBytesWritten()) {
+      throw new ZipException("Corrupt GZIP trailer: size mismatch");
+    }
+  }
+}
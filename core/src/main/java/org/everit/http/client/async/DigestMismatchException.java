@@ -0,0 +1,61 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.IOException;
+import java.util.Base64;
+
+/**
+ * Thrown when the digest of the content of a {@link DigestingAsyncContentProvider} differs from the
+ * expected value.
+ */
+public class DigestMismatchException extends IOException {
+
+  private static final long serialVersionUID = -6147230885264619043L;
+
+  private final byte[] actual;
+
+  private final byte[] expected;
+
+  /**
+   * Constructor.
+   *
+   * @param expected
+   *          The digest that the content should have.
+   * @param actual
+   *          The digest of the content.
+   */
+  public DigestMismatchException(byte[] expected, byte[] actual) {
+    super("Digest of the content is " + Base64.getEncoder().encodeToString(actual)
+        + " instead of " + Base64.getEncoder().encodeToString(expected));
+    this.expected = expected.clone();
+    this.actual = actual.clone();
+  }
+
+  /**
+   * The digest of the content.
+   */
+  public byte[] getActual() {
+    return this.actual.clone();
+  }
+
+  /**
+   * The digest that the content should have.
+   */
+  public byte[] getExpected() {
+    return this.expected.clone();
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.everit.http.client.MediaType;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * <p>
+ * A wrapper around another {@link AsyncContentProvider} that updates a {@link MessageDigest} or a
+ * {@link Checksum} with every chunk while the chunks are passed to the listener, so the digest of
+ * a body is available when the body is read, without reading it twice or buffering it. The chunks
+ * are passed to the listener as they are; the digest is updated from a duplicate of the chunk
+ * right before the listener receives it, so the listener must not modify the content of the
+ * chunks. The prefetch and the batches of the wrapped provider are kept.
+ * </p>
+ *
+ * <p>
+ * The digest is finished when the wrapped provider succeeded, right before the listener registered
+ * via {@link #onSuccess(Runnable)} is called, and it is available from {@link #getDigest()} from
+ * then on. If an expected digest is specified, it is compared to the finished digest, and if they
+ * differ, the listener registered via {@link #onError(Consumer)} is called with a
+ * {@link DigestMismatchException} instead of the success listener.
+ * </p>
+ *
+ * <p>
+ * The digest of a {@link Checksum} is the four bytes of its 32 bit value in big-endian order, as
+ * used by the <i>crc32c</i> and <i>adler32</i> algorithms of the HTTP <i>Digest</i> header.
+ * </p>
+ */
+public class DigestingAsyncContentProvider implements AsyncContentProvider {
+
+  /**
+   * Updates the digest with the chunks before passing them to the listener.
+   */
+  private final class DigestingListener implements GatheringAsyncContentListener {
+
+    private final AsyncContentListener listener;
+
+    DigestingListener(AsyncContentListener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void onContent(ByteBuffer content, AsyncCallback callback) {
+      DigestingAsyncContentProvider.this.update.accept(content.duplicate());
+      this.listener.onContent(content, callback);
+    }
+
+    @Override
+    public void onContent(ByteBuffer[] contents, AsyncCallback callback) {
+      for (ByteBuffer content : contents) {
+        DigestingAsyncContentProvider.this.update.accept(content.duplicate());
+      }
+      ((GatheringAsyncContentListener) this.listener).onContent(contents, callback);
+    }
+  }
+
+  private static final int CHECKSUM_LENGTH = Integer.BYTES;
+
+  private static final int STAGING_ARRAY_LENGTH = 8192;
+
+  private static Consumer<ByteBuffer> checksumUpdate(Checksum checksum) {
+    if (checksum instanceof CRC32) {
+      return ((CRC32) checksum)::update;
+    }
+    if (checksum instanceof Adler32) {
+      return ((Adler32) checksum)::update;
+    }
+
+    byte[] stagingArray = new byte[DigestingAsyncContentProvider.STAGING_ARRAY_LENGTH];
+    return (buffer) -> {
+      if (buffer.hasArray()) {
+        checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+            buffer.remaining());
+        return;
+      }
+      while (buffer.hasRemaining()) {
+        int length = Math.min(buffer.remaining(), stagingArray.length);
+        buffer.get(stagingArray, 0, length);
+        checksum.update(stagingArray, 0, length);
+      }
+    };
+  }
+
+  private static byte[] checksumValue(Checksum checksum) {
+    return ByteBuffer.allocate(DigestingAsyncContentProvider.CHECKSUM_LENGTH)
+        .putInt((int) checksum.getValue()).array();
+  }
+
+  private volatile byte[] digest;
+
+  private Consumer<Throwable> errorAction;
+
+  private final Optional<byte[]> expectedDigest;
+
+  private final Supplier<byte[]> finish;
+
+  private volatile Throwable mismatch;
+
+  private final Consumer<ByteBuffer> update;
+
+  private final AsyncContentProvider wrapped;
+
+  /**
+   * Constructor that updates a checksum without verifying it.
+   *
+   * @param wrapped
+   *          The provider whose content is digested.
+   * @param checksum
+   *          The checksum that is updated with the content, e.g. a {@link CRC32}.
+   */
+  public DigestingAsyncContentProvider(AsyncContentProvider wrapped, Checksum checksum) {
+    this(wrapped, checksum, Optional.empty());
+  }
+
+  /**
+   * Constructor that updates a checksum.
+   *
+   * @param wrapped
+   *          The provider whose content is digested.
+   * @param checksum
+   *          The checksum that is updated with the content, e.g. a {@link CRC32}.
+   * @param expectedChecksum
+   *          The four bytes of the value that the checksum should have at the end of the content.
+   */
+  public DigestingAsyncContentProvider(AsyncContentProvider wrapped, Checksum checksum,
+      Optional<byte[]> expectedChecksum) {
+    this(wrapped, DigestingAsyncContentProvider.checksumUpdate(checksum),
+        () -> DigestingAsyncContentProvider.checksumValue(checksum), expectedChecksum);
+  }
+
+  private DigestingAsyncContentProvider(AsyncContentProvider wrapped,
+      Consumer<ByteBuffer> update, Supplier<byte[]> finish, Optional<byte[]> expectedDigest) {
+    this.wrapped = Objects.requireNonNull(wrapped);
+    this.update = update;
+    this.finish = finish;
+    this.expectedDigest = expectedDigest.map(byte[]::clone);
+  }
+
+  /**
+   * Constructor that updates a message digest without verifying it.
+   *
+   * @param wrapped
+   *          The provider whose content is digested.
+   * @param messageDigest
+   *          The message digest that is updated with the content.
+   */
+  public DigestingAsyncContentProvider(AsyncContentProvider wrapped,
+      MessageDigest messageDigest) {
+    this(wrapped, messageDigest, Optional.empty());
+  }
+
+  /**
+   * Constructor that updates a message digest.
+   *
+   * @param wrapped
+   *          The provider whose content is digested.
+   * @param messageDigest
+   *          The message digest that is updated with the content.
+   * @param expectedDigest
+   *          The digest that the content should have.
+   */
+  public DigestingAsyncContentProvider(AsyncContentProvider wrapped,
+      MessageDigest messageDigest, Optional<byte[]> expectedDigest) {
+    this(wrapped, messageDigest::update, messageDigest::digest, expectedDigest);
+  }
+
+  @Override
+  public void close() {
+    this.wrapped.close();
+  }
+
+  @Override
+  public Optional<Long> getContentLength() {
+    return this.wrapped.getContentLength();
+  }
+
+  @Override
+  public Optional<MediaType> getContentType() {
+    return this.wrapped.getContentType();
+  }
+
+  /**
+   * Returns the digest of the content or {@link Optional#empty()} if the content is not read
+   * successfully yet.
+   */
+  public Optional<byte[]> getDigest() {
+    return Optional.ofNullable(this.digest).map(byte[]::clone);
+  }
+
+  @Override
+  public Optional<Throwable> getFailure() {
+    Throwable mismatch = this.mismatch;
+    return mismatch != null ? Optional.of(mismatch) : this.wrapped.getFailure();
+  }
+
+  @Override
+  public boolean isClosed() {
+    return this.wrapped.isClosed();
+  }
+
+  @Override
+  @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT")
+  public AsyncContentProvider onContent(AsyncContentListener listener) {
+    this.wrapped.onContent(wrapListener(listener));
+    return this;
+  }
+
+  @Override
+  @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT")
+  public AsyncContentProvider onContent(AsyncContentListener listener, int prefetch) {
+    this.wrapped.onContent(wrapListener(listener), prefetch);
+    return this;
+  }
+
+  @Override
+  @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT")
+  public AsyncContentProvider onError(Consumer<Throwable> action) {
+    this.errorAction = action;
+    this.wrapped.onError(action);
+    Throwable mismatch = this.mismatch;
+    if (mismatch != null) {
+      action.accept(mismatch);
+    }
+    return this;
+  }
+
+  @Override
+  @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED_NO_SIDE_EFFECT")
+  public AsyncContentProvider onSuccess(Runnable action) {
+    this.wrapped.onSuccess(() -> {
+      if (verify()) {
+        action.run();
+      }
+    });
+    return this;
+  }
+
+  /**
+   * Finishes the digest when the wrapped provider succeeded and compares it to the expected one.
+   *
+   * @return Whether the digest is the expected one.
+   */
+  private boolean verify() {
+    if (this.digest == null) {
+      this.digest = this.finish.get();
+    }
+    if (!this.expectedDigest.isPresent()
+        || MessageDigest.isEqual(this.expectedDigest.get(), this.digest)) {
+      return true;
+    }
+
+    if (this.mismatch == null) {
+      this.mismatch = new DigestMismatchException(this.expectedDigest.get(), this.digest);
+      Consumer<Throwable> errorAction = this.errorAction;
+      if (errorAction != null) {
+        errorAction.accept(this.mismatch);
+      }
+    }
+    return false;
+  }
+
+  private AsyncContentListener wrapListener(AsyncContentListener listener) {
+    if (listener instanceof GatheringAsyncContentListener) {
+      return new DigestingListener(listener);
+    }
+    return (content, callback) -> {
+      this.update.accept(content.duplicate());
+      listener.onContent(content, callback);
+    };
+  }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.everit.http.client.MediaType;
+
+/**
+ * <p>
+ * Implementation of {@link AsyncContentProvider} that provides the content of a file or a byte
+ * range of a file. The length of the content is always known in advance.
+ * </p>
+ *
+ * <p>
+ * If the provided range is at least as big as the memory mapping threshold, the file is mapped into
+ * memory in windows and the chunks are read-only slices of the mapped windows, so the content is
+ * not copied at all. Smaller ranges are read into direct buffers that are leased from a
+ * {@link ByteBufferPool}.
+ * </p>
+ *
+ * <p>
+ * {@link org.everit.http.client.HttpClient} implementations that write the body to a channel can
+ * use {@link #transferTo(WritableByteChannel)} instead of
+ * {@link #onContent(AsyncContentListener)} to let the operating system copy the data from the file
+ * to the target channel directly. The two ways of reading the content must not be mixed.
+ * </p>
+ */
+public class FileAsyncContentProvider extends AbstractAsyncContentProvider {
+
+  private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+  private static final long DEFAULT_MEMORY_MAPPING_THRESHOLD = 1024 * 1024;
+
+  private static final long MAPPED_WINDOW_SIZE = 16 * 1024 * 1024;
+
+  private static FileChannel openChannel(Path path) {
+    try {
+      return FileChannel.open(path, StandardOpenOption.READ);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private final ByteBufferPool bufferPool;
+
+  private final FileChannel channel;
+
+  private final int chunkSize;
+
+  private final Optional<MediaType> contentType;
+
+  private final long endPosition;
+
+  private final long length;
+
+  private MappedByteBuffer mappedWindow;
+
+  private long mappedWindowPosition;
+
+  private final boolean memoryMapped;
+
+  private final long offset;
+
+  private volatile long position;
+
+  private boolean transferFinished = false;
+
+  /**
+   * Constructor that provides a byte range of a file.
+   *
+   * @param path
+   *          The path of the file.
+   * @param offset
+   *          The position of the first byte in the file that is provided.
+   * @param length
+   *          The amount of bytes that are provided or {@link Optional#empty()} if the content
+   *          should be provided until the end of the file.
+   * @param contentType
+   *          The content type of the file if known.
+   */
+  public FileAsyncContentProvider(Path path, long offset, Optional<Long> length,
+      Optional<MediaType> contentType) {
+    this(path, offset, length, contentType, FileAsyncContentProvider.DEFAULT_CHUNK_SIZE,
+        FileAsyncContentProvider.DEFAULT_MEMORY_MAPPING_THRESHOLD, ByteBufferPool.getDefault());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param path
+   *          The path of the file.
+   * @param offset
+   *          The position of the first byte in the file that is provided.
+   * @param length
+   *          The amount of bytes that are provided or {@link Optional#empty()} if the content
+   *          should be provided until the end of the file.
+   * @param contentType
+   *          The content type of the file if known.
+   * @param chunkSize
+   *          The maximum size of the chunks that are passed to the listener.
+   * @param memoryMappingThreshold
+   *          If the length of the provided range is at least this amount of bytes, the file is
+   *          mapped into memory instead of reading it into buffers.
+   * @param bufferPool
+   *          The pool that the buffers are leased from if the file is not mapped into memory.
+   * @throws UncheckedIOException
+   *           if the file cannot be opened.
+   * @throws IllegalArgumentException
+   *           if the range is out of the bounds of the file.
+   */
+  public FileAsyncContentProvider(Path path, long offset, Optional<Long> length,
+      Optional<MediaType> contentType, int chunkSize, long memoryMappingThreshold,
+      ByteBufferPool bufferPool) {
+
+    Objects.requireNonNull(path);
+    Objects.requireNonNull(length);
+    this.contentType = Objects.requireNonNull(contentType);
+    this.bufferPool = Objects.requireNonNull(bufferPool);
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("Chunk size must be greater than zero");
+    }
+    this.chunkSize = chunkSize;
+
+    this.channel = FileAsyncContentProvider.openChannel(path);
+    try {
+      long fileSize = this.channel.size();
+      if (offset < 0 || offset > fileSize) {
+        throw new IllegalArgumentException("Offset " + offset + " is out of the bounds of file "
+            + path + " with size " + fileSize);
+      }
+      this.length = length.orElse(fileSize - offset);
+      if (this.length < 0 || this.length > fileSize - offset) {
+        throw new IllegalArgumentException("Range " + offset + " + " + this.length
+            + " is out of the bounds of file " + path + " with size " + fileSize);
+      }
+    } catch (IOException | RuntimeException e) {
+      closeChannelSuppressed(e);
+      if (e instanceof IOException) {
+        throw new UncheckedIOException((IOException) e);
+      }
+      throw (RuntimeException) e;
+    }
+
+    this.offset = offset;
+    this.position = offset;
+    this.endPosition = offset + this.length;
+    this.memoryMapped = this.length > 0 && this.length >= memoryMappingThreshold;
+  }
+
+  /**
+   * Constructor that provides the whole content of a file.
+   *
+   * @param path
+   *          The path of the file.
+   * @param contentType
+   *          The content type of the file if known.
+   */
+  public FileAsyncContentProvider(Path path, Optional<MediaType> contentType) {
+    this(path, 0, Optional.empty(), contentType);
+  }
+
+  private void closeChannelSuppressed(Throwable cause) {
+    try {
+      this.channel.close();
+    } catch (IOException e) {
+      cause.addSuppressed(e);
+    }
+  }
+
+  @Override
+  protected void doClose() {
+    this.mappedWindow = null;
+    try {
+      this.channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns the channel of the file. The provider reads the channel with absolute positions, so
+   * the position of the channel is not used. The channel is closed together with this provider.
+   */
+  public FileChannel getChannel() {
+    return this.channel;
+  }
+
+  @Override
+  public Optional<Long> getContentLength() {
+    return Optional.of(this.length);
+  }
+
+  @Override
+  public Optional<MediaType> getContentType() {
+    return this.contentType;
+  }
+
+  /**
+   * Returns the position in the file right after the last byte that is provided.
+   */
+  public long getEndPosition() {
+    return this.endPosition;
+  }
+
+  /**
+   * Returns the position in the file of the first byte that is provided.
+   */
+  public long getOffset() {
+    return this.offset;
+  }
+
+  /**
+   * Returns the position in the file of the next byte that will be provided.
+   */
+  public long getPosition() {
+    return this.position;
+  }
+
+  private ByteBuffer mappedChunk(int size) throws IOException {
+    long windowEnd =
+        this.mappedWindow == null ? 0 : this.mappedWindowPosition + this.mappedWindow.capacity();
+
+    if (this.mappedWindow == null || this.position + size > windowEnd) {
+      long windowSize = Math.min(Math.max(FileAsyncContentProvider.MAPPED_WINDOW_SIZE, size),
+          this.endPosition - this.position);
+      this.mappedWindow = this.channel.map(MapMode.READ_ONLY, this.position, windowSize);
+      this.mappedWindowPosition = this.position;
+    }
+
+    int positionInWindow = (int) (this.position - this.mappedWindowPosition);
+    ByteBuffer window = this.mappedWindow.duplicate();
+    window.limit(positionInWindow + size).position(positionInWindow);
+    return window.slice();
+  }
+
+  @Override
+  protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+    long remaining = this.endPosition - this.position;
+    if (remaining == 0) {
+      handleSuccess();
+      return;
+    }
+
+    int size = (int) Math.min(this.chunkSize, remaining);
+    ByteBuffer chunk;
+    try {
+      chunk = this.memoryMapped ? mappedChunk(size) : readChunk(size);
+    } catch (IOException e) {
+      handleErrorFromInput(e);
+      return;
+    }
+
+    this.position += chunk.remaining();
+    callback.accept(chunk);
+  }
+
+  private ByteBuffer readChunk(int size) throws IOException {
+    ByteBuffer chunk = this.bufferPool.acquire(size, true);
+    try {
+      long readPosition = this.position;
+      while (chunk.hasRemaining()) {
+        int read = this.channel.read(chunk, readPosition);
+        if (read < 0) {
+          throw new EOFException("File ended before position " + this.endPosition);
+        }
+        readPosition += read;
+      }
+    } catch (IOException | RuntimeException e) {
+      this.bufferPool.release(chunk);
+      throw e;
+    }
+    chunk.flip();
+    return chunk;
+  }
+
+  @Override
+  protected void releaseChunk(ByteBuffer chunk) {
+    if (!this.memoryMapped) {
+      this.bufferPool.release(chunk);
+    }
+  }
+
+  /**
+   * Transfers the remaining content of this provider to the target channel without copying it
+   * through the Java heap, if the operating system supports it. If the target channel is
+   * non-blocking, less bytes may be transferred than remaining and the function should be called
+   * again when the target channel is writable. When all of the content is transferred, the listener
+   * registered via {@link #onSuccess(Runnable)} is called.
+   *
+   * @param target
+   *          The channel that the content is written to.
+   * @return The number of bytes that were transferred.
+   * @throws IOException
+   *           if reading the file or writing the target channel fails. The listener registered via
+   *           {@link #onError(Consumer)} is also notified.
+   */
+  public long transferTo(WritableByteChannel target) throws IOException {
+    long remaining = this.endPosition - this.position;
+    long transferred = 0;
+    if (remaining > 0) {
+      try {
+        transferred = this.channel.transferTo(this.position, remaining, target);
+      } catch (IOException | RuntimeException e) {
+        handleErrorFromInput(e);
+        throw e;
+      }
+      this.position += transferred;
+    }
+
+    if (this.position == this.endPosition && !this.transferFinished) {
+      this.transferFinished = true;
+      handleSuccess();
+    }
+    return transferred;
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * An {@link AsyncContentListener} that can receive more than one buffer in one call. Providers
+ * that know that the listener accepts batches (e.g. {@link ConcatenatedAsyncContentProvider} that
+ * wraps adjacent in-memory providers) pass the buffers together, so the listener can write all of
+ * them with one {@link java.nio.channels.GatheringByteChannel#write(ByteBuffer[])} call instead of
+ * writing them one by one.
+ * </p>
+ *
+ * <p>
+ * Providers that do not support batches call {@link #onContent(ByteBuffer, AsyncCallback)}, which
+ * passes the chunk as a batch of one buffer by default.
+ * </p>
+ */
+public interface GatheringAsyncContentListener extends AsyncContentListener {
+
+  @Override
+  default void onContent(ByteBuffer content, AsyncCallback callback) {
+    onContent(new ByteBuffer[] { content }, callback);
+  }
+
+  /**
+   * Called by the {@link AsyncContentProvider} when new chunks of data have arrived.
+   *
+   * @param contents
+   *          The chunks of data in the order of the content. The buffers may be reused by the
+   *          provider as soon as {@link AsyncCallback#processed()} or
+   *          {@link AsyncCallback#failed(Throwable)} is called, so the listener must copy the data
+   *          if it needs it later.
+   * @param callback
+   *          The callback that must be called once, when all chunks of the batch are processed. See
+   *          {@link AsyncContentListener#onContent(ByteBuffer, AsyncCallback)}.
+   */
+  void onContent(ByteBuffer[] contents, AsyncCallback callback);
+}
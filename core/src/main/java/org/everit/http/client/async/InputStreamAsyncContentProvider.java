@@ -19,7 +19,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Consumer;
@@ -28,10 +27,14 @@ import org.everit.http.client.MediaType;
 
 /**
  * Implementation of {@link AsyncContentProvider} that gets the reads from an {@link InputStream}.
+ * Every chunk is read into a heap buffer that is leased from a {@link ByteBufferPool} and returned
+ * to the pool when the listener processed the chunk.
  */
 public class InputStreamAsyncContentProvider extends AbstractAsyncContentProvider {
 
-  private final byte[] buffer;
+  private final ByteBufferPool bufferPool;
+
+  private final int bufferSize;
 
   private final Optional<Long> contentLength;
 
@@ -53,17 +56,38 @@ public class InputStreamAsyncContentProvider extends AbstractAsyncContentProvide
    */
   public InputStreamAsyncContentProvider(InputStream in, Optional<Long> contentLength,
       Optional<MediaType> contentType, int bufferSize) {
+    this(in, contentLength, contentType, bufferSize, ByteBufferPool.getDefault());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param in
+   *          The wrapped input stream where the data is consumed from.
+   * @param contentLength
+   *          The amount of data that can be read from the input stream if known.
+   * @param contentType
+   *          The content type of the data that can be read from the input stream if known.
+   * @param bufferSize
+   *          The size of the buffer that is used to read from the input stream.
+   * @param bufferPool
+   *          The pool that the buffers of the chunks are leased from.
+   */
+  public InputStreamAsyncContentProvider(InputStream in, Optional<Long> contentLength,
+      Optional<MediaType> contentType, int bufferSize, ByteBufferPool bufferPool) {
 
     Objects.requireNonNull(in);
     Objects.requireNonNull(contentLength);
     Objects.requireNonNull(contentType);
+    Objects.requireNonNull(bufferPool);
     if (bufferSize <= 0) {
       throw new IllegalArgumentException("Buffer size must be greater than zero");
     }
     this.in = in;
     this.contentLength = contentLength;
     this.contentType = contentType;
-    this.buffer = new byte[bufferSize];
+    this.bufferSize = bufferSize;
+    this.bufferPool = bufferPool;
   }
 
   @Override
@@ -87,21 +111,29 @@ public class InputStreamAsyncContentProvider extends AbstractAsyncContentProvide
 
   @Override
   protected void provideNextChunk(Consumer<ByteBuffer> callback) {
-    Integer read = null;
+    ByteBuffer chunk = this.bufferPool.acquire(this.bufferSize, false);
+    int read;
     try {
-      read = this.in.read(this.buffer);
+      read = this.in.read(chunk.array(), chunk.arrayOffset(), this.bufferSize);
     } catch (IOException e) {
+      this.bufferPool.release(chunk);
       handleErrorFromInput(e);
       return;
     }
 
-    if (read != null) {
-      if (read >= 0) {
-        callback.accept(ByteBuffer.wrap(Arrays.copyOf(this.buffer, read)));
-      } else {
-        handleSuccess();
-      }
+    if (read < 0) {
+      this.bufferPool.release(chunk);
+      handleSuccess();
+      return;
     }
+
+    chunk.limit(read);
+    callback.accept(chunk);
+  }
+
+  @Override
+  protected void releaseChunk(ByteBuffer chunk) {
+    this.bufferPool.release(chunk);
   }
 
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.everit.http.client.MediaType;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * <p>
+ * Implementation of {@link AsyncContentProvider} that provides the elements of a Reactive Streams
+ * {@link Publisher} (e.g. an RxJava <code>Flowable</code>) as chunks. The publisher is subscribed
+ * when the listener is registered via {@link #onContent(AsyncContentListener)}.
+ * </p>
+ *
+ * <p>
+ * Exactly one element is requested every time the provider needs the next chunk, so the publisher
+ * emits as many elements as the listener has processed plus the prefetch of the listener. Closing
+ * the provider cancels the subscription.
+ * </p>
+ */
+public class PublisherAsyncContentProvider extends AbstractAsyncContentProvider {
+
+  /**
+   * Forwards the signals of the publisher to the provider.
+   */
+  private class ChunkSubscriber implements Subscriber<ByteBuffer> {
+
+    @Override
+    public void onComplete() {
+      handleSuccess();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      Objects.requireNonNull(throwable);
+      handleErrorFromInput(throwable);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+      Objects.requireNonNull(item);
+
+      Consumer<ByteBuffer> callback = PublisherAsyncContentProvider.this.nextChunkCallback;
+      PublisherAsyncContentProvider.this.nextChunkCallback = null;
+      if (callback == null) {
+        cancelSubscription();
+        handleErrorFromInput(new IllegalStateException(
+            "Publisher emitted more elements than requested"));
+        return;
+      }
+
+      try {
+        callback.accept(item);
+      } catch (RuntimeException e) {
+        cancelSubscription();
+        handleErrorFromInput(e);
+      }
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      Objects.requireNonNull(subscription);
+
+      boolean cancel;
+      boolean request = false;
+      synchronized (PublisherAsyncContentProvider.this.mutex) {
+        cancel = PublisherAsyncContentProvider.this.subscription != null
+            || PublisherAsyncContentProvider.this.cancelled;
+
+        if (!cancel) {
+          PublisherAsyncContentProvider.this.subscription = subscription;
+          request = PublisherAsyncContentProvider.this.requestPending;
+          PublisherAsyncContentProvider.this.requestPending = false;
+        }
+      }
+
+      if (cancel) {
+        subscription.cancel();
+      } else if (request) {
+        subscription.request(1);
+      }
+    }
+  }
+
+  private boolean cancelled = false;
+
+  private final Optional<Long> contentLength;
+
+  private final Optional<MediaType> contentType;
+
+  private final Object mutex = new Object();
+
+  private volatile Consumer<ByteBuffer> nextChunkCallback;
+
+  private final Publisher<ByteBuffer> publisher;
+
+  private boolean requestPending = false;
+
+  private boolean subscribed = false;
+
+  private Subscription subscription;
+
+  /**
+   * Constructor.
+   *
+   * @param publisher
+   *          The publisher whose elements are provided.
+   * @param contentLength
+   *          The sum of the remaining bytes of the elements of the publisher if known in advance.
+   * @param contentType
+   *          The type of the content if known.
+   */
+  public PublisherAsyncContentProvider(Publisher<ByteBuffer> publisher,
+      Optional<Long> contentLength, Optional<MediaType> contentType) {
+
+    this.publisher = Objects.requireNonNull(publisher);
+    this.contentLength = Objects.requireNonNull(contentLength);
+    this.contentType = Objects.requireNonNull(contentType);
+  }
+
+  private void cancelSubscription() {
+    Subscription subscription;
+    synchronized (this.mutex) {
+      subscription = this.subscription;
+    }
+    if (subscription != null) {
+      subscription.cancel();
+    }
+  }
+
+  @Override
+  protected void doClose() {
+    synchronized (this.mutex) {
+      this.cancelled = true;
+    }
+    cancelSubscription();
+  }
+
+  @Override
+  public Optional<Long> getContentLength() {
+    return this.contentLength;
+  }
+
+  @Override
+  public Optional<MediaType> getContentType() {
+    return this.contentType;
+  }
+
+  @Override
+  protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+    this.nextChunkCallback = callback;
+
+    if (!this.subscribed) {
+      this.subscribed = true;
+      this.publisher.subscribe(new ChunkSubscriber());
+    }
+
+    Subscription subscription;
+    synchronized (this.mutex) {
+      subscription = this.subscription;
+      if (subscription == null) {
+        this.requestPending = true;
+        return;
+      }
+    }
+    subscription.request(1);
+  }
+}
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.function.Consumer;
 
@@ -26,11 +27,14 @@ import org.everit.http.client.MediaType;
 
 /**
  * Implementation of {@link AsyncContentProvider} that gets the reads from a
- * {@link ReadableByteChannel}.
+ * {@link ReadableByteChannel}. Every chunk is read into a direct buffer that is leased from a
+ * {@link ByteBufferPool} and returned to the pool when the listener processed the chunk.
  */
 public class ReadableByteChannelAsyncContentProvider extends AbstractAsyncContentProvider {
 
-  private ByteBuffer buffer;
+  private final ByteBufferPool bufferPool;
+
+  private final int bufferSize;
 
   private final ReadableByteChannel byteChannel;
 
@@ -53,10 +57,34 @@ public class ReadableByteChannelAsyncContentProvider extends AbstractAsyncConten
   public ReadableByteChannelAsyncContentProvider(ReadableByteChannel byteChannel,
       Optional<Long> contentLength,
       Optional<MediaType> contentType, int bufferSize) {
-    this.byteChannel = byteChannel;
-    this.contentLength = contentLength;
-    this.contentType = contentType;
-    this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    this(byteChannel, contentLength, contentType, bufferSize, ByteBufferPool.getDefault());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param byteChannel
+   *          The wrapped byte channel where the data is consumed from.
+   * @param contentLength
+   *          The amount of data that can be read from the byte channel if known.
+   * @param contentType
+   *          The content type of the data that can be read from the byte channel if known.
+   * @param bufferSize
+   *          The size of the buffer that is used to read from the byte channel.
+   * @param bufferPool
+   *          The pool that the buffers of the chunks are leased from.
+   */
+  public ReadableByteChannelAsyncContentProvider(ReadableByteChannel byteChannel,
+      Optional<Long> contentLength,
+      Optional<MediaType> contentType, int bufferSize, ByteBufferPool bufferPool) {
+    this.byteChannel = Objects.requireNonNull(byteChannel);
+    this.contentLength = Objects.requireNonNull(contentLength);
+    this.contentType = Objects.requireNonNull(contentType);
+    this.bufferPool = Objects.requireNonNull(bufferPool);
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Buffer size must be greater than zero");
+    }
+    this.bufferSize = bufferSize;
   }
 
   @Override
@@ -80,23 +108,29 @@ public class ReadableByteChannelAsyncContentProvider extends AbstractAsyncConten
 
   @Override
   protected void provideNextChunk(Consumer<ByteBuffer> callback) {
-    Integer read = null;
+    ByteBuffer chunk = this.bufferPool.acquire(this.bufferSize, true);
+    int read;
     try {
-      this.buffer.clear();
-      read = this.byteChannel.read(this.buffer);
+      read = this.byteChannel.read(chunk);
     } catch (Throwable e) {
+      this.bufferPool.release(chunk);
       handleErrorFromInput(e);
       return;
     }
 
-    if (read != null) {
-      if (read <= 0) {
-        handleSuccess();
-      } else {
-        this.buffer.flip();
-        callback.accept(this.buffer);
-      }
+    if (read <= 0) {
+      this.bufferPool.release(chunk);
+      handleSuccess();
+      return;
     }
+
+    chunk.flip();
+    callback.accept(chunk);
+  }
+
+  @Override
+  protected void releaseChunk(ByteBuffer chunk) {
+    this.bufferPool.release(chunk);
   }
 
 }
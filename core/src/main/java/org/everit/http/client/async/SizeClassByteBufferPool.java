@@ -0,0 +1,417 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * {@link ByteBufferPool} implementation that rounds the requested sizes up to the next power of two
+ * (size class) and keeps separate free lists for every size class of heap and direct buffers.
+ * </p>
+ *
+ * <p>
+ * Small buffers are not allocated one by one: a slab of {@value #SLAB_SIZE} bytes is allocated and
+ * sliced up to buffers of the size class, so filling up the pool with direct buffers does not need
+ * thousands of expensive {@link ByteBuffer#allocateDirect(int)} calls.
+ * </p>
+ *
+ * <p>
+ * Every thread has a small cache of buffers that are not bigger than a slab, so a thread that
+ * leases and returns buffers in a loop does not touch the shared free lists at all. Buffers that
+ * are bigger than the maximum size class are allocated on every request and dropped when they are
+ * released.
+ * </p>
+ *
+ * <p>
+ * Only buffers that were leased from the pool and are not returned yet are taken back by
+ * {@link #release(ByteBuffer)}. Other buffers (e.g. a wrapped <code>byte[]</code> of the caller or
+ * a buffer that is released twice) are ignored, so the memory of the caller is never handed out by
+ * a later {@link #acquire(int, boolean)} call. The pool references leased buffers only weakly, so a
+ * buffer that is never released is garbage collected as before.
+ * </p>
+ */
+public class SizeClassByteBufferPool implements ByteBufferPool {
+
+  /**
+   * A buffer that was allocated by the pool. The buffer is referenced strongly only while it is
+   * free.
+   */
+  private static final class PooledBuffer extends WeakReference<ByteBuffer> {
+
+    /**
+     * The buffer while it is in a free list or null while it is leased.
+     */
+    private ByteBuffer freeBuffer;
+
+    private final int hash;
+
+    private final AtomicBoolean leased = new AtomicBoolean();
+
+    PooledBuffer(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+      super(buffer, queue);
+      this.hash = System.identityHashCode(buffer);
+      this.freeBuffer = buffer;
+    }
+  }
+
+  /**
+   * Identity hash table of the buffers that were allocated by the pool. Looking up a buffer
+   * neither locks nor allocates. Adding a buffer, which happens only when a new slab is allocated,
+   * locks the table and removes the entries of the buffers that were garbage collected. The
+   * buckets are immutable linked lists that are replaced as a whole, so a lookup never sees a
+   * half-modified bucket.
+   */
+  private static final class PooledBufferTable {
+
+    /**
+     * An element of the linked list of a bucket.
+     */
+    private static final class Node {
+
+      private final Node next;
+
+      private final PooledBuffer pooledBuffer;
+
+      Node(PooledBuffer pooledBuffer, Node next) {
+        this.pooledBuffer = pooledBuffer;
+        this.next = next;
+      }
+    }
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final ReferenceQueue<ByteBuffer> collectedBuffers = new ReferenceQueue<>();
+
+    private int size = 0;
+
+    private volatile AtomicReferenceArray<Node> table =
+        new AtomicReferenceArray<>(PooledBufferTable.INITIAL_CAPACITY);
+
+    synchronized PooledBuffer add(ByteBuffer buffer) {
+      expungeCollectedBuffers();
+
+      AtomicReferenceArray<Node> table = this.table;
+      if (this.size >= table.length() - table.length() / 4) {
+        table = resize(table);
+      }
+
+      PooledBuffer pooledBuffer = new PooledBuffer(buffer, this.collectedBuffers);
+      int index = pooledBuffer.hash & (table.length() - 1);
+      table.set(index, new Node(pooledBuffer, table.get(index)));
+      this.size++;
+      return pooledBuffer;
+    }
+
+    private void expungeCollectedBuffers() {
+      AtomicReferenceArray<Node> table = this.table;
+      Reference<? extends ByteBuffer> collected = this.collectedBuffers.poll();
+      while (collected != null) {
+        PooledBuffer pooledBuffer = (PooledBuffer) collected;
+        int index = pooledBuffer.hash & (table.length() - 1);
+        Node bucket = null;
+        for (Node node = table.get(index); node != null; node = node.next) {
+          if (node.pooledBuffer == pooledBuffer) {
+            this.size--;
+          } else {
+            bucket = new Node(node.pooledBuffer, bucket);
+          }
+        }
+        table.set(index, bucket);
+        collected = this.collectedBuffers.poll();
+      }
+    }
+
+    PooledBuffer find(ByteBuffer buffer) {
+      AtomicReferenceArray<Node> table = this.table;
+      Node node = table.get(System.identityHashCode(buffer) & (table.length() - 1));
+      while (node != null && node.pooledBuffer.get() != buffer) {
+        node = node.next;
+      }
+      return node != null ? node.pooledBuffer : null;
+    }
+
+    private AtomicReferenceArray<Node> resize(AtomicReferenceArray<Node> table) {
+      AtomicReferenceArray<Node> newTable = new AtomicReferenceArray<>(table.length() * 2);
+      for (int i = 0; i < table.length(); i++) {
+        for (Node node = table.get(i); node != null; node = node.next) {
+          int index = node.pooledBuffer.hash & (newTable.length() - 1);
+          newTable.set(index, new Node(node.pooledBuffer, newTable.get(index)));
+        }
+      }
+      this.table = newTable;
+      return newTable;
+    }
+  }
+
+  /**
+   * Free buffers of one size class and kind (heap or direct) that are shared between the threads.
+   */
+  private static final class SharedFreeList {
+
+    private final Queue<PooledBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    private final int capacity;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    SharedFreeList(int capacity) {
+      this.capacity = capacity;
+    }
+
+    boolean offer(PooledBuffer buffer) {
+      if (this.size.incrementAndGet() > this.capacity) {
+        this.size.decrementAndGet();
+        return false;
+      }
+      this.buffers.offer(buffer);
+      return true;
+    }
+
+    PooledBuffer poll() {
+      PooledBuffer buffer = this.buffers.poll();
+      if (buffer != null) {
+        this.size.decrementAndGet();
+      }
+      return buffer;
+    }
+  }
+
+  /**
+   * Free buffers of one thread. Only accessed from the owner thread.
+   */
+  private static final class ThreadLocalCache {
+
+    private final PooledBuffer[][] buffers;
+
+    private final int[] sizes;
+
+    ThreadLocalCache(int freeListCount, int capacity) {
+      this.buffers = new PooledBuffer[freeListCount][capacity];
+      this.sizes = new int[freeListCount];
+    }
+
+    boolean offer(int freeListIndex, PooledBuffer buffer) {
+      PooledBuffer[] freeList = this.buffers[freeListIndex];
+      int size = this.sizes[freeListIndex];
+      if (size == freeList.length) {
+        return false;
+      }
+      freeList[size] = buffer;
+      this.sizes[freeListIndex] = size + 1;
+      return true;
+    }
+
+    PooledBuffer poll(int freeListIndex) {
+      int size = this.sizes[freeListIndex];
+      if (size == 0) {
+        return null;
+      }
+      size--;
+      PooledBuffer[] freeList = this.buffers[freeListIndex];
+      PooledBuffer buffer = freeList[size];
+      freeList[size] = null;
+      this.sizes[freeListIndex] = size;
+      return buffer;
+    }
+  }
+
+  private static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+
+  private static final int DEFAULT_MAX_POOLED_BYTES_PER_SIZE_CLASS = 4 * 1024 * 1024;
+
+  private static final int DEFAULT_MIN_BUFFER_SIZE = 512;
+
+  private static final int DEFAULT_THREAD_LOCAL_CACHE_SIZE = 8;
+
+  private static final int SLAB_SIZE = 64 * 1024;
+
+  static final SizeClassByteBufferPool DEFAULT = new SizeClassByteBufferPool();
+
+  private static ByteBuffer allocate(int size, boolean direct) {
+    return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+  }
+
+  private final int maxSizeClassIndex;
+
+  private final int minSizeShift;
+
+  private final PooledBufferTable pooledBuffers = new PooledBufferTable();
+
+  private final SharedFreeList[] sharedFreeLists;
+
+  private final ThreadLocal<ThreadLocalCache> threadLocalCaches;
+
+  /**
+   * Creates a pool with size classes from 512 bytes to 1 megabyte, keeping at most 4 megabytes of
+   * free buffers of every size class and kind and 8 free buffers per size class and kind in the
+   * cache of every thread.
+   */
+  public SizeClassByteBufferPool() {
+    this(SizeClassByteBufferPool.DEFAULT_MIN_BUFFER_SIZE,
+        SizeClassByteBufferPool.DEFAULT_MAX_BUFFER_SIZE,
+        SizeClassByteBufferPool.DEFAULT_MAX_POOLED_BYTES_PER_SIZE_CLASS,
+        SizeClassByteBufferPool.DEFAULT_THREAD_LOCAL_CACHE_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param minBufferSize
+   *          The size of the smallest size class. Must be a power of two.
+   * @param maxBufferSize
+   *          The size of the biggest size class. Must be a power of two. Bigger buffers are not
+   *          pooled.
+   * @param maxPooledBytesPerSizeClass
+   *          The maximum amount of memory that free buffers of one size class and kind can occupy
+   *          in the shared free lists. At least one buffer is kept from every size class.
+   * @param threadLocalCacheSize
+   *          The number of free buffers that are cached by every thread for every size class and
+   *          kind that is not bigger than a slab. Zero disables the thread local caches.
+   */
+  public SizeClassByteBufferPool(int minBufferSize, int maxBufferSize,
+      int maxPooledBytesPerSizeClass, int threadLocalCacheSize) {
+
+    if (Integer.bitCount(minBufferSize) != 1 || Integer.bitCount(maxBufferSize) != 1
+        || minBufferSize > maxBufferSize) {
+      throw new IllegalArgumentException(
+          "Buffer sizes must be powers of two and the minimum cannot be greater than the maximum");
+    }
+    if (threadLocalCacheSize < 0) {
+      throw new IllegalArgumentException("Thread local cache size cannot be negative");
+    }
+
+    this.minSizeShift = Integer.numberOfTrailingZeros(minBufferSize);
+    this.maxSizeClassIndex = Integer.numberOfTrailingZeros(maxBufferSize) - this.minSizeShift;
+
+    int sizeClassCount = this.maxSizeClassIndex + 1;
+    this.sharedFreeLists = new SharedFreeList[sizeClassCount * 2];
+    for (int i = 0; i < sizeClassCount; i++) {
+      int capacity = Math.max(1, maxPooledBytesPerSizeClass / sizeOfClass(i));
+      this.sharedFreeLists[freeListIndex(i, false)] = new SharedFreeList(capacity);
+      this.sharedFreeLists[freeListIndex(i, true)] = new SharedFreeList(capacity);
+    }
+
+    this.threadLocalCaches = ThreadLocal.withInitial(
+        () -> new ThreadLocalCache(this.sharedFreeLists.length, threadLocalCacheSize));
+  }
+
+  @Override
+  public ByteBuffer acquire(int size, boolean direct) {
+    if (size < 0) {
+      throw new IllegalArgumentException("Buffer size cannot be negative: " + size);
+    }
+
+    int sizeClassIndex = sizeClassIndexForSize(size);
+    if (sizeClassIndex > this.maxSizeClassIndex) {
+      return SizeClassByteBufferPool.allocate(size, direct);
+    }
+
+    int freeListIndex = freeListIndex(sizeClassIndex, direct);
+    PooledBuffer pooledBuffer = null;
+    if (isThreadLocallyCached(sizeClassIndex)) {
+      pooledBuffer = this.threadLocalCaches.get().poll(freeListIndex);
+    }
+    if (pooledBuffer == null) {
+      pooledBuffer = this.sharedFreeLists[freeListIndex].poll();
+    }
+    if (pooledBuffer == null) {
+      pooledBuffer = allocateSlab(sizeClassIndex, direct);
+    }
+
+    ByteBuffer buffer = pooledBuffer.freeBuffer;
+    pooledBuffer.freeBuffer = null;
+    pooledBuffer.leased.set(true);
+    buffer.limit(size);
+    return buffer;
+  }
+
+  private PooledBuffer allocateSlab(int sizeClassIndex, boolean direct) {
+    int bufferSize = sizeOfClass(sizeClassIndex);
+    int bufferCount = Math.max(1, SizeClassByteBufferPool.SLAB_SIZE / bufferSize);
+    if (bufferCount == 1) {
+      return this.pooledBuffers.add(SizeClassByteBufferPool.allocate(bufferSize, direct));
+    }
+
+    ByteBuffer slab = SizeClassByteBufferPool.allocate(bufferSize * bufferCount, direct);
+    SharedFreeList freeList = this.sharedFreeLists[freeListIndex(sizeClassIndex, direct)];
+    for (int i = 1; i < bufferCount; i++) {
+      slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+      PooledBuffer pooledBuffer = this.pooledBuffers.add(slab.slice());
+      if (!freeList.offer(pooledBuffer)) {
+        pooledBuffer.freeBuffer = null;
+        break;
+      }
+    }
+
+    slab.limit(bufferSize).position(0);
+    return this.pooledBuffers.add(slab.slice());
+  }
+
+  private int freeListIndex(int sizeClassIndex, boolean direct) {
+    return direct ? sizeClassIndex + this.maxSizeClassIndex + 1 : sizeClassIndex;
+  }
+
+  private boolean isThreadLocallyCached(int sizeClassIndex) {
+    return sizeOfClass(sizeClassIndex) <= SizeClassByteBufferPool.SLAB_SIZE;
+  }
+
+  @Override
+  public void release(ByteBuffer buffer) {
+    Objects.requireNonNull(buffer);
+    PooledBuffer pooledBuffer = this.pooledBuffers.find(buffer);
+    if (pooledBuffer == null || !pooledBuffer.leased.compareAndSet(true, false)) {
+      // Not leased from this pool or already released
+      return;
+    }
+
+    buffer.clear();
+    buffer.order(ByteOrder.BIG_ENDIAN);
+    pooledBuffer.freeBuffer = buffer;
+
+    int sizeClassIndex = Integer.numberOfTrailingZeros(buffer.capacity()) - this.minSizeShift;
+    int freeListIndex = freeListIndex(sizeClassIndex, buffer.isDirect());
+    if (isThreadLocallyCached(sizeClassIndex)
+        && this.threadLocalCaches.get().offer(freeListIndex, pooledBuffer)) {
+      return;
+    }
+    if (!this.sharedFreeLists[freeListIndex].offer(pooledBuffer)) {
+      pooledBuffer.freeBuffer = null;
+    }
+  }
+
+  private int sizeClassIndexForSize(int size) {
+    if (size <= 1) {
+      return 0;
+    }
+    int shift = Integer.SIZE - Integer.numberOfLeadingZeros(size - 1);
+    return Math.max(0, shift - this.minSizeShift);
+  }
+
+  private int sizeOfClass(int sizeClassIndex) {
+    return 1 << (sizeClassIndex + this.minSizeShift);
+  }
+}
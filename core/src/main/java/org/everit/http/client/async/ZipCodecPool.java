@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A pool of {@link Inflater} or {@link Deflater} instances. Allocating the native state of these
+ * classes is expensive, so they are reset and reused instead of creating new ones for every
+ * content.
+ *
+ * @param <T>
+ *          The type of the pooled instances.
+ */
+final class ZipCodecPool<T> {
+
+  private static final int MAX_POOLED_INSTANCES = 64;
+
+  static final ZipCodecPool<Deflater> RAW_DEFLATERS = new ZipCodecPool<>(
+      () -> new Deflater(Deflater.DEFAULT_COMPRESSION, true), Deflater::reset, Deflater::end);
+
+  static final ZipCodecPool<Inflater> RAW_INFLATERS =
+      new ZipCodecPool<>(() -> new Inflater(true), Inflater::reset, Inflater::end);
+
+  static final ZipCodecPool<Deflater> ZLIB_DEFLATERS = new ZipCodecPool<>(
+      () -> new Deflater(Deflater.DEFAULT_COMPRESSION, false), Deflater::reset, Deflater::end);
+
+  static final ZipCodecPool<Inflater> ZLIB_INFLATERS =
+      new ZipCodecPool<>(() -> new Inflater(false), Inflater::reset, Inflater::end);
+
+  private final Consumer<T> endAction;
+
+  private final Supplier<T> factory;
+
+  private final Queue<T> instances = new ConcurrentLinkedQueue<>();
+
+  private final Consumer<T> resetAction;
+
+  private final AtomicInteger size = new AtomicInteger();
+
+  private ZipCodecPool(Supplier<T> factory, Consumer<T> resetAction, Consumer<T> endAction) {
+    this.factory = factory;
+    this.resetAction = resetAction;
+    this.endAction = endAction;
+  }
+
+  T acquire() {
+    T instance = this.instances.poll();
+    if (instance == null) {
+      return this.factory.get();
+    }
+    this.size.decrementAndGet();
+    return instance;
+  }
+
+  /**
+   * Frees the native resources of an instance that is in an unknown state, e.g. because the
+   * content was not processed completely.
+   */
+  void end(T instance) {
+    this.endAction.accept(instance);
+  }
+
+  /**
+   * Returns an instance to the pool. The instance is reset before it is pooled.
+   */
+  void release(T instance) {
+    this.resetAction.accept(instance);
+    if (this.size.incrementAndGet() > ZipCodecPool.MAX_POOLED_INSTANCES) {
+      this.size.decrementAndGet();
+      this.endAction.accept(instance);
+      return;
+    }
+    this.instances.add(instance);
+  }
+}
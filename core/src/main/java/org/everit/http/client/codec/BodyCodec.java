@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.codec;
+
+import java.util.Set;
+
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AsyncContentProvider;
+
+/**
+ * <p>
+ * Service provider interface of the codecs that convert bodies of specific media types from and to
+ * values. Implementations are discovered with {@link java.util.ServiceLoader} by listing them in
+ * <code>META-INF/services/org.everit.http.client.codec.BodyCodec</code>, or they can be passed to
+ * a {@link BodyCodecRegistry} directly. Implementations must have a public no-argument constructor
+ * to be discoverable and must be thread safe.
+ * </p>
+ *
+ * <p>
+ * A codec is selected by the {@link MediaType#type()} and {@link MediaType#subtype()} of the body
+ * and by the type of the value. See {@link BodyCodecRegistry#findCodec(MediaType, Class)} for the
+ * order in which the codecs are looked up.
+ * </p>
+ *
+ * @param <T>
+ *          The type of the values that the codec decodes and encodes.
+ */
+public interface BodyCodec<T> {
+
+  /**
+   * Creates a decoder that decodes one body.
+   *
+   * @param mediaType
+   *          The content type of the body. The parameters of the media type (e.g. the charset) may
+   *          be used by the decoder.
+   * @return The decoder that receives the chunks of the body.
+   */
+  BodyDecoder<T> createDecoder(MediaType mediaType);
+
+  /**
+   * Creates a provider that provides the encoded form of a value. The content is encoded while it
+   * is read from the provider if possible.
+   *
+   * @param value
+   *          The value that is encoded.
+   * @param mediaType
+   *          The media type that the value is encoded to. The returned provider should have this
+   *          content type.
+   * @return The provider of the encoded value.
+   */
+  AsyncContentProvider encode(T value, MediaType mediaType);
+
+  /**
+   * Returns the media types that the codec supports in "type/subtype" form with lowercase letters.
+   * The subtype or both the type and the subtype may be <code>*</code> to support every subtype
+   * of a type or every media type.
+   */
+  Set<String> getMediaTypes();
+
+  /**
+   * Returns the type of the values that the codec decodes and encodes.
+   */
+  Class<T> getValueType();
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.codec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.ServiceLoader;
+import java.util.function.Predicate;
+
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AsyncContentProvider;
+
+import io.reactivex.Single;
+
+/**
+ * <p>
+ * Selects the {@link BodyCodec} of a body by its media type and decodes or encodes the body with
+ * it. The codecs are indexed by their media types when the registry is created, so looking up a
+ * codec needs at most four map lookups.
+ * </p>
+ *
+ * <p>
+ * The codecs of a media type are looked up in the following order:
+ * </p>
+ * <ol>
+ * <li>the codecs registered for <code>type/subtype</code>,</li>
+ * <li>if the subtype has a structured syntax suffix (e.g. <code>application/problem+json</code>),
+ * the codecs registered for <code>type/suffix</code> (e.g. <code>application/json</code>),</li>
+ * <li>the codecs registered for <code>type/*</code>,</li>
+ * <li>the codecs registered for <code>*&#47;*</code>.</li>
+ * </ol>
+ *
+ * <p>
+ * Codecs registered for the same media type are tried in the order they were passed to the
+ * constructor (or discovered by {@link ServiceLoader}), and the first one with a matching value
+ * type is used.
+ * </p>
+ */
+public final class BodyCodecRegistry {
+
+  /**
+   * Lazily loads the codecs of the default registry.
+   */
+  private static final class DefaultHolder {
+
+    static final BodyCodecRegistry INSTANCE = BodyCodecRegistry.load();
+  }
+
+  private static final char SUFFIX_SEPARATOR = '+';
+
+  private static final String WILDCARD = "*";
+
+  /**
+   * Reads all chunks of a body and passes them to a decoder. The next chunk is read only after the
+   * decoder processed the previous one, so the body is decoded while it is arriving and it is
+   * never held in memory as a whole.
+   *
+   * @param body
+   *          The provider that is consumed.
+   * @param decoder
+   *          The decoder that receives the chunks of the body.
+   * @param <T>
+   *          The type of the decoded value.
+   * @return A single that is notified with the value returned by {@link BodyDecoder#finish()} or
+   *         with the error of the provider or the decoder. If the decoder fails, the provider is
+   *         closed.
+   */
+  public static <T> Single<T> decode(AsyncContentProvider body, BodyDecoder<T> decoder) {
+    Objects.requireNonNull(body);
+    Objects.requireNonNull(decoder);
+
+    return Single.create((emitter) -> body
+        .onSuccess(() -> {
+          T value;
+          try {
+            value = decoder.finish();
+          } catch (IOException | RuntimeException e) {
+            emitter.tryOnError(e);
+            return;
+          }
+          emitter.onSuccess(value);
+        })
+        .onError(emitter::tryOnError)
+        .onContent((chunk, callback) -> {
+          try {
+            decoder.decode(chunk);
+          } catch (IOException | RuntimeException e) {
+            callback.failed(e);
+            body.close();
+            return;
+          }
+          callback.processed();
+        }));
+  }
+
+  /**
+   * Returns the registry of the codecs that are discovered with {@link #load()} when this function
+   * is called for the first time.
+   */
+  public static BodyCodecRegistry getDefault() {
+    return DefaultHolder.INSTANCE;
+  }
+
+  /**
+   * Creates a registry with the codecs that are discovered by {@link ServiceLoader} with the
+   * context class loader of the current thread.
+   */
+  public static BodyCodecRegistry load() {
+    return BodyCodecRegistry.load(Thread.currentThread().getContextClassLoader());
+  }
+
+  /**
+   * Creates a registry with the codecs that are discovered by {@link ServiceLoader}.
+   *
+   * @param classLoader
+   *          The class loader that is used to find the provider configuration files and to load
+   *          the codecs.
+   */
+  @SuppressWarnings("rawtypes")
+  public static BodyCodecRegistry load(ClassLoader classLoader) {
+    List<BodyCodec<?>> codecs = new ArrayList<>();
+    for (BodyCodec codec : ServiceLoader.load(BodyCodec.class, classLoader)) {
+      codecs.add(codec);
+    }
+    return new BodyCodecRegistry(codecs);
+  }
+
+  private final Map<String, List<BodyCodec<?>>> codecsByMediaType;
+
+  /**
+   * Constructor.
+   *
+   * @param codecs
+   *          The codecs of the registry in the order of their priority.
+   */
+  public BodyCodecRegistry(Iterable<? extends BodyCodec<?>> codecs) {
+    Map<String, List<BodyCodec<?>>> codecsByMediaType = new HashMap<>();
+    for (BodyCodec<?> codec : codecs) {
+      for (String mediaType : codec.getMediaTypes()) {
+        codecsByMediaType
+            .computeIfAbsent(mediaType.toLowerCase(Locale.US), (key) -> new ArrayList<>())
+            .add(codec);
+      }
+    }
+    this.codecsByMediaType = codecsByMediaType;
+  }
+
+  /**
+   * Decodes a body with the codec that is selected by the content type of the body.
+   *
+   * @param body
+   *          The provider that is consumed.
+   * @param valueType
+   *          The type of the value that the body is decoded to. A codec is selected only if the
+   *          values it decodes are instances of this type.
+   * @param <T>
+   *          The type of the decoded value.
+   * @return A single that is notified with the decoded value. If the provider has no content type
+   *         or there is no codec for its content type and the value type, the provider is closed
+   *         and the single fails with an {@link IllegalArgumentException}.
+   */
+  public <T> Single<T> decode(AsyncContentProvider body, Class<T> valueType) {
+    Objects.requireNonNull(body);
+    Objects.requireNonNull(valueType);
+
+    return Single.defer(() -> {
+      Optional<MediaType> contentType = body.getContentType();
+      Optional<BodyCodec<? extends T>> codec =
+          contentType.flatMap((mediaType) -> findCodec(mediaType, valueType));
+
+      if (!codec.isPresent()) {
+        body.close();
+        return Single.error(new IllegalArgumentException("No codec found to decode "
+            + contentType.map(MediaType::toString).orElse("content without content type")
+            + " to " + valueType.getName()));
+      }
+
+      // The decoder only produces values, so it is a decoder of the requested type as well
+      @SuppressWarnings("unchecked")
+      BodyDecoder<T> decoder = (BodyDecoder<T>) codec.get().createDecoder(contentType.get());
+      return BodyCodecRegistry.decode(body, decoder);
+    });
+  }
+
+  /**
+   * Encodes a value with the codec that is selected by the media type and the class of the value.
+   *
+   * @param value
+   *          The value that is encoded.
+   * @param mediaType
+   *          The media type that the value is encoded to.
+   * @param <T>
+   *          The type of the value.
+   * @return The provider of the encoded value.
+   * @throws IllegalArgumentException
+   *           if there is no codec for the media type that accepts the value.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> AsyncContentProvider encode(T value, MediaType mediaType) {
+    Objects.requireNonNull(value);
+    Objects.requireNonNull(mediaType);
+
+    BodyCodec<? super T> codec = (BodyCodec<? super T>) find(mediaType,
+        (candidate) -> candidate.getValueType().isInstance(value))
+            .orElseThrow(() -> new IllegalArgumentException("No codec found to encode "
+                + value.getClass().getName() + " to " + mediaType));
+
+    return codec.encode(value, mediaType);
+  }
+
+  private Optional<BodyCodec<?>> find(MediaType mediaType, Predicate<BodyCodec<?>> predicate) {
+    String type = mediaType.type();
+    String subtype = mediaType.subtype();
+
+    Optional<BodyCodec<?>> result = find(type + '/' + subtype, predicate);
+    int suffixIndex = subtype.lastIndexOf(BodyCodecRegistry.SUFFIX_SEPARATOR);
+    if (!result.isPresent() && suffixIndex >= 0) {
+      result = find(type + '/' + subtype.substring(suffixIndex + 1), predicate);
+    }
+    if (!result.isPresent()) {
+      result = find(type + '/' + BodyCodecRegistry.WILDCARD, predicate);
+    }
+    if (!result.isPresent()) {
+      result = find(BodyCodecRegistry.WILDCARD + '/' + BodyCodecRegistry.WILDCARD, predicate);
+    }
+    return result;
+  }
+
+  private Optional<BodyCodec<?>> find(String key, Predicate<BodyCodec<?>> predicate) {
+    List<BodyCodec<?>> codecs =
+        this.codecsByMediaType.getOrDefault(key, Collections.emptyList());
+    for (BodyCodec<?> codec : codecs) {
+      if (predicate.test(codec)) {
+        return Optional.of(codec);
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Finds the codec that decodes a media type to instances of a type.
+   *
+   * @param mediaType
+   *          The media type of the body.
+   * @param valueType
+   *          The type that the decoded values must be instances of.
+   * @param <T>
+   *          The type of the decoded value.
+   * @return The codec or {@link Optional#empty()} if no codec is registered for the media type
+   *         that decodes it to the value type.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> Optional<BodyCodec<? extends T>> findCodec(MediaType mediaType, Class<T> valueType) {
+    Objects.requireNonNull(mediaType);
+    Objects.requireNonNull(valueType);
+
+    return find(mediaType, (codec) -> valueType.isAssignableFrom(codec.getValueType()))
+        .map((codec) -> (BodyCodec<? extends T>) codec);
+  }
+}
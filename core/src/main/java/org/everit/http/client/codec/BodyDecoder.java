@@ -0,0 +1,59 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Decodes a body into a value chunk by chunk while the body is read. A decoder is created by a
+ * {@link BodyCodec} for one body and is used by one thread at a time, so implementations do not
+ * have to be thread safe.
+ * </p>
+ *
+ * <p>
+ * Decoders should keep only the state that they need to continue parsing (e.g. a partial token
+ * or an incomplete character at the end of a chunk), so the whole body is never aggregated in
+ * memory. See {@link BodyCodecRegistry#decode(org.everit.http.client.async.AsyncContentProvider,
+ * BodyDecoder)}.
+ * </p>
+ *
+ * @param <T>
+ *          The type of the decoded value.
+ */
+public interface BodyDecoder<T> {
+
+  /**
+   * Processes the next chunk of the body.
+   *
+   * @param chunk
+   *          The next chunk of the body. The decoder must consume or copy every remaining byte of
+   *          the chunk before returning, as the buffer may be reused afterwards.
+   * @throws IOException
+   *           if the chunk cannot be decoded. No more chunks are passed to the decoder.
+   */
+  void decode(ByteBuffer chunk) throws IOException;
+
+  /**
+   * Called when all chunks of the body were passed to {@link #decode(ByteBuffer)}.
+   *
+   * @return The decoded value.
+   * @throws IOException
+   *           if the body ended unexpectedly or the value cannot be created.
+   */
+  T finish() throws IOException;
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.ByteArrayAsyncContentProvider;
+
+/**
+ * Codec of every media type that decodes the bodies to and encodes them from byte arrays. It is
+ * registered for <code>*&#47;*</code>, so it is used only if there is no more specific codec that
+ * produces byte arrays.
+ */
+public class ByteArrayBodyCodec implements BodyCodec<byte[]> {
+
+  /**
+   * Copies the chunks into a growing array.
+   */
+  private static final class ByteArrayDecoder implements BodyDecoder<byte[]> {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    @Override
+    public void decode(ByteBuffer chunk) {
+      if (chunk.hasArray()) {
+        this.out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        chunk.position(chunk.limit());
+      } else {
+        byte[] bytes = new byte[chunk.remaining()];
+        chunk.get(bytes);
+        this.out.write(bytes, 0, bytes.length);
+      }
+    }
+
+    @Override
+    public byte[] finish() {
+      return this.out.toByteArray();
+    }
+  }
+
+  @Override
+  public BodyDecoder<byte[]> createDecoder(MediaType mediaType) {
+    return new ByteArrayDecoder();
+  }
+
+  @Override
+  public AsyncContentProvider encode(byte[] value, MediaType mediaType) {
+    return new ByteArrayAsyncContentProvider(value, Optional.of(mediaType));
+  }
+
+  @Override
+  public Set<String> getMediaTypes() {
+    return Collections.singleton("*/*");
+  }
+
+  @Override
+  public Class<byte[]> getValueType() {
+    return byte[].class;
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.ByteArrayAsyncContentProvider;
+
+/**
+ * Codec of <code>text/*</code> bodies that decodes them to and encodes them from strings. The
+ * charset of the media type is used or UTF-8 if the media type does not specify one. Malformed
+ * input is replaced with the replacement character of the charset.
+ */
+public class TextBodyCodec implements BodyCodec<String> {
+
+  /**
+   * Decodes the chunks with one {@link CharsetDecoder}, so characters that are split between two
+   * chunks are decoded correctly.
+   */
+  private static final class TextDecoder implements BodyDecoder<String> {
+
+    /**
+     * More than the number of bytes of one character in any supported charset.
+     */
+    private static final int CARRY_CAPACITY = 16;
+
+    private static final int TEXT_BUFFER_SIZE = 1024;
+
+    /**
+     * The bytes of an incomplete character at the end of the previous chunk, in read mode.
+     */
+    private final ByteBuffer carry = ByteBuffer.allocate(TextDecoder.CARRY_CAPACITY);
+
+    private final CharsetDecoder decoder;
+
+    private final StringBuilder result = new StringBuilder();
+
+    private final CharBuffer text = CharBuffer.allocate(TextDecoder.TEXT_BUFFER_SIZE);
+
+    TextDecoder(Charset charset) {
+      this.decoder = charset.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      this.carry.flip();
+    }
+
+    @Override
+    public void decode(ByteBuffer chunk) throws IOException {
+      while (this.carry.hasRemaining() && chunk.hasRemaining()) {
+        this.carry.compact();
+        this.carry.put(chunk.get());
+        this.carry.flip();
+        decode(this.carry, false);
+      }
+      if (this.carry.hasRemaining()) {
+        return;
+      }
+
+      decode(chunk, false);
+      if (chunk.hasRemaining()) {
+        this.carry.clear();
+        this.carry.put(chunk);
+        this.carry.flip();
+      }
+    }
+
+    private void decode(ByteBuffer input, boolean endOfInput) throws IOException {
+      CoderResult result;
+      do {
+        result = this.decoder.decode(input, this.text, endOfInput);
+        if (result.isError()) {
+          result.throwException();
+        }
+        moveText();
+      } while (result.isOverflow());
+    }
+
+    @Override
+    public String finish() throws IOException {
+      decode(this.carry, true);
+      CoderResult result;
+      do {
+        result = this.decoder.flush(this.text);
+        moveText();
+      } while (result.isOverflow());
+      return this.result.toString();
+    }
+
+    private void moveText() {
+      this.text.flip();
+      this.result.append(this.text);
+      this.text.clear();
+    }
+  }
+
+  private static Charset charset(MediaType mediaType) {
+    return mediaType.charset(Optional.of(StandardCharsets.UTF_8)).orElse(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public BodyDecoder<String> createDecoder(MediaType mediaType) {
+    return new TextDecoder(TextBodyCodec.charset(mediaType));
+  }
+
+  @Override
+  public AsyncContentProvider encode(String value, MediaType mediaType) {
+    return new ByteArrayAsyncContentProvider(value.getBytes(TextBodyCodec.charset(mediaType)),
+        Optional.of(mediaType));
+  }
+
+  @Override
+  public Set<String> getMediaTypes() {
+    return Collections.singleton("text/*");
+  }
+
+  @Override
+  public Class<String> getValueType() {
+    return String.class;
+  }
+}
@@ -0,0 +1,900 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.pool;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Generated;
+
+import org.everit.http.client.pool.TimerWheel.Timeout;
+
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+
+/**
+ * <p>
+ * A pool of keep-alive connections that {@link org.everit.http.client.HttpClient} implementations
+ * can use to reuse their connections. The connections are grouped by a key that identifies the
+ * host they are connected to (e.g. the scheme, the host name and the port). The pool does not know
+ * anything about the connections themselves: they are opened, checked and closed by a
+ * {@link Connector}.
+ * </p>
+ *
+ * <p>
+ * A connection is acquired via {@link #acquire(Object)} as a {@link Lease}. When the user of the
+ * connection is done with it, it either releases the lease, so the connection goes back to the
+ * pool, or discards it if the connection cannot be reused (e.g. the server asked to close it). The
+ * pool hands out the idle connection of a host that was released last, so the busy connections
+ * stay warm and the rarely used ones reach their idle timeout and get closed.
+ * </p>
+ *
+ * <p>
+ * Protocols that can send more requests on one connection at the same time (HTTP/1.1 pipelining,
+ * HTTP/2) acquire connections via {@link #acquireShared(Object)}. A shared lease may be given on a
+ * connection that other shared leases use already, up to the maximum number of leases per
+ * connection. The least used such connection is chosen; a new connection is opened only if all of
+ * them are fully used. A connection becomes idle when its last lease ends.
+ * </p>
+ *
+ * <p>
+ * The number of connections is limited per host and in total. If no connection can be leased or
+ * opened, the acquisition waits in a queue until a connection is released or the acquire timeout
+ * elapses. If the total limit is reached but another host has idle connections, the one that was
+ * idle for the longest time is closed to open a connection to the requested host.
+ * </p>
+ *
+ * @param <K>
+ *          The type of the key of the hosts. It must implement {@link Object#equals(Object)} and
+ *          {@link Object#hashCode()}.
+ * @param <C>
+ *          The type of the connections.
+ */
+public class ConnectionPool<K, C> implements Closeable {
+
+  /**
+   * Builder to build {@link ConnectionPool}.
+   */
+  @Generated("SparkTools")
+  public static final class Builder {
+
+    private long acquireTimeoutNanos = TimeUnit.SECONDS.toNanos(ConnectionPool.DEFAULT_TIMEOUT);
+
+    private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(ConnectionPool.DEFAULT_TIMEOUT);
+
+    private int maxConnections = ConnectionPool.DEFAULT_MAX_CONNECTIONS;
+
+    private int maxConnectionsPerHost = ConnectionPool.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    private int maxLeasesPerConnection = 1;
+
+    private TimerWheel timerWheel = TimerWheel.getDefault();
+
+    private Builder() {
+    }
+
+    /**
+     * The maximum time that an acquisition waits for a connection if the limits of the pool are
+     * reached. The acquisition fails with a {@link TimeoutException} afterwards. Default is 30
+     * seconds.
+     */
+    public Builder acquireTimeout(long acquireTimeout, TimeUnit unit) {
+      if (acquireTimeout < 0) {
+        throw new IllegalArgumentException("Acquire timeout must not be negative");
+      }
+      this.acquireTimeoutNanos = unit.toNanos(acquireTimeout);
+      return this;
+    }
+
+    /**
+     * Builder method of the builder.
+     *
+     * @param connector
+     *          The connector that opens, checks and closes the connections of the pool.
+     * @return built class
+     * @throws IllegalArgumentException
+     *           if the maximum number of connections per host is greater than the maximum number
+     *           of connections.
+     */
+    public <K, C> ConnectionPool<K, C> build(Connector<K, C> connector) {
+      if (this.maxConnectionsPerHost > this.maxConnections) {
+        throw new IllegalArgumentException("Maximum number of connections per host ("
+            + this.maxConnectionsPerHost + ") must not be greater than the maximum number of"
+            + " connections (" + this.maxConnections + ")");
+      }
+      return new ConnectionPool<>(this, connector);
+    }
+
+    /**
+     * The time after that an idle connection is closed. Default is 30 seconds.
+     */
+    public Builder idleTimeout(long idleTimeout, TimeUnit unit) {
+      if (idleTimeout <= 0) {
+        throw new IllegalArgumentException("Idle timeout must be greater than zero");
+      }
+      this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+      return this;
+    }
+
+    /**
+     * The maximum number of connections of all hosts together. Default is 1024.
+     */
+    public Builder maxConnections(int maxConnections) {
+      if (maxConnections <= 0) {
+        throw new IllegalArgumentException("Maximum number of connections must be greater than"
+            + " zero");
+      }
+      this.maxConnections = maxConnections;
+      return this;
+    }
+
+    /**
+     * The maximum number of connections to one host. Default is 64.
+     */
+    public Builder maxConnectionsPerHost(int maxConnectionsPerHost) {
+      if (maxConnectionsPerHost <= 0) {
+        throw new IllegalArgumentException("Maximum number of connections per host must be greater"
+            + " than zero");
+      }
+      this.maxConnectionsPerHost = maxConnectionsPerHost;
+      return this;
+    }
+
+    /**
+     * The maximum number of shared leases of one connection. See {@link #acquireShared(Object)}.
+     * Default is 1.
+     */
+    public Builder maxLeasesPerConnection(int maxLeasesPerConnection) {
+      if (maxLeasesPerConnection <= 0) {
+        throw new IllegalArgumentException("Maximum number of leases per connection must be"
+            + " greater than zero");
+      }
+      this.maxLeasesPerConnection = maxLeasesPerConnection;
+      return this;
+    }
+
+    /**
+     * The wheel that runs the idle and acquire timeouts. Default is
+     * {@link TimerWheel#getDefault()}.
+     */
+    public Builder timerWheel(TimerWheel timerWheel) {
+      this.timerWheel = Objects.requireNonNull(timerWheel);
+      return this;
+    }
+  }
+
+  /**
+   * Opens, checks and closes the connections of a {@link ConnectionPool}.
+   *
+   * @param <K>
+   *          The type of the key of the hosts.
+   * @param <C>
+   *          The type of the connections.
+   */
+  public interface Connector<K, C> {
+
+    /**
+     * Closes a connection that is not used anymore. The function is never called while the pool
+     * holds its lock.
+     *
+     * @param connection
+     *          The connection to close.
+     */
+    void close(C connection);
+
+    /**
+     * Opens a new connection.
+     *
+     * @param key
+     *          The key of the host that the connection should be opened to.
+     * @return A {@link Single} that emits the connection when it is opened. It is subscribed
+     *         exactly once.
+     */
+    Single<C> connect(K key);
+
+    /**
+     * Checks whether an idle connection can still be used, e.g. whether the server did not close
+     * it. The function is called while the pool holds its lock, so it must be fast and must not
+     * block. The default implementation returns <code>true</code>.
+     *
+     * @param connection
+     *          The connection to check.
+     * @return Whether the connection can be leased.
+     */
+    default boolean isUsable(C connection) {
+      return true;
+    }
+  }
+
+  /**
+   * A connection that is leased from the pool. Exactly one of {@link #release()} and
+   * {@link #discard()} should be called when the connection is not used anymore. Calling any of
+   * them after the lease ended has no effect. A shared connection goes back to the pool when all of
+   * its leases are released; discarding any of them closes the connection immediately.
+   *
+   * @param <C>
+   *          The type of the connection.
+   */
+  public static final class Lease<C> {
+
+    private final C connection;
+
+    /**
+     * Called with <code>true</code> if the connection can be reused.
+     */
+    private final Consumer<Boolean> endAction;
+
+    private final AtomicBoolean ended = new AtomicBoolean();
+
+    private final boolean reused;
+
+    Lease(C connection, boolean reused, Consumer<Boolean> endAction) {
+      this.connection = connection;
+      this.reused = reused;
+      this.endAction = endAction;
+    }
+
+    /**
+     * Ends the lease and closes the connection, as it cannot be reused.
+     */
+    public void discard() {
+      if (this.ended.compareAndSet(false, true)) {
+        this.endAction.accept(false);
+      }
+    }
+
+    public C getConnection() {
+      return this.connection;
+    }
+
+    /**
+     * Returns whether the lease ended.
+     */
+    public boolean isEnded() {
+      return this.ended.get();
+    }
+
+    /**
+     * Returns whether the connection was used before this lease or it is used by other shared
+     * leases. A reused connection might have been closed by the server while it was idle, without
+     * the client noticing it.
+     */
+    public boolean isReused() {
+      return this.reused;
+    }
+
+    /**
+     * Ends the lease and gives the connection back to the pool, so it can be reused.
+     */
+    public void release() {
+      if (this.ended.compareAndSet(false, true)) {
+        this.endAction.accept(true);
+      }
+    }
+  }
+
+  /**
+   * The cumulative counters of the pool or of a host.
+   */
+  private static final class Counters {
+
+    long acquireTimeouts;
+
+    long connectFailures;
+
+    long created;
+
+    long evicted;
+
+    long reused;
+  }
+
+  /**
+   * The connections and the counters of one host.
+   */
+  private final class HostPool {
+
+    int connecting = 0;
+
+    final Counters counters = new Counters();
+
+    /**
+     * The idle connections ordered by the time they were released, the last released one at the
+     * tail.
+     */
+    final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+
+    final K key;
+
+    /**
+     * The number of connections that have at least one lease.
+     */
+    int leased = 0;
+
+    int pending = 0;
+
+    /**
+     * The leased connections that further shared leases can be given on.
+     */
+    final List<PooledConnection> shared = new ArrayList<>();
+
+    HostPool(K key) {
+      this.key = key;
+    }
+
+    boolean isEmpty() {
+      return size() == 0 && this.pending == 0;
+    }
+
+    int size() {
+      return this.connecting + this.idle.size() + this.leased;
+    }
+
+    ConnectionPoolStatistics toStatistics() {
+      return ConnectionPool.toStatistics(this.connecting, this.idle.size(), this.leased,
+          this.pending, this.counters);
+    }
+  }
+
+  /**
+   * A connection of the pool with its state.
+   */
+  private final class PooledConnection {
+
+    /**
+     * Whether a lease discarded the connection, so it is closed and it is removed from the pool
+     * when its last lease ends.
+     */
+    boolean broken = false;
+
+    final C connection;
+
+    long idleSince;
+
+    Timeout idleTimeout;
+
+    int leases = 0;
+
+    PooledConnection(C connection) {
+      this.connection = connection;
+    }
+  }
+
+  /**
+   * An acquisition that waits for a connection.
+   */
+  private final class Waiter {
+
+    final SingleEmitter<Lease<C>> emitter;
+
+    final K key;
+
+    /**
+     * Whether the waiter is in the queue of the pool. Only accessed while the lock of the pool is
+     * held.
+     */
+    boolean queued = false;
+
+    /**
+     * Whether the acquisition accepts a shared lease.
+     */
+    final boolean shared;
+
+    /**
+     * Whether the emitter got its lease or error or the acquisition was cancelled.
+     */
+    final AtomicBoolean settled = new AtomicBoolean();
+
+    Timeout timeout;
+
+    Waiter(K key, boolean shared, SingleEmitter<Lease<C>> emitter) {
+      this.key = key;
+      this.shared = shared;
+      this.emitter = emitter;
+    }
+
+    void fail(Throwable cause) {
+      if (this.settled.compareAndSet(false, true)) {
+        this.emitter.tryOnError(cause);
+      }
+    }
+  }
+
+  private static final int DEFAULT_MAX_CONNECTIONS = 1024;
+
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 64;
+
+  private static final long DEFAULT_TIMEOUT = 30;
+
+  private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+
+  /**
+   * Creates builder to build {@link ConnectionPool}.
+   *
+   * @return created builder
+   */
+  @Generated("SparkTools")
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private static void runActions(List<Runnable> actions) {
+    for (Runnable action : actions) {
+      try {
+        action.run();
+      } catch (RuntimeException e) {
+        ConnectionPool.LOGGER.log(Level.SEVERE, "Error in connection pool action", e);
+      }
+    }
+  }
+
+  private static ConnectionPoolStatistics toStatistics(int connecting, int idle, int leased,
+      int pending, Counters counters) {
+    return new ConnectionPoolStatistics(connecting, idle, leased, pending, counters.created,
+        counters.reused, counters.evicted, counters.connectFailures, counters.acquireTimeouts);
+  }
+
+  private final long acquireTimeoutNanos;
+
+  private boolean closed = false;
+
+  private final Connector<K, C> connector;
+
+  private final Counters counters = new Counters();
+
+  private final Map<K, HostPool> hosts = new HashMap<>();
+
+  private final long idleTimeoutNanos;
+
+  private final int maxConnections;
+
+  private final int maxConnectionsPerHost;
+
+  private final int maxLeasesPerConnection;
+
+  private final Object mutex = new Object();
+
+  private final TimerWheel timerWheel;
+
+  /**
+   * The number of connecting, idle and leased connections of all hosts.
+   */
+  private int total = 0;
+
+  /**
+   * The waiting acquisitions of all hosts in the order they arrived.
+   */
+  private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+  @Generated("SparkTools")
+  private ConnectionPool(Builder builder, Connector<K, C> connector) {
+    this.connector = Objects.requireNonNull(connector);
+    this.acquireTimeoutNanos = builder.acquireTimeoutNanos;
+    this.idleTimeoutNanos = builder.idleTimeoutNanos;
+    this.maxConnections = builder.maxConnections;
+    this.maxConnectionsPerHost = builder.maxConnectionsPerHost;
+    this.maxLeasesPerConnection = builder.maxLeasesPerConnection;
+    this.timerWheel = builder.timerWheel;
+  }
+
+  /**
+   * Constructor with the default settings.
+   *
+   * @param connector
+   *          The connector that opens, checks and closes the connections of the pool.
+   */
+  public ConnectionPool(Connector<K, C> connector) {
+    this(ConnectionPool.builder(), connector);
+  }
+
+  /**
+   * Leases a connection to a host. An idle connection is reused if there is any, otherwise a new
+   * connection is opened if the limits allow it. Otherwise the acquisition waits until a
+   * connection is released or the acquire timeout elapses. Disposing the subscription removes the
+   * acquisition from the queue.
+   *
+   * @param key
+   *          The key of the host.
+   * @return A {@link Single} that emits the lease of the connection. It fails with a
+   *         {@link TimeoutException} if no connection became available in time, with the error of
+   *         the {@link Connector} if the connection could not be opened or with an
+   *         {@link IllegalStateException} if the pool is closed.
+   */
+  public Single<Lease<C>> acquire(K key) {
+    return acquire(key, false);
+  }
+
+  private Single<Lease<C>> acquire(K key, boolean shared) {
+    Objects.requireNonNull(key);
+    return Single.create(emitter -> {
+      Waiter waiter = new Waiter(key, shared, emitter);
+      emitter.setCancellable(() -> cancel(waiter));
+
+      List<Runnable> actions = new ArrayList<>();
+      synchronized (this.mutex) {
+        if (this.closed) {
+          actions.add(() -> waiter.fail(new IllegalStateException("Connection pool is closed")));
+        } else if (!waiter.settled.get() && !tryServe(waiter, actions)) {
+          HostPool hostPool = hostPool(key);
+          hostPool.pending++;
+          waiter.queued = true;
+          this.waiters.add(waiter);
+          waiter.timeout = this.timerWheel.schedule(() -> onAcquireTimeout(waiter),
+              this.acquireTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+      }
+      ConnectionPool.runActions(actions);
+    });
+  }
+
+  /**
+   * Leases a connection to a host that may be used by other shared leases at the same time. A
+   * connection that other shared leases use is preferred if it has less leases than the maximum
+   * number of leases per connection; otherwise the connection is acquired like in
+   * {@link #acquire(Object)}.
+   *
+   * @param key
+   *          The key of the host.
+   * @return A {@link Single} that emits the lease of the connection. It fails like the one of
+   *         {@link #acquire(Object)}.
+   */
+  public Single<Lease<C>> acquireShared(K key) {
+    return acquire(key, true);
+  }
+
+  private void cancel(Waiter waiter) {
+    if (!waiter.settled.compareAndSet(false, true)) {
+      return;
+    }
+    synchronized (this.mutex) {
+      dequeue(waiter);
+    }
+  }
+
+  /**
+   * Closes the idle connections and fails the waiting acquisitions. The leased connections are
+   * closed when their lease ends and the connections that are being opened are closed when they
+   * are opened.
+   */
+  @Override
+  public void close() {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this.mutex) {
+      if (this.closed) {
+        return;
+      }
+      this.closed = true;
+
+      for (Waiter waiter : new ArrayList<>(this.waiters)) {
+        dequeue(waiter);
+        actions.add(() -> waiter.fail(new IllegalStateException("Connection pool is closed")));
+      }
+      for (HostPool hostPool : new ArrayList<>(this.hosts.values())) {
+        PooledConnection idle = hostPool.idle.pollFirst();
+        while (idle != null) {
+          removeIdle(hostPool, idle, actions);
+          idle = hostPool.idle.pollFirst();
+        }
+        removeIfEmpty(hostPool);
+      }
+    }
+    ConnectionPool.runActions(actions);
+  }
+
+  private void closeConnection(C connection) {
+    this.connector.close(connection);
+  }
+
+  private void connect(HostPool hostPool, Waiter waiter) {
+    Single<C> connection;
+    try {
+      connection = this.connector.connect(hostPool.key);
+    } catch (RuntimeException e) {
+      onConnectFailed(hostPool, waiter, e);
+      return;
+    }
+    connection.subscribe(c -> onConnected(hostPool, waiter, c),
+        e -> onConnectFailed(hostPool, waiter, e));
+  }
+
+  private void dequeue(Waiter waiter) {
+    if (!waiter.queued) {
+      return;
+    }
+    waiter.queued = false;
+    this.waiters.remove(waiter);
+    if (waiter.timeout != null) {
+      waiter.timeout.cancel();
+    }
+    HostPool hostPool = this.hosts.get(waiter.key);
+    hostPool.pending--;
+    removeIfEmpty(hostPool);
+  }
+
+  /**
+   * Serves the waiting acquisitions in the order they arrived, as far as the limits allow it.
+   * Called when a connection or a slot became available.
+   */
+  private void dispatch(List<Runnable> actions) {
+    Iterator<Waiter> iterator = this.waiters.iterator();
+    while (iterator.hasNext()) {
+      Waiter waiter = iterator.next();
+      // Cancelled waiters are removed from the queue by the thread that cancelled them
+      if (!waiter.settled.get() && tryServe(waiter, actions)) {
+        iterator.remove();
+        waiter.queued = false;
+        waiter.timeout.cancel();
+        HostPool hostPool = this.hosts.get(waiter.key);
+        hostPool.pending--;
+      }
+    }
+  }
+
+  private void endLease(HostPool hostPool, PooledConnection pooled, boolean reusable) {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this.mutex) {
+      pooled.leases--;
+      if (!reusable && !pooled.broken) {
+        pooled.broken = true;
+        hostPool.shared.remove(pooled);
+        actions.add(() -> closeConnection(pooled.connection));
+      }
+
+      if (pooled.leases == 0) {
+        hostPool.leased--;
+        hostPool.shared.remove(pooled);
+        if (pooled.broken) {
+          this.total--;
+          removeIfEmpty(hostPool);
+        } else if (this.closed || !this.connector.isUsable(pooled.connection)) {
+          this.total--;
+          actions.add(() -> closeConnection(pooled.connection));
+          removeIfEmpty(hostPool);
+        } else {
+          pooled.idleSince = System.nanoTime();
+          pooled.idleTimeout = this.timerWheel.schedule(() -> onIdleTimeout(hostPool, pooled),
+              this.idleTimeoutNanos, TimeUnit.NANOSECONDS);
+          hostPool.idle.addLast(pooled);
+        }
+      }
+      dispatch(actions);
+    }
+    ConnectionPool.runActions(actions);
+  }
+
+  /**
+   * Closes the connection that was idle for the longest time among all hosts.
+   *
+   * @return Whether an idle connection was found.
+   */
+  private boolean evictOldestIdle(List<Runnable> actions) {
+    HostPool oldestHostPool = null;
+    for (HostPool hostPool : this.hosts.values()) {
+      PooledConnection idle = hostPool.idle.peekFirst();
+      if (idle != null && (oldestHostPool == null
+          || idle.idleSince - oldestHostPool.idle.peekFirst().idleSince < 0)) {
+        oldestHostPool = hostPool;
+      }
+    }
+    if (oldestHostPool == null) {
+      return false;
+    }
+    removeIdle(oldestHostPool, oldestHostPool.idle.pollFirst(), actions);
+    removeIfEmpty(oldestHostPool);
+    return true;
+  }
+
+  /**
+   * Returns a snapshot of the state and the counters of all hosts together.
+   */
+  public ConnectionPoolStatistics getStatistics() {
+    synchronized (this.mutex) {
+      int connecting = 0;
+      int idle = 0;
+      int leased = 0;
+      for (HostPool hostPool : this.hosts.values()) {
+        connecting += hostPool.connecting;
+        idle += hostPool.idle.size();
+        leased += hostPool.leased;
+      }
+      return ConnectionPool.toStatistics(connecting, idle, leased, this.waiters.size(),
+          this.counters);
+    }
+  }
+
+  /**
+   * Returns a snapshot of the state and the counters of one host. The pool forgets a host when it
+   * has no connections and no waiting acquisitions, so the counters start from zero again when the
+   * host is used next time.
+   *
+   * @param key
+   *          The key of the host.
+   * @return The statistics of the host.
+   */
+  public ConnectionPoolStatistics getStatistics(K key) {
+    synchronized (this.mutex) {
+      HostPool hostPool = this.hosts.get(key);
+      if (hostPool == null) {
+        return ConnectionPool.toStatistics(0, 0, 0, 0, new Counters());
+      }
+      return hostPool.toStatistics();
+    }
+  }
+
+  private HostPool hostPool(K key) {
+    return this.hosts.computeIfAbsent(key, HostPool::new);
+  }
+
+  private void lease(Waiter waiter, HostPool hostPool, PooledConnection pooled, boolean reused,
+      List<Runnable> actions) {
+    if (pooled.leases == 0) {
+      hostPool.leased++;
+      if (waiter.shared) {
+        hostPool.shared.add(pooled);
+      }
+    }
+    pooled.leases++;
+    Lease<C> lease = new Lease<>(pooled.connection, reused,
+        reusable -> endLease(hostPool, pooled, reusable));
+    actions.add(() -> {
+      if (waiter.settled.compareAndSet(false, true)) {
+        waiter.emitter.onSuccess(lease);
+      } else {
+        lease.release();
+      }
+    });
+  }
+
+  private void onAcquireTimeout(Waiter waiter) {
+    synchronized (this.mutex) {
+      if (!waiter.queued) {
+        return;
+      }
+      HostPool hostPool = this.hosts.get(waiter.key);
+      hostPool.counters.acquireTimeouts++;
+      this.counters.acquireTimeouts++;
+      dequeue(waiter);
+    }
+    waiter.fail(new TimeoutException("No connection became available to " + waiter.key + " in "
+        + TimeUnit.NANOSECONDS.toMillis(this.acquireTimeoutNanos) + " ms"));
+  }
+
+  private void onConnected(HostPool hostPool, Waiter waiter, C connection) {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this.mutex) {
+      hostPool.connecting--;
+      hostPool.counters.created++;
+      this.counters.created++;
+      if (this.closed) {
+        this.total--;
+        removeIfEmpty(hostPool);
+        actions.add(() -> closeConnection(connection));
+        actions.add(() -> waiter.fail(new IllegalStateException("Connection pool is closed")));
+      } else {
+        lease(waiter, hostPool, new PooledConnection(connection), false, actions);
+        if (waiter.shared) {
+          // The other shared acquisitions of the host may use the new connection, too
+          dispatch(actions);
+        }
+      }
+    }
+    ConnectionPool.runActions(actions);
+  }
+
+  private void onConnectFailed(HostPool hostPool, Waiter waiter, Throwable cause) {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this.mutex) {
+      hostPool.connecting--;
+      hostPool.counters.connectFailures++;
+      this.counters.connectFailures++;
+      this.total--;
+      removeIfEmpty(hostPool);
+      dispatch(actions);
+    }
+    waiter.fail(cause);
+    ConnectionPool.runActions(actions);
+  }
+
+  private void onIdleTimeout(HostPool hostPool, PooledConnection idle) {
+    List<Runnable> actions = new ArrayList<>();
+    synchronized (this.mutex) {
+      if (hostPool.idle.removeFirstOccurrence(idle)) {
+        removeIdle(hostPool, idle, actions);
+        removeIfEmpty(hostPool);
+      }
+    }
+    ConnectionPool.runActions(actions);
+  }
+
+  /**
+   * Closes an idle connection that was already removed from the queue of its host.
+   */
+  private void removeIdle(HostPool hostPool, PooledConnection idle, List<Runnable> actions) {
+    idle.idleTimeout.cancel();
+    hostPool.counters.evicted++;
+    this.counters.evicted++;
+    this.total--;
+    actions.add(() -> closeConnection(idle.connection));
+  }
+
+  private void removeIfEmpty(HostPool hostPool) {
+    if (hostPool.isEmpty()) {
+      this.hosts.remove(hostPool.key);
+    }
+  }
+
+  /**
+   * Leases an idle connection or opens a new one for the waiter if the limits allow it.
+   *
+   * @return Whether the waiter got a connection or a connection is being opened for it.
+   */
+  private boolean tryServe(Waiter waiter, List<Runnable> actions) {
+    HostPool hostPool = hostPool(waiter.key);
+
+    if (waiter.shared) {
+      PooledConnection leastUsed = null;
+      for (PooledConnection pooled : hostPool.shared) {
+        if (pooled.leases < this.maxLeasesPerConnection
+            && (leastUsed == null || pooled.leases < leastUsed.leases)
+            && this.connector.isUsable(pooled.connection)) {
+          leastUsed = pooled;
+        }
+      }
+      if (leastUsed != null) {
+        hostPool.counters.reused++;
+        this.counters.reused++;
+        lease(waiter, hostPool, leastUsed, true, actions);
+        return true;
+      }
+    }
+
+    PooledConnection idle = hostPool.idle.pollLast();
+    while (idle != null) {
+      if (this.connector.isUsable(idle.connection)) {
+        idle.idleTimeout.cancel();
+        hostPool.counters.reused++;
+        this.counters.reused++;
+        lease(waiter, hostPool, idle, true, actions);
+        return true;
+      }
+      removeIdle(hostPool, idle, actions);
+      idle = hostPool.idle.pollLast();
+    }
+
+    if (hostPool.size() >= this.maxConnectionsPerHost
+        || this.total >= this.maxConnections && !evictOldestIdle(actions)) {
+      removeIfEmpty(hostPool);
+      return false;
+    }
+
+    hostPool.connecting++;
+    this.total++;
+    actions.add(() -> connect(hostPool, waiter));
+    return true;
+  }
+}
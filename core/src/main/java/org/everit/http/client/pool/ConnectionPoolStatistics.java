@@ -0,0 +1,136 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.pool;
+
+/**
+ * An immutable snapshot of the state and the counters of a {@link ConnectionPool} or of one host
+ * of the pool. The current values (e.g. {@link #getIdle()}) describe the moment when the snapshot
+ * was taken, while the counters (e.g. {@link #getCreated()}) are cumulative since the pool was
+ * created.
+ */
+public final class ConnectionPoolStatistics {
+
+  private final long acquireTimeouts;
+
+  private final int connecting;
+
+  private final long connectFailures;
+
+  private final long created;
+
+  private final long evicted;
+
+  private final int idle;
+
+  private final int leased;
+
+  private final int pending;
+
+  private final long reused;
+
+  ConnectionPoolStatistics(int connecting, int idle, int leased, int pending, long created,
+      long reused, long evicted, long connectFailures, long acquireTimeouts) {
+    this.connecting = connecting;
+    this.idle = idle;
+    this.leased = leased;
+    this.pending = pending;
+    this.created = created;
+    this.reused = reused;
+    this.evicted = evicted;
+    this.connectFailures = connectFailures;
+    this.acquireTimeouts = acquireTimeouts;
+  }
+
+  /**
+   * Returns the number of acquisitions that failed as no connection became available in time.
+   */
+  public long getAcquireTimeouts() {
+    return this.acquireTimeouts;
+  }
+
+  /**
+   * Returns the number of connections that are being opened.
+   */
+  public int getConnecting() {
+    return this.connecting;
+  }
+
+  /**
+   * Returns the number of connections that could not be opened.
+   */
+  public long getConnectFailures() {
+    return this.connectFailures;
+  }
+
+  /**
+   * Returns the number of connections that were opened successfully.
+   */
+  public long getCreated() {
+    return this.created;
+  }
+
+  /**
+   * Returns the number of idle connections that were closed by the pool, as their idle timeout
+   * elapsed, they were not usable anymore or their slot was needed for another host.
+   */
+  public long getEvicted() {
+    return this.evicted;
+  }
+
+  /**
+   * Returns the number of open connections that are waiting in the pool to be reused.
+   */
+  public int getIdle() {
+    return this.idle;
+  }
+
+  /**
+   * Returns the number of connections that are in use.
+   */
+  public int getLeased() {
+    return this.leased;
+  }
+
+  /**
+   * Returns the number of acquisitions that are waiting for a connection.
+   */
+  public int getPending() {
+    return this.pending;
+  }
+
+  /**
+   * Returns the number of times an idle connection was leased again.
+   */
+  public long getReused() {
+    return this.reused;
+  }
+
+  /**
+   * Returns the number of connections that are counted against the limits of the pool: the
+   * connecting, idle and leased ones.
+   */
+  public int getTotal() {
+    return this.connecting + this.idle + this.leased;
+  }
+
+  @Override
+  public String toString() {
+    return "ConnectionPoolStatistics [connecting=" + this.connecting + ", idle=" + this.idle
+        + ", leased=" + this.leased + ", pending=" + this.pending + ", created=" + this.created
+        + ", reused=" + this.reused + ", evicted=" + this.evicted + ", connectFailures="
+        + this.connectFailures + ", acquireTimeouts=" + this.acquireTimeouts + "]";
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.pool;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * A hashed timer wheel that runs tasks after a delay with the precision of one tick. Scheduling
+ * and cancelling a task costs constant time regardless of the number of scheduled tasks, so the
+ * wheel suits timeouts that are scheduled and cancelled far more often than they fire, like the
+ * idle timeouts of pooled connections.
+ * </p>
+ *
+ * <p>
+ * The tasks are run on the thread of the wheel, so they must be short and must not block.
+ * </p>
+ */
+public class TimerWheel implements Closeable {
+
+  /**
+   * A scheduled task that can be cancelled.
+   */
+  public static final class Timeout {
+
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    private final long deadlineTick;
+
+    private Timeout next;
+
+    private Timeout previous;
+
+    private long remainingRounds;
+
+    private final Runnable task;
+
+    Timeout(Runnable task, long deadlineTick) {
+      this.task = task;
+      this.deadlineTick = deadlineTick;
+    }
+
+    /**
+     * Cancels the task.
+     *
+     * @return Whether the task was cancelled by this call, so it will not run.
+     */
+    public boolean cancel() {
+      return this.cancelled.compareAndSet(false, true);
+    }
+
+    /**
+     * Returns whether the task was cancelled or it ran.
+     */
+    public boolean isCancelled() {
+      return this.cancelled.get();
+    }
+  }
+
+  private static final class DefaultHolder {
+
+    static final TimerWheel DEFAULT = new TimerWheel("everit-httpclient-timer",
+        TimerWheel.DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, TimerWheel.DEFAULT_WHEEL_SIZE);
+  }
+
+  private static final long DEFAULT_TICK_MILLIS = 100;
+
+  private static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private static final Logger LOGGER = Logger.getLogger(TimerWheel.class.getName());
+
+  /**
+   * Returns a wheel with a tick of 100 milliseconds whose thread runs until the JVM stops.
+   */
+  public static TimerWheel getDefault() {
+    return DefaultHolder.DEFAULT;
+  }
+
+  /**
+   * The first timeout of every bucket in a doubly linked list. Only accessed from the thread of
+   * the wheel.
+   */
+  private final Timeout[] buckets;
+
+  private volatile boolean closed = false;
+
+  /**
+   * The timeouts that are scheduled and not added to the buckets yet.
+   */
+  private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+
+  private final long startNanos;
+
+  private final Thread thread;
+
+  private final long tickNanos;
+
+  /**
+   * The number of ticks that the thread of the wheel processed.
+   */
+  private volatile long ticks = 0;
+
+  /**
+   * Constructor that starts the thread of the wheel.
+   *
+   * @param threadName
+   *          The name of the thread that runs the tasks.
+   * @param tickDuration
+   *          The duration of one tick.
+   * @param unit
+   *          The unit of the tick duration.
+   * @param wheelSize
+   *          The number of buckets in the wheel, rounded up to the next power of two. Tasks whose
+   *          delay is longer than the wheel size times the tick duration are revisited once per
+   *          rotation of the wheel.
+   */
+  public TimerWheel(String threadName, long tickDuration, TimeUnit unit, int wheelSize) {
+    this.tickNanos = unit.toNanos(tickDuration);
+    if (this.tickNanos <= 0) {
+      throw new IllegalArgumentException("Tick duration must be positive");
+    }
+    if (wheelSize <= 0 || wheelSize > 1 << (Integer.SIZE - 2)) {
+      throw new IllegalArgumentException("Wheel size is out of range: " + wheelSize);
+    }
+    int size = Integer.highestOneBit(wheelSize);
+    this.buckets = new Timeout[size < wheelSize ? size << 1 : size];
+
+    this.startNanos = System.nanoTime();
+    this.thread = new Thread(this::run, threadName);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  private void addTimeout(Timeout timeout) {
+    long currentTick = this.ticks;
+    long deadlineTick = Math.max(timeout.deadlineTick, currentTick);
+    timeout.remainingRounds = (deadlineTick - currentTick) / this.buckets.length;
+
+    int index = (int) (deadlineTick & (this.buckets.length - 1));
+    Timeout head = this.buckets[index];
+    timeout.next = head;
+    if (head != null) {
+      head.previous = timeout;
+    }
+    this.buckets[index] = timeout;
+  }
+
+  /**
+   * Stops the thread of the wheel. The tasks that did not run yet are dropped.
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    this.thread.interrupt();
+  }
+
+  private void expireBucket(int index) {
+    Timeout timeout = this.buckets[index];
+    while (timeout != null) {
+      Timeout next = timeout.next;
+      if (timeout.isCancelled()) {
+        removeTimeout(index, timeout);
+      } else if (timeout.remainingRounds <= 0) {
+        removeTimeout(index, timeout);
+        if (timeout.cancel()) {
+          try {
+            timeout.task.run();
+          } catch (RuntimeException e) {
+            TimerWheel.LOGGER.log(Level.SEVERE, "Error during running a timed task", e);
+          }
+        }
+      } else {
+        timeout.remainingRounds--;
+      }
+      timeout = next;
+    }
+  }
+
+  private void removeTimeout(int index, Timeout timeout) {
+    if (timeout.previous != null) {
+      timeout.previous.next = timeout.next;
+    } else {
+      this.buckets[index] = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.previous = timeout.previous;
+    }
+    timeout.next = null;
+    timeout.previous = null;
+  }
+
+  private void run() {
+    while (!this.closed) {
+      long deadline = this.startNanos + (this.ticks + 1) * this.tickNanos;
+      long sleepNanos = deadline - System.nanoTime();
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          continue;
+        }
+      }
+
+      Timeout timeout = this.newTimeouts.poll();
+      while (timeout != null) {
+        if (!timeout.isCancelled()) {
+          addTimeout(timeout);
+        }
+        timeout = this.newTimeouts.poll();
+      }
+
+      expireBucket((int) (this.ticks & (this.buckets.length - 1)));
+      this.ticks++;
+    }
+  }
+
+  /**
+   * Schedules a task.
+   *
+   * @param task
+   *          The task to run.
+   * @param delay
+   *          The minimum delay after that the task runs.
+   * @param unit
+   *          The unit of the delay.
+   * @return The timeout that can cancel the task.
+   * @throws IllegalStateException
+   *           if the wheel is closed.
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    if (this.closed) {
+      throw new IllegalStateException("Timer wheel is closed");
+    }
+    long delayNanos = Math.max(unit.toNanos(delay), 0);
+    long elapsedNanos = System.nanoTime() - this.startNanos;
+    // Rounding up, so the task never runs before the delay elapses
+    long deadlineTick = (elapsedNanos + delayNanos + this.tickNanos - 1) / this.tickNanos;
+    Timeout timeout = new Timeout(task, deadlineTick);
+    this.newTimeouts.add(timeout);
+    return timeout;
+  }
+}
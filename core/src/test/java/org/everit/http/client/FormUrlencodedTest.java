@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client;
+
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.everit.http.client.async.AsyncContentUtil;
+import org.everit.http.client.async.ByteBufferPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FormUrlencodedTest {
+
+  private static final String SPECIAL_CHARACTERS =
+      "a Z0-._*~!'()+&=%/?#\u00e1\u0151\u20ac\ud83d\ude00\ud83d_\ude00";
+
+  private static String randomString(Random random) {
+    final int maxLength = 20;
+    char[] chars = new char[random.nextInt(maxLength)];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = FormUrlencodedTest.SPECIAL_CHARACTERS
+          .charAt(random.nextInt(FormUrlencodedTest.SPECIAL_CHARACTERS.length()));
+    }
+    return new String(chars);
+  }
+
+  private static String urlEncode(String s) throws Exception {
+    return URLEncoder.encode(s, "UTF-8");
+  }
+
+  @Test
+  public void testEncodingIsSameAsUrlEncoder() throws Exception {
+    Random random = new Random();
+    final int iterationCount = 1000;
+    for (int i = 0; i < iterationCount; i++) {
+      String s = FormUrlencodedTest.randomString(random);
+      String expected = FormUrlencodedTest.urlEncode(s);
+
+      ByteBuffer buffer = ByteBuffer.allocate(PercentEncoder.encodedLength(s));
+      Assert.assertEquals(s.length(), PercentEncoder.encode(s, 0, buffer));
+      Assert.assertFalse(buffer.hasRemaining());
+      Assert.assertEquals(expected, new String(buffer.array(), StandardCharsets.US_ASCII));
+    }
+  }
+
+  @Test
+  public void testFormContent() throws Exception {
+    Map<String, Collection<String>> parameters = new LinkedHashMap<>();
+    parameters.put("a b", Arrays.asList("1", "\u00e1 & \u20ac"));
+    parameters.put("empty", Collections.emptyList());
+    parameters.put("c", Collections.singletonList("="));
+
+    String expected = "a+b=1&a+b=" + FormUrlencodedTest.urlEncode("\u00e1 & \u20ac")
+        + "&empty=&c=%3D";
+    FormUrlencodedAsyncContentProvider provider =
+        new FormUrlencodedAsyncContentProvider(parameters);
+    Assert.assertEquals(expected,
+        AsyncContentUtil.readString(provider, StandardCharsets.US_ASCII).blockingGet());
+    Assert.assertEquals("",
+        AsyncContentUtil.readString(new FormUrlencodedAsyncContentProvider(
+            Collections.emptyMap()), StandardCharsets.US_ASCII).blockingGet());
+  }
+
+  @Test
+  public void testQueryStringBuilder() {
+    Assert.assertEquals("http://localhost/a?q=a+b&%C3%A1=%2F#fragment",
+        new QueryStringBuilder("http://localhost/a#fragment")
+            .add("q", "a b")
+            .add("\u00e1", "/")
+            .build());
+
+    Map<String, List<String>> parameters = new LinkedHashMap<>();
+    parameters.put("x", Arrays.asList("1", "2"));
+    final int longValueLength = 1000;
+    char[] longValue = new char[longValueLength];
+    Arrays.fill(longValue, '\u20ac');
+    parameters.put("long", Collections.singletonList(new String(longValue)));
+
+    Assert.assertEquals("http://localhost/a?b=c&x=1&x=2&long="
+        + String.join("", Collections.nCopies(longValueLength, "%E2%82%AC")),
+        new QueryStringBuilder("http://localhost/a?b=c").addAll(parameters).toString());
+  }
+
+  @Test
+  public void testStreamingFormContent() throws Exception {
+    Random random = new Random();
+    final int parameterCount = 500;
+    List<Entry<String, String>> parameters = new ArrayList<>();
+    for (int i = 0; i < parameterCount; i++) {
+      parameters.add(new SimpleEntry<>(FormUrlencodedTest.randomString(random),
+          FormUrlencodedTest.randomString(random)));
+    }
+    parameters.add(new SimpleEntry<>("null", null));
+
+    String expected = parameters.stream()
+        .map(parameter -> {
+          try {
+            String value = parameter.getValue() == null ? "" : parameter.getValue();
+            return FormUrlencodedTest.urlEncode(parameter.getKey()) + '='
+                + FormUrlencodedTest.urlEncode(value);
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        })
+        .collect(Collectors.joining("&"));
+
+    final int[] chunkSizes = { PercentEncoder.MAX_ENCODED_CODE_POINT_LENGTH, 13, 100, 8192 };
+    for (int chunkSize : chunkSizes) {
+      StreamingFormUrlencodedAsyncContentProvider provider =
+          new StreamingFormUrlencodedAsyncContentProvider(parameters.iterator(), chunkSize,
+              ByteBufferPool.getDefault());
+      Assert.assertEquals(expected,
+          AsyncContentUtil.readString(provider, StandardCharsets.US_ASCII).blockingGet());
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LeakDetectorTest {
+
+  private static final long GC_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private static final int SAMPLING_INTERVAL = 4;
+
+  private static void awaitLeakCount(LeakDetector leakDetector, long expectedLeakCount) {
+    long deadline = System.nanoTime() + LeakDetectorTest.GC_TIMEOUT_NANOS;
+    while (leakDetector.getLeakCount() < expectedLeakCount && System.nanoTime() < deadline) {
+      System.gc();
+      leakDetector.reportLeaks();
+    }
+    Assert.assertEquals(expectedLeakCount, leakDetector.getLeakCount());
+  }
+
+  private static LeakDetector.Tracker trackNewResource(LeakDetector leakDetector) {
+    return leakDetector.track(new Object());
+  }
+
+  @Test
+  public void testClosedResourceIsNotReported() {
+    LeakDetector leakDetector = new LeakDetector(LeakDetector.Level.PARANOID, 1);
+
+    LeakDetectorTest.trackNewResource(leakDetector).close();
+    LeakDetectorTest.trackNewResource(leakDetector);
+
+    LeakDetectorTest.awaitLeakCount(leakDetector, 1);
+    System.gc();
+    leakDetector.reportLeaks();
+    Assert.assertEquals(1, leakDetector.getLeakCount());
+  }
+
+  @Test
+  public void testDisabledLevelDoesNotTrack() {
+    LeakDetector leakDetector = new LeakDetector(LeakDetector.Level.DISABLED, 1);
+    LeakDetector.Tracker tracker = LeakDetectorTest.trackNewResource(leakDetector);
+    Assert.assertSame(tracker, LeakDetectorTest.trackNewResource(leakDetector));
+  }
+
+  @Test
+  public void testParanoidLevelLogsAllocationStackTrace() {
+    List<LogRecord> records = new CopyOnWriteArrayList<>();
+    Handler handler = new Handler() {
+
+      @Override
+      public void close() {
+        // Nothing to close
+      }
+
+      @Override
+      public void flush() {
+        // Nothing to flush
+      }
+
+      @Override
+      public void publish(LogRecord record) {
+        records.add(record);
+      }
+    };
+    Logger logger = Logger.getLogger(LeakDetector.class.getName());
+    logger.addHandler(handler);
+    try {
+      LeakDetector leakDetector = new LeakDetector(LeakDetector.Level.PARANOID, 1);
+      LeakDetectorTest.trackNewResource(leakDetector);
+
+      LeakDetectorTest.awaitLeakCount(leakDetector, 1);
+      Assert.assertEquals(1, records.size());
+      Assert.assertTrue(records.get(0).getMessage().contains(Object.class.getName()));
+      Assert.assertNotNull(records.get(0).getThrown());
+    } finally {
+      logger.removeHandler(handler);
+    }
+  }
+
+  @Test
+  public void testSampledLevelTracksSomeResources() {
+    LeakDetector leakDetector =
+        new LeakDetector(LeakDetector.Level.SAMPLED, LeakDetectorTest.SAMPLING_INTERVAL);
+
+    final int resourceCount = 1000;
+    int trackedCount = 0;
+    LeakDetector.Tracker untracked = LeakDetectorTest.trackNewResource(
+        new LeakDetector(LeakDetector.Level.DISABLED, 1));
+    for (int i = 0; i < resourceCount; i++) {
+      LeakDetector.Tracker tracker = LeakDetectorTest.trackNewResource(leakDetector);
+      if (tracker != untracked) {
+        trackedCount++;
+      }
+    }
+
+    Assert.assertTrue(trackedCount > 0);
+    Assert.assertTrue(trackedCount < resourceCount);
+    LeakDetectorTest.awaitLeakCount(leakDetector, trackedCount);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MediaTypeTest {
+
+  @Test
+  public void testCharset() {
+    Assert.assertEquals(Optional.of(StandardCharsets.UTF_8),
+        MediaType.parse("text/plain; charset=\"utf-8\"").charset());
+
+    Assert.assertEquals(Optional.empty(), MediaType.parse("text/plain").charset());
+
+    Assert.assertEquals(Optional.empty(), MediaType.parse("text/plain; charset=unknown").charset());
+
+    Assert.assertEquals(Optional.of(StandardCharsets.ISO_8859_1),
+        MediaType.parse("text/plain").charset(Optional.of(StandardCharsets.ISO_8859_1)));
+  }
+
+  @Test
+  public void testInterning() {
+    Assert.assertSame(MediaType.parse("application/json; charset=utf-8"),
+        MediaType.parse("application/json; charset=utf-8"));
+
+    MediaType uncached = MediaType.parseUncached("text/plain");
+    Assert.assertNotSame(uncached, MediaType.parse("text/plain"));
+    Assert.assertEquals(uncached, MediaType.parse("text/plain"));
+  }
+
+  @Test
+  public void testMalformed() {
+    for (String malformed : Arrays.asList("", "text", "text/", "/plain", "text /plain",
+        "text/plain; charset", "text/plain; charset=", "text/plain; charset=\"utf-8",
+        "text/plain; a=b c", "text/plain; a=\"b\\\"", "text/plain; =utf-8",
+        "text/plain; charset=utf-8; charset=iso-8859-1", "t\u00e9xt/plain")) {
+      try {
+        MediaType.parse(malformed);
+        Assert.fail("Media type should be malformed: " + malformed);
+      } catch (IllegalArgumentException e) {
+        Assert.assertTrue(e.getMessage().contains(malformed));
+      }
+    }
+  }
+
+  @Test
+  public void testParameters() {
+    MediaType mediaType = MediaType.parse("Multipart/Mixed ;Boundary=\"a \\\"b\\\\\" ; ;"
+        + "charset='UTF-8'\t; x-Empty=\"\"; boundary=second ");
+
+    Assert.assertEquals("multipart", mediaType.type());
+    Assert.assertEquals("mixed", mediaType.subtype());
+    Assert.assertEquals(Optional.of("a \"b\\"), mediaType.parameter("BOUNDARY"));
+    Assert.assertEquals(Optional.of(""), mediaType.parameter("x-empty"));
+    Assert.assertEquals(Optional.empty(), mediaType.parameter("missing"));
+    Assert.assertEquals(Optional.of(StandardCharsets.UTF_8), mediaType.charset());
+
+    Map<String, String> expected = new LinkedHashMap<>();
+    expected.put("boundary", "a \"b\\");
+    expected.put("charset", "UTF-8");
+    expected.put("x-empty", "");
+    Assert.assertEquals(expected, mediaType.parameters());
+    Assert.assertTrue(MediaType.parse("text/plain").parameters().isEmpty());
+  }
+}
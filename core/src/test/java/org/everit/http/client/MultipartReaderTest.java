@@ -0,0 +1,270 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.AsyncContentUtil;
+import org.everit.http.client.async.ByteArrayAsyncContentProvider;
+import org.everit.http.client.async.InputStreamAsyncContentProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MultipartReaderTest {
+
+  /**
+   * The headers and the content of a part that was read.
+   */
+  private static final class ReadPart {
+
+    final byte[] content;
+
+    final ReceivedPart part;
+
+    ReadPart(ReceivedPart part, byte[] content) {
+      this.part = part;
+      this.content = content;
+    }
+  }
+
+  private static final String BOUNDARY = "simple boundary";
+
+  private static AsyncContentProvider chunked(String body, int chunkSize) {
+    return MultipartReaderTest.chunked(body.getBytes(StandardCharsets.UTF_8), chunkSize);
+  }
+
+  private static AsyncContentProvider chunked(byte[] body, int chunkSize) {
+    return new InputStreamAsyncContentProvider(new ByteArrayInputStream(body), Optional.empty(),
+        Optional.empty(), chunkSize);
+  }
+
+  private static List<ReadPart> read(AsyncContentProvider body, String boundary)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    return MultipartReaderTest.read(body, boundary, false);
+  }
+
+  private static List<ReadPart> read(AsyncContentProvider body, String boundary,
+      boolean processLater) throws InterruptedException, ExecutionException, TimeoutException {
+
+    List<CompletableFuture<ReadPart>> parts = new ArrayList<>();
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    MultipartReader reader = new MultipartReader(body, boundary);
+    reader.onSuccess(() -> future.complete(null))
+        .onError(future::completeExceptionally)
+        .onPart(part -> {
+          CompletableFuture<ReadPart> partFuture = new CompletableFuture<>();
+          parts.add(partFuture);
+          ByteArrayOutputStream content = new ByteArrayOutputStream();
+          part.getContent()
+              .onSuccess(() -> partFuture.complete(new ReadPart(part, content.toByteArray())))
+              .onContent((chunk, callback) -> {
+                byte[] bytes = new byte[chunk.remaining()];
+                chunk.get(bytes);
+                content.write(bytes, 0, bytes.length);
+                if (processLater) {
+                  CompletableFuture.runAsync(callback::processed);
+                } else {
+                  callback.processed();
+                }
+              });
+        });
+
+    final int timeout = 10;
+    try {
+      future.get(timeout, TimeUnit.SECONDS);
+      List<ReadPart> result = new ArrayList<>();
+      for (CompletableFuture<ReadPart> partFuture : parts) {
+        result.add(partFuture.get(timeout, TimeUnit.SECONDS));
+      }
+      return result;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static Throwable readFailure(AsyncContentProvider body) throws InterruptedException,
+      TimeoutException {
+    try {
+      MultipartReaderTest.read(body, MultipartReaderTest.BOUNDARY);
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+    Assert.fail("Reading should have failed");
+    return null;
+  }
+
+  @Test
+  public void testClosedPartIsSkipped() throws Exception {
+    String body = "--" + MultipartReaderTest.BOUNDARY + "\r\n\r\nskipped content\r\n--"
+        + MultipartReaderTest.BOUNDARY + "\r\n\r\nread content\r\n--"
+        + MultipartReaderTest.BOUNDARY + "--";
+
+    final int chunkSize = 5;
+    List<String> contents = new ArrayList<>();
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    MultipartReader reader = new MultipartReader(MultipartReaderTest.chunked(body, chunkSize),
+        MultipartReaderTest.BOUNDARY);
+    reader.onSuccess(() -> future.complete(null))
+        .onError(future::completeExceptionally)
+        .onPart(part -> {
+          if (contents.isEmpty()) {
+            contents.add(null);
+            part.getContent().close();
+          } else {
+            AsyncContentUtil.readString(part.getContent(), StandardCharsets.UTF_8)
+                .subscribe(contents::add, future::completeExceptionally);
+          }
+        });
+
+    final int timeout = 10;
+    future.get(timeout, TimeUnit.SECONDS);
+    Assert.assertEquals(2, contents.size());
+    Assert.assertEquals("read content", contents.get(1));
+  }
+
+  @Test
+  public void testMalformedBody() throws Exception {
+    final int chunkSize = 3;
+    String boundary = "--" + MultipartReaderTest.BOUNDARY;
+
+    Throwable failure = MultipartReaderTest.readFailure(MultipartReaderTest.chunked(
+        boundary + "\r\nContent-Type: text/plain\r\n\r\ntruncated", chunkSize));
+    Assert.assertTrue(failure instanceof MalformedMultipartException);
+
+    failure = MultipartReaderTest.readFailure(MultipartReaderTest.chunked(
+        boundary + "x\r\n\r\ncontent\r\n" + boundary + "--", chunkSize));
+    Assert.assertTrue(failure instanceof MalformedMultipartException);
+
+    failure = MultipartReaderTest.readFailure(MultipartReaderTest.chunked(
+        boundary + "\r\nno header\r\n\r\ncontent\r\n" + boundary + "--", chunkSize));
+    Assert.assertTrue(failure instanceof MalformedMultipartException);
+  }
+
+  @Test
+  public void testMediaTypeBoundary() {
+    MediaType mediaType = MediaType.parse("multipart/byteranges; boundary=\"a b\"");
+    Assert.assertEquals(Optional.of("a b"), mediaType.parameter("Boundary"));
+    Assert.assertEquals(Optional.empty(), mediaType.parameter("charset"));
+
+    MultipartReader.create(new ByteArrayAsyncContentProvider(new byte[0], Optional.empty()),
+        mediaType).close();
+  }
+
+  @Test
+  public void testPreambleEpilogueAndTransportPadding() throws Exception {
+    String boundary = MultipartReaderTest.BOUNDARY;
+    String body = "This is the preamble.\r\n--" + boundary + " \t\r\n"
+        + "Content-type: text/plain; charset=us-ascii\r\n"
+        + "X-Folded: first\r\n second\r\n"
+        + "\r\n"
+        + "This is explicitly typed plain US-ASCII text.\r\n"
+        + "It DOES end with a linebreak.\r\n"
+        + "\r\n--" + boundary + "\r\n"
+        + "\r\n"
+        + "\r\n-- " + boundary + "\r\n--simple boundar\r\nx--" + boundary + "\r\n"
+        + "\r\n--" + boundary + "--\r\n"
+        + "This is the epilogue. It is also to be ignored.\r\n--" + boundary + "\r\n";
+
+    for (int chunkSize = 1; chunkSize <= body.length(); chunkSize++) {
+      List<ReadPart> parts =
+          MultipartReaderTest.read(MultipartReaderTest.chunked(body, chunkSize), boundary);
+
+      Assert.assertEquals(2, parts.size());
+      ReceivedPart first = parts.get(0).part;
+      Assert.assertEquals(Optional.of("text/plain; charset=us-ascii"),
+          first.getHeader("Content-Type"));
+      Assert.assertEquals("text/plain", first.getContent().getContentType().get().toString()
+          .substring(0, "text/plain".length()));
+      Assert.assertEquals(Optional.of("first second"), first.getHeader("x-folded"));
+      Assert.assertEquals("This is explicitly typed plain US-ASCII text.\r\n"
+          + "It DOES end with a linebreak.\r\n",
+          new String(parts.get(0).content, StandardCharsets.US_ASCII));
+
+      Assert.assertEquals(Collections.emptyMap(), parts.get(1).part.getHeaders());
+      Assert.assertEquals(
+          "\r\n-- " + boundary + "\r\n--simple boundar\r\nx--" + boundary + "\r\n",
+          new String(parts.get(1).content, StandardCharsets.US_ASCII));
+    }
+  }
+
+  @Test
+  public void testReadWrittenMultipart() throws Exception {
+    final int largeContentLength = 100_000;
+    byte[] largeContent = new byte[largeContentLength];
+    new Random().nextBytes(largeContent);
+
+    MultiPartAsyncContentProvider written = MultiPartAsyncContentProvider.create(Optional.empty(),
+        Part.createFieldPart("field", "value"),
+        new Part("file", Optional.of("random.bin"), Optional.of("application/octet-stream"),
+            new ByteArrayAsyncContentProvider(largeContent, Optional.empty()),
+            Collections.emptyMap()),
+        Part.createFieldPart("empty", ""));
+    String boundary = written.getContentType().get().parameter("boundary").get();
+    byte[] body = AsyncContentUtil.readAllBytes(written).blockingGet();
+
+    final int[] chunkSizes = { 1, 7, 64, 4096, 4097, body.length };
+    for (int chunkSize : chunkSizes) {
+      List<ReadPart> parts = MultipartReaderTest
+          .read(MultipartReaderTest.chunked(body, chunkSize), boundary, chunkSize % 2 == 0);
+
+      Assert.assertEquals(3, parts.size());
+      Assert.assertEquals(Optional.of("form-data; name=\"field\""),
+          parts.get(0).part.getHeader("content-disposition"));
+      Assert.assertArrayEquals("value".getBytes(StandardCharsets.UTF_8), parts.get(0).content);
+      Assert.assertEquals(Optional.of("application/octet-stream"),
+          parts.get(1).part.getHeader("Content-Type"));
+      Assert.assertArrayEquals(largeContent, parts.get(1).content);
+      Assert.assertEquals(0, parts.get(2).content.length);
+    }
+  }
+
+  @Test
+  public void testSlicesAreNotCopied() throws Exception {
+    String body = "--" + MultipartReaderTest.BOUNDARY + "\r\n\r\ncontent\r\n--"
+        + MultipartReaderTest.BOUNDARY + "--";
+    ByteBuffer source = ByteBuffer.wrap(body.getBytes(StandardCharsets.US_ASCII));
+
+    List<ByteBuffer> chunks = new ArrayList<>();
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    new MultipartReader(AsyncContentUtil.fromPublisher(
+        io.reactivex.Flowable.just(source), Optional.empty(), Optional.empty()),
+        MultipartReaderTest.BOUNDARY)
+            .onSuccess(() -> future.complete(null))
+            .onError(future::completeExceptionally)
+            .onPart(part -> part.getContent().onContent((chunk, callback) -> {
+              chunks.add(chunk);
+              callback.processed();
+            }));
+
+    final int timeout = 10;
+    future.get(timeout, TimeUnit.SECONDS);
+    Assert.assertEquals(1, chunks.size());
+    Assert.assertSame(source.array(), chunks.get(0).array());
+  }
+}
@@ -32,6 +32,8 @@ import org.everit.http.client.async.ByteArrayAsyncContentProvider;
 import org.junit.Assert;
 import org.junit.Test;
 
+import io.reactivex.Flowable;
+
 public class MultipartTest {
 
   @Test
@@ -66,4 +68,29 @@ public class MultipartTest {
     Assert.assertEquals("application/json", part.getContentType());
     Assert.assertEquals("2", IOUtils.toString(part.getInputStream(), StandardCharsets.UTF_8));
   }
+
+  @Test
+  public void testMultipartLength() {
+    MultiPartAsyncContentProvider contentProvider = MultiPartAsyncContentProvider.create(
+        Optional.of("b"), Part.createFieldPart("a1", "1"), Part.createFieldPart("a2", "\u00e1"));
+
+    byte[] multipartBytes = AsyncContentUtil.readAllBytes(contentProvider).blockingGet();
+    Assert.assertEquals(Optional.of((long) multipartBytes.length),
+        contentProvider.getContentLength());
+    Assert.assertEquals("--b\r\n" + Part.createFieldPart("a1", "").getHeaders() + "1\r\n--b\r\n"
+        + Part.createFieldPart("a2", "").getHeaders() + "\u00e1\r\n--b--\r\n",
+        new String(multipartBytes, StandardCharsets.UTF_8));
+
+    Assert.assertEquals(Optional.empty(), MultiPartAsyncContentProvider.create(Optional.empty(),
+        Part.createFieldPart("unknown", AsyncContentUtil.fromPublisher(Flowable.empty(),
+            Optional.empty(), Optional.empty())))
+        .getContentLength());
+  }
+
+  @Test
+  public void testMultipartWithoutParts() {
+    Assert.assertEquals("--b--\r\n", AsyncContentUtil.readString(
+        MultiPartAsyncContentProvider.create(Optional.of("b")), StandardCharsets.UTF_8)
+        .blockingGet());
+  }
 }
@@ -15,6 +15,8 @@
  */
 package org.everit.http.client.async;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -23,10 +25,18 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.IOUtils;
 import org.everit.http.client.MediaType;
@@ -40,6 +50,65 @@ import io.reactivex.Single;
 
 public class AsyncContentProviderImplementationsTest {
 
+  /**
+   * Pool that counts the buffers that are leased but not returned yet.
+   */
+  private static final class LeaseCountingByteBufferPool implements ByteBufferPool {
+
+    private final AtomicLong leased = new AtomicLong();
+
+    private final ByteBufferPool wrapped = new SizeClassByteBufferPool();
+
+    @Override
+    public ByteBuffer acquire(int size, boolean direct) {
+      this.leased.incrementAndGet();
+      return this.wrapped.acquire(size, direct);
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+      this.leased.decrementAndGet();
+      this.wrapped.release(buffer);
+    }
+  }
+
+  /**
+   * An input stream that provides the specified amount of zero bytes without holding them in
+   * memory.
+   */
+  private static final class ZeroInputStream extends InputStream {
+
+    private long remaining;
+
+    ZeroInputStream(long length) {
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() {
+      if (this.remaining == 0) {
+        return -1;
+      }
+      this.remaining--;
+      return 0;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (this.remaining == 0) {
+        return -1;
+      }
+      int n = (int) Math.min(len, this.remaining);
+      Arrays.fill(b, off, off + n, (byte) 0);
+      this.remaining -= n;
+      return n;
+    }
+  }
+
+  private static final int MAX_STACK_DEPTH_DIFFERENCE = 32;
+
+  private static final int STACK_DEPTH_SAMPLING_INTERVAL = 4096;
+
   private static File testFile;
 
   @AfterClass
@@ -64,6 +133,39 @@ public class AsyncContentProviderImplementationsTest {
     }
   }
 
+  /**
+   * Reads all chunks of the provider with a listener that calls {@link AsyncCallback#processed()}
+   * synchronously and checks that the depth of the call stack does not grow with the number of
+   * chunks.
+   */
+  private void assertConstantStackDepth(AsyncContentProvider provider, long expectedChunkCount) {
+    AtomicLong chunkCount = new AtomicLong();
+    AtomicLong byteCount = new AtomicLong();
+    AtomicBoolean success = new AtomicBoolean();
+    int[] minMaxDepth = new int[] { Integer.MAX_VALUE, 0 };
+
+    provider.onSuccess(() -> success.set(true)).onError((error) -> {
+      throw new AssertionError(error);
+    }).onContent((content, callback) -> {
+      long chunkIndex = chunkCount.getAndIncrement();
+      byteCount.addAndGet(content.remaining());
+      if (chunkIndex % AsyncContentProviderImplementationsTest.STACK_DEPTH_SAMPLING_INTERVAL == 0) {
+        int depth = new Throwable().getStackTrace().length;
+        minMaxDepth[0] = Math.min(minMaxDepth[0], depth);
+        minMaxDepth[1] = Math.max(minMaxDepth[1], depth);
+      }
+      callback.processed();
+    });
+
+    Assert.assertTrue(success.get());
+    Assert.assertEquals(expectedChunkCount, chunkCount.get());
+    Assert.assertEquals(provider.getContentLength().orElse(byteCount.get()).longValue(),
+        byteCount.get());
+    Assert.assertTrue("Stack depth grew from " + minMaxDepth[0] + " to " + minMaxDepth[1],
+        minMaxDepth[1] - minMaxDepth[0]
+            < AsyncContentProviderImplementationsTest.MAX_STACK_DEPTH_DIFFERENCE);
+  }
+
   private byte[] readTestFile() {
     try (InputStream in = new FileInputStream(AsyncContentProviderImplementationsTest.testFile)) {
       return IOUtils.toByteArray(in);
@@ -87,6 +189,96 @@ public class AsyncContentProviderImplementationsTest {
     Assert.assertEquals("abcdefghi", resultString);
   }
 
+  @Test
+  public void testConcatenatedAsyncContentProviderStackDepth() {
+    final int inputStreamChunkCount = 1_000_000;
+    final int byteArrayProviderCount = 200_000;
+    byte[] oneByte = new byte[1];
+
+    AsyncContentProvider[] providers = new AsyncContentProvider[byteArrayProviderCount + 1];
+    providers[0] = new InputStreamAsyncContentProvider(new ZeroInputStream(inputStreamChunkCount),
+        Optional.of((long) inputStreamChunkCount), Optional.empty(), 1);
+    for (int i = 1; i < providers.length; i++) {
+      providers[i] = new ByteArrayAsyncContentProvider(oneByte, Optional.empty());
+    }
+
+    try (AsyncContentProvider provider =
+        new ConcatenatedAsyncContentProvider(Optional.empty(), providers)) {
+
+      assertConstantStackDepth(provider, inputStreamChunkCount + byteArrayProviderCount);
+    }
+  }
+
+  @Test
+  public void testFileAsyncContentProvider() {
+    byte[] testFileContent = readTestFile();
+    try (FileAsyncContentProvider provider = new FileAsyncContentProvider(
+        AsyncContentProviderImplementationsTest.testFile.toPath(), Optional.empty())) {
+
+      Assert.assertEquals(Optional.of((long) testFileContent.length),
+          provider.getContentLength());
+      Assert.assertArrayEquals(testFileContent,
+          AsyncContentUtil.readAllBytes(provider).blockingGet());
+      Assert.assertEquals(testFileContent.length, provider.getPosition());
+    }
+  }
+
+  @Test
+  public void testFileAsyncContentProviderMemoryMappedRange() {
+    byte[] testFileContent = readTestFile();
+    final int offset = 1000;
+    final int length = testFileContent.length - 2 * offset;
+    final int chunkSize = 4000;
+
+    try (FileAsyncContentProvider provider = new FileAsyncContentProvider(
+        AsyncContentProviderImplementationsTest.testFile.toPath(), offset,
+        Optional.of((long) length), Optional.empty(), chunkSize, 0, ByteBufferPool.getDefault())) {
+
+      Assert.assertEquals(Optional.of((long) length), provider.getContentLength());
+
+      AtomicBoolean readOnlyChunks = new AtomicBoolean(true);
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      provider.onContent((chunk, callback) -> {
+        readOnlyChunks.compareAndSet(true, chunk.isReadOnly() && chunk.isDirect());
+        while (chunk.hasRemaining()) {
+          bout.write(chunk.get());
+        }
+        callback.processed();
+      });
+
+      Assert.assertTrue(readOnlyChunks.get());
+      Assert.assertArrayEquals(Arrays.copyOfRange(testFileContent, offset, offset + length),
+          bout.toByteArray());
+    }
+  }
+
+  @Test
+  public void testFileAsyncContentProviderTransferTo() throws IOException {
+    byte[] testFileContent = readTestFile();
+    final int offset = 10;
+
+    try (FileAsyncContentProvider provider = new FileAsyncContentProvider(
+        AsyncContentProviderImplementationsTest.testFile.toPath(), offset, Optional.empty(),
+        Optional.empty())) {
+
+      AtomicBoolean success = new AtomicBoolean();
+      provider.onSuccess(() -> success.set(true));
+
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      long transferred = 0;
+      try (WritableByteChannel target = Channels.newChannel(bout)) {
+        while (!success.get()) {
+          transferred += provider.transferTo(target);
+        }
+      }
+
+      Assert.assertEquals(testFileContent.length - offset, transferred);
+      Assert.assertArrayEquals(
+          Arrays.copyOfRange(testFileContent, offset, testFileContent.length),
+          bout.toByteArray());
+    }
+  }
+
   @Test
   public void testInputStreamAsyncContentProvider() {
     try (AsyncContentProvider provider = new InputStreamAsyncContentProvider(
@@ -100,6 +292,97 @@ public class AsyncContentProviderImplementationsTest {
     }
   }
 
+  @Test
+  public void testInputStreamAsyncContentProviderStackDepth() {
+    final int chunkCount = 2_000_000;
+    try (AsyncContentProvider provider = new InputStreamAsyncContentProvider(
+        new ZeroInputStream(chunkCount), Optional.empty(), Optional.empty(), 1)) {
+
+      assertConstantStackDepth(provider, chunkCount);
+    }
+  }
+
+  /**
+   * Registers a listener with the specified prefetch that does not process the chunks immediately
+   * and checks that the provider passes as many chunks as the prefetch allows, but not more.
+   */
+  private void assertPrefetchHonored(AsyncContentProvider provider, int prefetch,
+      byte[] expectedContent) {
+
+    Deque<ByteBuffer> pendingChunks = new ArrayDeque<>();
+    Deque<AsyncCallback> pendingCallbacks = new ArrayDeque<>();
+    AtomicBoolean success = new AtomicBoolean();
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+    provider.onSuccess(() -> success.set(true)).onError((error) -> {
+      throw new AssertionError(error);
+    }).onContent((chunk, callback) -> {
+      pendingChunks.add(chunk);
+      pendingCallbacks.add(callback);
+    }, prefetch);
+
+    Assert.assertEquals(prefetch, pendingCallbacks.size());
+    while (!pendingCallbacks.isEmpty()) {
+      Assert.assertFalse(success.get());
+      Assert.assertTrue(pendingCallbacks.size() <= prefetch);
+      ByteBuffer chunk = pendingChunks.poll();
+      while (chunk.hasRemaining()) {
+        bout.write(chunk.get());
+      }
+      pendingCallbacks.poll().processed();
+    }
+
+    Assert.assertTrue(success.get());
+    Assert.assertArrayEquals(expectedContent, bout.toByteArray());
+  }
+
+  @Test
+  public void testPooledBuffersAreReturned() throws IOException {
+    LeaseCountingByteBufferPool pool = new LeaseCountingByteBufferPool();
+    final int bufferSize = 1024;
+
+    try (AsyncContentProvider provider = new ConcatenatedAsyncContentProvider(Optional.empty(),
+        new InputStreamAsyncContentProvider(
+            new FileInputStream(AsyncContentProviderImplementationsTest.testFile),
+            Optional.empty(), Optional.empty(), bufferSize, pool),
+        new ReadableByteChannelAsyncContentProvider(
+            FileChannel.open(AsyncContentProviderImplementationsTest.testFile.toPath(),
+                StandardOpenOption.READ),
+            Optional.empty(), Optional.empty(), bufferSize, pool))) {
+
+      byte[] testFileContent = readTestFile();
+      byte[] bytes = AsyncContentUtil.readAllBytes(provider).blockingGet();
+
+      Assert.assertEquals(testFileContent.length * 2, bytes.length);
+      Assert.assertArrayEquals(testFileContent, Arrays.copyOf(bytes, testFileContent.length));
+      Assert.assertEquals(0, pool.leased.get());
+    }
+  }
+
+  @Test
+  public void testPrefetch() throws IOException {
+    final int prefetch = 4;
+    byte[] content = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes(StandardCharsets.UTF_8);
+
+    try (AsyncContentProvider provider = new InputStreamAsyncContentProvider(
+        new ByteArrayInputStream(content), Optional.empty(), Optional.empty(), 1)) {
+
+      assertPrefetchHonored(provider, prefetch, content);
+    }
+
+    final int half = content.length / 2;
+    try (AsyncContentProvider provider = new ConcatenatedAsyncContentProvider(Optional.empty(),
+        new InputStreamAsyncContentProvider(
+            new ByteArrayInputStream(content, 0, half), Optional.empty(), Optional.empty(), 1),
+        new ByteArrayAsyncContentProvider(new byte[0], Optional.empty()),
+        new InputStreamAsyncContentProvider(
+            new ByteArrayInputStream(content, half, content.length - half), Optional.empty(),
+            Optional.empty(), 1))) {
+
+      assertPrefetchHonored(provider, prefetch, content);
+    }
+  }
+
   @Test
   public void testReadableByteChannelAsyncContentProvider() {
     try (AsyncContentProvider provider = new ReadableByteChannelAsyncContentProvider(
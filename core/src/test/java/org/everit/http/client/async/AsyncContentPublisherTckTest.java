@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.everit.http.client.MediaType;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.tck.PublisherVerification;
+import org.reactivestreams.tck.TestEnvironment;
+
+/**
+ * Runs the Reactive Streams TCK against {@link AsyncContentPublisher}.
+ */
+public class AsyncContentPublisherTckTest extends PublisherVerification<ByteBuffer> {
+
+  /**
+   * Provides the specified number of one byte long chunks or fails if the number is negative.
+   */
+  private static final class ElementCountAsyncContentProvider extends AbstractAsyncContentProvider {
+
+    private long remainingElements;
+
+    ElementCountAsyncContentProvider(long elements) {
+      this.remainingElements = elements;
+    }
+
+    @Override
+    protected void doClose() {
+      // Nothing to close
+    }
+
+    @Override
+    public Optional<Long> getContentLength() {
+      return Optional.empty();
+    }
+
+    @Override
+    public Optional<MediaType> getContentType() {
+      return Optional.empty();
+    }
+
+    @Override
+    protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+      if (this.remainingElements < 0) {
+        handleErrorFromInput(new IOException("Test failure"));
+        return;
+      }
+      if (this.remainingElements == 0) {
+        handleSuccess();
+        return;
+      }
+      this.remainingElements--;
+      callback.accept(ByteBuffer.wrap(new byte[] { 1 }));
+    }
+  }
+
+  public AsyncContentPublisherTckTest() {
+    super(new TestEnvironment());
+  }
+
+  @Override
+  public Publisher<ByteBuffer> createFailedPublisher() {
+    return new AsyncContentPublisher(new ElementCountAsyncContentProvider(-1));
+  }
+
+  @Override
+  public Publisher<ByteBuffer> createPublisher(long elements) {
+    return new AsyncContentPublisher(new ElementCountAsyncContentProvider(elements));
+  }
+}
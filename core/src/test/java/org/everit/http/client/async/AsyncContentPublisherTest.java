@@ -0,0 +1,184 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.everit.http.client.MediaType;
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+public class AsyncContentPublisherTest {
+
+  /**
+   * Provides one byte long chunks and counts how many chunks were provided and processed.
+   */
+  private static final class CountingAsyncContentProvider extends AbstractAsyncContentProvider {
+
+    private final AtomicInteger processedChunks = new AtomicInteger();
+
+    private final AtomicInteger providedChunks = new AtomicInteger();
+
+    private final int chunkCount;
+
+    CountingAsyncContentProvider(int chunkCount) {
+      this.chunkCount = chunkCount;
+    }
+
+    @Override
+    protected void doClose() {
+      // Nothing to close
+    }
+
+    @Override
+    public Optional<Long> getContentLength() {
+      return Optional.of((long) this.chunkCount);
+    }
+
+    @Override
+    public Optional<MediaType> getContentType() {
+      return Optional.empty();
+    }
+
+    @Override
+    protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+      if (this.providedChunks.get() == this.chunkCount) {
+        handleSuccess();
+        return;
+      }
+      this.providedChunks.incrementAndGet();
+      callback.accept(ByteBuffer.wrap(new byte[] { 1 }));
+    }
+
+    @Override
+    protected void releaseChunk(ByteBuffer chunk) {
+      this.processedChunks.incrementAndGet();
+    }
+  }
+
+  /**
+   * Subscriber that records the signals and requests only when the test asks for it.
+   */
+  private static final class RecordingSubscriber implements Subscriber<ByteBuffer> {
+
+    boolean completed = false;
+
+    Throwable error;
+
+    int receivedChunks = 0;
+
+    Subscription subscription;
+
+    @Override
+    public void onComplete() {
+      this.completed = true;
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      this.error = throwable;
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+      this.receivedChunks++;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+    }
+  }
+
+  @Test
+  public void testCancelClosesProvider() {
+    CountingAsyncContentProvider provider = new CountingAsyncContentProvider(10);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new AsyncContentPublisher(provider).subscribe(subscriber);
+
+    subscriber.subscription.request(1);
+    subscriber.subscription.cancel();
+
+    Assert.assertTrue(provider.isClosed());
+    Assert.assertEquals(1, subscriber.receivedChunks);
+    Assert.assertEquals(1, provider.processedChunks.get());
+    Assert.assertFalse(subscriber.completed);
+    Assert.assertNull(subscriber.error);
+  }
+
+  @Test
+  public void testDemandIsMappedToProcessed() {
+    CountingAsyncContentProvider provider = new CountingAsyncContentProvider(3);
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new AsyncContentPublisher(provider).subscribe(subscriber);
+
+    Assert.assertEquals(0, subscriber.receivedChunks);
+    Assert.assertEquals(1, provider.providedChunks.get());
+
+    subscriber.subscription.request(1);
+    Assert.assertEquals(1, subscriber.receivedChunks);
+    Assert.assertEquals(0, provider.processedChunks.get());
+    Assert.assertEquals(1, provider.providedChunks.get());
+
+    subscriber.subscription.request(1);
+    Assert.assertEquals(2, subscriber.receivedChunks);
+    Assert.assertEquals(1, provider.processedChunks.get());
+    Assert.assertEquals(2, provider.providedChunks.get());
+
+    subscriber.subscription.request(Long.MAX_VALUE);
+    Assert.assertEquals(3, subscriber.receivedChunks);
+    Assert.assertEquals(3, provider.processedChunks.get());
+    Assert.assertTrue(subscriber.completed);
+    Assert.assertFalse(provider.isClosed());
+  }
+
+  @Test
+  public void testFlowableRoundTrip() {
+    final int contentLength = 100000;
+    final int bufferSize = 1000;
+    byte[] content = new byte[contentLength];
+    new Random().nextBytes(content);
+
+    AsyncContentProvider source = new InputStreamAsyncContentProvider(
+        new ByteArrayInputStream(content), Optional.empty(), Optional.empty(), bufferSize);
+
+    AsyncContentProvider result = AsyncContentUtil.fromPublisher(
+        AsyncContentUtil.toFlowable(source).filter(ByteBuffer::hasRemaining),
+        Optional.of((long) contentLength), Optional.empty());
+
+    Assert.assertArrayEquals(content, AsyncContentUtil.readAllBytes(result).blockingGet());
+  }
+
+  @Test
+  public void testSecondSubscriberIsRejected() {
+    AsyncContentPublisher publisher =
+        new AsyncContentPublisher(new CountingAsyncContentProvider(1));
+    publisher.subscribe(new RecordingSubscriber());
+
+    RecordingSubscriber secondSubscriber = new RecordingSubscriber();
+    publisher.subscribe(secondSubscriber);
+
+    Assert.assertNotNull(secondSubscriber.subscription);
+    Assert.assertTrue(secondSubscriber.error instanceof IllegalStateException);
+  }
+}
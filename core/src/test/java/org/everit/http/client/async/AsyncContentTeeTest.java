@@ -0,0 +1,210 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+
+public class AsyncContentTeeTest {
+
+  /**
+   * A listener that collects the content and processes the chunks only when asked.
+   */
+  private static final class ManualListener implements AsyncContentListener {
+
+    private final ArrayDeque<AsyncCallback> callbacks = new ArrayDeque<>();
+
+    private final List<byte[]> chunks = new ArrayList<>();
+
+    @Override
+    public void onContent(ByteBuffer content, AsyncCallback callback) {
+      byte[] chunk = new byte[content.remaining()];
+      content.get(chunk);
+      this.chunks.add(chunk);
+      this.callbacks.add(callback);
+    }
+
+    /**
+     * Processes the chunks that are received so far, but not the ones that are received meanwhile.
+     */
+    void processAll() {
+      List<AsyncCallback> received = new ArrayList<>(this.callbacks);
+      this.callbacks.clear();
+      for (AsyncCallback callback : received) {
+        callback.processed();
+      }
+    }
+
+    byte[] readContent() {
+      int length = 0;
+      for (byte[] chunk : this.chunks) {
+        length += chunk.length;
+      }
+      ByteBuffer content = ByteBuffer.allocate(length);
+      for (byte[] chunk : this.chunks) {
+        content.put(chunk);
+      }
+      return content.array();
+    }
+  }
+
+  private static final int CHUNK_COUNT = 10;
+
+  private static final int CHUNK_SIZE = 1000;
+
+  private static byte[] createContent() {
+    byte[] content = new byte[AsyncContentTeeTest.CHUNK_COUNT * AsyncContentTeeTest.CHUNK_SIZE];
+    new Random().nextBytes(content);
+    return content;
+  }
+
+  /**
+   * Creates a source that reuses the same buffer for every chunk, so a child that reads a chunk
+   * after the source was asked for the next one would get wrong content.
+   */
+  private static AsyncContentProvider createSource(byte[] content) {
+    ByteBuffer buffer = ByteBuffer.allocate(AsyncContentTeeTest.CHUNK_SIZE);
+    return AsyncContentUtil.fromPublisher(
+        Flowable.range(0, AsyncContentTeeTest.CHUNK_COUNT).map(i -> {
+          buffer.clear();
+          buffer.put(content, i * AsyncContentTeeTest.CHUNK_SIZE, AsyncContentTeeTest.CHUNK_SIZE);
+          buffer.flip();
+          return buffer;
+        }), Optional.of((long) content.length), Optional.empty());
+  }
+
+  @Test
+  public void testAllChildrenReadTheContent() {
+    byte[] content = AsyncContentTeeTest.createContent();
+    AsyncContentTee tee = new AsyncContentTee(AsyncContentTeeTest.createSource(content), 3);
+
+    List<AsyncContentProvider> children = tee.getChildren();
+    Assert.assertEquals(Optional.of((long) content.length), children.get(0).getContentLength());
+
+    List<byte[]> results = Single.zip(Arrays.asList(
+        AsyncContentUtil.readAllBytes(children.get(0)),
+        AsyncContentUtil.readAllBytes(children.get(1)),
+        AsyncContentUtil.readAllBytes(children.get(2))), values -> {
+          List<byte[]> list = new ArrayList<>();
+          for (Object value : values) {
+            list.add((byte[]) value);
+          }
+          return list;
+        }).blockingGet();
+
+    for (byte[] result : results) {
+      Assert.assertArrayEquals(content, result);
+    }
+  }
+
+  @Test
+  public void testClosedAndFailedChildrenDoNotHoldBackTheOthers() {
+    byte[] content = AsyncContentTeeTest.createContent();
+    AsyncContentTee tee = new AsyncContentTee(AsyncContentTeeTest.createSource(content), 3);
+    List<AsyncContentProvider> children = tee.getChildren();
+
+    children.get(1).onContent(
+        (chunk, callback) -> callback.failed(new IOException("Cannot process the chunk")));
+    children.get(2).close();
+
+    Assert.assertArrayEquals(content,
+        AsyncContentUtil.readAllBytes(children.get(0)).blockingGet());
+    Assert.assertTrue(children.get(1).getFailure().get() instanceof IOException);
+  }
+
+  @Test
+  public void testLagBufferIsBounded() {
+    byte[] content = AsyncContentTeeTest.createContent();
+    final int maxLagChunks = 2;
+    AsyncContentTee tee = new AsyncContentTee(AsyncContentTeeTest.createSource(content), 2, 1,
+        maxLagChunks * AsyncContentTeeTest.CHUNK_SIZE + AsyncContentTeeTest.CHUNK_SIZE / 2);
+    List<AsyncContentProvider> children = tee.getChildren();
+
+    ManualListener fast = new ManualListener();
+    ManualListener slow = new ManualListener();
+    boolean[] fastFinished = new boolean[1];
+    children.get(0).onSuccess(() -> fastFinished[0] = true).onContent((chunk, callback) -> {
+      fast.onContent(chunk, callback);
+      fast.processAll();
+    });
+    children.get(1).onContent(slow);
+
+    // The copies of the first two chunks fill the lag buffer, the third chunk is not copied
+    Assert.assertEquals(maxLagChunks + 1, fast.chunks.size());
+    Assert.assertEquals(1, slow.chunks.size());
+
+    slow.processAll();
+    Assert.assertEquals(maxLagChunks + 2, fast.chunks.size());
+    Assert.assertEquals(2, slow.chunks.size());
+
+    while (!fastFinished[0] || !slow.callbacks.isEmpty()) {
+      slow.processAll();
+    }
+    Assert.assertArrayEquals(content, fast.readContent());
+    Assert.assertArrayEquals(content, slow.readContent());
+  }
+
+  @Test
+  public void testLockstepByDefault() {
+    byte[] content = AsyncContentTeeTest.createContent();
+    AsyncContentTee tee = new AsyncContentTee(AsyncContentTeeTest.createSource(content), 2);
+    List<AsyncContentProvider> children = tee.getChildren();
+
+    ManualListener first = new ManualListener();
+    ManualListener second = new ManualListener();
+    children.get(0).onContent(first);
+    Assert.assertTrue(first.chunks.isEmpty());
+
+    children.get(1).onContent(second);
+    for (int i = 1; i <= AsyncContentTeeTest.CHUNK_COUNT; i++) {
+      Assert.assertEquals(i, first.chunks.size());
+      Assert.assertEquals(i, second.chunks.size());
+      first.processAll();
+      Assert.assertEquals(i, first.chunks.size());
+      second.processAll();
+    }
+    Assert.assertArrayEquals(content, first.readContent());
+    Assert.assertArrayEquals(content, second.readContent());
+  }
+
+  @Test
+  public void testSourceErrorFailsEveryChild() {
+    IOException error = new IOException("Connection reset");
+    AsyncContentTee tee = new AsyncContentTee(
+        AsyncContentUtil.fromPublisher(Flowable.error(error), Optional.empty(), Optional.empty()),
+        2);
+    List<AsyncContentProvider> children = tee.getChildren();
+
+    Single<byte[]> first = AsyncContentUtil.readAllBytes(children.get(0)).cache();
+    first.subscribe((result, e) -> {
+    });
+    Assert.assertSame(error, AsyncContentUtil.readAllBytes(children.get(1)).ignoreElement()
+        .blockingGet());
+    Assert.assertSame(error, first.ignoreElement().blockingGet());
+  }
+}
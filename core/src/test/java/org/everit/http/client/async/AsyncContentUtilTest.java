@@ -0,0 +1,371 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.everit.http.client.MediaType;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncContentUtilTest {
+
+  /**
+   * Provides the chunks that the test passes via {@link #provide(String)} and counts the released
+   * ones.
+   */
+  private static final class ManualAsyncContentProvider extends AbstractAsyncContentProvider {
+
+    private Consumer<ByteBuffer> provideCallback;
+
+    private int releasedChunks = 0;
+
+    @Override
+    protected void doClose() {
+      // Nothing to close
+    }
+
+    @Override
+    public Optional<Long> getContentLength() {
+      return Optional.empty();
+    }
+
+    @Override
+    public Optional<MediaType> getContentType() {
+      return Optional.empty();
+    }
+
+    void provide(String chunk) {
+      Consumer<ByteBuffer> callback = this.provideCallback;
+      this.provideCallback = null;
+      callback.accept(ByteBuffer.wrap(chunk.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+      this.provideCallback = callback;
+    }
+
+    @Override
+    protected void releaseChunk(ByteBuffer chunk) {
+      this.releasedChunks++;
+    }
+  }
+
+  /**
+   * Channel that collects the written bytes and counts the write calls.
+   */
+  private static final class RecordingChannel implements GatheringByteChannel {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private int writeCount = 0;
+
+    @Override
+    public void close() {
+      // Nothing to close
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      return (int) write(new ByteBuffer[] { src });
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      this.writeCount++;
+      long written = 0;
+      for (int i = offset; i < offset + length; i++) {
+        written += srcs[i].remaining();
+        while (srcs[i].hasRemaining()) {
+          this.out.write(srcs[i].get());
+        }
+      }
+      return written;
+    }
+  }
+
+  private static final int BUFFER_SIZE = 7;
+
+  private static final int CONTENT_LENGTH = 1000;
+
+  private static final String MULTI_BYTE_TEXT =
+      "\u00e1rv\u00edzt\u0171r\u0151 t\u00fck\u00f6rf\u00far\u00f3g\u00e9p "
+          + "\u65e5\u672c\u8a9e \ud83d\ude00\n";
+
+  private static void assertContentTooLarge(AsyncContentProvider provider, int maxLength) {
+    try {
+      AsyncContentUtil.readAllBytes(provider, maxLength).blockingGet();
+      Assert.fail("ContentTooLargeException should have been thrown");
+    } catch (ContentTooLargeException e) {
+      Assert.assertEquals(maxLength, e.getMaxLength());
+    }
+    Assert.assertTrue(provider.isClosed());
+  }
+
+  private static byte[] createContent() {
+    byte[] content = new byte[AsyncContentUtilTest.CONTENT_LENGTH];
+    new Random().nextBytes(content);
+    return content;
+  }
+
+  private static AsyncContentProvider createProvider(byte[] content,
+      Optional<Long> contentLength) {
+
+    return new InputStreamAsyncContentProvider(new ByteArrayInputStream(content), contentLength,
+        Optional.empty(), AsyncContentUtilTest.BUFFER_SIZE);
+  }
+
+  @Test
+  public void testReadAllBytesContentLengthMismatch() {
+    byte[] content = AsyncContentUtilTest.createContent();
+    final int difference = 10;
+
+    Assert.assertArrayEquals(content, AsyncContentUtil.readAllBytes(AsyncContentUtilTest
+        .createProvider(content, Optional.of((long) content.length - difference)))
+        .blockingGet());
+
+    Assert.assertArrayEquals(content, AsyncContentUtil.readAllBytes(AsyncContentUtilTest
+        .createProvider(content, Optional.of((long) content.length + difference)))
+        .blockingGet());
+  }
+
+  @Test
+  public void testReadAllBytesKnownLength() {
+    byte[] content = AsyncContentUtilTest.createContent();
+    Assert.assertArrayEquals(content, AsyncContentUtil.readAllBytes(
+        AsyncContentUtilTest.createProvider(content, Optional.of((long) content.length)),
+        content.length).blockingGet());
+  }
+
+  @Test
+  public void testReadAllBytesMaxLengthExceeded() {
+    byte[] content = AsyncContentUtilTest.createContent();
+    int maxLength = content.length - 1;
+
+    AsyncContentUtilTest.assertContentTooLarge(
+        AsyncContentUtilTest.createProvider(content, Optional.of((long) content.length)),
+        maxLength);
+
+    AsyncContentUtilTest.assertContentTooLarge(
+        AsyncContentUtilTest.createProvider(content, Optional.empty()), maxLength);
+  }
+
+  @Test
+  public void testReadAllBytesUnknownLength() {
+    byte[] content = AsyncContentUtilTest.createContent();
+    Assert.assertArrayEquals(content, AsyncContentUtil.readAllBytes(
+        AsyncContentUtilTest.createProvider(content, Optional.empty())).blockingGet());
+
+    Assert.assertArrayEquals(new byte[0], AsyncContentUtil.readAllBytes(
+        AsyncContentUtilTest.createProvider(new byte[0], Optional.empty())).blockingGet());
+
+    byte[] oneChunk = Arrays.copyOf(content, AsyncContentUtilTest.BUFFER_SIZE);
+    Assert.assertArrayEquals(oneChunk, AsyncContentUtil.readAllBytes(
+        AsyncContentUtilTest.createProvider(oneChunk, Optional.empty())).blockingGet());
+  }
+
+  @Test
+  public void testReadStringSplitMultiByteCharacters() {
+    StringBuilder sb = new StringBuilder();
+    final int repeat = 100;
+    for (int i = 0; i < repeat; i++) {
+      sb.append(AsyncContentUtilTest.MULTI_BYTE_TEXT);
+    }
+    String text = sb.toString();
+
+    for (Charset charset : new Charset[] { StandardCharsets.UTF_8, StandardCharsets.UTF_16,
+        Charset.forName("GB18030") }) {
+
+      byte[] content = text.getBytes(charset);
+      for (int bufferSize = 1; bufferSize <= AsyncContentUtilTest.BUFFER_SIZE; bufferSize++) {
+        AsyncContentProvider provider = new InputStreamAsyncContentProvider(
+            new ByteArrayInputStream(content), Optional.empty(), Optional.empty(), bufferSize);
+
+        Assert.assertEquals(charset + " / " + bufferSize, text,
+            AsyncContentUtil.readString(provider, charset).blockingGet());
+      }
+    }
+  }
+
+  @Test
+  public void testReadTextBackpressure() {
+    final int textLength = 100000;
+    final int bufferSize = 4097;
+    char[] chars = new char[textLength];
+    Arrays.fill(chars, '\u0151');
+    String text = new String(chars);
+
+    AsyncContentProvider provider = new InputStreamAsyncContentProvider(
+        new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), Optional.empty(),
+        Optional.empty(), bufferSize);
+
+    Deque<AsyncCallback> callbacks = new ArrayDeque<>();
+    StringBuilder sb = new StringBuilder();
+    boolean[] completed = new boolean[1];
+    AsyncContentUtil.readText(provider, StandardCharsets.UTF_8, (segment, callback) -> {
+      sb.append(segment);
+      callbacks.add(callback);
+    }).subscribe(() -> completed[0] = true);
+
+    while (!callbacks.isEmpty()) {
+      Assert.assertEquals(1, callbacks.size());
+      callbacks.poll().processed();
+    }
+
+    Assert.assertTrue(completed[0]);
+    Assert.assertEquals(text, sb.toString());
+  }
+
+  @Test
+  public void testReadTextListenerFailure() {
+    AsyncContentProvider provider = new ByteArrayAsyncContentProvider(
+        AsyncContentUtilTest.MULTI_BYTE_TEXT.getBytes(StandardCharsets.UTF_8), Optional.empty());
+
+    IllegalStateException failure = new IllegalStateException();
+    Throwable error = AsyncContentUtil.readText(provider, StandardCharsets.UTF_8,
+        (segment, callback) -> callback.failed(failure)).blockingGet();
+
+    Assert.assertSame(failure, error);
+    Assert.assertSame(failure, provider.getFailure().get());
+  }
+
+  @Test
+  public void testReadTextListenerFailureBetweenChunks() {
+    ManualAsyncContentProvider provider = new ManualAsyncContentProvider();
+
+    Deque<AsyncCallback> callbacks = new ArrayDeque<>();
+    Throwable[] error = new Throwable[1];
+    AsyncContentUtil.readText(provider, StandardCharsets.UTF_8,
+        (segment, callback) -> callbacks.add(callback))
+        .subscribe(() -> Assert.fail("Reading should have failed"), e -> error[0] = e);
+
+    provider.provide("first");
+    Assert.assertEquals(1, callbacks.size());
+    Assert.assertEquals(1, provider.releasedChunks);
+
+    // The provider already waits for the next chunk when the listener fails
+    IllegalStateException failure = new IllegalStateException();
+    callbacks.poll().failed(failure);
+    provider.provide("second");
+
+    Assert.assertTrue(callbacks.isEmpty());
+    Assert.assertEquals(2, provider.releasedChunks);
+    Assert.assertSame(failure, provider.getFailure().get());
+    Assert.assertSame(failure, error[0]);
+  }
+
+  @Test
+  public void testReadTextUsesDeclaredCharset() {
+    AsyncContentProvider provider = new ByteArrayAsyncContentProvider(
+        AsyncContentUtilTest.MULTI_BYTE_TEXT.getBytes(StandardCharsets.UTF_16LE),
+        Optional.of(MediaType.parse("text/plain; charset=UTF-16LE")));
+
+    StringBuilder sb = new StringBuilder();
+    AsyncContentUtil.readText(provider, StandardCharsets.UTF_8, (segment, callback) -> {
+      sb.append(segment);
+      callback.processed();
+    }).blockingAwait();
+
+    Assert.assertEquals(AsyncContentUtilTest.MULTI_BYTE_TEXT, sb.toString());
+  }
+
+  @Test
+  public void testWriteToGathersAdjacentInMemoryProviders() {
+    final int streamLength = 10;
+    byte[] streamContent = new byte[streamLength];
+    Arrays.fill(streamContent, (byte) 'x');
+
+    ConcatenatedAsyncContentProvider provider = new ConcatenatedAsyncContentProvider(
+        Optional.empty(),
+        new ByteArrayAsyncContentProvider("ab".getBytes(StandardCharsets.UTF_8), Optional.empty()),
+        new ByteArrayAsyncContentProvider("cd".getBytes(StandardCharsets.UTF_8), Optional.empty()),
+        new ByteArrayAsyncContentProvider("ef".getBytes(StandardCharsets.UTF_8), Optional.empty()),
+        AsyncContentUtilTest.createProvider(streamContent, Optional.empty()),
+        new ByteArrayAsyncContentProvider("gh".getBytes(StandardCharsets.UTF_8), Optional.empty()),
+        new ByteArrayAsyncContentProvider("ij".getBytes(StandardCharsets.UTF_8),
+            Optional.empty()));
+
+    RecordingChannel channel = new RecordingChannel();
+    AsyncContentUtil.writeTo(provider, channel).blockingAwait();
+
+    Assert.assertEquals("abcdefxxxxxxxxxxghij",
+        new String(channel.out.toByteArray(), StandardCharsets.UTF_8));
+
+    // One batch, two chunks of the stream and one more batch
+    final int expectedWriteCount = 4;
+    Assert.assertEquals(expectedWriteCount, channel.writeCount);
+  }
+
+  @Test
+  public void testWriteToJoinsBatchesForSingleChunkProvide() {
+    ConcatenatedAsyncContentProvider provider = new ConcatenatedAsyncContentProvider(
+        Optional.empty(),
+        new ByteArrayAsyncContentProvider("ab".getBytes(StandardCharsets.UTF_8), Optional.empty()),
+        new ByteArrayAsyncContentProvider("cd".getBytes(StandardCharsets.UTF_8),
+            Optional.empty())) {
+
+      @Override
+      protected void provideNextChunks(Consumer<ByteBuffer> chunkCallback,
+          Consumer<ByteBuffer[]> batchCallback) {
+        provideNextChunk(chunkCallback);
+      }
+    };
+
+    RecordingChannel channel = new RecordingChannel();
+    AsyncContentUtil.writeTo(provider, channel).blockingAwait();
+    Assert.assertEquals("abcd", new String(channel.out.toByteArray(), StandardCharsets.UTF_8));
+    Assert.assertEquals(1, channel.writeCount);
+  }
+
+  @Test
+  public void testWriteToPassesBatchesOfWrappedProviders() {
+    ConcatenatedAsyncContentProvider provider = new ConcatenatedAsyncContentProvider(
+        Optional.empty(),
+        new ByteArrayAsyncContentProvider("ab".getBytes(StandardCharsets.UTF_8), Optional.empty()),
+        new ByteArrayAsyncContentProvider("cd".getBytes(StandardCharsets.UTF_8),
+            Optional.empty()));
+
+    ConcatenatedAsyncContentProvider outer =
+        new ConcatenatedAsyncContentProvider(Optional.empty(), provider);
+
+    RecordingChannel channel = new RecordingChannel();
+    AsyncContentUtil.writeTo(outer, channel).blockingAwait();
+    Assert.assertEquals("abcd", new String(channel.out.toByteArray(), StandardCharsets.UTF_8));
+    Assert.assertEquals(1, channel.writeCount);
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.reactivex.Flowable;
+
+public class ChunkedTransferCodingTest {
+
+  private static AsyncContentProvider chunked(byte[] content, int chunkSize) {
+    List<ByteBuffer> chunks = new ArrayList<>();
+    for (int i = 0; i < content.length; i += chunkSize) {
+      chunks.add(ByteBuffer.wrap(content, i, Math.min(chunkSize, content.length - i)));
+    }
+    return AsyncContentUtil.fromPublisher(Flowable.fromIterable(chunks), Optional.empty(),
+        Optional.empty());
+  }
+
+  private static String decode(String raw, int chunkSize) {
+    return new String(AsyncContentUtil.readAllBytes(new ChunkedDecodingAsyncContentProvider(
+        ChunkedTransferCodingTest.chunked(raw.getBytes(StandardCharsets.UTF_8), chunkSize)))
+        .blockingGet(), StandardCharsets.UTF_8);
+  }
+
+  private static String encode(AsyncContentProvider provider) {
+    return new String(AsyncContentUtil.readAllBytes(provider).blockingGet(),
+        StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testDecodeLenientAndExtensions() {
+    String raw = "4;name=\"value\"\r\nWiki\r\n"
+        + "5 ; ext\r\npedia\r\n"
+        + "E\r\n in\r\n\r\nchunks.\r\n"
+        + "0\r\n"
+        + "Expires: never\r\n"
+        + "X-Digest :  abc\r\n"
+        + "\r\n";
+    String expected = "Wikipedia in\r\n\r\nchunks.";
+
+    for (int chunkSize = 1; chunkSize <= raw.length(); chunkSize++) {
+      Assert.assertEquals(expected, ChunkedTransferCodingTest.decode(raw, chunkSize));
+    }
+    Assert.assertEquals("ab", ChunkedTransferCodingTest.decode("2\nab\n0\n\n", 1));
+
+    ChunkedDecodingAsyncContentProvider decoding = new ChunkedDecodingAsyncContentProvider(
+        ChunkedTransferCodingTest.chunked(raw.getBytes(StandardCharsets.UTF_8), 3));
+    Assert.assertEquals(Collections.emptyMap(), decoding.getTrailers());
+    Assert.assertFalse(decoding.isComplete());
+    AsyncContentUtil.readAllBytes(decoding).blockingGet();
+    Assert.assertTrue(decoding.isComplete());
+    Assert.assertEquals("never", decoding.getTrailers().get("expires"));
+    Assert.assertEquals("abc", decoding.getTrailers().get("X-DIGEST"));
+  }
+
+  @Test
+  public void testDecodeMalformed() {
+    Map<String, Class<? extends Throwable>> malformed = new LinkedHashMap<>();
+    malformed.put("3\r\nabcd\r\n0\r\n\r\n", ProtocolException.class);
+    malformed.put("x\r\nabc\r\n0\r\n\r\n", ProtocolException.class);
+    malformed.put("\r\nabc\r\n0\r\n\r\n", ProtocolException.class);
+    malformed.put("3\rabc\r\n0\r\n\r\n", ProtocolException.class);
+    malformed.put("10000000000000000\r\n", ProtocolException.class);
+    malformed.put("3;" + String.join("", Collections.nCopies(100, "x")) + "\r\n",
+        ProtocolException.class);
+    malformed.put("0\r\ninvalid trailer\r\n\r\n", ProtocolException.class);
+    malformed.put("3\r\nab", EOFException.class);
+    malformed.put("3\r\nabc\r\n0\r\n", EOFException.class);
+    malformed.put("", EOFException.class);
+
+    final int maxLineLength = 64;
+    for (Map.Entry<String, Class<? extends Throwable>> entry : malformed.entrySet()) {
+      AsyncContentProvider body = ChunkedTransferCodingTest.chunked(
+          entry.getKey().getBytes(StandardCharsets.UTF_8), 1);
+      Throwable failure = AsyncContentUtil.readAllBytes(
+          new ChunkedDecodingAsyncContentProvider(body, maxLineLength))
+          .ignoreElement().blockingGet();
+      Assert.assertNotNull(entry.getKey(), failure);
+      Assert.assertEquals(entry.getKey(), entry.getValue(), failure.getClass());
+    }
+  }
+
+  @Test
+  public void testDecodeStopsAtEndOfBody() {
+    ByteBuffer raw = ByteBuffer.wrap("3\r\nabc\r\n0\r\n\r\nHTTP/1.1 200 OK\r\n"
+        .getBytes(StandardCharsets.UTF_8));
+    ChunkedDecodingAsyncContentProvider decoding = new ChunkedDecodingAsyncContentProvider(
+        AsyncContentUtil.fromPublisher(Flowable.just(raw), Optional.empty(), Optional.empty()));
+
+    Assert.assertArrayEquals("abc".getBytes(StandardCharsets.UTF_8),
+        AsyncContentUtil.readAllBytes(decoding).blockingGet());
+    Assert.assertEquals("3\r\nabc\r\n0\r\n\r\n".length(), raw.position());
+  }
+
+  @Test
+  public void testEncode() {
+    Assert.assertEquals("0\r\n\r\n", ChunkedTransferCodingTest.encode(
+        new ChunkedEncodingAsyncContentProvider(
+            new ByteArrayAsyncContentProvider(new byte[0], Optional.empty()))));
+
+    byte[] content = new byte[300];
+    Arrays.fill(content, (byte) 'a');
+    String a44 = String.join("", Collections.nCopies(0x2c, "a"));
+    String a256 = String.join("", Collections.nCopies(0x100, "a"));
+    Map<String, String> trailers = new LinkedHashMap<>();
+    trailers.put("Expires", "never");
+    trailers.put("X-Count", "2");
+
+    Assert.assertEquals("100\r\n" + a256 + "\r\n2c\r\n" + a44 + "\r\n0\r\n"
+        + "Expires: never\r\nX-Count: 2\r\n\r\n",
+        ChunkedTransferCodingTest.encode(new ChunkedEncodingAsyncContentProvider(
+            ChunkedTransferCodingTest.chunked(content, 0x100), () -> trailers)));
+  }
+
+  @Test
+  public void testEncodeWithoutCopying() {
+    byte[] content = "hello".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer[] received = new ByteBuffer[1];
+    List<Integer> batchSizes = new ArrayList<>();
+
+    ChunkedEncodingAsyncContentProvider encoding = new ChunkedEncodingAsyncContentProvider(
+        new ByteArrayAsyncContentProvider(content, Optional.empty()));
+    encoding.onContent((GatheringAsyncContentListener) (chunks, callback) -> {
+      batchSizes.add(chunks.length);
+      if (chunks.length > 1) {
+        received[0] = chunks[1];
+      }
+      callback.processed();
+    });
+
+    Assert.assertEquals(Arrays.asList(2, 1), batchSizes);
+    Assert.assertTrue(received[0].hasArray());
+    Assert.assertSame(content, received[0].array());
+    Assert.assertFalse(encoding.getFailure().isPresent());
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Random random = new Random();
+    byte[] content = new byte[100_000];
+    random.nextBytes(content);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      for (int chunkSize : new int[] { 1, 7, 1000, 65536, content.length }) {
+        AsyncContentProvider encoded = new ChunkedEncodingAsyncContentProvider(
+            ChunkedTransferCodingTest.chunked(content, chunkSize));
+        byte[] raw = AsyncContentUtil.readAllBytes(encoded).blockingGet();
+
+        for (int rawChunkSize : new int[] { 1, 13, 4096, raw.length }) {
+          Assert.assertArrayEquals(content, AsyncContentUtil.readAllBytes(
+              new ChunkedDecodingAsyncContentProvider(
+                  ChunkedTransferCodingTest.chunked(raw, rawChunkSize)))
+              .blockingGet());
+
+          // The slices of one raw chunk are processed concurrently with the parsing
+          final int prefetch = 4;
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          CompletableFuture<byte[]> result = new CompletableFuture<>();
+          new ChunkedDecodingAsyncContentProvider(
+              ChunkedTransferCodingTest.chunked(raw, rawChunkSize))
+                  .onSuccess(() -> executor.execute(() -> result.complete(out.toByteArray())))
+                  .onError(result::completeExceptionally)
+                  .onContent((chunk, callback) -> executor.execute(() -> {
+                    Assert.assertTrue(chunk.isReadOnly());
+                    byte[] bytes = new byte[chunk.remaining()];
+                    chunk.get(bytes);
+                    out.write(bytes, 0, bytes.length);
+                    callback.processed();
+                  }), prefetch);
+          Assert.assertArrayEquals(content, result.get(1, TimeUnit.MINUTES));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
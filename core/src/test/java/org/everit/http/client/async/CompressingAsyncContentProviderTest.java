@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.everit.http.client.HttpMethod;
+import org.everit.http.client.HttpRequest;
+import org.everit.http.client.HttpUtil;
+import org.everit.http.client.MultiPartAsyncContentProvider;
+import org.everit.http.client.Part;
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.reactivex.Flowable;
+
+public class CompressingAsyncContentProviderTest {
+
+  private static final int CONTENT_LENGTH = 100_000;
+
+  private static final int INPUT_CHUNK_SIZE = 1000;
+
+  /**
+   * Output chunks that are smaller than the gzip header and trailer.
+   */
+  private static final int SMALL_CHUNK_SIZE = 3;
+
+  private static byte[] compress(AsyncContentProvider provider, ContentCoding contentCoding,
+      int level, int chunkSize) {
+
+    try (CompressingAsyncContentProvider compressing = new CompressingAsyncContentProvider(
+        provider, contentCoding, level, chunkSize, ByteBufferPool.getDefault())) {
+
+      return AsyncContentUtil.readAllBytes(compressing).blockingGet();
+    }
+  }
+
+  private static byte[] createContent() {
+    Random random = new Random();
+    byte[] words = "id,name,value\n12,lorem,3.5\n".getBytes(StandardCharsets.US_ASCII);
+    byte[] content = new byte[CompressingAsyncContentProviderTest.CONTENT_LENGTH];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = words[random.nextInt(words.length)];
+    }
+    return content;
+  }
+
+  private static AsyncContentProvider createProvider(byte[] content) {
+    return new InputStreamAsyncContentProvider(new ByteArrayInputStream(content),
+        Optional.of((long) content.length), Optional.empty(),
+        CompressingAsyncContentProviderTest.INPUT_CHUNK_SIZE);
+  }
+
+  private static byte[] decompress(byte[] compressed, ContentCoding contentCoding)
+      throws IOException {
+
+    InputStream in = new ByteArrayInputStream(compressed);
+    try (InputStream decompressing = contentCoding == ContentCoding.GZIP
+        ? new GZIPInputStream(in)
+        : new InflaterInputStream(in)) {
+      return IOUtils.toByteArray(decompressing);
+    }
+  }
+
+  @Test
+  public void testCompressBodyOfRequest() throws IOException {
+    MultiPartAsyncContentProvider multipart = MultiPartAsyncContentProvider.create(
+        Optional.of("boundary"),
+        new Part("a", Optional.empty(), Optional.empty(),
+            new ByteArrayAsyncContentProvider("1".getBytes(StandardCharsets.UTF_8),
+                Optional.empty()),
+            Collections.emptyMap()));
+
+    HttpRequest request = HttpRequest.builder()
+        .method(HttpMethod.POST)
+        .url("http://localhost")
+        .headers(Collections.singletonMap("content-length", "100"))
+        .body(Optional.of(multipart))
+        .build();
+
+    HttpRequest compressedRequest = HttpUtil.compressBody(request, ContentCoding.GZIP);
+    Map<String, String> headers = compressedRequest.getHeaders();
+    Assert.assertEquals(Collections.singletonMap("Content-Encoding", "gzip"), headers);
+
+    AsyncContentProvider body = compressedRequest.getBody().get();
+    Assert.assertFalse(body.getContentLength().isPresent());
+    Assert.assertEquals(multipart.getContentType(), body.getContentType());
+
+    byte[] compressed = AsyncContentUtil.readAllBytes(body).blockingGet();
+    String decompressed = new String(
+        CompressingAsyncContentProviderTest.decompress(compressed, ContentCoding.GZIP),
+        StandardCharsets.UTF_8);
+    Assert.assertTrue(decompressed.startsWith("--boundary\r\n"));
+    Assert.assertTrue(decompressed.endsWith("\r\n1\r\n--boundary--\r\n"));
+  }
+
+  @Test
+  public void testDeflateLevels() throws IOException {
+    byte[] content = CompressingAsyncContentProviderTest.createContent();
+    for (int level = Deflater.NO_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level++) {
+      byte[] compressed = CompressingAsyncContentProviderTest.compress(
+          CompressingAsyncContentProviderTest.createProvider(content), ContentCoding.DEFLATE,
+          level, CompressingAsyncContentProviderTest.INPUT_CHUNK_SIZE);
+
+      Assert.assertArrayEquals(content,
+          CompressingAsyncContentProviderTest.decompress(compressed, ContentCoding.DEFLATE));
+    }
+  }
+
+  @Test
+  public void testDirectInputChunks() throws IOException {
+    byte[] content = CompressingAsyncContentProviderTest.createContent();
+    final int chunkCount = 10;
+    int chunkLength = content.length / chunkCount;
+    Flowable<ByteBuffer> chunks = Flowable.range(0, chunkCount).map((i) -> {
+      ByteBuffer chunk = ByteBuffer.allocateDirect(chunkLength);
+      chunk.put(content, i * chunkLength, chunkLength).flip();
+      return chunk;
+    });
+
+    final int smallStagingChunkSize = 100;
+    byte[] compressed = CompressingAsyncContentProviderTest.compress(
+        AsyncContentUtil.fromPublisher(chunks, Optional.empty(), Optional.empty()),
+        ContentCoding.GZIP, Deflater.DEFAULT_COMPRESSION, smallStagingChunkSize);
+
+    Assert.assertArrayEquals(content,
+        CompressingAsyncContentProviderTest.decompress(compressed, ContentCoding.GZIP));
+  }
+
+  @Test
+  public void testEmptyContent() throws IOException {
+    for (ContentCoding contentCoding : ContentCoding.values()) {
+      byte[] compressed = CompressingAsyncContentProviderTest.compress(
+          new ByteArrayAsyncContentProvider(new byte[0], Optional.empty()), contentCoding,
+          Deflater.DEFAULT_COMPRESSION, CompressingAsyncContentProviderTest.SMALL_CHUNK_SIZE);
+
+      Assert.assertArrayEquals(new byte[0],
+          CompressingAsyncContentProviderTest.decompress(compressed, contentCoding));
+    }
+  }
+
+  @Test
+  public void testGzipSmallOutputChunks() throws IOException {
+    byte[] content = CompressingAsyncContentProviderTest.createContent();
+    byte[] compressed = CompressingAsyncContentProviderTest.compress(
+        CompressingAsyncContentProviderTest.createProvider(content), ContentCoding.GZIP,
+        Deflater.BEST_SPEED, CompressingAsyncContentProviderTest.SMALL_CHUNK_SIZE);
+
+    Assert.assertArrayEquals(content,
+        CompressingAsyncContentProviderTest.decompress(compressed, ContentCoding.GZIP));
+  }
+
+  @Test
+  public void testRoundTripWithDecompressingProvider() {
+    byte[] content = CompressingAsyncContentProviderTest.createContent();
+    for (ContentCoding contentCoding : ContentCoding.values()) {
+      AsyncContentProvider roundTrip = new DecompressingAsyncContentProvider(
+          new CompressingAsyncContentProvider(
+              CompressingAsyncContentProviderTest.createProvider(content), contentCoding),
+          contentCoding);
+
+      Assert.assertArrayEquals(content, AsyncContentUtil.readAllBytes(roundTrip).blockingGet());
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.everit.http.client.MediaType;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Concatenates providers that pass their chunks from random threads and processes the chunks from
+ * random threads to check that the handover of the chunks works without locking.
+ */
+public class ConcatenatedAsyncContentProviderConcurrencyTest {
+
+  /**
+   * Provides the chunks of a byte array either synchronously or from a thread of an executor. The
+   * released chunks are overwritten, so a chunk that is used after it is processed is detected.
+   */
+  private static final class RandomThreadAsyncContentProvider
+      extends AbstractAsyncContentProvider {
+
+    private final int chunkSize;
+
+    private final byte[] content;
+
+    private int position = 0;
+
+    RandomThreadAsyncContentProvider(byte[] content, int chunkSize) {
+      this.content = content;
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected void doClose() {
+      // Nothing to close
+    }
+
+    @Override
+    public Optional<Long> getContentLength() {
+      return Optional.of((long) this.content.length);
+    }
+
+    @Override
+    public Optional<MediaType> getContentType() {
+      return Optional.empty();
+    }
+
+    @Override
+    protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+      if (this.position == this.content.length) {
+        handleSuccess();
+        return;
+      }
+
+      int size = Math.min(this.chunkSize, this.content.length - this.position);
+      ByteBuffer chunk =
+          ByteBuffer.wrap(Arrays.copyOfRange(this.content, this.position, this.position + size));
+      this.position += size;
+
+      ConcatenatedAsyncContentProviderConcurrencyTest
+          .runOnRandomThread(() -> callback.accept(chunk));
+    }
+
+    @Override
+    protected void releaseChunk(ByteBuffer chunk) {
+      Arrays.fill(chunk.array(), ConcatenatedAsyncContentProviderConcurrencyTest.POISON);
+    }
+  }
+
+  private static final int ITERATION_COUNT = 500;
+
+  private static final int MAX_CHUNK_SIZE = 16;
+
+  private static final int MAX_PREFETCH = 8;
+
+  private static final int MAX_PROVIDER_COUNT = 50;
+
+  private static final int MAX_PROVIDER_LENGTH = 200;
+
+  private static final byte POISON = -1;
+
+  private static final int THREAD_COUNT = 4;
+
+  private static ExecutorService executor;
+
+  @AfterClass
+  public static void afterClass() throws InterruptedException {
+    ConcatenatedAsyncContentProviderConcurrencyTest.executor.shutdown();
+    ConcatenatedAsyncContentProviderConcurrencyTest.executor.awaitTermination(1,
+        TimeUnit.MINUTES);
+  }
+
+  @BeforeClass
+  public static void beforeClass() {
+    ConcatenatedAsyncContentProviderConcurrencyTest.executor = Executors.newFixedThreadPool(
+        ConcatenatedAsyncContentProviderConcurrencyTest.THREAD_COUNT);
+  }
+
+  private static void runOnRandomThread(Runnable action) {
+    if (ThreadLocalRandom.current().nextBoolean()) {
+      action.run();
+    } else {
+      ConcatenatedAsyncContentProviderConcurrencyTest.executor.execute(action);
+    }
+  }
+
+  private void runIteration(Random random) throws Exception {
+    int providerCount =
+        random.nextInt(ConcatenatedAsyncContentProviderConcurrencyTest.MAX_PROVIDER_COUNT) + 1;
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    AsyncContentProvider[] providers = new AsyncContentProvider[providerCount];
+    for (int i = 0; i < providerCount; i++) {
+      byte[] content = new byte[random
+          .nextInt(ConcatenatedAsyncContentProviderConcurrencyTest.MAX_PROVIDER_LENGTH)];
+      for (int j = 0; j < content.length; j++) {
+        content[j] = (byte) random.nextInt(Byte.MAX_VALUE);
+      }
+      expected.write(content);
+      providers[i] = new RandomThreadAsyncContentProvider(content,
+          random.nextInt(ConcatenatedAsyncContentProviderConcurrencyTest.MAX_CHUNK_SIZE) + 1);
+    }
+
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    new ConcatenatedAsyncContentProvider(Optional.empty(), providers)
+        .onSuccess(() -> completion.complete(null))
+        .onError(completion::completeExceptionally)
+        .onContent((chunk, callback) -> {
+          byte[] bytes = new byte[chunk.remaining()];
+          chunk.duplicate().get(bytes);
+          synchronized (result) {
+            result.write(bytes, 0, bytes.length);
+          }
+
+          ConcatenatedAsyncContentProviderConcurrencyTest.runOnRandomThread(() -> {
+            byte[] bytesBeforeProcessed = new byte[chunk.remaining()];
+            chunk.duplicate().get(bytesBeforeProcessed);
+            if (Arrays.equals(bytes, bytesBeforeProcessed)) {
+              callback.processed();
+            } else {
+              callback.failed(new AssertionError("Chunk was released before it was processed"));
+            }
+          });
+        }, random.nextInt(ConcatenatedAsyncContentProviderConcurrencyTest.MAX_PREFETCH) + 1);
+
+    completion.get(1, TimeUnit.MINUTES);
+    synchronized (result) {
+      Assert.assertArrayEquals(expected.toByteArray(), result.toByteArray());
+    }
+  }
+
+  @Test
+  public void testRandomThreads() throws Exception {
+    long seed = System.nanoTime();
+    Random random = new Random(seed);
+    for (int i = 0; i < ConcatenatedAsyncContentProviderConcurrencyTest.ITERATION_COUNT; i++) {
+      try {
+        runIteration(random);
+      } catch (Exception | AssertionError e) {
+        throw new AssertionError("Iteration " + i + " failed with seed " + seed, e);
+      }
+    }
+  }
+}
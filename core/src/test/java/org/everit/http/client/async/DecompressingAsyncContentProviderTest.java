@@ -0,0 +1,207 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.everit.http.client.HttpResponse;
+import org.everit.http.client.HttpUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DecompressingAsyncContentProviderTest {
+
+  private static final int CHUNK_SIZE = 1000;
+
+  private static final int CONTENT_LENGTH = 100_000;
+
+  private static byte[] createContent() {
+    Random random = new Random();
+    byte[] words = "lorem ipsum dolor sit amet ".getBytes(StandardCharsets.US_ASCII);
+    byte[] content = new byte[DecompressingAsyncContentProviderTest.CONTENT_LENGTH];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = words[random.nextInt(words.length)];
+    }
+    return content;
+  }
+
+  private static byte[] decompress(byte[] compressed, ContentCoding contentCoding,
+      int inputChunkSize) {
+
+    AsyncContentProvider provider = new InputStreamAsyncContentProvider(
+        new ByteArrayInputStream(compressed), Optional.empty(), Optional.empty(), inputChunkSize);
+
+    try (DecompressingAsyncContentProvider decompressing = new DecompressingAsyncContentProvider(
+        provider, contentCoding, DecompressingAsyncContentProviderTest.CHUNK_SIZE,
+        ByteBufferPool.getDefault())) {
+
+      return AsyncContentUtil.readAllBytes(decompressing).blockingGet();
+    }
+  }
+
+  private static Throwable decompressionFailure(byte[] compressed) {
+    try {
+      DecompressingAsyncContentProviderTest.decompress(compressed, ContentCoding.GZIP, 1);
+      Assert.fail("Decompression should have failed");
+      return null;
+    } catch (RuntimeException e) {
+      return e.getCause();
+    }
+  }
+
+  private static byte[] deflate(byte[] content, boolean nowrap) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DeflaterOutputStream deflaterOut =
+        new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap))) {
+      deflaterOut.write(content);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] gzip(byte[] content) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+      gzipOut.write(content);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testDecodeBodyOfResponse() {
+    byte[] content = DecompressingAsyncContentProviderTest.createContent();
+    byte[] compressed = DecompressingAsyncContentProviderTest
+        .gzip(DecompressingAsyncContentProviderTest.deflate(content, false));
+
+    try (HttpResponse response = HttpResponse.builder()
+        .status(HttpURLConnection.HTTP_OK)
+        .headers(Collections.singletonMap("content-encoding", "deflate, gzip"))
+        .body(new ByteArrayAsyncContentProvider(compressed, Optional.empty()))
+        .build()) {
+
+      Assert.assertArrayEquals(content,
+          AsyncContentUtil.readAllBytes(HttpUtil.decodeBody(response)).blockingGet());
+    }
+  }
+
+  @Test
+  public void testDeflateRaw() {
+    byte[] content = DecompressingAsyncContentProviderTest.createContent();
+    byte[] compressed = DecompressingAsyncContentProviderTest.deflate(content, true);
+
+    Assert.assertArrayEquals(content,
+        DecompressingAsyncContentProviderTest.decompress(compressed, ContentCoding.DEFLATE, 1));
+  }
+
+  @Test
+  public void testDeflateZlib() {
+    byte[] content = DecompressingAsyncContentProviderTest.createContent();
+    byte[] compressed = DecompressingAsyncContentProviderTest.deflate(content, false);
+
+    final int inputChunkSize = 7;
+    Assert.assertArrayEquals(content, DecompressingAsyncContentProviderTest.decompress(compressed,
+        ContentCoding.DEFLATE, inputChunkSize));
+  }
+
+  @Test
+  public void testEmptyInput() {
+    Assert.assertArrayEquals(new byte[0],
+        DecompressingAsyncContentProviderTest.decompress(new byte[0], ContentCoding.GZIP, 1));
+  }
+
+  @Test
+  public void testGzipCorruptTrailer() {
+    byte[] compressed =
+        DecompressingAsyncContentProviderTest.gzip(DecompressingAsyncContentProviderTest
+            .createContent());
+    final int crcOffsetFromEnd = 8;
+    compressed[compressed.length - crcOffsetFromEnd]++;
+
+    Throwable failure = DecompressingAsyncContentProviderTest.decompressionFailure(compressed);
+    Assert.assertTrue(failure instanceof ZipException);
+  }
+
+  @Test
+  public void testGzipHeaderFieldsAndMultipleMembers() {
+    byte[] first = "first member ".getBytes(StandardCharsets.US_ASCII);
+    byte[] second = "second member".getBytes(StandardCharsets.US_ASCII);
+    byte[] firstCompressed = DecompressingAsyncContentProviderTest.gzip(first);
+
+    // Set FHCRC, FEXTRA, FNAME and FCOMMENT and insert the fields after the fixed header
+    final int fixedHeaderLength = 10;
+    final int flagsOffset = 3;
+    final int allFlags = 2 | 4 | 8 | 16;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(firstCompressed, 0, fixedHeaderLength);
+    byte[] extra = { 2, 0, 'a', 'b' };
+    out.write(extra, 0, extra.length);
+    byte[] nameAndComment = "name.txt\0comment\0".getBytes(StandardCharsets.US_ASCII);
+    out.write(nameAndComment, 0, nameAndComment.length);
+    out.write(0);
+    out.write(0);
+    out.write(firstCompressed, fixedHeaderLength, firstCompressed.length - fixedHeaderLength);
+    byte[] secondCompressed = DecompressingAsyncContentProviderTest.gzip(second);
+    out.write(secondCompressed, 0, secondCompressed.length);
+
+    byte[] compressed = out.toByteArray();
+    compressed[flagsOffset] = allFlags;
+
+    final int smallInputChunkSize = 3;
+    for (int inputChunkSize : new int[] { 1, smallInputChunkSize, compressed.length }) {
+      byte[] result = DecompressingAsyncContentProviderTest.decompress(compressed,
+          ContentCoding.GZIP, inputChunkSize);
+      Assert.assertEquals("first member second member",
+          new String(result, StandardCharsets.US_ASCII));
+    }
+  }
+
+  @Test
+  public void testGzipOneByteChunks() {
+    byte[] content = DecompressingAsyncContentProviderTest.createContent();
+    byte[] compressed = DecompressingAsyncContentProviderTest.gzip(content);
+
+    Assert.assertArrayEquals(content,
+        DecompressingAsyncContentProviderTest.decompress(compressed, ContentCoding.GZIP, 1));
+  }
+
+  @Test
+  public void testGzipTruncated() {
+    byte[] compressed =
+        DecompressingAsyncContentProviderTest.gzip(DecompressingAsyncContentProviderTest
+            .createContent());
+    byte[] truncated = new byte[compressed.length / 2];
+    System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+
+    Throwable failure = DecompressingAsyncContentProviderTest.decompressionFailure(truncated);
+    Assert.assertTrue(failure instanceof EOFException);
+  }
+}
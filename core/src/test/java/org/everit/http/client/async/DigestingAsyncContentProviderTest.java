@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.reactivex.Flowable;
+
+public class DigestingAsyncContentProviderTest {
+
+  private static final int CHUNK_SIZE = 1000;
+
+  private static final int CONTENT_LENGTH = 10_000;
+
+  private static AsyncContentProvider chunked(byte[] content, boolean direct) {
+    List<ByteBuffer> chunks = new ArrayList<>();
+    for (int i = 0; i < content.length; i += DigestingAsyncContentProviderTest.CHUNK_SIZE) {
+      int length = Math.min(DigestingAsyncContentProviderTest.CHUNK_SIZE, content.length - i);
+      ByteBuffer chunk = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+      chunk.put(content, i, length).flip();
+      chunks.add(chunk);
+    }
+    return AsyncContentUtil.fromPublisher(Flowable.fromIterable(chunks), Optional.empty(),
+        Optional.empty());
+  }
+
+  private static byte[] createContent() {
+    byte[] content = new byte[DigestingAsyncContentProviderTest.CONTENT_LENGTH];
+    new Random().nextBytes(content);
+    return content;
+  }
+
+  private static byte[] crc32(byte[] content) {
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    return ByteBuffer.allocate(Integer.BYTES).putInt((int) crc.getValue()).array();
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Test
+  public void testBatchesAreKept() {
+    byte[] abc = "abc".getBytes(StandardCharsets.UTF_8);
+    byte[] def = "def".getBytes(StandardCharsets.UTF_8);
+    DigestingAsyncContentProvider digesting = new DigestingAsyncContentProvider(
+        new ConcatenatedAsyncContentProvider(Optional.empty(),
+            new ByteArrayAsyncContentProvider(abc, Optional.empty()),
+            new ByteArrayAsyncContentProvider(def, Optional.empty())),
+        DigestingAsyncContentProviderTest.sha256());
+
+    List<Integer> batchSizes = new ArrayList<>();
+    boolean[] succeeded = new boolean[1];
+    digesting.onSuccess(() -> succeeded[0] = true)
+        .onContent((GatheringAsyncContentListener) (chunks, callback) -> {
+          batchSizes.add(chunks.length);
+          callback.processed();
+        });
+
+    Assert.assertTrue(succeeded[0]);
+    Assert.assertEquals(1, batchSizes.size());
+    Assert.assertEquals(2, batchSizes.get(0).intValue());
+    Assert.assertArrayEquals(
+        DigestingAsyncContentProviderTest.sha256().digest(
+            "abcdef".getBytes(StandardCharsets.UTF_8)),
+        digesting.getDigest().get());
+  }
+
+  @Test
+  public void testChecksum() {
+    byte[] content = DigestingAsyncContentProviderTest.createContent();
+    byte[] expected = DigestingAsyncContentProviderTest.crc32(content);
+
+    for (boolean direct : new boolean[] { false, true }) {
+      DigestingAsyncContentProvider crc = new DigestingAsyncContentProvider(
+          DigestingAsyncContentProviderTest.chunked(content, direct), new CRC32(),
+          Optional.of(expected));
+      Assert.assertArrayEquals(content, AsyncContentUtil.readAllBytes(crc).blockingGet());
+      Assert.assertArrayEquals(expected, crc.getDigest().get());
+
+      // A checksum that cannot read buffers
+      CRC32 wrappedCrc = new CRC32();
+      Checksum checksum = new Checksum() {
+
+        @Override
+        public long getValue() {
+          return wrappedCrc.getValue();
+        }
+
+        @Override
+        public void reset() {
+          wrappedCrc.reset();
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+          wrappedCrc.update(b, off, len);
+        }
+
+        @Override
+        public void update(int b) {
+          wrappedCrc.update(b);
+        }
+      };
+      DigestingAsyncContentProvider generic = new DigestingAsyncContentProvider(
+          DigestingAsyncContentProviderTest.chunked(content, direct), checksum);
+      Assert.assertArrayEquals(content, AsyncContentUtil.readAllBytes(generic).blockingGet());
+      Assert.assertArrayEquals(expected, generic.getDigest().get());
+    }
+  }
+
+  @Test
+  public void testMessageDigest() {
+    byte[] content = DigestingAsyncContentProviderTest.createContent();
+    byte[] expected = DigestingAsyncContentProviderTest.sha256().digest(content);
+
+    for (boolean direct : new boolean[] { false, true }) {
+      DigestingAsyncContentProvider digesting = new DigestingAsyncContentProvider(
+          DigestingAsyncContentProviderTest.chunked(content, direct),
+          DigestingAsyncContentProviderTest.sha256());
+      Assert.assertFalse(digesting.getDigest().isPresent());
+      Assert.assertArrayEquals(content, AsyncContentUtil.readAllBytes(digesting).blockingGet());
+      Assert.assertArrayEquals(expected, digesting.getDigest().get());
+    }
+  }
+
+  @Test
+  public void testMismatchFailsBeforeSuccess() {
+    byte[] content = DigestingAsyncContentProviderTest.createContent();
+    byte[] expected = DigestingAsyncContentProviderTest.sha256().digest(content);
+    expected[0]++;
+
+    DigestingAsyncContentProvider digesting = new DigestingAsyncContentProvider(
+        DigestingAsyncContentProviderTest.chunked(content, false),
+        DigestingAsyncContentProviderTest.sha256(), Optional.of(expected));
+    Throwable failure = AsyncContentUtil.readAllBytes(digesting).ignoreElement().blockingGet();
+
+    Assert.assertTrue(failure instanceof DigestMismatchException);
+    Assert.assertArrayEquals(expected, ((DigestMismatchException) failure).getExpected());
+    Assert.assertArrayEquals(digesting.getDigest().get(),
+        ((DigestMismatchException) failure).getActual());
+    Assert.assertSame(failure, digesting.getFailure().get());
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.tck.SubscriberBlackboxVerification;
+import org.reactivestreams.tck.TestEnvironment;
+
+/**
+ * Runs the Reactive Streams TCK against the subscriber of {@link PublisherAsyncContentProvider}.
+ */
+public class PublisherAsyncContentProviderTckTest
+    extends SubscriberBlackboxVerification<ByteBuffer> {
+
+  public PublisherAsyncContentProviderTckTest() {
+    super(new TestEnvironment());
+  }
+
+  @Override
+  public ByteBuffer createElement(int element) {
+    return ByteBuffer.wrap(new byte[] { (byte) element });
+  }
+
+  @Override
+  public Subscriber<ByteBuffer> createSubscriber() {
+    AtomicReference<Subscriber<? super ByteBuffer>> subscriber = new AtomicReference<>();
+    new PublisherAsyncContentProvider(subscriber::set, Optional.empty(), Optional.empty())
+        .onContent((chunk, callback) -> callback.processed());
+
+    // The TCK subscribes the captured subscriber to its own publisher
+    @SuppressWarnings("unchecked")
+    Subscriber<ByteBuffer> result = (Subscriber<ByteBuffer>) subscriber.get();
+    return result;
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.async;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SizeClassByteBufferPoolTest {
+
+  private static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+  private static final int MIN_BUFFER_SIZE = 512;
+
+  private static SizeClassByteBufferPool createPool() {
+    final int maxPooledBytes = 1024 * 1024;
+    final int threadLocalCacheSize = 4;
+    return new SizeClassByteBufferPool(SizeClassByteBufferPoolTest.MIN_BUFFER_SIZE,
+        SizeClassByteBufferPoolTest.MAX_BUFFER_SIZE, maxPooledBytes, threadLocalCacheSize);
+  }
+
+  @Test
+  public void testAcquireRoundsUpToSizeClass() {
+    SizeClassByteBufferPool pool = SizeClassByteBufferPoolTest.createPool();
+
+    final int size = 1000;
+    ByteBuffer heap = pool.acquire(size, false);
+    Assert.assertFalse(heap.isDirect());
+    Assert.assertEquals(0, heap.position());
+    Assert.assertEquals(size, heap.limit());
+    Assert.assertEquals(Integer.highestOneBit(size) * 2, heap.capacity());
+
+    ByteBuffer direct = pool.acquire(1, true);
+    Assert.assertTrue(direct.isDirect());
+    Assert.assertEquals(1, direct.limit());
+    Assert.assertEquals(SizeClassByteBufferPoolTest.MIN_BUFFER_SIZE, direct.capacity());
+  }
+
+  @Test
+  public void testBuffersOfSlabDoNotOverlap() {
+    SizeClassByteBufferPool pool = SizeClassByteBufferPoolTest.createPool();
+
+    final int bufferCount = 256;
+    List<ByteBuffer> buffers = new ArrayList<>();
+    for (int i = 0; i < bufferCount; i++) {
+      ByteBuffer buffer = pool.acquire(SizeClassByteBufferPoolTest.MIN_BUFFER_SIZE, true);
+      while (buffer.hasRemaining()) {
+        buffer.put((byte) i);
+      }
+      buffers.add(buffer);
+    }
+
+    for (int i = 0; i < bufferCount; i++) {
+      ByteBuffer buffer = buffers.get(i);
+      for (int j = 0; j < buffer.capacity(); j++) {
+        Assert.assertEquals((byte) i, buffer.get(j));
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentAcquireAndRelease() throws Exception {
+    SizeClassByteBufferPool pool = SizeClassByteBufferPoolTest.createPool();
+    final int threadCount = 4;
+    final int iterationCount = 10000;
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threadCount; t++) {
+        byte marker = (byte) t;
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < iterationCount; i++) {
+            ByteBuffer buffer = pool.acquire(SizeClassByteBufferPoolTest.MIN_BUFFER_SIZE,
+                i % 2 == 0);
+            while (buffer.hasRemaining()) {
+              buffer.put(marker);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+              Assert.assertEquals(marker, buffer.get());
+            }
+            pool.release(buffer);
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  @Test
+  public void testBufferReleasedTwiceIsPooledOnce() {
+    SizeClassByteBufferPool pool = SizeClassByteBufferPoolTest.createPool();
+
+    final int size = 4096;
+    ByteBuffer buffer = pool.acquire(size, false);
+    pool.release(buffer);
+    pool.release(buffer);
+
+    Assert.assertSame(buffer, pool.acquire(size, false));
+    Assert.assertNotSame(buffer, pool.acquire(size, false));
+  }
+
+  @Test
+  public void testForeignBufferIsNotPooled() {
+    SizeClassByteBufferPool pool = SizeClassByteBufferPoolTest.createPool();
+
+    final int size = 4096;
+    byte[] array = new byte[size];
+    pool.release(ByteBuffer.wrap(array));
+    ByteBuffer direct = ByteBuffer.allocateDirect(size);
+    pool.release(direct);
+    ByteBuffer leasedFromOtherPool = new SizeClassByteBufferPool().acquire(size, false);
+    pool.release(leasedFromOtherPool);
+
+    ByteBuffer heap = pool.acquire(size, false);
+    Assert.assertNotSame(array, heap.array());
+    Assert.assertNotSame(leasedFromOtherPool, heap);
+    while (heap.hasRemaining()) {
+      heap.put((byte) 1);
+    }
+    Assert.assertArrayEquals(new byte[size], array);
+
+    Assert.assertNotSame(direct, pool.acquire(size, true));
+  }
+
+  @Test
+  public void testOversizedBufferIsNotPooled() {
+    SizeClassByteBufferPool pool = SizeClassByteBufferPoolTest.createPool();
+
+    int size = SizeClassByteBufferPoolTest.MAX_BUFFER_SIZE * 2;
+    ByteBuffer buffer = pool.acquire(size, false);
+    Assert.assertEquals(size, buffer.capacity());
+    pool.release(buffer);
+    Assert.assertNotSame(buffer, pool.acquire(size, false));
+  }
+
+  @Test
+  public void testReleasedBufferIsReused() {
+    SizeClassByteBufferPool pool = SizeClassByteBufferPoolTest.createPool();
+
+    final int size = 4096;
+    ByteBuffer buffer = pool.acquire(size, true);
+    buffer.position(size / 2);
+    pool.release(buffer);
+
+    ByteBuffer reused = pool.acquire(size - 1, true);
+    Assert.assertSame(buffer, reused);
+    Assert.assertEquals(0, reused.position());
+    Assert.assertEquals(size - 1, reused.limit());
+
+    Assert.assertNotSame(buffer, pool.acquire(size, false));
+  }
+}
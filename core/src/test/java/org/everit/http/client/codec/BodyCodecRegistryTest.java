@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.AsyncContentUtil;
+import org.everit.http.client.async.ByteArrayAsyncContentProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.reactivex.Flowable;
+
+public class BodyCodecRegistryTest {
+
+  /**
+   * Codec that decodes bodies to their length and encodes nothing.
+   */
+  private static final class LengthBodyCodec implements BodyCodec<Integer> {
+
+    private final Set<String> mediaTypes;
+
+    LengthBodyCodec(String... mediaTypes) {
+      this.mediaTypes = new HashSet<>(Arrays.asList(mediaTypes));
+    }
+
+    @Override
+    public BodyDecoder<Integer> createDecoder(MediaType mediaType) {
+      return new BodyDecoder<Integer>() {
+
+        private int length = 0;
+
+        @Override
+        public void decode(ByteBuffer chunk) throws IOException {
+          if (chunk.get(chunk.position()) == '!') {
+            throw new IOException("Invalid chunk");
+          }
+          this.length += chunk.remaining();
+          chunk.position(chunk.limit());
+        }
+
+        @Override
+        public Integer finish() {
+          return this.length;
+        }
+      };
+    }
+
+    @Override
+    public AsyncContentProvider encode(Integer value, MediaType mediaType) {
+      return new ByteArrayAsyncContentProvider(new byte[value], Optional.of(mediaType));
+    }
+
+    @Override
+    public Set<String> getMediaTypes() {
+      return this.mediaTypes;
+    }
+
+    @Override
+    public Class<Integer> getValueType() {
+      return Integer.class;
+    }
+  }
+
+  private static AsyncContentProvider chunked(byte[] content, int chunkSize, String contentType) {
+    List<ByteBuffer> chunks = new ArrayList<>();
+    for (int i = 0; i < content.length; i += chunkSize) {
+      chunks.add(ByteBuffer.wrap(content, i, Math.min(chunkSize, content.length - i)));
+    }
+    return AsyncContentUtil.fromPublisher(Flowable.fromIterable(chunks),
+        Optional.of((long) content.length), Optional.of(MediaType.parse(contentType)));
+  }
+
+  @Test
+  public void testDecoderFailureClosesBody() {
+    BodyCodecRegistry registry =
+        new BodyCodecRegistry(Collections.singletonList(new LengthBodyCodec("text/plain")));
+    AsyncContentProvider body = BodyCodecRegistryTest.chunked(
+        "ab!cd".getBytes(StandardCharsets.UTF_8), 2, "text/plain");
+
+    try {
+      registry.decode(body, Integer.class).blockingGet();
+      Assert.fail("Decoding should have failed");
+    } catch (RuntimeException e) {
+      Assert.assertEquals("Invalid chunk", e.getCause().getMessage());
+    }
+    Assert.assertTrue(body.isClosed());
+  }
+
+  @Test
+  public void testDefaultCodecs() {
+    BodyCodecRegistry registry = BodyCodecRegistry.getDefault();
+    byte[] content = { 1, 2, 3 };
+
+    Assert.assertArrayEquals(content, registry.decode(BodyCodecRegistryTest.chunked(
+        content, 2, "application/octet-stream"), byte[].class).blockingGet());
+    Assert.assertEquals("abc", registry.decode(BodyCodecRegistryTest.chunked(
+        "abc".getBytes(StandardCharsets.UTF_8), 1, "text/plain"), Object.class).blockingGet());
+
+    AsyncContentProvider encoded = registry.encode("\u00e1rv\u00edzt\u0171r\u0151",
+        MediaType.parse("text/plain; charset=ISO-8859-2"));
+    Assert.assertEquals("text/plain; charset=ISO-8859-2",
+        encoded.getContentType().get().toString());
+    Assert.assertEquals("\u00e1rv\u00edzt\u0171r\u0151",
+        AsyncContentUtil.readString(encoded, Charset.forName("ISO-8859-2")).blockingGet());
+  }
+
+  @Test
+  public void testLookupOrder() {
+    LengthBodyCodec exact = new LengthBodyCodec("application/problem+json");
+    LengthBodyCodec suffix = new LengthBodyCodec("application/json");
+    LengthBodyCodec typeWildcard = new LengthBodyCodec("application/*");
+    LengthBodyCodec wildcard = new LengthBodyCodec("*/*");
+    BodyCodecRegistry registry =
+        new BodyCodecRegistry(Arrays.asList(wildcard, typeWildcard, suffix, exact));
+
+    Assert.assertSame(exact, registry.findCodec(
+        MediaType.parse("application/problem+json"), Integer.class).get());
+    Assert.assertSame(suffix, registry.findCodec(
+        MediaType.parse("application/vnd.example+json; charset=utf-8"), Number.class).get());
+    Assert.assertSame(typeWildcard, registry.findCodec(
+        MediaType.parse("application/xml"), Integer.class).get());
+    Assert.assertSame(wildcard, registry.findCodec(
+        MediaType.parse("image/png"), Object.class).get());
+    Assert.assertFalse(registry.findCodec(
+        MediaType.parse("application/json"), String.class).isPresent());
+  }
+
+  @Test
+  public void testMissingCodec() {
+    AsyncContentProvider body = new ByteArrayAsyncContentProvider(new byte[1], Optional.empty());
+
+    try {
+      BodyCodecRegistry.getDefault().decode(body, String.class).blockingGet();
+      Assert.fail("Decoding should have failed");
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(body.isClosed());
+    }
+
+    try {
+      BodyCodecRegistry.getDefault().encode(1, MediaType.parse("application/json"));
+      Assert.fail("Encoding should have failed");
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(e.getMessage().contains("java.lang.Integer"));
+    }
+  }
+
+  @Test
+  public void testTextSplitBetweenChunks() {
+    BodyCodecRegistry registry = BodyCodecRegistry.getDefault();
+    StringBuilder sb = new StringBuilder();
+    final int repeat = 2000;
+    for (int i = 0; i < repeat; i++) {
+      sb.append("\u00e1\u20ac\ud83d\ude00");
+    }
+    String text = sb.toString();
+    byte[] content = text.getBytes(StandardCharsets.UTF_8);
+
+    for (int chunkSize : new int[] { 1, 2, 3, 5, 4096, content.length }) {
+      Assert.assertEquals(text, registry.decode(BodyCodecRegistryTest.chunked(
+          content, chunkSize, "text/plain; charset=utf-8"), String.class).blockingGet());
+    }
+  }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.pool;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.everit.http.client.pool.ConnectionPool.Connector;
+import org.everit.http.client.pool.ConnectionPool.Lease;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.reactivex.Single;
+import io.reactivex.observers.TestObserver;
+
+public class ConnectionPoolTest {
+
+  private static final class TestConnection {
+
+    volatile boolean closed = false;
+
+    final String key;
+
+    volatile boolean usable = true;
+
+    TestConnection(String key) {
+      this.key = key;
+    }
+  }
+
+  private static final class TestConnector implements Connector<String, TestConnection> {
+
+    final Queue<TestConnection> closed = new ConcurrentLinkedQueue<>();
+
+    final AtomicInteger connectCount = new AtomicInteger();
+
+    volatile Throwable failure;
+
+    @Override
+    public void close(TestConnection connection) {
+      connection.closed = true;
+      this.closed.add(connection);
+    }
+
+    @Override
+    public Single<TestConnection> connect(String key) {
+      this.connectCount.incrementAndGet();
+      if (this.failure != null) {
+        return Single.error(this.failure);
+      }
+      return Single.just(new TestConnection(key));
+    }
+
+    @Override
+    public boolean isUsable(TestConnection connection) {
+      return connection.usable;
+    }
+  }
+
+  private static final long TIMEOUT_MILLIS = 50;
+
+  private static final long TIMER_TICK_MILLIS = 5;
+
+  private static final int WHEEL_SIZE = 64;
+
+  private static void awaitCondition(BooleanSupplier condition)
+      throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    while (!condition.getAsBoolean()) {
+      Assert.assertTrue("Condition was not met in time", System.nanoTime() < deadline);
+      Thread.sleep(ConnectionPoolTest.TIMER_TICK_MILLIS);
+    }
+  }
+
+  private TestConnector connector;
+
+  private TimerWheel timerWheel;
+
+  @After
+  public void after() {
+    this.timerWheel.close();
+  }
+
+  @Before
+  public void before() {
+    this.connector = new TestConnector();
+    this.timerWheel = new TimerWheel("test-timer", ConnectionPoolTest.TIMER_TICK_MILLIS,
+        TimeUnit.MILLISECONDS, ConnectionPoolTest.WHEEL_SIZE);
+  }
+
+  private ConnectionPool<String, TestConnection> createPool(int maxConnections,
+      int maxConnectionsPerHost) {
+    return createPool(maxConnections, maxConnectionsPerHost, 1);
+  }
+
+  private ConnectionPool<String, TestConnection> createPool(int maxConnections,
+      int maxConnectionsPerHost, int maxLeasesPerConnection) {
+    return ConnectionPool.builder()
+        .maxConnections(maxConnections)
+        .maxConnectionsPerHost(maxConnectionsPerHost)
+        .maxLeasesPerConnection(maxLeasesPerConnection)
+        .acquireTimeout(ConnectionPoolTest.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+        .idleTimeout(ConnectionPoolTest.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+        .timerWheel(this.timerWheel)
+        .build(this.connector);
+  }
+
+  @Test
+  public void testAcquireTimeout() {
+    ConnectionPool<String, TestConnection> pool = createPool(2, 1);
+    Lease<TestConnection> lease = pool.acquire("a").blockingGet();
+
+    TestObserver<Lease<TestConnection>> observer = pool.acquire("a").test();
+    Assert.assertEquals(1, pool.getStatistics().getPending());
+    Assert.assertTrue(observer.awaitTerminalEvent(2, TimeUnit.SECONDS));
+    observer.assertError(TimeoutException.class);
+
+    ConnectionPoolStatistics statistics = pool.getStatistics("a");
+    Assert.assertEquals(0, statistics.getPending());
+    Assert.assertEquals(1, statistics.getAcquireTimeouts());
+
+    lease.release();
+    Assert.assertEquals(1, pool.getStatistics().getIdle());
+  }
+
+  @Test
+  public void testCancelledAcquisitionLeavesQueue() {
+    ConnectionPool<String, TestConnection> pool = createPool(2, 1);
+    Lease<TestConnection> lease = pool.acquire("a").blockingGet();
+
+    TestObserver<Lease<TestConnection>> observer = pool.acquire("a").test();
+    Assert.assertEquals(1, pool.getStatistics().getPending());
+    observer.dispose();
+    Assert.assertEquals(0, pool.getStatistics().getPending());
+
+    lease.release();
+    observer.assertNoValues();
+    Assert.assertEquals(1, pool.getStatistics().getIdle());
+  }
+
+  @Test
+  public void testClose() {
+    ConnectionPool<String, TestConnection> pool = createPool(2, 1);
+    Lease<TestConnection> idleLease = pool.acquire("a").blockingGet();
+    Lease<TestConnection> lease = pool.acquire("b").blockingGet();
+    idleLease.release();
+    TestObserver<Lease<TestConnection>> observer = pool.acquire("b").test();
+
+    pool.close();
+    Assert.assertTrue(idleLease.getConnection().closed);
+    Assert.assertFalse(lease.getConnection().closed);
+    observer.assertError(IllegalStateException.class);
+
+    lease.release();
+    Assert.assertTrue(lease.getConnection().closed);
+    Assert.assertEquals(0, pool.getStatistics().getTotal());
+    pool.acquire("a").test().assertError(IllegalStateException.class);
+  }
+
+  @Test
+  public void testConnectFailure() {
+    ConnectionPool<String, TestConnection> pool = createPool(2, 1);
+    this.connector.failure = new IOException("Connection refused");
+
+    pool.acquire("a").test().assertError(IOException.class);
+
+    ConnectionPoolStatistics statistics = pool.getStatistics();
+    Assert.assertEquals(1, statistics.getConnectFailures());
+    Assert.assertEquals(0, statistics.getTotal());
+
+    this.connector.failure = null;
+    pool.acquire("a").test().assertValueCount(1);
+  }
+
+  @Test
+  public void testDiscardedConnectionIsClosed() {
+    ConnectionPool<String, TestConnection> pool = createPool(2, 1);
+    Lease<TestConnection> lease = pool.acquire("a").blockingGet();
+    TestObserver<Lease<TestConnection>> observer = pool.acquire("a").test();
+
+    lease.discard();
+    lease.release();
+    Assert.assertTrue(lease.getConnection().closed);
+
+    observer.assertValueCount(1);
+    Lease<TestConnection> newLease = observer.values().get(0);
+    Assert.assertNotSame(lease.getConnection(), newLease.getConnection());
+    Assert.assertFalse(newLease.isReused());
+    Assert.assertEquals(2, pool.getStatistics().getCreated());
+  }
+
+  @Test
+  public void testIdleConnectionIsEvictedAfterTimeout() throws InterruptedException {
+    ConnectionPool<String, TestConnection> pool = createPool(2, 1);
+    Lease<TestConnection> lease = pool.acquire("a").blockingGet();
+    lease.release();
+    Assert.assertFalse(lease.getConnection().closed);
+
+    ConnectionPoolTest.awaitCondition(() -> lease.getConnection().closed);
+    ConnectionPoolStatistics statistics = pool.getStatistics();
+    Assert.assertEquals(0, statistics.getIdle());
+    Assert.assertEquals(1, statistics.getEvicted());
+  }
+
+  @Test
+  public void testIdleConnectionOfOtherHostIsEvictedWhenFull() {
+    ConnectionPool<String, TestConnection> pool = createPool(2, 2);
+    Lease<TestConnection> oldLease = pool.acquire("a").blockingGet();
+    Lease<TestConnection> newLease = pool.acquire("b").blockingGet();
+    oldLease.release();
+    newLease.release();
+
+    Lease<TestConnection> lease = pool.acquire("c").blockingGet();
+    Assert.assertEquals("c", lease.getConnection().key);
+    Assert.assertTrue(oldLease.getConnection().closed);
+    Assert.assertFalse(newLease.getConnection().closed);
+    Assert.assertEquals(1, pool.getStatistics().getEvicted());
+  }
+
+  @Test
+  public void testQueuedAcquisitionGetsReleasedConnection() {
+    ConnectionPool<String, TestConnection> pool = createPool(2, 1);
+    Lease<TestConnection> lease = pool.acquire("a").blockingGet();
+    TestObserver<Lease<TestConnection>> observer = pool.acquire("a").test();
+    observer.assertNoValues();
+
+    lease.release();
+    observer.assertValueCount(1);
+    Lease<TestConnection> reusedLease = observer.values().get(0);
+    Assert.assertSame(lease.getConnection(), reusedLease.getConnection());
+    Assert.assertTrue(reusedLease.isReused());
+    Assert.assertEquals(1, this.connector.connectCount.get());
+  }
+
+  @Test
+  public void testQueuedAcquisitionOfOtherHostGetsFreedSlot() {
+    ConnectionPool<String, TestConnection> pool = createPool(1, 1);
+    Lease<TestConnection> lease = pool.acquire("a").blockingGet();
+    TestObserver<Lease<TestConnection>> observer = pool.acquire("b").test();
+    observer.assertNoValues();
+
+    lease.release();
+    Assert.assertTrue(lease.getConnection().closed);
+    observer.assertValueCount(1);
+    Assert.assertEquals("b", observer.values().get(0).getConnection().key);
+  }
+
+  @Test
+  public void testReleasedConnectionIsReusedLifo() {
+    ConnectionPool<String, TestConnection> pool = createPool(4, 2);
+    Lease<TestConnection> firstLease = pool.acquire("a").blockingGet();
+    Lease<TestConnection> secondLease = pool.acquire("a").blockingGet();
+    Assert.assertFalse(firstLease.isReused());
+    firstLease.release();
+    secondLease.release();
+
+    Lease<TestConnection> lease = pool.acquire("a").blockingGet();
+    Assert.assertSame(secondLease.getConnection(), lease.getConnection());
+    Assert.assertTrue(lease.isReused());
+
+    ConnectionPoolStatistics statistics = pool.getStatistics("a");
+    Assert.assertEquals(2, statistics.getCreated());
+    Assert.assertEquals(1, statistics.getReused());
+    Assert.assertEquals(1, statistics.getIdle());
+    Assert.assertEquals(1, statistics.getLeased());
+    Assert.assertEquals(0, pool.getStatistics("b").getTotal());
+  }
+
+  @Test
+  public void testSharedLeaseDiscardClosesConnection() {
+    ConnectionPool<String, TestConnection> pool = createPool(2, 1, 2);
+    Lease<TestConnection> firstLease = pool.acquireShared("a").blockingGet();
+    Lease<TestConnection> secondLease = pool.acquireShared("a").blockingGet();
+
+    firstLease.discard();
+    Assert.assertTrue(firstLease.getConnection().closed);
+    TestObserver<Lease<TestConnection>> observer = pool.acquireShared("a").test();
+    observer.assertNoValues();
+    Assert.assertEquals(1, pool.getStatistics().getLeased());
+
+    secondLease.release();
+    observer.assertValueCount(1);
+    Assert.assertNotSame(firstLease.getConnection(), observer.values().get(0).getConnection());
+    Assert.assertEquals(1, this.connector.closed.size());
+  }
+
+  @Test
+  public void testSharedLeases() {
+    ConnectionPool<String, TestConnection> pool = createPool(2, 1, 2);
+    Lease<TestConnection> firstLease = pool.acquireShared("a").blockingGet();
+    Lease<TestConnection> secondLease = pool.acquireShared("a").blockingGet();
+    Assert.assertSame(firstLease.getConnection(), secondLease.getConnection());
+    Assert.assertFalse(firstLease.isReused());
+    Assert.assertTrue(secondLease.isReused());
+
+    TestObserver<Lease<TestConnection>> sharedObserver = pool.acquireShared("a").test();
+    TestObserver<Lease<TestConnection>> exclusiveObserver = pool.acquire("a").test();
+    Assert.assertEquals(2, pool.getStatistics().getPending());
+
+    firstLease.release();
+    sharedObserver.assertValueCount(1);
+    Assert.assertSame(firstLease.getConnection(),
+        sharedObserver.values().get(0).getConnection());
+    exclusiveObserver.assertNoValues();
+
+    secondLease.release();
+    exclusiveObserver.assertNoValues();
+    sharedObserver.values().get(0).release();
+    exclusiveObserver.assertValueCount(1);
+    Assert.assertEquals(1, this.connector.connectCount.get());
+  }
+
+  @Test
+  public void testUnusableIdleConnectionIsNotLeased() {
+    ConnectionPool<String, TestConnection> pool = createPool(2, 1);
+    Lease<TestConnection> lease = pool.acquire("a").blockingGet();
+    lease.release();
+    lease.getConnection().usable = false;
+
+    Lease<TestConnection> newLease = pool.acquire("a").blockingGet();
+    Assert.assertNotSame(lease.getConnection(), newLease.getConnection());
+    Assert.assertTrue(lease.getConnection().closed);
+    Assert.assertFalse(newLease.isReused());
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.pool;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.everit.http.client.pool.TimerWheel.Timeout;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+  private static final long TICK_MILLIS = 5;
+
+  private static final int WHEEL_SIZE = 4;
+
+  private TimerWheel timerWheel;
+
+  @After
+  public void after() {
+    this.timerWheel.close();
+  }
+
+  private long awaitTask(long delayMillis) throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    long start = System.nanoTime();
+    this.timerWheel.schedule(latch::countDown, delayMillis, TimeUnit.MILLISECONDS);
+    Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  @Before
+  public void before() {
+    this.timerWheel = new TimerWheel("test-timer", TimerWheelTest.TICK_MILLIS,
+        TimeUnit.MILLISECONDS, TimerWheelTest.WHEEL_SIZE);
+  }
+
+  @Test
+  public void testCancelledTaskDoesNotRun() throws InterruptedException {
+    final long delayMillis = 20;
+    AtomicBoolean ran = new AtomicBoolean();
+    Timeout timeout = this.timerWheel.schedule(() -> ran.set(true), delayMillis,
+        TimeUnit.MILLISECONDS);
+
+    Assert.assertTrue(timeout.cancel());
+    Assert.assertFalse(timeout.cancel());
+
+    // A task scheduled later runs after the cancelled one would have run
+    awaitTask(delayMillis * 2);
+    Assert.assertFalse(ran.get());
+  }
+
+  @Test
+  public void testDelayLongerThanOneRotation() throws InterruptedException {
+    final long delayMillis = TimerWheelTest.TICK_MILLIS * TimerWheelTest.WHEEL_SIZE * 3;
+    Assert.assertTrue(awaitTask(delayMillis) >= delayMillis);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testScheduleOnClosedWheel() {
+    this.timerWheel.close();
+    this.timerWheel.schedule(() -> {
+    }, 1, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void testTaskRunsAfterDelay() throws InterruptedException {
+    final long delayMillis = 12;
+    Assert.assertTrue(awaitTask(delayMillis) >= delayMillis);
+    Assert.assertTrue(awaitTask(0) >= 0);
+  }
+}
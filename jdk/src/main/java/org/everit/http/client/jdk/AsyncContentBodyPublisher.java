@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.jdk;
+
+import java.net.http.HttpRequest.BodyPublisher;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Flow;
+
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.AsyncContentPublisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * <p>
+ * A {@link BodyPublisher} that publishes the chunks of the body of a request. The demand of the
+ * {@link java.net.http.HttpClient} is passed to an {@link AsyncContentPublisher}, so the next chunk
+ * is read from the provider only when the previous one was taken by the client.
+ * </p>
+ *
+ * <p>
+ * The client queues the published buffers until they are written to the connection, while the
+ * provider may reuse a buffer as soon as the next chunk is requested. Therefore every chunk is
+ * copied once when it is published. As the content of the provider can be read only once, the
+ * publisher accepts only one subscriber; if the client resubscribes (e.g. to follow a redirect or
+ * to retry on a new connection), the request fails with an {@link IllegalStateException}.
+ * </p>
+ */
+final class AsyncContentBodyPublisher implements BodyPublisher {
+
+  /**
+   * Forwards the signals of the {@link AsyncContentPublisher} to the subscriber of the client.
+   */
+  private final class ChunkSubscriber implements Subscriber<ByteBuffer> {
+
+    private final Flow.Subscriber<? super ByteBuffer> subscriber;
+
+    ChunkSubscriber(Flow.Subscriber<? super ByteBuffer> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void onComplete() {
+      this.subscriber.onComplete();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      AsyncContentBodyPublisher.this.failure = throwable;
+      this.subscriber.onError(throwable);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+      ByteBuffer copy = ByteBuffer.allocate(item.remaining());
+      copy.put(item).flip();
+      this.subscriber.onNext(copy);
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      this.subscriber.onSubscribe(new Flow.Subscription() {
+
+        @Override
+        public void cancel() {
+          subscription.cancel();
+        }
+
+        @Override
+        public void request(long n) {
+          subscription.request(n);
+        }
+      });
+    }
+  }
+
+  private final long contentLength;
+
+  private volatile Throwable failure;
+
+  private final AsyncContentPublisher publisher;
+
+  /**
+   * Constructor.
+   *
+   * @param provider
+   *          The body of the request. The provider is closed if the client cancels the
+   *          subscription; wrap it into an
+   *          {@link org.everit.http.client.async.AutoCloseAsyncContentProvider} to close it also
+   *          at the end of the content.
+   */
+  AsyncContentBodyPublisher(AsyncContentProvider provider) {
+    Objects.requireNonNull(provider);
+    this.contentLength = provider.getContentLength().orElse(-1L);
+    this.publisher = new AsyncContentPublisher(provider);
+  }
+
+  @Override
+  public long contentLength() {
+    return this.contentLength;
+  }
+
+  /**
+   * Returns the error that the provider of the body failed with, if any. The client wraps the
+   * error into an {@link java.io.IOException}, so it is used to pass the original error to the
+   * subscriber of the response.
+   */
+  Optional<Throwable> getFailure() {
+    return Optional.ofNullable(this.failure);
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+    this.publisher.subscribe(new ChunkSubscriber(subscriber));
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.jdk;
+
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+import org.everit.http.client.HttpResponseAbortException;
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AbstractAsyncContentProvider;
+import org.everit.http.client.async.AsyncContentProvider;
+
+/**
+ * <p>
+ * The {@link BodySubscriber} of the responses that is the body of the response itself. The body is
+ * available as soon as the headers arrived, so the response can be emitted before the body is
+ * received and nothing is aggregated.
+ * </p>
+ *
+ * <p>
+ * One list of buffers is requested from the {@link java.net.http.HttpClient} every time the
+ * provider needs the next chunk and the received list was passed to the listener. Therefore the
+ * client reads the connection only as fast as the listener processes the body. If the listener is a
+ * {@link org.everit.http.client.async.GatheringAsyncContentListener}, the buffers of a list are
+ * passed in one batch, otherwise one by one. Closing the provider cancels the subscription, so the
+ * client closes or resets the connection if the body is not received completely.
+ * </p>
+ */
+final class BodySubscriberAsyncContentProvider extends AbstractAsyncContentProvider
+    implements BodySubscriber<AsyncContentProvider> {
+
+  private Consumer<ByteBuffer[]> batchCallback;
+
+  private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+  private boolean cancelled = false;
+
+  private Consumer<ByteBuffer> chunkCallback;
+
+  private boolean completed = false;
+
+  private final Optional<Long> contentLength;
+
+  private final Optional<MediaType> contentType;
+
+  /**
+   * Whether the client signaled an error.
+   */
+  private boolean failed = false;
+
+  private final Object mutex = new Object();
+
+  /**
+   * Whether a list of buffers was requested and not received yet.
+   */
+  private boolean requested = false;
+
+  private Flow.Subscription subscription;
+
+  /**
+   * Constructor.
+   *
+   * @param contentLength
+   *          The length of the body if the server sent it.
+   * @param contentType
+   *          The type of the body if the server sent it.
+   */
+  BodySubscriberAsyncContentProvider(Optional<Long> contentLength,
+      Optional<MediaType> contentType) {
+    this.contentLength = Objects.requireNonNull(contentLength);
+    this.contentType = Objects.requireNonNull(contentType);
+  }
+
+  private void cancelSubscription() {
+    Flow.Subscription subscription;
+    synchronized (this.mutex) {
+      this.cancelled = true;
+      subscription = this.subscription;
+    }
+    if (subscription != null) {
+      subscription.cancel();
+    }
+  }
+
+  /**
+   * Passes the next received buffers to the waiting callback, finishes the body or requests the
+   * next list of buffers from the client.
+   */
+  private void deliver() {
+    Consumer<ByteBuffer> chunkCallback = null;
+    ByteBuffer chunk = null;
+    Consumer<ByteBuffer[]> batchCallback = null;
+    ByteBuffer[] batch = null;
+    boolean success = false;
+    Flow.Subscription subscriptionToRequest = null;
+    synchronized (this.mutex) {
+      if (this.cancelled || this.chunkCallback == null && this.batchCallback == null) {
+        return;
+      }
+      while (!this.buffers.isEmpty() && !this.buffers.peek().hasRemaining()) {
+        this.buffers.poll();
+      }
+
+      if (!this.buffers.isEmpty()) {
+        if (this.batchCallback != null) {
+          batchCallback = this.batchCallback;
+          batch = this.buffers.toArray(new ByteBuffer[0]);
+          this.buffers.clear();
+        } else {
+          chunkCallback = this.chunkCallback;
+          chunk = this.buffers.poll();
+        }
+        this.chunkCallback = null;
+        this.batchCallback = null;
+      } else if (this.completed) {
+        success = true;
+        this.chunkCallback = null;
+        this.batchCallback = null;
+      } else if (!this.requested) {
+        // If the client did not subscribe yet, the list is requested when it subscribes
+        this.requested = true;
+        subscriptionToRequest = this.subscription;
+      }
+    }
+
+    try {
+      if (chunkCallback != null) {
+        chunkCallback.accept(chunk);
+      } else if (batchCallback != null) {
+        batchCallback.accept(batch);
+      }
+    } catch (RuntimeException e) {
+      cancelSubscription();
+      handleErrorFromInput(e);
+      return;
+    }
+
+    if (success) {
+      handleSuccess();
+    } else if (subscriptionToRequest != null) {
+      subscriptionToRequest.request(1);
+    }
+  }
+
+  @Override
+  protected void doClose() {
+    boolean unfinished;
+    boolean terminated;
+    synchronized (this.mutex) {
+      unfinished = !this.completed || !this.buffers.isEmpty();
+      terminated = this.completed || this.failed;
+      this.buffers.clear();
+      this.chunkCallback = null;
+      this.batchCallback = null;
+    }
+    if (!terminated) {
+      cancelSubscription();
+    }
+    if (unfinished && !getFailure().isPresent()) {
+      handleErrorFromInput(new HttpResponseAbortException());
+    }
+  }
+
+  @Override
+  public CompletionStage<AsyncContentProvider> getBody() {
+    return CompletableFuture.completedFuture(this);
+  }
+
+  @Override
+  public Optional<Long> getContentLength() {
+    return this.contentLength;
+  }
+
+  @Override
+  public Optional<MediaType> getContentType() {
+    return this.contentType;
+  }
+
+  @Override
+  public void onComplete() {
+    synchronized (this.mutex) {
+      this.completed = true;
+    }
+    deliver();
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    Objects.requireNonNull(throwable);
+    synchronized (this.mutex) {
+      // Newer JDK clients signal the cancellation as an error that the listener must not get
+      if (this.cancelled) {
+        return;
+      }
+      this.failed = true;
+      this.buffers.clear();
+    }
+    handleErrorFromInput(throwable);
+  }
+
+  @Override
+  public void onNext(List<ByteBuffer> item) {
+    Objects.requireNonNull(item);
+    synchronized (this.mutex) {
+      if (this.cancelled) {
+        return;
+      }
+      this.requested = false;
+      this.buffers.addAll(item);
+    }
+    deliver();
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    Objects.requireNonNull(subscription);
+
+    boolean cancel;
+    boolean request = false;
+    synchronized (this.mutex) {
+      cancel = this.subscription != null || this.cancelled;
+      if (!cancel) {
+        this.subscription = subscription;
+        request = this.requested;
+      }
+    }
+
+    if (cancel) {
+      subscription.cancel();
+    } else if (request) {
+      subscription.request(1);
+    }
+  }
+
+  @Override
+  protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+    provideNextChunks(callback, null);
+  }
+
+  @Override
+  protected void provideNextChunks(Consumer<ByteBuffer> chunkCallback,
+      Consumer<ByteBuffer[]> batchCallback) {
+
+    synchronized (this.mutex) {
+      if (batchCallback != null && isBatchAccepted()) {
+        this.batchCallback = batchCallback;
+      } else {
+        this.chunkCallback = chunkCallback;
+      }
+    }
+    deliver();
+  }
+}
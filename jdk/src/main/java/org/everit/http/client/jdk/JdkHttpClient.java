@@ -0,0 +1,362 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.jdk;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandler;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.http.client.HttpClient;
+import org.everit.http.client.HttpRequest;
+import org.everit.http.client.HttpResponse;
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.AutoCloseAsyncContentProvider;
+
+import io.reactivex.Single;
+
+/**
+ * <p>
+ * {@link HttpClient} implementation on top of the {@link java.net.http.HttpClient} of Java 11 and
+ * newer, so it does not need any third party library. The JDK client speaks HTTP/1.1 and HTTP/2,
+ * including TLS with ALPN and the upgrade of plain connections to HTTP/2, and pools the connections
+ * itself.
+ * </p>
+ *
+ * <p>
+ * The bodies are streamed in both directions: a chunk of the request body is read from its
+ * provider only when the JDK client requested it, and the next part of the response body is
+ * requested from the JDK client only when the listener of the body processed the previous one. The
+ * response is emitted as soon as its headers arrived.
+ * </p>
+ *
+ * <p>
+ * Requests with a body are sent over HTTP/1.1 if the URL is not secure, as an unencrypted
+ * connection is upgraded to HTTP/2 by an HTTP/1.1 request whose body has to be sent completely
+ * before the upgrade. Other requests reuse the upgraded connection.
+ * </p>
+ *
+ * <p>
+ * The JDK client does not allow setting some headers (e.g. <code>Host</code> or
+ * <code>Connection</code>); those headers of the requests are skipped. Redirects are not followed,
+ * as the body of a request can be sent only once.
+ * </p>
+ */
+public class JdkHttpClient implements HttpClient {
+
+  /**
+   * Builder to build {@link JdkHttpClient}.
+   */
+  public static final class Builder {
+
+    private Optional<Duration> connectTimeout = Optional.empty();
+
+    private Optional<Executor> executor = Optional.empty();
+
+    private Optional<Duration> requestTimeout = Optional.empty();
+
+    private Optional<Version> version = Optional.empty();
+
+    private Builder() {
+    }
+
+    /**
+     * Builder method of the builder.
+     *
+     * @return built class
+     */
+    public JdkHttpClient build() {
+      return new JdkHttpClient(this);
+    }
+
+    /**
+     * The maximum time of opening a connection. Default is no timeout.
+     */
+    public Builder connectTimeout(long connectTimeout, TimeUnit unit) {
+      if (connectTimeout <= 0) {
+        throw new IllegalArgumentException("Connect timeout must be greater than zero");
+      }
+      this.connectTimeout = Optional.of(Duration.ofNanos(unit.toNanos(connectTimeout)));
+      return this;
+    }
+
+    /**
+     * The executor that the JDK client runs its tasks on, including the calls of the listeners of
+     * the response bodies. Default is the executor that the JDK client creates.
+     */
+    public Builder executor(Executor executor) {
+      this.executor = Optional.of(executor);
+      return this;
+    }
+
+    /**
+     * The maximum time between sending a request and receiving the headers of its response. The
+     * response fails with an {@link java.net.http.HttpTimeoutException} if the headers do not
+     * arrive in time. Default is no timeout.
+     */
+    public Builder requestTimeout(long requestTimeout, TimeUnit unit) {
+      if (requestTimeout <= 0) {
+        throw new IllegalArgumentException("Request timeout must be greater than zero");
+      }
+      this.requestTimeout = Optional.of(Duration.ofNanos(unit.toNanos(requestTimeout)));
+      return this;
+    }
+
+    /**
+     * The preferred version of the protocol. Default is the default of the JDK client, that is
+     * HTTP/2 with falling back to HTTP/1.1 if the server does not support it.
+     */
+    public Builder version(Version version) {
+      this.version = Optional.of(version);
+      return this;
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(JdkHttpClient.class.getName());
+
+  /**
+   * The headers that the JDK client computes itself and does not allow setting.
+   */
+  private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList(
+      "connection", "content-length", "date", "expect", "from", "host", "keep-alive",
+      "proxy-connection", "transfer-encoding", "upgrade", "via", "warning"));
+
+  /**
+   * Creates builder to build {@link JdkHttpClient}.
+   *
+   * @return created builder
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private static Optional<MediaType> parseContentType(HttpHeaders headers) {
+    return headers.firstValue("content-type").flatMap(value -> {
+      try {
+        return Optional.of(MediaType.parse(value));
+      } catch (IllegalArgumentException e) {
+        return Optional.empty();
+      }
+    });
+  }
+
+  private static URI parseUri(String url) {
+    try {
+      return new URI(url);
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Invalid URL: " + url, e);
+    }
+  }
+
+  private static Map<String, String> toHeaderMap(HttpHeaders headers) {
+    Map<String, String> result = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    for (Map.Entry<String, List<String>> header : headers.map().entrySet()) {
+      if (!header.getKey().startsWith(":")) {
+        result.put(header.getKey(), String.join(", ", header.getValue()));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the cause of the error that the JDK client completed the response with. If the body
+   * of the request failed, the original error of the body is returned instead of the
+   * {@link java.io.IOException} that the JDK client wraps it into.
+   */
+  private static Throwable unwrapError(Throwable error,
+      Optional<AsyncContentBodyPublisher> bodyPublisher) {
+
+    if (bodyPublisher.isPresent() && bodyPublisher.get().getFailure().isPresent()) {
+      return bodyPublisher.get().getFailure().get();
+    }
+    if (error instanceof CompletionException && error.getCause() != null) {
+      return error.getCause();
+    }
+    return error;
+  }
+
+  private volatile boolean closed = false;
+
+  private final java.net.http.HttpClient delegate;
+
+  private final Optional<Duration> requestTimeout;
+
+  /**
+   * Constructor of a client with the default configuration.
+   */
+  public JdkHttpClient() {
+    this(JdkHttpClient.builder());
+  }
+
+  private JdkHttpClient(Builder builder) {
+    java.net.http.HttpClient.Builder delegateBuilder = java.net.http.HttpClient.newBuilder()
+        .followRedirects(Redirect.NEVER);
+    builder.connectTimeout.ifPresent(delegateBuilder::connectTimeout);
+    builder.executor.ifPresent(delegateBuilder::executor);
+    builder.version.ifPresent(delegateBuilder::version);
+    this.delegate = delegateBuilder.build();
+    this.requestTimeout = builder.requestTimeout;
+  }
+
+  /**
+   * Makes the client refuse new requests. The JDK client closes its connections when it is not
+   * referenced anymore, or immediately on Java versions where it is {@link AutoCloseable}.
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    if (this.delegate instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) this.delegate).close();
+      } catch (Exception e) {
+        JdkHttpClient.LOGGER.log(Level.WARNING, "Error during closing the JDK HTTP client", e);
+      }
+    }
+  }
+
+  private java.net.http.HttpRequest createJdkRequest(HttpRequest request,
+      Optional<AsyncContentBodyPublisher> bodyPublisher) {
+
+    URI uri = JdkHttpClient.parseUri(request.getUrl());
+    java.net.http.HttpRequest.Builder builder = java.net.http.HttpRequest.newBuilder()
+        .uri(uri)
+        .method(request.getMethod().toString(),
+            bodyPublisher.isPresent() ? bodyPublisher.get() : BodyPublishers.noBody());
+    if (bodyPublisher.isPresent() && "http".equalsIgnoreCase(uri.getScheme())) {
+      // The upgrade to HTTP/2 is allowed only after the whole body is sent (RFC 7540 3.2), but
+      // the body is streamed, so the server would read the rest of it as HTTP/2 frames
+      builder.version(Version.HTTP_1_1);
+    }
+    this.requestTimeout.ifPresent(builder::timeout);
+
+    boolean contentTypeSpecified = false;
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      String name = header.getKey().toLowerCase(Locale.ROOT);
+      if (!JdkHttpClient.RESTRICTED_HEADERS.contains(name)) {
+        contentTypeSpecified |= "content-type".equals(name);
+        builder.header(header.getKey(), header.getValue());
+      }
+    }
+
+    Optional<MediaType> contentType =
+        request.getBody().flatMap(AsyncContentProvider::getContentType);
+    if (!contentTypeSpecified && contentType.isPresent()) {
+      builder.header("Content-Type", contentType.get().toString());
+    }
+
+    if (!request.getCookies().isEmpty()) {
+      StringBuilder cookies = new StringBuilder();
+      Iterator<HttpCookie> iterator = request.getCookies().iterator();
+      while (iterator.hasNext()) {
+        HttpCookie cookie = iterator.next();
+        cookies.append(cookie.getName()).append('=').append(cookie.getValue());
+        if (iterator.hasNext()) {
+          cookies.append("; ");
+        }
+      }
+      builder.header("Cookie", cookies.toString());
+    }
+    return builder.build();
+  }
+
+  private BodySubscriberAsyncContentProvider createResponseBody(
+      java.net.http.HttpResponse.ResponseInfo responseInfo) {
+
+    Optional<Long> contentLength = Optional.empty();
+    try {
+      OptionalLong contentLengthHeader =
+          responseInfo.headers().firstValueAsLong("content-length");
+      if (contentLengthHeader.isPresent()) {
+        contentLength = Optional.of(contentLengthHeader.getAsLong());
+      }
+    } catch (NumberFormatException e) {
+      // The length is unknown if the server sent an invalid value
+    }
+    return new BodySubscriberAsyncContentProvider(contentLength,
+        JdkHttpClient.parseContentType(responseInfo.headers()));
+  }
+
+  @Override
+  public Single<HttpResponse> send(HttpRequest request) {
+    Objects.requireNonNull(request);
+    return Single.create(emitter -> {
+      if (this.closed) {
+        throw new IllegalStateException("The client is closed");
+      }
+      if (request.getMethod() == null) {
+        throw new IllegalArgumentException("Method of the request is not specified");
+      }
+
+      Optional<AsyncContentBodyPublisher> bodyPublisher = request.getBody()
+          .map(body -> new AsyncContentBodyPublisher(new AutoCloseAsyncContentProvider(body)));
+      java.net.http.HttpRequest jdkRequest = createJdkRequest(request, bodyPublisher);
+
+      BodyHandler<AsyncContentProvider> bodyHandler = this::createResponseBody;
+      CompletableFuture<java.net.http.HttpResponse<AsyncContentProvider>> future =
+          this.delegate.sendAsync(jdkRequest, bodyHandler);
+      emitter.setCancellable(() -> {
+        // The emitter is disposed also after the response is emitted, when the exchange must go on
+        // as the body is still being received
+        if (!future.isDone()) {
+          future.cancel(true);
+        }
+      });
+
+      future.whenComplete((jdkResponse, error) -> {
+        if (error != null) {
+          // The body is not closed if the request failed before the JDK client subscribed to it
+          request.getBody().ifPresent(AsyncContentProvider::close);
+          emitter.tryOnError(JdkHttpClient.unwrapError(error, bodyPublisher));
+          return;
+        }
+
+        HttpResponse response = HttpResponse.builder()
+            .status(jdkResponse.statusCode())
+            .headers(JdkHttpClient.toHeaderMap(jdkResponse.headers()))
+            .body(jdkResponse.body())
+            .build();
+        if (emitter.isDisposed()) {
+          response.close();
+        } else {
+          emitter.onSuccess(response);
+        }
+      });
+    });
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * A thread that waits for the I/O events of the registered channels with a {@link Selector} and
+ * runs the tasks that are passed to {@link #execute(Runnable)}. Every channel is registered to one
+ * event loop and its state is accessed only from the thread of the loop, so the handlers of the
+ * channels do not need any synchronization.
+ * </p>
+ */
+final class EventLoop implements Closeable, Executor {
+
+  /**
+   * Handles the I/O events of a registered channel on the thread of the event loop.
+   */
+  interface SelectionHandler {
+
+    /**
+     * Called when the event loop is closed while the channel is still registered. The handler
+     * must close its channel.
+     */
+    void onEventLoopClosed();
+
+    /**
+     * Called when the channel is ready for one or more operations of its interest set.
+     *
+     * @param key
+     *          The key of the channel with the ready operations.
+     */
+    void onSelected(SelectionKey key);
+  }
+
+  private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+  private static final Logger LOGGER = Logger.getLogger(EventLoop.class.getName());
+
+  private volatile boolean closed = false;
+
+  private final Selector selector;
+
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+  private final Thread thread;
+
+  /**
+   * Whether the selector is woken up and did not run the queued tasks yet, so further tasks do not
+   * have to wake it up again.
+   */
+  private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+  /**
+   * Constructor that starts the thread of the event loop.
+   *
+   * @param name
+   *          The name of the thread.
+   * @throws IOException
+   *           if the selector cannot be opened.
+   */
+  EventLoop(String name) throws IOException {
+    this.selector = Selector.open();
+    this.thread = new Thread(this::run, name);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Stops the event loop. The handlers of the channels that are still registered are notified
+   * via {@link SelectionHandler#onEventLoopClosed()} on the thread of the loop. If this function is
+   * called from another thread, it waits until the thread of the event loop stops.
+   */
+  @Override
+  public void close() {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    this.selector.wakeup();
+
+    if (!inEventLoop()) {
+      try {
+        this.thread.join(TimeUnit.SECONDS.toMillis(EventLoop.CLOSE_TIMEOUT_SECONDS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void closeSelector() {
+    for (SelectionKey key : this.selector.keys()) {
+      try {
+        ((SelectionHandler) key.attachment()).onEventLoopClosed();
+      } catch (RuntimeException e) {
+        EventLoop.LOGGER.log(Level.SEVERE, "Error during closing a channel of the event loop", e);
+      }
+    }
+    try {
+      this.selector.close();
+    } catch (IOException e) {
+      EventLoop.LOGGER.log(Level.WARNING, "Error during closing the selector", e);
+    }
+  }
+
+  /**
+   * Runs the task on the thread of the event loop. The tasks are run in the order of submission.
+   *
+   * @throws RejectedExecutionException
+   *           if the event loop is closed.
+   */
+  @Override
+  public void execute(Runnable task) {
+    if (this.closed) {
+      throw new RejectedExecutionException("Event loop is closed");
+    }
+    this.tasks.add(task);
+    if (!inEventLoop() && this.wakeupPending.compareAndSet(false, true)) {
+      this.selector.wakeup();
+    }
+  }
+
+  /**
+   * Returns whether the current thread is the thread of this event loop.
+   */
+  boolean inEventLoop() {
+    return Thread.currentThread() == this.thread;
+  }
+
+  private void processSelectedKeys() {
+    Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+    while (iterator.hasNext()) {
+      SelectionKey key = iterator.next();
+      iterator.remove();
+      try {
+        ((SelectionHandler) key.attachment()).onSelected(key);
+      } catch (RuntimeException e) {
+        EventLoop.LOGGER.log(Level.SEVERE, "Error during handling the events of a channel", e);
+      }
+    }
+  }
+
+  /**
+   * Registers a channel to the selector of this event loop. Must be called from the thread of the
+   * event loop.
+   *
+   * @param channel
+   *          The channel in non-blocking mode.
+   * @param handler
+   *          The handler of the I/O events of the channel.
+   * @return The key of the channel with an empty interest set.
+   * @throws ClosedChannelException
+   *           if the channel is closed.
+   */
+  SelectionKey register(SelectableChannel channel, SelectionHandler handler)
+      throws ClosedChannelException {
+    return channel.register(this.selector, 0, handler);
+  }
+
+  private void run() {
+    while (!this.closed) {
+      try {
+        this.selector.select();
+        this.wakeupPending.set(false);
+        processSelectedKeys();
+        runTasks();
+      } catch (IOException | RuntimeException e) {
+        EventLoop.LOGGER.log(Level.SEVERE, "Error in the event loop", e);
+      }
+    }
+    runTasks();
+    closeSelector();
+  }
+
+  private void runTasks() {
+    Runnable task = this.tasks.poll();
+    while (task != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        EventLoop.LOGGER.log(Level.SEVERE, "Error during running a task of the event loop", e);
+      }
+      task = this.tasks.poll();
+    }
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * The parts of HPACK (RFC 7541) that are shared by {@link HpackEncoder} and {@link HpackDecoder}:
+ * the static table, the integer and string representations and the Huffman code.
+ * </p>
+ *
+ * <p>
+ * The strings are converted to bytes with ISO-8859-1, the same way as the header fields of
+ * HTTP/1.1 messages.
+ * </p>
+ */
+final class Hpack {
+
+  /**
+   * The number of bytes that an entry of the dynamic table occupies in addition to its name and
+   * value.
+   */
+  static final int ENTRY_OVERHEAD = 32;
+
+  private static final int INTEGER_CONTINUATION_BITS = 7;
+
+  private static final int INTEGER_CONTINUATION_FLAG = 0x80;
+
+  private static final int INTEGER_CONTINUATION_MASK = 0x7f;
+
+  private static final int HUFFMAN_EOS = 256;
+
+  private static final int[] HUFFMAN_CODES = {
+      0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7, 0xfffffe8,
+      0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed,
+      0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4,
+      0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb, 0x14, 0x3f8,
+      0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+      0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb,
+      0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+      0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0,
+      0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+      0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78, 0x79, 0x7a, 0x7b, 0x7ffe,
+      0x7fc, 0x3ffd, 0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4,
+      0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb,
+      0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+      0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda,
+      0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde, 0x7fffea, 0x3fffdd,
+      0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0,
+      0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4,
+      0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7,
+      0x7ffff2, 0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf,
+      0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7,
+      0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+      0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8,
+      0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+      0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+      0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+      0x3fffffff };
+
+  private static final byte[] HUFFMAN_LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30,
+      28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5,
+      5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6,
+      6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23,
+      22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23,
+      24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22,
+      23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27,
+      26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21,
+      22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27,
+      27, 27, 27, 27, 26, 30 };
+
+  private static final int HUFFMAN_SYMBOL_COUNT = 257;
+
+  /**
+   * The shift of the last continuation byte of an integer that fits into an int.
+   */
+  private static final int MAX_INTEGER_SHIFT = 28;
+
+  /**
+   * The Huffman decoding tree. The children of node <code>n</code> are at <code>2n</code> (bit 0)
+   * and <code>2n + 1</code> (bit 1); a negative value <code>-(symbol + 1)</code> is a leaf.
+   */
+  private static final int[] HUFFMAN_TREE = Hpack.buildHuffmanTree();
+
+  private static final int OCTET_BITS = 8;
+
+  private static final int OCTET_MASK = 0xff;
+
+  private static final int STRING_HUFFMAN_FLAG = 0x80;
+
+  private static final int STRING_LENGTH_PREFIX = 7;
+
+  /**
+   * The static table; the entry at index <code>i</code> of the array has the HPACK index
+   * <code>i + 1</code>.
+   */
+  static final String[][] STATIC_TABLE = {
+      { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+      { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" },
+      { ":status", "200" }, { ":status", "204" }, { ":status", "206" }, { ":status", "304" },
+      { ":status", "400" }, { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+      { "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+      { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+      { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+      { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+      { "content-location", "" }, { "content-range", "" }, { "content-type", "" },
+      { "cookie", "" }, { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+      { "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+      { "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" },
+      { "last-modified", "" }, { "link", "" }, { "location", "" }, { "max-forwards", "" },
+      { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+      { "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" },
+      { "set-cookie", "" }, { "strict-transport-security", "" }, { "transfer-encoding", "" },
+      { "user-agent", "" }, { "vary", "" }, { "via", "" }, { "www-authenticate", "" } };
+
+  /**
+   * The HPACK index of the first static entry with a name.
+   */
+  private static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<>();
+
+  /**
+   * The HPACK index of the static entries with a name and a non-empty value. The key is the name
+   * and the value separated by a NUL character.
+   */
+  private static final Map<String, Integer> STATIC_NAME_VALUE_INDEX = new HashMap<>();
+
+  static {
+    for (int i = 0; i < Hpack.STATIC_TABLE.length; i++) {
+      String[] entry = Hpack.STATIC_TABLE[i];
+      Hpack.STATIC_NAME_INDEX.putIfAbsent(entry[0], i + 1);
+      if (!entry[1].isEmpty()) {
+        Hpack.STATIC_NAME_VALUE_INDEX.put(entry[0] + '\0' + entry[1], i + 1);
+      }
+    }
+  }
+
+  private static int[] buildHuffmanTree() {
+    int[] tree = new int[2 * Hpack.HUFFMAN_SYMBOL_COUNT];
+    int nodeCount = 1;
+    for (int symbol = 0; symbol < Hpack.HUFFMAN_SYMBOL_COUNT; symbol++) {
+      int code = Hpack.HUFFMAN_CODES[symbol];
+      int node = 0;
+      for (int i = Hpack.HUFFMAN_LENGTHS[symbol] - 1; i > 0; i--) {
+        int child = 2 * node + ((code >>> i) & 1);
+        if (tree[child] == 0) {
+          tree[child] = nodeCount++;
+        }
+        node = tree[child];
+      }
+      tree[2 * node + (code & 1)] = -(symbol + 1);
+    }
+    return tree;
+  }
+
+  /**
+   * Decodes an integer whose first byte is already read.
+   *
+   * @param firstByte
+   *          The first byte of the representation, including the bits before the prefix.
+   * @param prefixBits
+   *          The number of bits of the integer in the first byte.
+   * @param src
+   *          The buffer that the continuation bytes are read from.
+   * @return The integer.
+   * @throws ProtocolException
+   *           if the integer is truncated or does not fit into an int.
+   */
+  static int decodeInteger(int firstByte, int prefixBits, ByteBuffer src)
+      throws ProtocolException {
+    int max = (1 << prefixBits) - 1;
+    int value = firstByte & max;
+    if (value < max) {
+      return value;
+    }
+
+    long result = value;
+    int shift = 0;
+    int b;
+    do {
+      if (!src.hasRemaining()) {
+        throw new ProtocolException("Truncated integer in HPACK header block");
+      }
+      if (shift > Hpack.MAX_INTEGER_SHIFT) {
+        throw new ProtocolException("Integer overflow in HPACK header block");
+      }
+      b = src.get() & Hpack.OCTET_MASK;
+      result += (long) (b & Hpack.INTEGER_CONTINUATION_MASK) << shift;
+      shift += Hpack.INTEGER_CONTINUATION_BITS;
+      if (result > Integer.MAX_VALUE) {
+        throw new ProtocolException("Integer overflow in HPACK header block");
+      }
+    } while ((b & Hpack.INTEGER_CONTINUATION_FLAG) != 0);
+    return (int) result;
+  }
+
+  /**
+   * Decodes a string literal.
+   *
+   * @throws ProtocolException
+   *           if the string is truncated or its Huffman code is invalid.
+   */
+  static String decodeString(ByteBuffer src) throws ProtocolException {
+    if (!src.hasRemaining()) {
+      throw new ProtocolException("Truncated string in HPACK header block");
+    }
+    int firstByte = src.get() & Hpack.OCTET_MASK;
+    int length = Hpack.decodeInteger(firstByte, Hpack.STRING_LENGTH_PREFIX, src);
+    if (length > src.remaining()) {
+      throw new ProtocolException("Truncated string in HPACK header block");
+    }
+    if ((firstByte & Hpack.STRING_HUFFMAN_FLAG) != 0) {
+      return Hpack.huffmanDecode(src, length);
+    }
+    byte[] bytes = new byte[length];
+    src.get(bytes);
+    return new String(bytes, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Encodes an integer with the given prefix.
+   *
+   * @param out
+   *          The stream that the bytes are written to.
+   * @param flags
+   *          The bits of the first byte before the prefix.
+   * @param prefixBits
+   *          The number of bits of the integer in the first byte.
+   * @param value
+   *          The non-negative integer.
+   */
+  static void encodeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+    int max = (1 << prefixBits) - 1;
+    if (value < max) {
+      out.write(flags | value);
+      return;
+    }
+    out.write(flags | max);
+    int rest = value - max;
+    while (rest > Hpack.INTEGER_CONTINUATION_MASK) {
+      out.write((rest & Hpack.INTEGER_CONTINUATION_MASK) | Hpack.INTEGER_CONTINUATION_FLAG);
+      rest >>>= Hpack.INTEGER_CONTINUATION_BITS;
+    }
+    out.write(rest);
+  }
+
+  /**
+   * Encodes a string literal, with the Huffman code if that is shorter.
+   *
+   * @throws IllegalArgumentException
+   *           if the string has a character that cannot be encoded with ISO-8859-1.
+   */
+  static void encodeString(ByteArrayOutputStream out, String value) {
+    long huffmanBits = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c > Hpack.OCTET_MASK) {
+        throw new IllegalArgumentException("Header field has a non ISO-8859-1 character: " + value);
+      }
+      huffmanBits += Hpack.HUFFMAN_LENGTHS[c];
+    }
+    int huffmanLength = (int) ((huffmanBits + Hpack.OCTET_BITS - 1) / Hpack.OCTET_BITS);
+
+    if (huffmanLength >= value.length()) {
+      Hpack.encodeInteger(out, 0, Hpack.STRING_LENGTH_PREFIX, value.length());
+      for (int i = 0; i < value.length(); i++) {
+        out.write(value.charAt(i));
+      }
+      return;
+    }
+
+    Hpack.encodeInteger(out, Hpack.STRING_HUFFMAN_FLAG, Hpack.STRING_LENGTH_PREFIX,
+        huffmanLength);
+    long current = 0;
+    int bits = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      int length = Hpack.HUFFMAN_LENGTHS[c];
+      current = (current << length) | Hpack.HUFFMAN_CODES[c];
+      bits += length;
+      while (bits >= Hpack.OCTET_BITS) {
+        bits -= Hpack.OCTET_BITS;
+        out.write((int) (current >>> bits));
+      }
+    }
+    if (bits > 0) {
+      // Padded with the most significant bits of the EOS code, which are all ones
+      current = (current << (Hpack.OCTET_BITS - bits)) | (Hpack.OCTET_MASK >>> bits);
+      out.write((int) current);
+    }
+  }
+
+  /**
+   * Returns the HPACK index of the first static entry with the name or 0 if there is no such
+   * entry.
+   */
+  static int getStaticNameIndex(String name) {
+    return Hpack.STATIC_NAME_INDEX.getOrDefault(name, 0);
+  }
+
+  /**
+   * Returns the HPACK index of the static entry with the name and the value or 0 if there is no
+   * such entry.
+   */
+  static int getStaticNameValueIndex(String name, String value) {
+    return Hpack.STATIC_NAME_VALUE_INDEX.getOrDefault(name + '\0' + value, 0);
+  }
+
+  private static String huffmanDecode(ByteBuffer src, int length) throws ProtocolException {
+    StringBuilder sb = new StringBuilder(length * 2);
+    int node = 0;
+    int depth = 0;
+    boolean onlyOnes = true;
+    for (int i = 0; i < length; i++) {
+      int b = src.get() & Hpack.OCTET_MASK;
+      for (int bit = Hpack.OCTET_BITS - 1; bit >= 0; bit--) {
+        int value = (b >>> bit) & 1;
+        int child = Hpack.HUFFMAN_TREE[2 * node + value];
+        if (child < 0) {
+          int symbol = -child - 1;
+          if (symbol == Hpack.HUFFMAN_EOS) {
+            throw new ProtocolException("Huffman encoded string contains EOS");
+          }
+          sb.append((char) symbol);
+          node = 0;
+          depth = 0;
+          onlyOnes = true;
+        } else {
+          node = child;
+          depth++;
+          onlyOnes &= value == 1;
+        }
+      }
+    }
+    if (depth >= Hpack.OCTET_BITS || !onlyOnes) {
+      throw new ProtocolException("Invalid padding of Huffman encoded string");
+    }
+    return sb.toString();
+  }
+
+  private Hpack() {
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Decodes the header blocks of an HTTP/2 connection with HPACK (RFC 7541). The decoder keeps the
+ * dynamic table of the connection, so every header block that the server sends must be decoded in
+ * order, even the ones of the streams that are not interesting anymore.
+ * </p>
+ */
+final class HpackDecoder {
+
+  private static final int DYNAMIC_TABLE_SIZE_UPDATE = 0x20;
+
+  private static final int INDEXED = 0x80;
+
+  private static final int INDEXED_PREFIX = 7;
+
+  private static final int LITERAL_INCREMENTAL_INDEXING = 0x40;
+
+  private static final int LITERAL_INCREMENTAL_INDEXING_PREFIX = 6;
+
+  private static final int LITERAL_PREFIX = 4;
+
+  private static final int OCTET_MASK = 0xff;
+
+  private static final int SIZE_UPDATE_PREFIX = 5;
+
+  /**
+   * The entries of the dynamic table; the newest one is the last.
+   */
+  private final List<String[]> dynamicTable = new ArrayList<>();
+
+  private int dynamicTableSize = 0;
+
+  /**
+   * The maximum size of the dynamic table that the encoder chose.
+   */
+  private int maxDynamicTableSize;
+
+  /**
+   * The maximum size of the dynamic table that the encoder may choose (the
+   * SETTINGS_HEADER_TABLE_SIZE of the client).
+   */
+  private final int maxDynamicTableSizeLimit;
+
+  /**
+   * Constructor.
+   *
+   * @param maxDynamicTableSize
+   *          The maximum size of the dynamic table that the encoder may use.
+   */
+  HpackDecoder(int maxDynamicTableSize) {
+    this.maxDynamicTableSize = maxDynamicTableSize;
+    this.maxDynamicTableSizeLimit = maxDynamicTableSize;
+  }
+
+  private void addEntry(String name, String value) {
+    int size = name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+    if (size > this.maxDynamicTableSize) {
+      // An entry bigger than the table empties the table
+      this.dynamicTable.clear();
+      this.dynamicTableSize = 0;
+      return;
+    }
+    this.dynamicTable.add(new String[] { name, value });
+    this.dynamicTableSize += size;
+    evict();
+  }
+
+  /**
+   * Decodes a complete header block.
+   *
+   * @param block
+   *          The header block; it is consumed until its end.
+   * @return The header fields in the order of the block; every element is a name and a value.
+   * @throws ProtocolException
+   *           if the block is invalid. The connection must be closed with a COMPRESSION_ERROR as
+   *           the dynamic table may be out of sync.
+   */
+  List<String[]> decode(ByteBuffer block) throws ProtocolException {
+    List<String[]> headers = new ArrayList<>();
+    while (block.hasRemaining()) {
+      int b = block.get() & HpackDecoder.OCTET_MASK;
+      if ((b & HpackDecoder.INDEXED) != 0) {
+        int index = Hpack.decodeInteger(b, HpackDecoder.INDEXED_PREFIX, block);
+        String[] entry = getEntry(index);
+        headers.add(new String[] { entry[0], entry[1] });
+      } else if ((b & HpackDecoder.LITERAL_INCREMENTAL_INDEXING) != 0) {
+        String[] header =
+            decodeLiteral(b, HpackDecoder.LITERAL_INCREMENTAL_INDEXING_PREFIX, block);
+        addEntry(header[0], header[1]);
+        headers.add(header);
+      } else if ((b & HpackDecoder.DYNAMIC_TABLE_SIZE_UPDATE) != 0) {
+        if (!headers.isEmpty()) {
+          throw new ProtocolException("Dynamic table size update after a header field");
+        }
+        int size = Hpack.decodeInteger(b, HpackDecoder.SIZE_UPDATE_PREFIX, block);
+        if (size > this.maxDynamicTableSizeLimit) {
+          throw new ProtocolException("Dynamic table size update to " + size
+              + " exceeds the limit " + this.maxDynamicTableSizeLimit);
+        }
+        this.maxDynamicTableSize = size;
+        evict();
+      } else {
+        // Literal without indexing or never indexed
+        headers.add(decodeLiteral(b, HpackDecoder.LITERAL_PREFIX, block));
+      }
+    }
+    return headers;
+  }
+
+  private String[] decodeLiteral(int firstByte, int prefixBits, ByteBuffer block)
+      throws ProtocolException {
+    int nameIndex = Hpack.decodeInteger(firstByte, prefixBits, block);
+    String name = nameIndex == 0 ? Hpack.decodeString(block) : getEntry(nameIndex)[0];
+    String value = Hpack.decodeString(block);
+    return new String[] { name, value };
+  }
+
+  private void evict() {
+    while (this.dynamicTableSize > this.maxDynamicTableSize) {
+      String[] oldest = this.dynamicTable.remove(0);
+      this.dynamicTableSize -= oldest[0].length() + oldest[1].length() + Hpack.ENTRY_OVERHEAD;
+    }
+  }
+
+  private String[] getEntry(int index) throws ProtocolException {
+    if (index <= 0) {
+      throw new ProtocolException("Invalid HPACK index: " + index);
+    }
+    if (index <= Hpack.STATIC_TABLE.length) {
+      return Hpack.STATIC_TABLE[index - 1];
+    }
+    int dynamicIndex = index - Hpack.STATIC_TABLE.length - 1;
+    if (dynamicIndex >= this.dynamicTable.size()) {
+      throw new ProtocolException("Invalid HPACK index: " + index);
+    }
+    return this.dynamicTable.get(this.dynamicTable.size() - 1 - dynamicIndex);
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Encodes the header blocks of an HTTP/2 connection with HPACK (RFC 7541). Header fields that are
+ * in the static table are sent as an index; other fields are added to the dynamic table, so the
+ * fields that are repeated in the subsequent requests of the connection (e.g. the authority, the
+ * user agent or the accepted media types) are also sent as an index. Credentials are never
+ * indexed.
+ * </p>
+ *
+ * <p>
+ * The header blocks must be sent in the order they were encoded, as they change the dynamic table
+ * of the server.
+ * </p>
+ */
+final class HpackEncoder {
+
+  private static final int DYNAMIC_TABLE_SIZE_UPDATE = 0x20;
+
+  private static final int INDEXED = 0x80;
+
+  private static final int INDEXED_PREFIX = 7;
+
+  private static final int LITERAL_INCREMENTAL_INDEXING = 0x40;
+
+  private static final int LITERAL_INCREMENTAL_INDEXING_PREFIX = 6;
+
+  private static final int LITERAL_NEVER_INDEXED = 0x10;
+
+  private static final int LITERAL_PREFIX = 4;
+
+  /**
+   * The maximum size of the dynamic table of the encoder, even if the server allows more.
+   */
+  static final int MAX_DYNAMIC_TABLE_SIZE = 4096;
+
+  private static final int SIZE_UPDATE_PREFIX = 5;
+
+  private static boolean isSensitive(String name) {
+    return "authorization".equals(name) || "proxy-authorization".equals(name);
+  }
+
+  /**
+   * The entries of the dynamic table; the newest one is the last.
+   */
+  private final List<String[]> dynamicTable = new ArrayList<>();
+
+  private int dynamicTableSize = 0;
+
+  private int maxDynamicTableSize = HpackEncoder.MAX_DYNAMIC_TABLE_SIZE;
+
+  /**
+   * The smallest maximum size of the dynamic table since the last header block, or -1 if it did
+   * not change. The decoder must be notified about it at the beginning of the next block.
+   */
+  private int minDynamicTableSizeSinceLastBlock = -1;
+
+  private void addEntry(String name, String value, int size) {
+    this.dynamicTable.add(new String[] { name, value });
+    this.dynamicTableSize += size;
+    evict();
+  }
+
+  /**
+   * Encodes a header block.
+   *
+   * @param headers
+   *          The header fields; every element is a lower case name and a value.
+   * @return The encoded block.
+   * @throws IllegalArgumentException
+   *           if a header field cannot be encoded.
+   */
+  byte[] encode(List<String[]> headers) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (this.minDynamicTableSizeSinceLastBlock >= 0) {
+      if (this.minDynamicTableSizeSinceLastBlock < this.maxDynamicTableSize) {
+        Hpack.encodeInteger(out, HpackEncoder.DYNAMIC_TABLE_SIZE_UPDATE,
+            HpackEncoder.SIZE_UPDATE_PREFIX, this.minDynamicTableSizeSinceLastBlock);
+      }
+      Hpack.encodeInteger(out, HpackEncoder.DYNAMIC_TABLE_SIZE_UPDATE,
+          HpackEncoder.SIZE_UPDATE_PREFIX, this.maxDynamicTableSize);
+      this.minDynamicTableSizeSinceLastBlock = -1;
+    }
+
+    for (String[] header : headers) {
+      encodeHeader(out, header[0], header[1]);
+    }
+    return out.toByteArray();
+  }
+
+  private void encodeHeader(ByteArrayOutputStream out, String name, String value) {
+    int index = Hpack.getStaticNameValueIndex(name, value);
+    if (index == 0) {
+      index = findDynamicEntry(name, value, true);
+    }
+    if (index > 0) {
+      Hpack.encodeInteger(out, HpackEncoder.INDEXED, HpackEncoder.INDEXED_PREFIX, index);
+      return;
+    }
+
+    int nameIndex = Hpack.getStaticNameIndex(name);
+    if (nameIndex == 0) {
+      nameIndex = findDynamicEntry(name, value, false);
+    }
+
+    int size = name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+    // Big fields are not indexed, they would evict many entries of the table
+    boolean indexed = !HpackEncoder.isSensitive(name) && size <= this.maxDynamicTableSize / 2;
+    if (HpackEncoder.isSensitive(name)) {
+      Hpack.encodeInteger(out, HpackEncoder.LITERAL_NEVER_INDEXED, HpackEncoder.LITERAL_PREFIX,
+          nameIndex);
+    } else if (indexed) {
+      Hpack.encodeInteger(out, HpackEncoder.LITERAL_INCREMENTAL_INDEXING,
+          HpackEncoder.LITERAL_INCREMENTAL_INDEXING_PREFIX, nameIndex);
+    } else {
+      Hpack.encodeInteger(out, 0, HpackEncoder.LITERAL_PREFIX, nameIndex);
+    }
+    if (nameIndex == 0) {
+      Hpack.encodeString(out, name);
+    }
+    Hpack.encodeString(out, value);
+
+    if (indexed) {
+      addEntry(name, value, size);
+    }
+  }
+
+  private void evict() {
+    while (this.dynamicTableSize > this.maxDynamicTableSize) {
+      String[] oldest = this.dynamicTable.remove(0);
+      this.dynamicTableSize -= oldest[0].length() + oldest[1].length() + Hpack.ENTRY_OVERHEAD;
+    }
+  }
+
+  /**
+   * Returns the HPACK index of the newest dynamic entry with the name (and the value) or 0 if
+   * there is no such entry.
+   */
+  private int findDynamicEntry(String name, String value, boolean matchValue) {
+    for (int i = this.dynamicTable.size() - 1; i >= 0; i--) {
+      String[] entry = this.dynamicTable.get(i);
+      if (entry[0].equals(name) && (!matchValue || entry[1].equals(value))) {
+        return Hpack.STATIC_TABLE.length + this.dynamicTable.size() - i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Applies the SETTINGS_HEADER_TABLE_SIZE of the server.
+   *
+   * @param headerTableSize
+   *          The maximum size of the dynamic table that the decoder of the server allows.
+   */
+  void setHeaderTableSize(int headerTableSize) {
+    int size = Math.min(headerTableSize, HpackEncoder.MAX_DYNAMIC_TABLE_SIZE);
+    if (size == this.maxDynamicTableSize) {
+      return;
+    }
+    this.maxDynamicTableSize = size;
+    if (this.minDynamicTableSizeSinceLastBlock < 0
+        || size < this.minDynamicTableSizeSinceLastBlock) {
+      this.minDynamicTableSizeSinceLastBlock = size;
+    }
+    evict();
+  }
+}
@@ -0,0 +1,548 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.everit.http.client.async.AsyncCallback;
+import org.everit.http.client.async.ByteBufferPool;
+
+/**
+ * <p>
+ * A non-blocking socket connection that HTTP/1.1 messages are exchanged on. The connection has at
+ * most one pending read at a time, and the writes are queued and written in order; the operations
+ * are tried immediately and the channel is registered for the readiness of the operation only if
+ * it could not complete.
+ * </p>
+ *
+ * <p>
+ * More requests may be sent on the connection before their responses arrive (pipelining). The
+ * responses arrive in the order of the requests, so the {@link ResponseReader}s of the requests
+ * are queued and each of them reads the connection when the previous one received its response.
+ * Bytes of the next response that were read together with the end of the previous one are given
+ * back to the connection via {@link #unread(ByteBuffer)}. When no response is expected, the
+ * connection watches for the server closing it.
+ * </p>
+ *
+ * <p>
+ * Every function must be called from the thread of the {@link EventLoop} of the connection, and
+ * every callback is called from there.
+ * </p>
+ */
+final class Http1Connection implements EventLoop.SelectionHandler {
+
+  /**
+   * Receives the result of a read operation.
+   */
+  interface ReadListener {
+
+    /**
+     * Called when the peer closed its side of the connection.
+     */
+    void onEof();
+
+    /**
+     * Called when the connection failed or it was closed.
+     */
+    void onFailure(Throwable cause);
+
+    /**
+     * Called when data was read from the connection.
+     *
+     * @param buffer
+     *          The buffer in read mode that is leased from the {@link ByteBufferPool} of the
+     *          connection. The listener must release it.
+     */
+    void onRead(ByteBuffer buffer);
+  }
+
+  /**
+   * Reads a response from the connection when it is its turn.
+   */
+  interface ResponseReader {
+
+    /**
+     * Called if the connection is closed before the response is received.
+     */
+    void onConnectionClosed(Throwable cause);
+
+    /**
+     * Called when the responses of the previous requests are received, so the response of this
+     * request is the next one on the connection.
+     */
+    void readResponse();
+  }
+
+  /**
+   * A write that waits for the previous writes.
+   */
+  private static final class PendingWrite {
+
+    final ByteBuffer[] buffers;
+
+    final AsyncCallback callback;
+
+    PendingWrite(ByteBuffer[] buffers, AsyncCallback callback) {
+      this.buffers = buffers;
+      this.callback = callback;
+    }
+  }
+
+  private static boolean hasRemaining(ByteBuffer[] buffers) {
+    for (ByteBuffer buffer : buffers) {
+      if (buffer.hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private final ByteBufferPool bufferPool;
+
+  private final SocketChannel channel;
+
+  private volatile Throwable closeCause;
+
+  private AsyncCallback connectCallback;
+
+  private final EventLoop eventLoop;
+
+  private SelectionKey key;
+
+  private boolean flushing = false;
+
+  private final int readBufferSize;
+
+  private ReadListener readListener;
+
+  /**
+   * The number of requests whose response was expected on the connection.
+   */
+  private int requestCount = 0;
+
+  /**
+   * The readers of the expected responses. The first one reads the connection.
+   */
+  private final ArrayDeque<ResponseReader> responseReaders = new ArrayDeque<>();
+
+  private volatile boolean reusable = true;
+
+  /**
+   * The bytes that were read from the connection but not consumed by the reader.
+   */
+  private ByteBuffer unread;
+
+  private final ArrayDeque<PendingWrite> writes = new ArrayDeque<>();
+
+  /**
+   * Constructor that opens the channel. The channel is not connected yet.
+   *
+   * @param eventLoop
+   *          The event loop that the connection is registered to.
+   * @param bufferPool
+   *          The pool that the read buffers are leased from.
+   * @param readBufferSize
+   *          The size of the buffers that are read from the connection.
+   * @throws IOException
+   *           if the channel cannot be opened.
+   */
+  Http1Connection(EventLoop eventLoop, ByteBufferPool bufferPool, int readBufferSize)
+      throws IOException {
+    this.eventLoop = Objects.requireNonNull(eventLoop);
+    this.bufferPool = Objects.requireNonNull(bufferPool);
+    this.readBufferSize = readBufferSize;
+    this.channel = SocketChannel.open();
+    try {
+      this.channel.configureBlocking(false);
+      this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    } catch (IOException | RuntimeException e) {
+      this.channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Drops the pending read without notifying its listener.
+   */
+  void cancelRead() {
+    this.readListener = null;
+    updateInterestOps();
+  }
+
+  /**
+   * Closes the connection. The pending operations fail with the specified cause.
+   *
+   * @param cause
+   *          The reason of closing the connection.
+   */
+  void close(Throwable cause) {
+    if (this.closeCause != null) {
+      return;
+    }
+    this.closeCause = Objects.requireNonNull(cause);
+    if (this.key != null) {
+      this.key.cancel();
+    }
+    try {
+      this.channel.close();
+    } catch (IOException e) {
+      cause.addSuppressed(e);
+    }
+
+    if (this.unread != null) {
+      this.bufferPool.release(this.unread);
+      this.unread = null;
+    }
+
+    AsyncCallback connectCallback = this.connectCallback;
+    this.connectCallback = null;
+    if (connectCallback != null) {
+      connectCallback.failed(cause);
+    }
+    failPendingOperations(cause);
+
+    List<ResponseReader> responseReaders = new ArrayList<>(this.responseReaders);
+    this.responseReaders.clear();
+    for (ResponseReader responseReader : responseReaders) {
+      responseReader.onConnectionClosed(cause);
+    }
+  }
+
+  /**
+   * Connects the channel to the remote address.
+   *
+   * @param address
+   *          The resolved address of the server.
+   * @param callback
+   *          The callback that is notified when the connection is established or it failed.
+   */
+  void connect(SocketAddress address, AsyncCallback callback) {
+    try {
+      this.key = this.eventLoop.register(this.channel, this);
+      if (this.channel.connect(address)) {
+        callback.processed();
+      } else {
+        this.connectCallback = callback;
+        updateInterestOps();
+      }
+    } catch (IOException | RuntimeException e) {
+      close(e);
+      callback.failed(e);
+    }
+  }
+
+  /**
+   * Queues the reader of the response of a request that was written to the connection. The reader
+   * reads the connection immediately if no other response is expected.
+   *
+   * @param reader
+   *          The reader of the response.
+   */
+  void expectResponse(ResponseReader reader) {
+    this.requestCount++;
+    if (this.closeCause != null) {
+      reader.onConnectionClosed(this.closeCause);
+      return;
+    }
+    this.responseReaders.add(reader);
+    if (this.responseReaders.size() == 1) {
+      // Stop watching the idle connection
+      cancelRead();
+      reader.readResponse();
+    }
+  }
+
+  private void failPendingOperations(Throwable cause) {
+    List<PendingWrite> writes = new ArrayList<>(this.writes);
+    this.writes.clear();
+    for (PendingWrite write : writes) {
+      write.callback.failed(cause);
+    }
+
+    ReadListener readListener = this.readListener;
+    this.readListener = null;
+    if (readListener != null) {
+      readListener.onFailure(cause);
+    }
+  }
+
+  private void finishConnect() {
+    AsyncCallback callback = this.connectCallback;
+    this.connectCallback = null;
+    try {
+      this.channel.finishConnect();
+    } catch (IOException | RuntimeException e) {
+      close(e);
+      callback.failed(e);
+      return;
+    }
+    callback.processed();
+  }
+
+  private void flush() {
+    this.flushing = true;
+    try {
+      PendingWrite write = this.writes.peek();
+      while (write != null) {
+        while (Http1Connection.hasRemaining(write.buffers)) {
+          if (this.channel.write(write.buffers) == 0) {
+            return;
+          }
+        }
+        this.writes.poll();
+        // The callback may queue the next write
+        write.callback.processed();
+        write = this.writes.peek();
+      }
+    } catch (IOException | RuntimeException e) {
+      close(e);
+    } finally {
+      this.flushing = false;
+    }
+  }
+
+  EventLoop getEventLoop() {
+    return this.eventLoop;
+  }
+
+  /**
+   * Returns the number of requests whose response was expected on the connection, including the
+   * ones that are waiting for their response.
+   */
+  int getRequestCount() {
+    return this.requestCount;
+  }
+
+  /**
+   * Returns whether the connection is closed. Unlike the other functions, this one can be called
+   * from any thread.
+   */
+  boolean isClosed() {
+    return this.closeCause != null;
+  }
+
+  /**
+   * Returns whether new requests can be sent on the connection: it is not closed and no response
+   * asked to close it. Unlike the other functions, this one can be called from any thread.
+   */
+  boolean isReusable() {
+    return this.reusable && this.closeCause == null;
+  }
+
+  /**
+   * Marks that no new request should be sent on the connection, e.g. because a response asked to
+   * close it after the response.
+   */
+  void markNotReusable() {
+    this.reusable = false;
+  }
+
+  @Override
+  public void onEventLoopClosed() {
+    close(new ClosedChannelException());
+  }
+
+  @Override
+  public void onSelected(SelectionKey key) {
+    int readyOps;
+    try {
+      readyOps = key.readyOps();
+    } catch (CancelledKeyException e) {
+      return;
+    }
+
+    if ((readyOps & SelectionKey.OP_CONNECT) != 0 && this.connectCallback != null) {
+      finishConnect();
+    }
+    if ((readyOps & SelectionKey.OP_WRITE) != 0 && !this.writes.isEmpty()) {
+      flush();
+    }
+    if ((readyOps & SelectionKey.OP_READ) != 0 && this.readListener != null) {
+      ReadListener listener = this.readListener;
+      this.readListener = null;
+      readNow(listener);
+    }
+    updateInterestOps();
+  }
+
+  /**
+   * Reads the next buffer from the connection. The listener is called immediately if data is
+   * available or the connection is closed, otherwise when the channel becomes readable.
+   *
+   * @param listener
+   *          The listener that is notified about the result.
+   * @throws IllegalStateException
+   *           if another read is pending.
+   */
+  void read(ReadListener listener) {
+    if (this.readListener != null) {
+      throw new IllegalStateException("Another read is pending on the connection");
+    }
+    if (this.closeCause != null) {
+      listener.onFailure(this.closeCause);
+      return;
+    }
+    if (this.unread != null) {
+      ByteBuffer buffer = this.unread;
+      this.unread = null;
+      listener.onRead(buffer);
+      return;
+    }
+    readNow(listener);
+    updateInterestOps();
+  }
+
+  private void readNow(ReadListener listener) {
+    ByteBuffer buffer = this.bufferPool.acquire(this.readBufferSize, true);
+    int read;
+    try {
+      read = this.channel.read(buffer);
+    } catch (IOException | RuntimeException e) {
+      this.bufferPool.release(buffer);
+      close(e);
+      listener.onFailure(e);
+      return;
+    }
+
+    if (read > 0) {
+      buffer.flip();
+      listener.onRead(buffer);
+    } else {
+      this.bufferPool.release(buffer);
+      if (read < 0) {
+        listener.onEof();
+      } else {
+        this.readListener = listener;
+      }
+    }
+  }
+
+  /**
+   * Called by the first {@link ResponseReader} when its response is received. The next reader
+   * starts reading, or the connection is watched for the server closing it if no more response is
+   * expected.
+   */
+  void responseReceived() {
+    this.responseReaders.poll();
+    ResponseReader next = this.responseReaders.peek();
+    if (next != null) {
+      next.readResponse();
+    } else if (this.closeCause == null) {
+      watchIdle();
+    }
+  }
+
+  /**
+   * Gives back bytes that were read from the connection but belong to the next reader, so they are
+   * passed to the next {@link #read(ReadListener)}.
+   *
+   * @param buffer
+   *          A buffer in read mode that is leased from the {@link ByteBufferPool} of the
+   *          connection.
+   * @throws IllegalStateException
+   *           if there are unread bytes already.
+   */
+  void unread(ByteBuffer buffer) {
+    if (this.closeCause != null) {
+      this.bufferPool.release(buffer);
+      return;
+    }
+    if (this.unread != null) {
+      this.bufferPool.release(buffer);
+      throw new IllegalStateException("Connection has unread bytes already");
+    }
+    this.unread = buffer;
+  }
+
+  private void updateInterestOps() {
+    if (this.closeCause != null || this.key == null) {
+      return;
+    }
+    int ops = 0;
+    if (this.connectCallback != null) {
+      ops |= SelectionKey.OP_CONNECT;
+    }
+    if (!this.writes.isEmpty()) {
+      ops |= SelectionKey.OP_WRITE;
+    }
+    if (this.readListener != null) {
+      ops |= SelectionKey.OP_READ;
+    }
+    if (this.key.interestOps() != ops) {
+      this.key.interestOps(ops);
+    }
+  }
+
+  /**
+   * Watches the connection while no response is expected: it is closed as soon as the server
+   * closes its side or sends unexpected data, so the pool does not lease it again.
+   */
+  private void watchIdle() {
+    read(new ReadListener() {
+
+      @Override
+      public void onEof() {
+        close(new EOFException("Server closed the idle connection"));
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        // The connection is closed already
+      }
+
+      @Override
+      public void onRead(ByteBuffer buffer) {
+        Http1Connection.this.bufferPool.release(buffer);
+        close(new ProtocolException("Server sent data on an idle connection"));
+      }
+    });
+  }
+
+  /**
+   * Writes the buffers to the connection after the previously queued writes. The callback is called
+   * immediately if the buffers can be written without blocking, otherwise when the channel became
+   * writable and all of the buffers are written.
+   *
+   * @param buffers
+   *          The buffers to write.
+   * @param callback
+   *          The callback that is notified when the buffers are written or writing them failed.
+   */
+  void write(ByteBuffer[] buffers, AsyncCallback callback) {
+    if (this.closeCause != null) {
+      callback.failed(this.closeCause);
+      return;
+    }
+    this.writes.add(new PendingWrite(buffers, callback));
+    if (!this.flushing) {
+      flush();
+      updateInterestOps();
+    }
+  }
+}
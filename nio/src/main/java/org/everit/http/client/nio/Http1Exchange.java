@@ -0,0 +1,673 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.http.client.HttpMethod;
+import org.everit.http.client.HttpRequest;
+import org.everit.http.client.HttpResponse;
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AsyncCallback;
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.async.ByteBufferPool;
+import org.everit.http.client.async.ChunkedDecodingAsyncContentProvider;
+import org.everit.http.client.async.ChunkedEncodingAsyncContentProvider;
+import org.everit.http.client.async.GatheringAsyncContentListener;
+import org.everit.http.client.pool.ConnectionPool;
+
+import io.reactivex.SingleEmitter;
+
+/**
+ * <p>
+ * One request and response on an {@link Http1Connection}. The request head is written first and
+ * the response head is read at the same time (or when the responses of the previously pipelined
+ * requests are received), so a server that responds before reading the whole request body is
+ * handled. The request body is written chunk by chunk: the next chunk is requested
+ * from the body only when the previous one is written to the socket.
+ * </p>
+ *
+ * <p>
+ * A request body of unknown length is sent with the chunked transfer coding. When both the request
+ * and the response body are transferred, the connection is released to the pool if the server
+ * allows keeping it alive and the end of the response body was known from its framing. Otherwise,
+ * or if the response body is closed before it is read, the connection is closed.
+ * </p>
+ *
+ * <p>
+ * A server may close an idle keep-alive connection right when a new request is sent on it. If a
+ * reused connection fails before any byte of the response arrives and the request is idempotent
+ * and has no body, the request is retried on another connection. The same happens with the
+ * pipelined requests that were not answered when the connection was closed.
+ * </p>
+ *
+ * <p>
+ * Every function except {@link #cancel()} must be called from the thread of the event loop.
+ * </p>
+ */
+final class Http1Exchange {
+
+  private static final int DEFAULT_HTTP_PORT = 80;
+
+  private static final int HEAD_CAPACITY = 256;
+
+  private static final Logger LOGGER = Logger.getLogger(Http1Exchange.class.getName());
+
+  private static final int STATUS_CONTINUE = 100;
+
+  private static final int STATUS_NO_CONTENT = 204;
+
+  private static final int STATUS_NOT_MODIFIED = 304;
+
+  private static final int STATUS_OK = 200;
+
+  private static final int STATUS_SWITCHING_PROTOCOLS = 101;
+
+  /**
+   * Returns whether a comma separated header value contains a token, ignoring the case.
+   */
+  private static boolean containsToken(Optional<String> headerValue, String token) {
+    if (!headerValue.isPresent()) {
+      return false;
+    }
+    for (String element : headerValue.get().split(",")) {
+      if (token.equalsIgnoreCase(element.trim())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void appendHeader(StringBuilder sb, String name, String value) {
+    Http1Exchange.validateHeaderPart(name);
+    Http1Exchange.validateHeaderPart(value);
+    sb.append(name).append(": ").append(value).append("\r\n");
+  }
+
+  /**
+   * Returns whether the method implies that a body is sent even if it is empty, so the length of
+   * the body should be specified.
+   */
+  private static boolean expectsBody(HttpMethod method) {
+    return method == HttpMethod.POST || method == HttpMethod.PUT;
+  }
+
+  /**
+   * Returns whether sending the request more times has the same effect as sending it once, so it
+   * can be retried if the connection failed.
+   */
+  private static boolean isIdempotent(HttpMethod method) {
+    return method == HttpMethod.GET || method == HttpMethod.HEAD || method == HttpMethod.OPTIONS
+        || method == HttpMethod.TRACE || method == HttpMethod.PUT || method == HttpMethod.DELETE;
+  }
+
+  private static boolean isManagedHeader(String name) {
+    return "host".equalsIgnoreCase(name) || "content-length".equalsIgnoreCase(name)
+        || "transfer-encoding".equalsIgnoreCase(name);
+  }
+
+  private static void validateHeaderPart(String part) {
+    for (int i = 0, n = part.length(); i < n; i++) {
+      char c = part.charAt(i);
+      if (c == '\r' || c == '\n') {
+        throw new IllegalArgumentException("Header contains a line terminator: " + part);
+      }
+    }
+  }
+
+  private final ByteBufferPool bufferPool;
+
+  /**
+   * The decoder of the response body if it has the chunked transfer coding.
+   */
+  private volatile ChunkedDecodingAsyncContentProvider chunkedBody;
+
+  private final Http1Connection connection;
+
+  /**
+   * Whether another request was sent on the connection before this one, either earlier or
+   * pipelined in front of this one.
+   */
+  private boolean connectionReused = false;
+
+  private final SingleEmitter<HttpResponse> emitter;
+
+  private final EventLoop eventLoop;
+
+  private boolean failed = false;
+
+  private final ResponseHeadParser headParser;
+
+  /**
+   * Whether both the request and the response allow keeping the connection alive.
+   */
+  private boolean keepAlive = true;
+
+  private final ConnectionPool.Lease<Http1Connection> lease;
+
+  private final HttpRequest request;
+
+  private Optional<AsyncContentProvider> requestBody = Optional.empty();
+
+  private boolean requestSent = false;
+
+  private ResponseBodyAsyncContentProvider responseBody;
+
+  /**
+   * Whether any byte of the response was read from the connection.
+   */
+  private boolean responseStarted = false;
+
+  private boolean responseEmitted = false;
+
+  private boolean responseReceived = false;
+
+  /**
+   * Sends the request again on another connection or null if the request must not be sent again.
+   */
+  private final Runnable retry;
+
+  private final URI uri;
+
+  /**
+   * Constructor.
+   *
+   * @param request
+   *          The request to send.
+   * @param uri
+   *          The parsed URL of the request.
+   * @param emitter
+   *          The emitter that the response is passed to.
+   * @param lease
+   *          The lease of the connected connection that the request is sent on.
+   * @param bufferPool
+   *          The pool that the buffers are leased from.
+   * @param maxHeadSize
+   *          The maximum size of the response head.
+   * @param retry
+   *          Sends the request again on another connection if the leased connection turns out to
+   *          be closed by the server, or null if the request was sent again too many times
+   *          already.
+   */
+  Http1Exchange(HttpRequest request, URI uri, SingleEmitter<HttpResponse> emitter,
+      ConnectionPool.Lease<Http1Connection> lease, ByteBufferPool bufferPool, int maxHeadSize,
+      Runnable retry) {
+    this.request = Objects.requireNonNull(request);
+    this.uri = Objects.requireNonNull(uri);
+    this.emitter = Objects.requireNonNull(emitter);
+    this.lease = Objects.requireNonNull(lease);
+    this.connection = lease.getConnection();
+    this.eventLoop = this.connection.getEventLoop();
+    this.bufferPool = Objects.requireNonNull(bufferPool);
+    this.headParser = new ResponseHeadParser(maxHeadSize);
+    this.retry = retry;
+  }
+
+  private boolean canRetry(Throwable cause) {
+    // If requests were pipelined behind this one, the failure may be caused by one of them: e.g.
+    // the server resets the connection because of a later request, and the reset drops the
+    // response of this request that was not read yet
+    boolean sharedConnection =
+        this.connectionReused || this.connection.getRequestCount() > 1;
+    return this.retry != null && sharedConnection && !this.responseStarted
+        && cause instanceof IOException && !this.request.getBody().isPresent()
+        && Http1Exchange.isIdempotent(this.request.getMethod()) && !this.emitter.isDisposed();
+  }
+
+  /**
+   * Cancels the exchange if the response is not emitted yet. Can be called from any thread.
+   */
+  void cancel() {
+    try {
+      runOnEventLoop(() -> {
+        if (!this.responseEmitted) {
+          fail(new CancellationException("Request is cancelled"));
+        }
+      });
+    } catch (RuntimeException e) {
+      Http1Exchange.LOGGER.log(Level.FINE, "Event loop is closed, exchange is not cancelled", e);
+    }
+  }
+
+  private ByteBuffer encodeRequestHead(Optional<Long> bodyLength) {
+    StringBuilder sb = new StringBuilder(Http1Exchange.HEAD_CAPACITY);
+
+    String path = this.uri.getRawPath();
+    sb.append(this.request.getMethod()).append(' ')
+        .append(path == null || path.isEmpty() ? "/" : path);
+    if (this.uri.getRawQuery() != null) {
+      sb.append('?').append(this.uri.getRawQuery());
+    }
+    sb.append(" HTTP/1.1\r\n");
+
+    Map<String, String> headers = this.request.getHeaders();
+    String host = this.uri.getHost();
+    if (this.uri.getPort() >= 0 && this.uri.getPort() != Http1Exchange.DEFAULT_HTTP_PORT) {
+      host += ":" + this.uri.getPort();
+    }
+    Http1Exchange.appendHeader(sb, "Host", headers.getOrDefault("Host", host));
+
+    boolean contentTypeSpecified = false;
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      String name = header.getKey();
+      if (!Http1Exchange.isManagedHeader(name)) {
+        contentTypeSpecified |= "content-type".equalsIgnoreCase(name);
+        if ("connection".equalsIgnoreCase(name)
+            && Http1Exchange.containsToken(Optional.of(header.getValue()), "close")) {
+          this.keepAlive = false;
+          this.connection.markNotReusable();
+        }
+        Http1Exchange.appendHeader(sb, name, header.getValue());
+      }
+    }
+
+    if (this.requestBody.isPresent()) {
+      Optional<MediaType> contentType = this.requestBody.get().getContentType();
+      if (!contentTypeSpecified && contentType.isPresent()) {
+        Http1Exchange.appendHeader(sb, "Content-Type", contentType.get().toString());
+      }
+      if (bodyLength.isPresent()) {
+        Http1Exchange.appendHeader(sb, "Content-Length", String.valueOf(bodyLength.get()));
+      } else {
+        Http1Exchange.appendHeader(sb, "Transfer-Encoding", "chunked");
+      }
+    } else if (Http1Exchange.expectsBody(this.request.getMethod())) {
+      Http1Exchange.appendHeader(sb, "Content-Length", "0");
+    }
+
+    if (!this.request.getCookies().isEmpty()) {
+      StringBuilder cookies = new StringBuilder();
+      Iterator<HttpCookie> iterator = this.request.getCookies().iterator();
+      while (iterator.hasNext()) {
+        HttpCookie cookie = iterator.next();
+        cookies.append(cookie.getName()).append('=').append(cookie.getValue());
+        if (iterator.hasNext()) {
+          cookies.append("; ");
+        }
+      }
+      Http1Exchange.appendHeader(sb, "Cookie", cookies.toString());
+    }
+
+    sb.append("\r\n");
+
+    byte[] bytes = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    ByteBuffer buffer = this.bufferPool.acquire(bytes.length, true);
+    buffer.put(bytes).flip();
+    return buffer;
+  }
+
+  /**
+   * Fails the exchange and closes the connection. If the response is not emitted yet, the error is
+   * passed to the subscriber of the response, otherwise to the listener of the response body.
+   *
+   * @param cause
+   *          The reason of the failure.
+   */
+  void fail(Throwable cause) {
+    if (this.failed) {
+      return;
+    }
+    this.failed = true;
+    boolean retry = canRetry(cause);
+    if (!this.lease.isEnded()) {
+      this.connection.close(cause);
+      this.lease.discard();
+    }
+    closeRequestBody();
+
+    if (retry) {
+      this.retry.run();
+    } else if (!this.responseEmitted) {
+      this.emitter.tryOnError(cause);
+    } else if (this.responseBody != null) {
+      this.responseBody.fail(cause);
+    }
+  }
+
+  private void closeRequestBody() {
+    if (this.requestBody.isPresent()) {
+      try {
+        this.requestBody.get().close();
+      } catch (RuntimeException e) {
+        Http1Exchange.LOGGER.log(Level.WARNING, "Error during closing the request body", e);
+      }
+    }
+  }
+
+  /**
+   * Releases the connection to the pool or closes it if both the request and the response are
+   * transferred.
+   */
+  private void endLeaseIfDone() {
+    if (this.failed || this.lease.isEnded() || !this.responseReceived) {
+      return;
+    }
+    if (!this.keepAlive) {
+      this.connection.close(new IOException("Connection is not kept alive"));
+      this.lease.discard();
+    } else if (this.requestSent) {
+      // The next pipelined response can be read
+      this.connection.responseReceived();
+      this.lease.release();
+    }
+  }
+
+  Http1Connection getConnection() {
+    return this.connection;
+  }
+
+  private boolean hasBody(int status) {
+    return this.request.getMethod() != HttpMethod.HEAD && status >= Http1Exchange.STATUS_OK
+        && status != Http1Exchange.STATUS_NO_CONTENT
+        && status != Http1Exchange.STATUS_NOT_MODIFIED;
+  }
+
+  /**
+   * Returns whether the response body has the chunked transfer coding and its end was decoded.
+   * Can be called from any thread.
+   */
+  boolean isChunkedBodyComplete() {
+    ChunkedDecodingAsyncContentProvider chunkedBody = this.chunkedBody;
+    return chunkedBody != null && chunkedBody.isComplete();
+  }
+
+  private void onRequestSent() {
+    closeRequestBody();
+    this.requestSent = true;
+    endLeaseIfDone();
+  }
+
+  /**
+   * Called when the response body is closed by the user. If the body was not read until its end,
+   * the connection is closed.
+   */
+  void onResponseBodyClosed() {
+    if (!this.lease.isEnded()) {
+      this.connection.close(new IOException("Response body is closed"));
+      this.lease.discard();
+    }
+    closeRequestBody();
+  }
+
+  /**
+   * Called when the last byte of the response body is read from the connection.
+   *
+   * @param reusable
+   *          Whether the connection can be reused, i.e. the server did not send more bytes than
+   *          the response.
+   */
+  void onResponseBodyFinished(boolean reusable) {
+    if (this.responseReceived) {
+      return;
+    }
+    this.responseReceived = true;
+    this.keepAlive &= reusable;
+    endLeaseIfDone();
+  }
+
+  private void onResponseHead(ByteBuffer buffer) {
+    int status = this.headParser.getStatus();
+
+    long length;
+    Optional<Long> contentLength = Optional.empty();
+    boolean chunked = false;
+    try {
+      chunked = this.headParser.getHeader("Transfer-Encoding")
+          .map(value -> value.toLowerCase(Locale.ROOT).trim().endsWith("chunked"))
+          .orElse(false);
+      contentLength = parseContentLength();
+    } catch (ProtocolException e) {
+      this.bufferPool.release(buffer);
+      fail(e);
+      return;
+    }
+
+    if (!hasBody(status)) {
+      length = 0;
+    } else if (!chunked && contentLength.isPresent()) {
+      length = contentLength.get();
+    } else {
+      length = ResponseBodyAsyncContentProvider.UNTIL_EOF;
+    }
+
+    Optional<String> connectionHeader = this.headParser.getHeader("Connection");
+    if (this.headParser.getMinorVersion() == 0) {
+      this.keepAlive &= Http1Exchange.containsToken(connectionHeader, "keep-alive");
+    } else {
+      this.keepAlive &= !Http1Exchange.containsToken(connectionHeader, "close");
+    }
+    this.keepAlive &= chunked || length != ResponseBodyAsyncContentProvider.UNTIL_EOF;
+    if (!this.keepAlive) {
+      this.connection.markNotReusable();
+    }
+
+    ByteBuffer pending = buffer;
+    if (!buffer.hasRemaining()) {
+      this.bufferPool.release(buffer);
+      pending = null;
+    } else if (length == 0) {
+      // The bytes belong to the next pipelined response
+      this.connection.unread(buffer);
+      pending = null;
+    }
+
+    Optional<MediaType> contentType = this.headParser.getHeader("Content-Type").flatMap(value -> {
+      try {
+        return Optional.of(MediaType.parse(value));
+      } catch (IllegalArgumentException e) {
+        return Optional.empty();
+      }
+    });
+
+    this.responseBody = new ResponseBodyAsyncContentProvider(this, pending, length,
+        chunked ? Optional.empty() : contentLength, contentType, this.bufferPool);
+    AsyncContentProvider body = this.responseBody;
+    if (chunked && length != 0) {
+      this.chunkedBody = new ChunkedDecodingAsyncContentProvider(this.responseBody);
+      body = this.chunkedBody;
+    }
+
+    HttpResponse response = HttpResponse.builder()
+        .status(status)
+        .headers(this.headParser.getHeaders())
+        .body(body)
+        .build();
+
+    this.responseEmitted = true;
+    if (this.emitter.isDisposed()) {
+      response.close();
+    } else {
+      this.emitter.onSuccess(response);
+    }
+    if (length == 0) {
+      // The next pipelined response does not have to wait until the empty body is closed
+      onResponseBodyFinished(true);
+    }
+  }
+
+  private Optional<Long> parseContentLength() throws ProtocolException {
+    Optional<String> value = this.headParser.getHeader("Content-Length");
+    if (!value.isPresent()) {
+      return Optional.empty();
+    }
+    try {
+      long length = Long.parseLong(value.get());
+      if (length < 0) {
+        throw new ProtocolException("Negative Content-Length: " + value.get());
+      }
+      return Optional.of(length);
+    } catch (NumberFormatException e) {
+      ProtocolException protocolException =
+          new ProtocolException("Content-Length is not a number: " + value.get());
+      protocolException.initCause(e);
+      throw protocolException;
+    }
+  }
+
+  private void readResponseHead() {
+    this.connection.read(new Http1Connection.ReadListener() {
+
+      @Override
+      public void onEof() {
+        fail(new EOFException("Connection closed before the response head was received"));
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        fail(cause);
+      }
+
+      @Override
+      public void onRead(ByteBuffer buffer) {
+        readResponseHead(buffer);
+      }
+    });
+  }
+
+  private void readResponseHead(ByteBuffer buffer) {
+    this.responseStarted = true;
+    boolean complete;
+    try {
+      complete = this.headParser.parse(buffer);
+    } catch (ProtocolException e) {
+      this.bufferPool.release(buffer);
+      fail(e);
+      return;
+    }
+
+    if (!complete) {
+      this.bufferPool.release(buffer);
+      readResponseHead();
+      return;
+    }
+
+    int status = this.headParser.getStatus();
+    if (status >= Http1Exchange.STATUS_CONTINUE && status < Http1Exchange.STATUS_OK
+        && status != Http1Exchange.STATUS_SWITCHING_PROTOCOLS) {
+      // Interim responses are skipped, the final response follows them
+      this.headParser.reset();
+      if (buffer.hasRemaining()) {
+        readResponseHead(buffer);
+      } else {
+        this.bufferPool.release(buffer);
+        readResponseHead();
+      }
+      return;
+    }
+    if (status == Http1Exchange.STATUS_SWITCHING_PROTOCOLS) {
+      this.bufferPool.release(buffer);
+      fail(new ProtocolException("Switching protocols is not supported"));
+      return;
+    }
+
+    onResponseHead(buffer);
+  }
+
+  /**
+   * Runs the task on the thread of the event loop; immediately if the current thread is the thread
+   * of the event loop.
+   */
+  void runOnEventLoop(Runnable task) {
+    if (this.eventLoop.inEventLoop()) {
+      task.run();
+    } else {
+      this.eventLoop.execute(task);
+    }
+  }
+
+  /**
+   * Sends the request. Must be called on the thread of the event loop.
+   */
+  void start() {
+    writeRequest();
+  }
+
+  private void writeRequest() {
+    Optional<Long> bodyLength = Optional.empty();
+    this.requestBody = this.request.getBody();
+    if (this.requestBody.isPresent()) {
+      bodyLength = this.requestBody.get().getContentLength();
+      if (!bodyLength.isPresent()) {
+        this.requestBody = Optional.of(
+            new ChunkedEncodingAsyncContentProvider(this.requestBody.get()));
+      }
+    }
+
+    ByteBuffer head;
+    try {
+      head = encodeRequestHead(bodyLength);
+    } catch (IllegalArgumentException e) {
+      fail(e);
+      return;
+    }
+
+    this.connection.write(new ByteBuffer[] { head }, new AsyncCallback() {
+
+      @Override
+      public void failed(Throwable e) {
+        Http1Exchange.this.bufferPool.release(head);
+      }
+
+      @Override
+      public void processed() {
+        Http1Exchange.this.bufferPool.release(head);
+        writeRequestBody();
+      }
+    });
+    this.connectionReused = this.connection.getRequestCount() > 0;
+    this.connection.expectResponse(new Http1Connection.ResponseReader() {
+
+      @Override
+      public void onConnectionClosed(Throwable cause) {
+        // The cause may belong to a previous exchange of the connection, e.g. a cancellation
+        fail(cause instanceof IOException ? cause
+            : new IOException("Connection closed before the response was received", cause));
+      }
+
+      @Override
+      public void readResponse() {
+        readResponseHead();
+      }
+    });
+  }
+
+  private void writeRequestBody() {
+    if (!this.requestBody.isPresent()) {
+      onRequestSent();
+      return;
+    }
+
+    this.requestBody.get()
+        .onError(error -> runOnEventLoop(() -> fail(error)))
+        .onSuccess(() -> runOnEventLoop(this::onRequestSent))
+        .onContent((GatheringAsyncContentListener) (chunks, callback) -> runOnEventLoop(
+            () -> this.connection.write(chunks, callback)));
+  }
+}
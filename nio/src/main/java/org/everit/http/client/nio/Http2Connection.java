@@ -0,0 +1,1023 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.everit.http.client.async.AsyncCallback;
+import org.everit.http.client.async.ByteBufferPool;
+
+/**
+ * <p>
+ * An HTTP/2 connection without TLS (h2c with prior knowledge) that multiplexes the
+ * {@link Http2Stream}s of the requests over one {@link Http1Connection} socket connection. The
+ * header blocks are compressed with HPACK.
+ * </p>
+ *
+ * <p>
+ * The socket is read continuously, so the control frames and the frames of the other streams are
+ * processed even if the listener of a response body is slow. Backpressure is applied with the flow
+ * control of HTTP/2 instead: the receive windows of a stream and of the connection are enlarged
+ * with WINDOW_UPDATE frames only when the listener of the response body processed the received
+ * data, so the server cannot send more than the window of a stream ahead of its listener. In the
+ * other direction, the DATA frames of a request body are sent only as long as the send windows
+ * allow; the rest of the chunk waits for a WINDOW_UPDATE from the server.
+ * </p>
+ *
+ * <p>
+ * If the server limits the number of concurrent streams, the streams above the limit wait in a
+ * queue until another stream is closed. When the server sends GOAWAY, the streams that it did not
+ * process are refused and the connection is closed when the processed ones are finished.
+ * </p>
+ *
+ * <p>
+ * Every function except {@link #isUsable()} must be called from the thread of the event loop.
+ * </p>
+ */
+final class Http2Connection {
+
+  /**
+   * A connection error that is sent to the server in a GOAWAY frame.
+   */
+  static final class ConnectionError extends ProtocolException {
+
+    private static final long serialVersionUID = 1L;
+
+    final int errorCode;
+
+    ConnectionError(int errorCode, String message) {
+      super(message);
+      this.errorCode = errorCode;
+    }
+  }
+
+  /**
+   * Reads the frames from the socket continuously.
+   */
+  private final class FrameReader implements Http1Connection.ReadListener {
+
+    /**
+     * Whether {@link #readNext()} is on the stack. The socket calls {@link #onRead(ByteBuffer)}
+     * synchronously if data is available, so the reads are looped instead of recursing.
+     */
+    private boolean reading = false;
+
+    private boolean readRequested = false;
+
+    @Override
+    public void onEof() {
+      close(new EOFException("Server closed the HTTP/2 connection"));
+    }
+
+    @Override
+    public void onFailure(Throwable cause) {
+      close(cause);
+    }
+
+    @Override
+    public void onRead(ByteBuffer buffer) {
+      try {
+        process(buffer);
+      } catch (ConnectionError e) {
+        goAway(e.errorCode, e);
+      } finally {
+        Http2Connection.this.bufferPool.release(buffer);
+      }
+      readNext();
+    }
+
+    void readNext() {
+      if (this.reading) {
+        this.readRequested = true;
+        return;
+      }
+      this.reading = true;
+      try {
+        do {
+          this.readRequested = false;
+          if (Http2Connection.this.closeCause == null) {
+            Http2Connection.this.socket.read(this);
+          }
+        } while (this.readRequested);
+      } finally {
+        this.reading = false;
+      }
+    }
+  }
+
+  /**
+   * Releases the pooled buffer of a written frame and notifies the callback of the frame, if any.
+   */
+  private final class FrameWriteCallback implements AsyncCallback {
+
+    private final ByteBuffer buffer;
+
+    private final AsyncCallback callback;
+
+    FrameWriteCallback(ByteBuffer buffer, AsyncCallback callback) {
+      this.buffer = buffer;
+      this.callback = callback;
+    }
+
+    @Override
+    public void failed(Throwable e) {
+      Http2Connection.this.bufferPool.release(this.buffer);
+      if (this.callback != null) {
+        this.callback.failed(e);
+      }
+    }
+
+    @Override
+    public void processed() {
+      Http2Connection.this.bufferPool.release(this.buffer);
+      if (this.callback != null) {
+        this.callback.processed();
+      }
+    }
+  }
+
+  static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024;
+
+  static final int DEFAULT_WINDOW_SIZE = 65535;
+
+  static final int ERROR_CANCEL = 0x8;
+
+  static final int ERROR_COMPRESSION = 0x9;
+
+  static final int ERROR_FLOW_CONTROL = 0x3;
+
+  static final int ERROR_FRAME_SIZE = 0x6;
+
+  static final int ERROR_NO_ERROR = 0x0;
+
+  static final int ERROR_PROTOCOL = 0x1;
+
+  static final int ERROR_REFUSED_STREAM = 0x7;
+
+  private static final int FLAG_ACK = 0x1;
+
+  private static final int FLAG_END_HEADERS = 0x4;
+
+  private static final int FLAG_END_STREAM = 0x1;
+
+  private static final int FLAG_PADDED = 0x8;
+
+  private static final int FLAG_PRIORITY = 0x20;
+
+  private static final int FRAME_HEADER_LENGTH = 9;
+
+  private static final int GOAWAY_LENGTH = 8;
+
+  private static final int MAX_ALLOWED_FRAME_SIZE = 0xffffff;
+
+  private static final int OCTET_BITS = 8;
+
+  private static final int OCTET_MASK = 0xff;
+
+  private static final int PING_LENGTH = 8;
+
+  private static final byte[] PREFACE =
+      "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+  private static final int PRIORITY_LENGTH = 5;
+
+  private static final int SETTING_ENABLE_PUSH = 0x2;
+
+  private static final int SETTING_HEADER_TABLE_SIZE = 0x1;
+
+  private static final int SETTING_INITIAL_WINDOW_SIZE = 0x4;
+
+  private static final int SETTING_LENGTH = 6;
+
+  private static final int SETTING_MAX_CONCURRENT_STREAMS = 0x3;
+
+  private static final int SETTING_MAX_FRAME_SIZE = 0x5;
+
+  private static final int SETTING_MAX_HEADER_LIST_SIZE = 0x6;
+
+  private static final int STREAM_ID_MASK = 0x7fffffff;
+
+  private static final int TYPE_CONTINUATION = 0x9;
+
+  private static final int TYPE_DATA = 0x0;
+
+  private static final int TYPE_GOAWAY = 0x7;
+
+  private static final int TYPE_HEADERS = 0x1;
+
+  private static final int TYPE_PING = 0x6;
+
+  private static final int TYPE_PUSH_PROMISE = 0x5;
+
+  private static final int TYPE_RST_STREAM = 0x3;
+
+  private static final int TYPE_SETTINGS = 0x4;
+
+  private static final int TYPE_WINDOW_UPDATE = 0x8;
+
+  private static final int WINDOW_UPDATE_LENGTH = 4;
+
+  private final ByteBufferPool bufferPool;
+
+  private volatile Throwable closeCause;
+
+  /**
+   * The bytes of the connection receive window that were processed but not given back to the
+   * server yet.
+   */
+  private int connectionReceiveUnacknowledged = 0;
+
+  private int connectionReceiveWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+
+  private final int connectionReceiveWindowSize;
+
+  private long connectionSendWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+
+  private final HpackDecoder decoder = new HpackDecoder(HpackEncoder.MAX_DYNAMIC_TABLE_SIZE);
+
+  private final HpackEncoder encoder = new HpackEncoder();
+
+  private volatile boolean goingAway = false;
+
+  /**
+   * The fragments of the header block that is continued with CONTINUATION frames, or null.
+   */
+  private ByteBuffer headerBlock;
+
+  private boolean headerBlockEndStream;
+
+  private int headerBlockStreamId;
+
+  /**
+   * The bytes that were read from the socket but do not form a complete frame yet.
+   */
+  private final ByteBuffer input = ByteBuffer
+      .allocate(Http2Connection.FRAME_HEADER_LENGTH + Http2Connection.DEFAULT_MAX_FRAME_SIZE);
+
+  private final int maxHeaderListSize;
+
+  private int nextStreamId = 1;
+
+  private int peerInitialWindowSize = Http2Connection.DEFAULT_WINDOW_SIZE;
+
+  private int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+
+  private int peerMaxFrameSize = Http2Connection.DEFAULT_MAX_FRAME_SIZE;
+
+  /**
+   * The streams that wait until the number of concurrent streams goes below the limit of the
+   * server.
+   */
+  private final ArrayDeque<Http2Stream> queuedStreams = new ArrayDeque<>();
+
+  private final Http1Connection socket;
+
+  private final Map<Integer, Http2Stream> streams = new HashMap<>();
+
+  private final int streamReceiveWindowSize;
+
+  /**
+   * Constructor.
+   *
+   * @param socket
+   *          The connected socket connection.
+   * @param bufferPool
+   *          The pool that the buffers of the frames are leased from.
+   * @param streamReceiveWindowSize
+   *          The flow control window of the streams: the number of bytes that the server can send
+   *          on a stream before the listener of the response body processes them.
+   * @param maxHeaderListSize
+   *          The maximum size of the header fields of a response.
+   */
+  Http2Connection(Http1Connection socket, ByteBufferPool bufferPool, int streamReceiveWindowSize,
+      int maxHeaderListSize) {
+    this.socket = Objects.requireNonNull(socket);
+    this.bufferPool = Objects.requireNonNull(bufferPool);
+    this.streamReceiveWindowSize = streamReceiveWindowSize;
+    this.maxHeaderListSize = maxHeaderListSize;
+    // The connection window is shared by the streams, so it is bigger than the window of a stream
+    final int streamsPerConnectionWindow = 16;
+    this.connectionReceiveWindowSize = (int) Math.min(Integer.MAX_VALUE,
+        Math.max(Http2Connection.DEFAULT_WINDOW_SIZE,
+            (long) streamReceiveWindowSize * streamsPerConnectionWindow));
+  }
+
+  private ByteBuffer acquireFrame(int type, int flags, int streamId, int payloadLength) {
+    ByteBuffer frame =
+        this.bufferPool.acquire(Http2Connection.FRAME_HEADER_LENGTH + payloadLength, true);
+    Http2Connection.putFrameHeader(frame, type, flags, streamId, payloadLength);
+    return frame;
+  }
+
+  private static void putFrameHeader(ByteBuffer frame, int type, int flags, int streamId,
+      int payloadLength) {
+    frame.put((byte) (payloadLength >>> (2 * Http2Connection.OCTET_BITS)))
+        .put((byte) (payloadLength >>> Http2Connection.OCTET_BITS))
+        .put((byte) payloadLength)
+        .put((byte) type)
+        .put((byte) flags)
+        .putInt(streamId);
+  }
+
+  private void appendHeaderBlockFragment(ByteBuffer fragment) throws ConnectionError {
+    if (this.headerBlock.remaining() < fragment.remaining()) {
+      int size = this.headerBlock.position() + fragment.remaining();
+      if (size > this.maxHeaderListSize) {
+        throw new ConnectionError(Http2Connection.ERROR_PROTOCOL,
+            "Header block is larger than " + this.maxHeaderListSize);
+      }
+      ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, this.headerBlock.capacity() * 2));
+      this.headerBlock.flip();
+      bigger.put(this.headerBlock);
+      this.headerBlock = bigger;
+    }
+    this.headerBlock.put(fragment);
+  }
+
+  /**
+   * Closes the connection and fails its streams.
+   *
+   * @param cause
+   *          The reason of closing the connection.
+   */
+  void close(Throwable cause) {
+    if (!terminate(cause)) {
+      return;
+    }
+    this.socket.close(cause);
+  }
+
+  /**
+   * Gives back the bytes that the listener of a response body processed to the connection
+   * receive window. The window of the stream is handled by the stream.
+   *
+   * @param bytes
+   *          The number of processed bytes, including the padding of the DATA frames.
+   */
+  void consumed(int bytes) {
+    if (this.closeCause != null || bytes == 0) {
+      return;
+    }
+    this.connectionReceiveUnacknowledged += bytes;
+    if (this.connectionReceiveUnacknowledged >= this.connectionReceiveWindowSize / 2) {
+      writeWindowUpdate(0, this.connectionReceiveUnacknowledged);
+      this.connectionReceiveWindow += this.connectionReceiveUnacknowledged;
+      this.connectionReceiveUnacknowledged = 0;
+    }
+  }
+
+  private void decodeHeaderBlock(int streamId, boolean endStream, ByteBuffer block)
+      throws ConnectionError {
+    List<String[]> headers;
+    try {
+      headers = this.decoder.decode(block);
+    } catch (ProtocolException e) {
+      ConnectionError error = new ConnectionError(Http2Connection.ERROR_COMPRESSION,
+          "Invalid HPACK header block: " + e.getMessage());
+      error.initCause(e);
+      throw error;
+    }
+
+    Http2Stream stream = this.streams.get(streamId);
+    if (stream == null) {
+      // The block was decoded anyway, as it changes the dynamic table
+      if (streamId >= this.nextStreamId) {
+        throw new ConnectionError(Http2Connection.ERROR_PROTOCOL,
+            "HEADERS frame on idle stream " + streamId);
+      }
+      return;
+    }
+    stream.onHeaders(headers, endStream);
+  }
+
+  /**
+   * Returns the pool that the buffers of the connection are leased from.
+   */
+  ByteBufferPool getBufferPool() {
+    return this.bufferPool;
+  }
+
+  EventLoop getEventLoop() {
+    return this.socket.getEventLoop();
+  }
+
+  /**
+   * Returns the maximum size of the payload of a frame that the server accepts.
+   */
+  int getMaxFrameSize() {
+    return this.peerMaxFrameSize;
+  }
+
+  /**
+   * Returns the number of bytes that can be sent on the connection before the server enlarges the
+   * connection window.
+   */
+  long getSendWindow() {
+    return this.connectionSendWindow;
+  }
+
+  /**
+   * Closes the connection with a GOAWAY frame.
+   */
+  private void goAway(int errorCode, Throwable cause) {
+    if (!terminate(cause)) {
+      return;
+    }
+    String message = String.valueOf(cause.getMessage());
+    byte[] debugData = message.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = acquireFrame(Http2Connection.TYPE_GOAWAY, 0, 0,
+        Http2Connection.GOAWAY_LENGTH + debugData.length);
+    frame.putInt(0).putInt(errorCode).put(debugData).flip();
+    writeFrame(frame, new AsyncCallback() {
+
+      @Override
+      public void failed(Throwable e) {
+        // The socket is closed already
+      }
+
+      @Override
+      public void processed() {
+        Http2Connection.this.socket.close(cause);
+      }
+    });
+  }
+
+  /**
+   * Returns whether new streams can be opened on the connection: it is not closed and the server
+   * did not send GOAWAY. Unlike the other functions, this one can be called from any thread.
+   */
+  boolean isUsable() {
+    return this.closeCause == null && !this.goingAway;
+  }
+
+  private void onContinuation(int flags, int streamId, ByteBuffer payload) throws ConnectionError {
+    if (this.headerBlock == null || streamId != this.headerBlockStreamId) {
+      throw new ConnectionError(Http2Connection.ERROR_PROTOCOL, "Unexpected CONTINUATION frame");
+    }
+    appendHeaderBlockFragment(payload);
+    if ((flags & Http2Connection.FLAG_END_HEADERS) != 0) {
+      ByteBuffer block = this.headerBlock;
+      this.headerBlock = null;
+      block.flip();
+      decodeHeaderBlock(streamId, this.headerBlockEndStream, block);
+    }
+  }
+
+  private void onData(int flags, int streamId, ByteBuffer payload) throws ConnectionError {
+    if (streamId == 0) {
+      throw new ConnectionError(Http2Connection.ERROR_PROTOCOL, "DATA frame on stream 0");
+    }
+    int length = payload.remaining();
+    ByteBuffer data = unpad(flags, payload);
+
+    this.connectionReceiveWindow -= length;
+    if (this.connectionReceiveWindow < 0) {
+      throw new ConnectionError(Http2Connection.ERROR_FLOW_CONTROL,
+          "Server exceeded the connection flow control window");
+    }
+
+    Http2Stream stream = this.streams.get(streamId);
+    if (stream == null) {
+      if (streamId >= this.nextStreamId) {
+        throw new ConnectionError(Http2Connection.ERROR_PROTOCOL,
+            "DATA frame on idle stream " + streamId);
+      }
+      // The frame of a closed stream still counts in the connection window
+      consumed(length);
+      return;
+    }
+
+    ByteBuffer copy = null;
+    if (data.hasRemaining()) {
+      copy = this.bufferPool.acquire(data.remaining(), true);
+      copy.put(data).flip();
+    }
+    stream.onData(copy, length, (flags & Http2Connection.FLAG_END_STREAM) != 0);
+  }
+
+  private void onFrame(int type, int flags, int streamId, ByteBuffer payload)
+      throws ConnectionError {
+    if (this.headerBlock != null && type != Http2Connection.TYPE_CONTINUATION) {
+      throw new ConnectionError(Http2Connection.ERROR_PROTOCOL,
+          "Header block is interrupted by a frame of type " + type);
+    }
+    switch (type) {
+      case TYPE_DATA:
+        onData(flags, streamId, payload);
+        break;
+      case TYPE_HEADERS:
+        onHeaders(flags, streamId, payload);
+        break;
+      case TYPE_RST_STREAM:
+        onRstStream(streamId, payload);
+        break;
+      case TYPE_SETTINGS:
+        onSettings(flags, streamId, payload);
+        break;
+      case TYPE_PUSH_PROMISE:
+        throw new ConnectionError(Http2Connection.ERROR_PROTOCOL,
+            "PUSH_PROMISE frame although server push is disabled");
+      case TYPE_PING:
+        onPing(flags, streamId, payload);
+        break;
+      case TYPE_GOAWAY:
+        onGoAway(streamId, payload);
+        break;
+      case TYPE_WINDOW_UPDATE:
+        onWindowUpdate(streamId, payload);
+        break;
+      case TYPE_CONTINUATION:
+        onContinuation(flags, streamId, payload);
+        break;
+      default:
+        // PRIORITY frames and unknown frame types are ignored
+        break;
+    }
+  }
+
+  private void onGoAway(int streamId, ByteBuffer payload) throws ConnectionError {
+    if (streamId != 0) {
+      throw new ConnectionError(Http2Connection.ERROR_PROTOCOL, "GOAWAY frame on a stream");
+    }
+    if (payload.remaining() < Http2Connection.GOAWAY_LENGTH) {
+      throw new ConnectionError(Http2Connection.ERROR_FRAME_SIZE, "Invalid GOAWAY frame size");
+    }
+    int lastStreamId = payload.getInt() & Http2Connection.STREAM_ID_MASK;
+    int errorCode = payload.getInt();
+    this.goingAway = true;
+
+    IOException refusal = new IOException(
+        "Server sent GOAWAY with error code " + errorCode + ", the stream was not processed");
+    List<Http2Stream> refused = new ArrayList<>(this.queuedStreams);
+    this.queuedStreams.clear();
+    for (Http2Stream stream : this.streams.values()) {
+      if (stream.getId() > lastStreamId) {
+        refused.add(stream);
+      }
+    }
+    for (Http2Stream stream : refused) {
+      stream.onRefused(refusal);
+    }
+    if (this.streams.isEmpty()) {
+      close(new ClosedChannelException());
+    }
+  }
+
+  private void onHeaders(int flags, int streamId, ByteBuffer payload) throws ConnectionError {
+    if (streamId == 0) {
+      throw new ConnectionError(Http2Connection.ERROR_PROTOCOL, "HEADERS frame on stream 0");
+    }
+    ByteBuffer block = unpad(flags, payload);
+    if ((flags & Http2Connection.FLAG_PRIORITY) != 0) {
+      if (block.remaining() < Http2Connection.PRIORITY_LENGTH) {
+        throw new ConnectionError(Http2Connection.ERROR_FRAME_SIZE, "HEADERS frame is too short");
+      }
+      block.position(block.position() + Http2Connection.PRIORITY_LENGTH);
+    }
+
+    boolean endStream = (flags & Http2Connection.FLAG_END_STREAM) != 0;
+    if ((flags & Http2Connection.FLAG_END_HEADERS) != 0) {
+      decodeHeaderBlock(streamId, endStream, block);
+      return;
+    }
+    this.headerBlock = ByteBuffer.allocate(block.remaining() * 2);
+    this.headerBlockStreamId = streamId;
+    this.headerBlockEndStream = endStream;
+    appendHeaderBlockFragment(block);
+  }
+
+  private void onPing(int flags, int streamId, ByteBuffer payload) throws ConnectionError {
+    if (streamId != 0) {
+      throw new ConnectionError(Http2Connection.ERROR_PROTOCOL, "PING frame on a stream");
+    }
+    if (payload.remaining() != Http2Connection.PING_LENGTH) {
+      throw new ConnectionError(Http2Connection.ERROR_FRAME_SIZE, "Invalid PING frame size");
+    }
+    if ((flags & Http2Connection.FLAG_ACK) == 0) {
+      ByteBuffer frame = acquireFrame(Http2Connection.TYPE_PING, Http2Connection.FLAG_ACK, 0,
+          Http2Connection.PING_LENGTH);
+      frame.put(payload).flip();
+      writeFrame(frame, null);
+    }
+  }
+
+  private void onRstStream(int streamId, ByteBuffer payload) throws ConnectionError {
+    if (streamId == 0) {
+      throw new ConnectionError(Http2Connection.ERROR_PROTOCOL, "RST_STREAM frame on stream 0");
+    }
+    if (payload.remaining() != Http2Connection.WINDOW_UPDATE_LENGTH) {
+      throw new ConnectionError(Http2Connection.ERROR_FRAME_SIZE,
+          "Invalid RST_STREAM frame size");
+    }
+    Http2Stream stream = this.streams.get(streamId);
+    if (stream != null) {
+      stream.onReset(payload.getInt());
+    }
+  }
+
+  private void onSettings(int flags, int streamId, ByteBuffer payload) throws ConnectionError {
+    if (streamId != 0) {
+      throw new ConnectionError(Http2Connection.ERROR_PROTOCOL, "SETTINGS frame on a stream");
+    }
+    if ((flags & Http2Connection.FLAG_ACK) != 0) {
+      if (payload.hasRemaining()) {
+        throw new ConnectionError(Http2Connection.ERROR_FRAME_SIZE,
+            "SETTINGS acknowledgement with payload");
+      }
+      return;
+    }
+    if (payload.remaining() % Http2Connection.SETTING_LENGTH != 0) {
+      throw new ConnectionError(Http2Connection.ERROR_FRAME_SIZE, "Invalid SETTINGS frame size");
+    }
+
+    while (payload.hasRemaining()) {
+      int id = payload.getShort() & ((1 << (2 * Http2Connection.OCTET_BITS)) - 1);
+      int value = payload.getInt();
+      switch (id) {
+        case SETTING_HEADER_TABLE_SIZE:
+          this.encoder.setHeaderTableSize(value < 0 ? Integer.MAX_VALUE : value);
+          break;
+        case SETTING_ENABLE_PUSH:
+          if (value != 0 && value != 1) {
+            throw new ConnectionError(Http2Connection.ERROR_PROTOCOL,
+                "Invalid SETTINGS_ENABLE_PUSH: " + value);
+          }
+          break;
+        case SETTING_MAX_CONCURRENT_STREAMS:
+          this.peerMaxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+          break;
+        case SETTING_INITIAL_WINDOW_SIZE:
+          updateInitialWindowSize(value);
+          break;
+        case SETTING_MAX_FRAME_SIZE:
+          if (value < Http2Connection.DEFAULT_MAX_FRAME_SIZE
+              || value > Http2Connection.MAX_ALLOWED_FRAME_SIZE) {
+            throw new ConnectionError(Http2Connection.ERROR_PROTOCOL,
+                "Invalid SETTINGS_MAX_FRAME_SIZE: " + value);
+          }
+          this.peerMaxFrameSize = value;
+          break;
+        default:
+          // SETTINGS_MAX_HEADER_LIST_SIZE is advisory, unknown settings are ignored
+          break;
+      }
+    }
+
+    ByteBuffer ack = acquireFrame(Http2Connection.TYPE_SETTINGS, Http2Connection.FLAG_ACK, 0, 0);
+    ack.flip();
+    writeFrame(ack, null);
+
+    openQueuedStreams();
+    resumeSending();
+  }
+
+  private void onWindowUpdate(int streamId, ByteBuffer payload) throws ConnectionError {
+    if (payload.remaining() != Http2Connection.WINDOW_UPDATE_LENGTH) {
+      throw new ConnectionError(Http2Connection.ERROR_FRAME_SIZE,
+          "Invalid WINDOW_UPDATE frame size");
+    }
+    int increment = payload.getInt() & Http2Connection.STREAM_ID_MASK;
+    if (streamId != 0) {
+      Http2Stream stream = this.streams.get(streamId);
+      if (stream != null) {
+        stream.onWindowUpdate(increment);
+      }
+      return;
+    }
+
+    if (increment == 0) {
+      throw new ConnectionError(Http2Connection.ERROR_PROTOCOL,
+          "WINDOW_UPDATE with zero increment");
+    }
+    this.connectionSendWindow += increment;
+    if (this.connectionSendWindow > Integer.MAX_VALUE) {
+      throw new ConnectionError(Http2Connection.ERROR_FLOW_CONTROL,
+          "Connection flow control window overflow");
+    }
+    resumeSending();
+  }
+
+  private void open(Http2Stream stream) {
+    int id = this.nextStreamId;
+    this.nextStreamId += 2;
+    this.streams.put(id, stream);
+    stream.open(id, this.peerInitialWindowSize, this.streamReceiveWindowSize);
+  }
+
+  /**
+   * Opens the queued streams as long as the limit of the server allows.
+   */
+  private void openQueuedStreams() {
+    while (!this.queuedStreams.isEmpty() && this.closeCause == null
+        && this.streams.size() < this.peerMaxConcurrentStreams) {
+      open(this.queuedStreams.poll());
+    }
+  }
+
+  private void process(ByteBuffer buffer) throws ConnectionError {
+    while (buffer.hasRemaining() && this.closeCause == null) {
+      int length = Math.min(buffer.remaining(), this.input.remaining());
+      ByteBuffer part = buffer.duplicate();
+      part.limit(part.position() + length);
+      this.input.put(part);
+      buffer.position(buffer.position() + length);
+
+      this.input.flip();
+      try {
+        processFrames();
+      } finally {
+        this.input.compact();
+      }
+    }
+  }
+
+  private void processFrames() throws ConnectionError {
+    while (this.closeCause == null
+        && this.input.remaining() >= Http2Connection.FRAME_HEADER_LENGTH) {
+      int position = this.input.position();
+      int length = (this.input.get(position) & Http2Connection.OCTET_MASK)
+          << (2 * Http2Connection.OCTET_BITS)
+          | (this.input.get(position + 1) & Http2Connection.OCTET_MASK)
+              << Http2Connection.OCTET_BITS
+          | this.input.get(position + 2) & Http2Connection.OCTET_MASK;
+      if (length > Http2Connection.DEFAULT_MAX_FRAME_SIZE) {
+        throw new ConnectionError(Http2Connection.ERROR_FRAME_SIZE,
+            "Frame is larger than the maximum frame size: " + length);
+      }
+      if (this.input.remaining() < Http2Connection.FRAME_HEADER_LENGTH + length) {
+        return;
+      }
+
+      int type = this.input.get(position + 3) & Http2Connection.OCTET_MASK;
+      int flags = this.input.get(position + 4) & Http2Connection.OCTET_MASK;
+      int streamId = this.input.getInt(position + 5) & Http2Connection.STREAM_ID_MASK;
+      ByteBuffer payload = this.input.duplicate();
+      payload.limit(position + Http2Connection.FRAME_HEADER_LENGTH + length)
+          .position(position + Http2Connection.FRAME_HEADER_LENGTH);
+      this.input.position(position + Http2Connection.FRAME_HEADER_LENGTH + length);
+      onFrame(type, flags, streamId, payload.slice());
+    }
+  }
+
+  /**
+   * Resets a stream.
+   *
+   * @param streamId
+   *          The identifier of the stream.
+   * @param errorCode
+   *          The reason of the reset.
+   */
+  void resetStream(int streamId, int errorCode) {
+    if (this.closeCause != null) {
+      return;
+    }
+    ByteBuffer frame = acquireFrame(Http2Connection.TYPE_RST_STREAM, 0, streamId,
+        Http2Connection.WINDOW_UPDATE_LENGTH);
+    frame.putInt(errorCode).flip();
+    writeFrame(frame, null);
+  }
+
+  /**
+   * Lets the streams send the parked parts of their request bodies after a send window grew.
+   */
+  private void resumeSending() {
+    for (Http2Stream stream : new ArrayList<>(this.streams.values())) {
+      if (this.connectionSendWindow <= 0) {
+        return;
+      }
+      stream.resumeSending();
+    }
+  }
+
+  /**
+   * Closes the connection gracefully: sends GOAWAY and closes the socket. The streams that are in
+   * progress fail.
+   */
+  void shutdown() {
+    goAway(Http2Connection.ERROR_NO_ERROR, new ClosedChannelException());
+  }
+
+  /**
+   * Sends the connection preface and starts reading the frames of the server. The requests may be
+   * sent right after this call without waiting for the settings of the server.
+   */
+  void start() {
+    final int settingCount = 3;
+    ByteBuffer preface = this.bufferPool.acquire(Http2Connection.PREFACE.length
+        + 2 * Http2Connection.FRAME_HEADER_LENGTH + settingCount * Http2Connection.SETTING_LENGTH
+        + Http2Connection.WINDOW_UPDATE_LENGTH, true);
+    preface.put(Http2Connection.PREFACE);
+    Http2Connection.putFrameHeader(preface, Http2Connection.TYPE_SETTINGS, 0, 0,
+        settingCount * Http2Connection.SETTING_LENGTH);
+    preface.putShort((short) Http2Connection.SETTING_ENABLE_PUSH).putInt(0)
+        .putShort((short) Http2Connection.SETTING_INITIAL_WINDOW_SIZE)
+        .putInt(this.streamReceiveWindowSize)
+        .putShort((short) Http2Connection.SETTING_MAX_HEADER_LIST_SIZE)
+        .putInt(this.maxHeaderListSize);
+    int connectionWindowIncrement =
+        this.connectionReceiveWindowSize - Http2Connection.DEFAULT_WINDOW_SIZE;
+    if (connectionWindowIncrement > 0) {
+      Http2Connection.putFrameHeader(preface, Http2Connection.TYPE_WINDOW_UPDATE, 0, 0,
+          Http2Connection.WINDOW_UPDATE_LENGTH);
+      preface.putInt(connectionWindowIncrement);
+      this.connectionReceiveWindow += connectionWindowIncrement;
+    }
+    preface.flip();
+    writeFrame(preface, null);
+
+    new FrameReader().readNext();
+  }
+
+  /**
+   * Opens a stream on the connection, or queues it if the server does not allow more concurrent
+   * streams. If the connection cannot open streams anymore, the stream is refused.
+   *
+   * @param stream
+   *          The stream to open.
+   */
+  void startStream(Http2Stream stream) {
+    if (!isUsable()) {
+      Throwable cause = this.closeCause;
+      stream.onRefused(cause != null ? cause : new IOException("Server sent GOAWAY"));
+    } else if (this.streams.size() < this.peerMaxConcurrentStreams) {
+      open(stream);
+    } else {
+      this.queuedStreams.add(stream);
+    }
+  }
+
+  /**
+   * Removes a closed stream from the connection, so another stream can be opened instead of it.
+   *
+   * @param stream
+   *          The stream that is closed or that was not opened.
+   */
+  void streamClosed(Http2Stream stream) {
+    if (stream.getId() == 0) {
+      this.queuedStreams.remove(stream);
+      return;
+    }
+    this.streams.remove(stream.getId());
+    if (this.goingAway && this.streams.isEmpty()) {
+      close(new ClosedChannelException());
+    } else {
+      openQueuedStreams();
+    }
+  }
+
+  /**
+   * Marks the connection closed and fails the streams.
+   *
+   * @return Whether the connection was open.
+   */
+  private boolean terminate(Throwable cause) {
+    if (this.closeCause != null) {
+      return false;
+    }
+    this.closeCause = Objects.requireNonNull(cause);
+
+    List<Http2Stream> queued = new ArrayList<>(this.queuedStreams);
+    this.queuedStreams.clear();
+    List<Http2Stream> open = new ArrayList<>(this.streams.values());
+    this.streams.clear();
+    for (Http2Stream stream : queued) {
+      stream.onRefused(cause);
+    }
+    for (Http2Stream stream : open) {
+      stream.onConnectionClosed(cause);
+    }
+    return true;
+  }
+
+  private ByteBuffer unpad(int flags, ByteBuffer payload) throws ConnectionError {
+    if ((flags & Http2Connection.FLAG_PADDED) == 0) {
+      return payload;
+    }
+    if (!payload.hasRemaining()) {
+      throw new ConnectionError(Http2Connection.ERROR_FRAME_SIZE, "Padded frame without length");
+    }
+    int padLength = payload.get() & Http2Connection.OCTET_MASK;
+    if (padLength > payload.remaining()) {
+      throw new ConnectionError(Http2Connection.ERROR_PROTOCOL,
+          "Padding is longer than the frame");
+    }
+    payload.limit(payload.limit() - padLength);
+    return payload;
+  }
+
+  private void updateInitialWindowSize(int value) throws ConnectionError {
+    if (value < 0) {
+      throw new ConnectionError(Http2Connection.ERROR_FLOW_CONTROL,
+          "Invalid SETTINGS_INITIAL_WINDOW_SIZE: " + value);
+    }
+    int delta = value - this.peerInitialWindowSize;
+    this.peerInitialWindowSize = value;
+    for (Http2Stream stream : this.streams.values()) {
+      if (!stream.updateSendWindow(delta)) {
+        throw new ConnectionError(Http2Connection.ERROR_FLOW_CONTROL,
+            "Stream flow control window overflow");
+      }
+    }
+  }
+
+  /**
+   * Writes a DATA frame. The connection send window is decreased with the size of the data; the
+   * caller must check that the windows allow sending it.
+   *
+   * @param streamId
+   *          The identifier of the stream.
+   * @param data
+   *          The payload of the frame.
+   * @param endStream
+   *          Whether this is the last frame of the request body.
+   * @param callback
+   *          Notified when the frame is written, or null.
+   */
+  void writeData(int streamId, ByteBuffer data, boolean endStream, AsyncCallback callback) {
+    this.connectionSendWindow -= data.remaining();
+    ByteBuffer header =
+        acquireFrame(Http2Connection.TYPE_DATA, endStream ? Http2Connection.FLAG_END_STREAM : 0,
+            streamId, data.remaining());
+    header.flip();
+    this.socket.write(new ByteBuffer[] { header, data },
+        new FrameWriteCallback(header, callback));
+  }
+
+  private void writeFrame(ByteBuffer frame, AsyncCallback callback) {
+    this.socket.write(new ByteBuffer[] { frame }, new FrameWriteCallback(frame, callback));
+  }
+
+  /**
+   * Encodes and writes the header block of a request in a HEADERS frame and as many CONTINUATION
+   * frames as needed.
+   *
+   * @param streamId
+   *          The identifier of the stream.
+   * @param headers
+   *          The header fields; every element is a lower case name and a value.
+   * @param endStream
+   *          Whether the request has no body.
+   * @throws IllegalArgumentException
+   *           if a header field cannot be encoded.
+   */
+  void writeHeaders(int streamId, List<String[]> headers, boolean endStream) {
+    byte[] block = this.encoder.encode(headers);
+    int frameCount =
+        Math.max(1, (block.length + this.peerMaxFrameSize - 1) / this.peerMaxFrameSize);
+    ByteBuffer frames = this.bufferPool
+        .acquire(block.length + frameCount * Http2Connection.FRAME_HEADER_LENGTH, true);
+    int offset = 0;
+    for (int i = 0; i < frameCount; i++) {
+      int length = Math.min(this.peerMaxFrameSize, block.length - offset);
+      int flags = i == frameCount - 1 ? Http2Connection.FLAG_END_HEADERS : 0;
+      int type = Http2Connection.TYPE_CONTINUATION;
+      if (i == 0) {
+        type = Http2Connection.TYPE_HEADERS;
+        flags |= endStream ? Http2Connection.FLAG_END_STREAM : 0;
+      }
+      Http2Connection.putFrameHeader(frames, type, flags, streamId, length);
+      frames.put(block, offset, length);
+      offset += length;
+    }
+    frames.flip();
+    writeFrame(frames, null);
+  }
+
+  /**
+   * Enlarges the receive window of the server for a stream or, with stream identifier 0, for the
+   * connection.
+   */
+  void writeWindowUpdate(int streamId, int increment) {
+    if (this.closeCause != null) {
+      return;
+    }
+    ByteBuffer frame = acquireFrame(Http2Connection.TYPE_WINDOW_UPDATE, 0, streamId,
+        Http2Connection.WINDOW_UPDATE_LENGTH);
+    frame.putInt(increment).flip();
+    writeFrame(frame, null);
+  }
+}
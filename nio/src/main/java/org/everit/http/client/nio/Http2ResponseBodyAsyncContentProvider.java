@@ -0,0 +1,201 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.everit.http.client.HttpResponseAbortException;
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AbstractAsyncContentProvider;
+import org.everit.http.client.async.ByteBufferPool;
+
+/**
+ * <p>
+ * Provides the DATA frames of an {@link Http2Stream} as chunks. The frames are received
+ * independently of the listener, so they are queued until the listener asks for the next chunk.
+ * </p>
+ *
+ * <p>
+ * When a chunk is released, i.e. the listener called {@link
+ * org.everit.http.client.async.AsyncCallback#processed()}, its bytes are given back to the flow
+ * control windows of the stream and the connection. The server can send only as many bytes as the
+ * window of the stream ahead of the listener, so the queue does not grow beyond the window.
+ * </p>
+ */
+final class Http2ResponseBodyAsyncContentProvider extends AbstractAsyncContentProvider {
+
+  private final ByteBufferPool bufferPool;
+
+  /**
+   * The chunks that were received but not passed to the listener yet. Only accessed from the
+   * thread of the event loop.
+   */
+  private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+
+  private final Optional<Long> contentLength;
+
+  private final Optional<MediaType> contentType;
+
+  /**
+   * Whether the last DATA frame of the stream was received.
+   */
+  private volatile boolean ended = false;
+
+  /**
+   * Whether the end of the body was passed to the listener.
+   */
+  private volatile boolean finished = false;
+
+  /**
+   * The callback of the listener that waits for the next chunk. Only accessed from the thread of
+   * the event loop.
+   */
+  private Consumer<ByteBuffer> nextChunkCallback;
+
+  private final Http2Stream stream;
+
+  /**
+   * Constructor.
+   *
+   * @param stream
+   *          The stream that the body belongs to.
+   * @param contentLength
+   *          The value of the content-length header.
+   * @param contentType
+   *          The value of the content-type header.
+   * @param bufferPool
+   *          The pool that the buffers of the chunks are released to.
+   */
+  Http2ResponseBodyAsyncContentProvider(Http2Stream stream, Optional<Long> contentLength,
+      Optional<MediaType> contentType, ByteBufferPool bufferPool) {
+    this.stream = Objects.requireNonNull(stream);
+    this.contentLength = Objects.requireNonNull(contentLength);
+    this.contentType = Objects.requireNonNull(contentType);
+    this.bufferPool = Objects.requireNonNull(bufferPool);
+  }
+
+  private void deliver() {
+    Consumer<ByteBuffer> callback = this.nextChunkCallback;
+    if (callback == null) {
+      return;
+    }
+    if (!this.chunks.isEmpty()) {
+      this.nextChunkCallback = null;
+      ByteBuffer chunk = this.chunks.poll();
+      try {
+        callback.accept(chunk);
+      } catch (RuntimeException e) {
+        // The listener is called on the event loop, so the provider must handle its errors. The
+        // chunk will not be released, but its bytes must be given back to the connection window.
+        handleErrorFromInput(e);
+        this.stream.consumed(chunk.limit());
+        this.stream.fail(e);
+      }
+    } else if (this.ended) {
+      this.nextChunkCallback = null;
+      this.finished = true;
+      handleSuccess();
+    }
+  }
+
+  @Override
+  protected void doClose() {
+    if (!this.finished && !this.ended && !getFailure().isPresent()) {
+      handleErrorFromInput(new HttpResponseAbortException());
+    }
+    this.stream.runOnEventLoop(() -> {
+      releaseQueuedChunks();
+      this.stream.onResponseBodyClosed();
+    });
+  }
+
+  /**
+   * Marks the end of the body. Must be called on the thread of the event loop.
+   */
+  void end() {
+    this.ended = true;
+    deliver();
+  }
+
+  /**
+   * Fails the body because of an error of the stream or the connection. Must be called on the
+   * thread of the event loop.
+   */
+  void fail(Throwable cause) {
+    releaseQueuedChunks();
+    if (!isClosed() && !this.finished && !getFailure().isPresent()) {
+      handleErrorFromInput(cause);
+    }
+  }
+
+  @Override
+  public Optional<Long> getContentLength() {
+    return this.contentLength;
+  }
+
+  @Override
+  public Optional<MediaType> getContentType() {
+    return this.contentType;
+  }
+
+  /**
+   * Queues the payload of a DATA frame. Must be called on the thread of the event loop.
+   *
+   * @param chunk
+   *          A buffer in read mode that is leased from the pool.
+   */
+  void offer(ByteBuffer chunk) {
+    if (isClosed() || getFailure().isPresent()) {
+      int length = chunk.remaining();
+      this.bufferPool.release(chunk);
+      this.stream.consumed(length);
+      return;
+    }
+    this.chunks.add(chunk);
+    deliver();
+  }
+
+  @Override
+  protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+    this.stream.runOnEventLoop(() -> {
+      this.nextChunkCallback = callback;
+      deliver();
+    });
+  }
+
+  @Override
+  protected void releaseChunk(ByteBuffer chunk) {
+    // The listener may have moved the position, but the limit is the size of the frame
+    int length = chunk.limit();
+    this.bufferPool.release(chunk);
+    this.stream.runOnEventLoop(() -> this.stream.consumed(length));
+  }
+
+  private void releaseQueuedChunks() {
+    int length = 0;
+    ByteBuffer chunk = this.chunks.poll();
+    while (chunk != null) {
+      length += chunk.limit();
+      this.bufferPool.release(chunk);
+      chunk = this.chunks.poll();
+    }
+    this.stream.consumed(length);
+  }
+}
@@ -0,0 +1,785 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.http.client.HttpMethod;
+import org.everit.http.client.HttpRequest;
+import org.everit.http.client.HttpResponse;
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AsyncCallback;
+import org.everit.http.client.async.AsyncContentProvider;
+import org.everit.http.client.pool.ConnectionPool;
+
+import io.reactivex.SingleEmitter;
+
+/**
+ * <p>
+ * One request and response as a stream of an {@link Http2Connection}. The header fields of the
+ * request are sent in one header block when the connection opens the stream, then the request
+ * body is sent in DATA frames: a chunk is split into frames as the send windows of the stream and
+ * the connection allow, and the next chunk is requested from the body only when the last frame of
+ * the previous one is written.
+ * </p>
+ *
+ * <p>
+ * The DATA frames of the response are queued in the response body and the receive window of the
+ * stream is enlarged only when the listener of the body processed them, so a slow listener slows
+ * down the server without blocking the other streams of the connection. The lease of the
+ * connection is released when the request is sent and the response is received; closing the
+ * response body before that resets the stream.
+ * </p>
+ *
+ * <p>
+ * If the server refuses the stream or the connection goes away before the server processed the
+ * stream, the request is sent again on another connection, unless its body was started already.
+ * If the connection fails for another reason, only the idempotent requests without a body are
+ * sent again, and only if the stream was not the first one of the connection.
+ * </p>
+ *
+ * <p>
+ * Every function except {@link #cancel()} must be called from the thread of the event loop.
+ * </p>
+ */
+final class Http2Stream {
+
+  private static final int DEFAULT_HTTP_PORT = 80;
+
+  private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+  private static final Logger LOGGER = Logger.getLogger(Http2Stream.class.getName());
+
+  private static final int MAX_HEADER_CHAR = 0xff;
+
+  /**
+   * The error code of {@link #terminate(Throwable, int, boolean, boolean)} if the stream should
+   * not be reset.
+   */
+  private static final int NO_RESET = -1;
+
+  private static final int STATUS_OK = 200;
+
+  private static void addHeader(List<String[]> headers, String name, String value) {
+    Http2Stream.validateHeaderPart(name);
+    Http2Stream.validateHeaderPart(value);
+    headers.add(new String[] { name, value });
+  }
+
+  /**
+   * Returns whether the method implies that a body is sent even if it is empty, so the length of
+   * the body should be specified.
+   */
+  private static boolean expectsBody(HttpMethod method) {
+    return method == HttpMethod.POST || method == HttpMethod.PUT;
+  }
+
+  /**
+   * Returns whether a header field is specific to an HTTP/1.1 connection, so it must not be sent
+   * in HTTP/2, or it is computed by the stream.
+   */
+  private static boolean isConnectionSpecificHeader(String lowerCaseName, String value) {
+    switch (lowerCaseName) {
+      case "connection":
+      case "content-length":
+      case "host":
+      case "keep-alive":
+      case "proxy-connection":
+      case "transfer-encoding":
+      case "upgrade":
+        return true;
+      case "te":
+        return !"trailers".equalsIgnoreCase(value.trim());
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns whether sending the request more times has the same effect as sending it once, so it
+   * can be retried if the connection failed.
+   */
+  private static boolean isIdempotent(HttpMethod method) {
+    return method == HttpMethod.GET || method == HttpMethod.HEAD || method == HttpMethod.OPTIONS
+        || method == HttpMethod.TRACE || method == HttpMethod.PUT || method == HttpMethod.DELETE;
+  }
+
+  private static Optional<Long> parseContentLength(Map<String, String> headers)
+      throws ProtocolException {
+    String value = headers.get("content-length");
+    if (value == null) {
+      return Optional.empty();
+    }
+    try {
+      long length = Long.parseLong(value);
+      if (length < 0) {
+        throw new ProtocolException("Negative content-length: " + value);
+      }
+      return Optional.of(length);
+    } catch (NumberFormatException e) {
+      ProtocolException protocolException =
+          new ProtocolException("content-length is not a number: " + value);
+      protocolException.initCause(e);
+      throw protocolException;
+    }
+  }
+
+  private static int parseStatus(List<String[]> headers) throws ProtocolException {
+    for (String[] header : headers) {
+      if (":status".equals(header[0])) {
+        try {
+          return Integer.parseInt(header[1]);
+        } catch (NumberFormatException e) {
+          ProtocolException protocolException =
+              new ProtocolException(":status is not a number: " + header[1]);
+          protocolException.initCause(e);
+          throw protocolException;
+        }
+      }
+    }
+    throw new ProtocolException("Response without :status");
+  }
+
+  /**
+   * Checks that a header part can be encoded with HPACK and does not contain characters that
+   * would split it in HTTP/1.1 when a proxy translates the request.
+   */
+  private static void validateHeaderPart(String part) {
+    for (int i = 0, n = part.length(); i < n; i++) {
+      char c = part.charAt(i);
+      if (c == '\r' || c == '\n' || c == 0) {
+        throw new IllegalArgumentException("Header contains a line terminator or NUL: " + part);
+      }
+      if (c > Http2Stream.MAX_HEADER_CHAR) {
+        throw new IllegalArgumentException("Header contains a non ISO-8859-1 character: " + part);
+      }
+    }
+  }
+
+  private final Http2Connection connection;
+
+  private final SingleEmitter<HttpResponse> emitter;
+
+  private final EventLoop eventLoop;
+
+  private Throwable failure;
+
+  /**
+   * The identifier of the stream or zero if the connection did not open it yet.
+   */
+  private int id = 0;
+
+  private final ConnectionPool.Lease<Http2Connection> lease;
+
+  /**
+   * Whether the end of the request was sent.
+   */
+  private boolean localClosed = false;
+
+  /**
+   * The callback of the chunk that waits for the send windows.
+   */
+  private AsyncCallback parkedCallback;
+
+  /**
+   * The chunk of the request body whose remaining bytes wait for the send windows.
+   */
+  private ByteBuffer parkedChunk;
+
+  /**
+   * The processed bytes of the response body that were not given back to the server yet.
+   */
+  private int receiveUnacknowledged = 0;
+
+  private int receiveWindow;
+
+  private int receiveWindowSize;
+
+  /**
+   * Whether the end of the response was received.
+   */
+  private boolean remoteClosed = false;
+
+  private final HttpRequest request;
+
+  private Optional<AsyncContentProvider> requestBody = Optional.empty();
+
+  /**
+   * Whether a chunk of the request body was requested, so the request cannot be sent again.
+   */
+  private boolean requestBodyStarted = false;
+
+  /**
+   * The header block of the request until the stream is opened.
+   */
+  private List<String[]> requestHeaders;
+
+  private Http2ResponseBodyAsyncContentProvider responseBody;
+
+  private boolean responseEmitted = false;
+
+  /**
+   * Whether the final response head was received.
+   */
+  private boolean responseStarted = false;
+
+  private final Runnable retry;
+
+  private long sendWindow;
+
+  private final URI uri;
+
+  /**
+   * Constructor.
+   *
+   * @param request
+   *          The request to send.
+   * @param uri
+   *          The parsed URL of the request.
+   * @param emitter
+   *          The emitter that the response is passed to.
+   * @param lease
+   *          The shared lease of the connection that the stream is opened on.
+   * @param retry
+   *          Sends the request again on another connection if the server did not process it.
+   */
+  Http2Stream(HttpRequest request, URI uri, SingleEmitter<HttpResponse> emitter,
+      ConnectionPool.Lease<Http2Connection> lease, Runnable retry) {
+    this.request = Objects.requireNonNull(request);
+    this.uri = Objects.requireNonNull(uri);
+    this.emitter = Objects.requireNonNull(emitter);
+    this.lease = Objects.requireNonNull(lease);
+    this.connection = lease.getConnection();
+    this.eventLoop = this.connection.getEventLoop();
+    this.retry = Objects.requireNonNull(retry);
+  }
+
+  /**
+   * Returns whether the request can be sent again, as no byte of the request body was consumed.
+   */
+  private boolean canResend() {
+    return !this.requestBodyStarted && !this.emitter.isDisposed();
+  }
+
+  private boolean canRetry(Throwable cause) {
+    // The first stream of a connection is not retried, so a server that always fails the
+    // connection is not called in an endless loop
+    return canResend() && this.id > 1 && !this.responseStarted && cause instanceof IOException
+        && !this.request.getBody().isPresent()
+        && Http2Stream.isIdempotent(this.request.getMethod());
+  }
+
+  /**
+   * Cancels the stream if the response is not emitted yet. Can be called from any thread.
+   */
+  void cancel() {
+    try {
+      runOnEventLoop(() -> {
+        if (!this.responseEmitted) {
+          fail(new CancellationException("Request is cancelled"));
+        }
+      });
+    } catch (RuntimeException e) {
+      Http2Stream.LOGGER.log(Level.FINE, "Event loop is closed, stream is not cancelled", e);
+    }
+  }
+
+  private void closeRequestBody() {
+    if (this.requestBody.isPresent()) {
+      try {
+        this.requestBody.get().close();
+      } catch (RuntimeException e) {
+        Http2Stream.LOGGER.log(Level.WARNING, "Error during closing the request body", e);
+      }
+    }
+  }
+
+  /**
+   * Gives back the bytes that the listener of the response body processed to the receive windows
+   * of the stream and the connection.
+   *
+   * @param bytes
+   *          The number of processed bytes.
+   */
+  void consumed(int bytes) {
+    if (bytes == 0) {
+      return;
+    }
+    this.connection.consumed(bytes);
+    if (this.remoteClosed || this.lease.isEnded()) {
+      return;
+    }
+    this.receiveUnacknowledged += bytes;
+    if (this.receiveUnacknowledged >= this.receiveWindowSize / 2) {
+      this.connection.writeWindowUpdate(this.id, this.receiveUnacknowledged);
+      this.receiveWindow += this.receiveUnacknowledged;
+      this.receiveUnacknowledged = 0;
+    }
+  }
+
+  private List<String[]> encodeRequestHeaders() {
+    List<String[]> headers = new ArrayList<>();
+
+    String path = this.uri.getRawPath();
+    if (path == null || path.isEmpty()) {
+      path = "/";
+    }
+    if (this.uri.getRawQuery() != null) {
+      path += "?" + this.uri.getRawQuery();
+    }
+    Map<String, String> requestHeaders = this.request.getHeaders();
+    String authority = this.uri.getHost();
+    if (this.uri.getPort() >= 0 && this.uri.getPort() != Http2Stream.DEFAULT_HTTP_PORT) {
+      authority += ":" + this.uri.getPort();
+    }
+    Http2Stream.addHeader(headers, ":method", this.request.getMethod().toString());
+    Http2Stream.addHeader(headers, ":scheme", "http");
+    Http2Stream.addHeader(headers, ":authority", requestHeaders.getOrDefault("Host", authority));
+    Http2Stream.addHeader(headers, ":path", path);
+
+    boolean contentTypeSpecified = false;
+    for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+      String name = header.getKey().toLowerCase(Locale.ROOT);
+      if (!Http2Stream.isConnectionSpecificHeader(name, header.getValue())) {
+        contentTypeSpecified |= "content-type".equals(name);
+        Http2Stream.addHeader(headers, name, header.getValue());
+      }
+    }
+
+    if (this.requestBody.isPresent()) {
+      Optional<MediaType> contentType = this.requestBody.get().getContentType();
+      if (!contentTypeSpecified && contentType.isPresent()) {
+        Http2Stream.addHeader(headers, "content-type", contentType.get().toString());
+      }
+      Optional<Long> bodyLength = this.requestBody.get().getContentLength();
+      if (bodyLength.isPresent()) {
+        Http2Stream.addHeader(headers, "content-length", String.valueOf(bodyLength.get()));
+      }
+    } else if (Http2Stream.expectsBody(this.request.getMethod())) {
+      Http2Stream.addHeader(headers, "content-length", "0");
+    }
+
+    // HTTP/2 allows splitting the cookies into separate fields that compress better
+    for (HttpCookie cookie : this.request.getCookies()) {
+      Http2Stream.addHeader(headers, "cookie", cookie.getName() + "=" + cookie.getValue());
+    }
+    return headers;
+  }
+
+  /**
+   * Fails the stream and resets it. The connection stays open. If the response is not emitted
+   * yet, the error is passed to the subscriber of the response, otherwise to the listener of the
+   * response body.
+   *
+   * @param cause
+   *          The reason of the failure.
+   */
+  void fail(Throwable cause) {
+    terminate(cause, Http2Connection.ERROR_CANCEL, false, false);
+  }
+
+  int getId() {
+    return this.id;
+  }
+
+  /**
+   * Called when the connection is closed before the stream ended.
+   */
+  void onConnectionClosed(Throwable cause) {
+    // The cause may belong to another stream of the connection, e.g. a cancellation
+    Throwable ioCause = cause instanceof IOException ? cause
+        : new IOException("Connection closed before the stream ended", cause);
+    terminate(ioCause, Http2Stream.NO_RESET, true, canRetry(ioCause));
+  }
+
+  /**
+   * Called when a DATA frame of the stream is received.
+   *
+   * @param data
+   *          The payload without the padding in a buffer that is leased from the pool of the
+   *          connection, or null if the frame is empty.
+   * @param length
+   *          The length of the frame that counts in the flow control windows.
+   * @param endStream
+   *          Whether this is the last frame of the response.
+   */
+  void onData(ByteBuffer data, int length, boolean endStream) {
+    this.receiveWindow -= length;
+    ProtocolException error = null;
+    int errorCode = Http2Connection.ERROR_PROTOCOL;
+    if (this.receiveWindow < 0) {
+      error = new ProtocolException("Server exceeded the flow control window of the stream");
+      errorCode = Http2Connection.ERROR_FLOW_CONTROL;
+    } else if (!this.responseStarted || this.remoteClosed) {
+      error = new ProtocolException("Unexpected DATA frame");
+    }
+    if (error != null) {
+      if (data != null) {
+        this.connection.getBufferPool().release(data);
+      }
+      this.connection.consumed(length);
+      terminate(error, errorCode, false, false);
+      return;
+    }
+
+    int dataLength = 0;
+    if (data != null) {
+      dataLength = data.remaining();
+      this.responseBody.offer(data);
+    }
+    // The padding is not passed to the listener, so it is processed right away
+    consumed(length - dataLength);
+    if (endStream) {
+      onRemoteClosed();
+    }
+  }
+
+  /**
+   * Called when a header block of the stream is received.
+   *
+   * @param headers
+   *          The decoded header fields.
+   * @param endStream
+   *          Whether this is the last frame of the response.
+   */
+  void onHeaders(List<String[]> headers, boolean endStream) {
+    if (this.responseStarted) {
+      // Trailer fields are not passed to the user
+      if (!endStream || this.remoteClosed) {
+        terminate(new ProtocolException("Trailer fields without the end of the stream"),
+            Http2Connection.ERROR_PROTOCOL, false, false);
+      } else {
+        onRemoteClosed();
+      }
+      return;
+    }
+
+    int status;
+    Map<String, String> responseHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    Optional<Long> contentLength;
+    try {
+      status = Http2Stream.parseStatus(headers);
+      if (status < Http2Stream.STATUS_OK) {
+        if (endStream) {
+          throw new ProtocolException("Interim response with the end of the stream");
+        }
+        // Interim responses are skipped, the final response follows them
+        return;
+      }
+      for (String[] header : headers) {
+        if (!header[0].startsWith(":")) {
+          responseHeaders.merge(header[0], header[1], (previous, next) -> previous + ", " + next);
+        }
+      }
+      contentLength = Http2Stream.parseContentLength(responseHeaders);
+    } catch (ProtocolException e) {
+      terminate(e, Http2Connection.ERROR_PROTOCOL, false, false);
+      return;
+    }
+    this.responseStarted = true;
+
+    Optional<MediaType> contentType =
+        Optional.ofNullable(responseHeaders.get("content-type")).flatMap(value -> {
+          try {
+            return Optional.of(MediaType.parse(value));
+          } catch (IllegalArgumentException e) {
+            return Optional.empty();
+          }
+        });
+    this.responseBody = new Http2ResponseBodyAsyncContentProvider(this, contentLength,
+        contentType, this.connection.getBufferPool());
+
+    HttpResponse response = HttpResponse.builder()
+        .status(status)
+        .headers(responseHeaders)
+        .body(this.responseBody)
+        .build();
+
+    this.responseEmitted = true;
+    if (this.emitter.isDisposed()) {
+      response.close();
+    } else {
+      this.emitter.onSuccess(response);
+    }
+    if (endStream) {
+      onRemoteClosed();
+    }
+  }
+
+  /**
+   * Called when the server did not process the stream, or the connection could not open it.
+   */
+  void onRefused(Throwable cause) {
+    terminate(cause, Http2Stream.NO_RESET, false, canResend());
+  }
+
+  private void onRemoteClosed() {
+    this.remoteClosed = true;
+    this.responseBody.end();
+    releaseLeaseIfDone();
+  }
+
+  private void onRequestSent() {
+    closeRequestBody();
+    this.localClosed = true;
+    releaseLeaseIfDone();
+  }
+
+  /**
+   * Called when the server reset the stream.
+   *
+   * @param errorCode
+   *          The reason of the reset.
+   */
+  void onReset(int errorCode) {
+    if (this.remoteClosed && errorCode == Http2Connection.ERROR_NO_ERROR) {
+      // The server sent the whole response without reading the whole request body
+      this.localClosed = true;
+      releaseParkedChunk(new CancellationException("Server does not read the request body"));
+      closeRequestBody();
+      releaseLeaseIfDone();
+      return;
+    }
+    IOException cause =
+        new IOException("Server reset the stream with error code " + errorCode);
+    boolean refused = errorCode == Http2Connection.ERROR_REFUSED_STREAM;
+    terminate(cause, Http2Stream.NO_RESET, false, refused && canResend());
+  }
+
+  /**
+   * Called when the user closed the response body.
+   */
+  void onResponseBodyClosed() {
+    if (!this.remoteClosed) {
+      terminate(new CancellationException("Response body is closed"),
+          Http2Connection.ERROR_CANCEL, false, false);
+    }
+  }
+
+  /**
+   * Called when the server enlarged the send window of the stream.
+   */
+  void onWindowUpdate(int increment) {
+    if (increment == 0) {
+      terminate(new ProtocolException("WINDOW_UPDATE with zero increment"),
+          Http2Connection.ERROR_PROTOCOL, false, false);
+      return;
+    }
+    if (!updateSendWindow(increment)) {
+      terminate(new ProtocolException("Flow control window of the stream overflowed"),
+          Http2Connection.ERROR_FLOW_CONTROL, false, false);
+      return;
+    }
+    resumeSending();
+  }
+
+  /**
+   * Sends the header block of the request and starts sending the request body. Called by the
+   * connection when the stream can be opened.
+   *
+   * @param streamId
+   *          The identifier of the stream.
+   * @param initialSendWindow
+   *          The initial send window of the streams that the server announced.
+   * @param initialReceiveWindow
+   *          The initial receive window of the streams that the connection announced.
+   */
+  void open(int streamId, int initialSendWindow, int initialReceiveWindow) {
+    this.id = streamId;
+    this.sendWindow = initialSendWindow;
+    this.receiveWindow = initialReceiveWindow;
+    this.receiveWindowSize = initialReceiveWindow;
+
+    List<String[]> headers = this.requestHeaders;
+    this.requestHeaders = null;
+    this.connection.writeHeaders(streamId, headers, !this.requestBody.isPresent());
+    if (this.requestBody.isPresent()) {
+      writeRequestBody();
+    } else {
+      onRequestSent();
+    }
+  }
+
+  private void releaseLeaseIfDone() {
+    if (this.failure != null || this.lease.isEnded() || !this.localClosed
+        || !this.remoteClosed) {
+      return;
+    }
+    this.connection.streamClosed(this);
+    this.lease.release();
+  }
+
+  private void releaseParkedChunk(Throwable cause) {
+    AsyncCallback callback = this.parkedCallback;
+    this.parkedChunk = null;
+    this.parkedCallback = null;
+    if (callback != null) {
+      callback.failed(cause);
+    }
+  }
+
+  /**
+   * Sends the parked part of the request body as far as the send windows allow.
+   */
+  void resumeSending() {
+    while (this.parkedChunk != null) {
+      ByteBuffer chunk = this.parkedChunk;
+      if (!chunk.hasRemaining()) {
+        AsyncCallback callback = this.parkedCallback;
+        this.parkedChunk = null;
+        this.parkedCallback = null;
+        callback.processed();
+        return;
+      }
+
+      long window = Math.min(this.sendWindow, this.connection.getSendWindow());
+      int length = (int) Math.min(Math.min(chunk.remaining(), window),
+          this.connection.getMaxFrameSize());
+      if (length <= 0) {
+        return;
+      }
+      ByteBuffer data = chunk.duplicate();
+      data.limit(data.position() + length);
+      chunk.position(chunk.position() + length);
+      this.sendWindow -= length;
+
+      AsyncCallback callback = null;
+      if (!chunk.hasRemaining()) {
+        // The chunk can be reused by the body when its last frame is written
+        callback = this.parkedCallback;
+        this.parkedChunk = null;
+        this.parkedCallback = null;
+      }
+      this.connection.writeData(this.id, data, false, callback);
+    }
+  }
+
+  /**
+   * Runs the task on the thread of the event loop; immediately if the current thread is the thread
+   * of the event loop.
+   */
+  void runOnEventLoop(Runnable task) {
+    if (this.eventLoop.inEventLoop()) {
+      task.run();
+    } else {
+      this.eventLoop.execute(task);
+    }
+  }
+
+  private void sendChunk(ByteBuffer chunk, AsyncCallback callback) {
+    if (this.failure != null || this.localClosed) {
+      callback.failed(this.failure != null ? this.failure
+          : new CancellationException("Server does not read the request body"));
+      return;
+    }
+    this.parkedChunk = chunk;
+    this.parkedCallback = callback;
+    resumeSending();
+  }
+
+  /**
+   * Validates the request and asks the connection to open the stream. Must be called on the
+   * thread of the event loop.
+   */
+  void start() {
+    this.requestBody = this.request.getBody();
+    try {
+      this.requestHeaders = encodeRequestHeaders();
+    } catch (IllegalArgumentException e) {
+      terminate(e, Http2Stream.NO_RESET, false, false);
+      return;
+    }
+    this.connection.startStream(this);
+  }
+
+  /**
+   * Ends the stream because of a failure.
+   *
+   * @param cause
+   *          The reason of the failure.
+   * @param resetErrorCode
+   *          The error code that the stream is reset with or {@link #NO_RESET}.
+   * @param connectionFailed
+   *          Whether the connection is closed, so the lease is discarded.
+   * @param retry
+   *          Whether the request is sent again instead of notifying the user.
+   */
+  private void terminate(Throwable cause, int resetErrorCode, boolean connectionFailed,
+      boolean retry) {
+    if (this.failure != null) {
+      return;
+    }
+    this.failure = cause;
+    if (!this.lease.isEnded()) {
+      if (this.id != 0 && resetErrorCode != Http2Stream.NO_RESET) {
+        this.connection.resetStream(this.id, resetErrorCode);
+      }
+      this.connection.streamClosed(this);
+      if (connectionFailed) {
+        this.lease.discard();
+      } else {
+        this.lease.release();
+      }
+    }
+    releaseParkedChunk(cause);
+    closeRequestBody();
+
+    if (retry) {
+      this.retry.run();
+    } else if (!this.responseEmitted) {
+      this.emitter.tryOnError(cause);
+    } else if (this.responseBody != null) {
+      this.responseBody.fail(cause);
+    }
+  }
+
+  /**
+   * Changes the send window of the stream.
+   *
+   * @return Whether the window is still in the allowed range.
+   */
+  boolean updateSendWindow(int delta) {
+    this.sendWindow += delta;
+    return this.sendWindow <= Integer.MAX_VALUE;
+  }
+
+  private void writeRequestBody() {
+    this.requestBodyStarted = true;
+    this.requestBody.get()
+        .onError(error -> runOnEventLoop(() -> fail(error)))
+        .onSuccess(() -> runOnEventLoop(() -> {
+          if (this.failure == null && !this.localClosed) {
+            this.connection.writeData(this.id, Http2Stream.EMPTY_BUFFER.duplicate(), true, null);
+            onRequestSent();
+          }
+        }))
+        .onContent((chunk, callback) -> runOnEventLoop(() -> sendChunk(chunk, callback)));
+  }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Generated;
+
+import org.everit.http.client.HttpClient;
+import org.everit.http.client.HttpRequest;
+import org.everit.http.client.HttpResponse;
+import org.everit.http.client.async.AsyncCallback;
+import org.everit.http.client.async.ByteBufferPool;
+import org.everit.http.client.pool.ConnectionPool;
+import org.everit.http.client.pool.ConnectionPoolStatistics;
+
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import io.reactivex.disposables.Disposables;
+import io.reactivex.disposables.SerialDisposable;
+
+/**
+ * <p>
+ * {@link HttpClient} implementation that speaks HTTP/2 over non-blocking socket channels without
+ * any third party HTTP library. The connections are opened without TLS and without upgrading from
+ * HTTP/1.1, so the server must know in advance that it speaks HTTP/2 (h2c with prior knowledge).
+ * </p>
+ *
+ * <p>
+ * Every request is a stream of a connection that is shared by the concurrent requests to the same
+ * server, so a server is usually called on one connection. A new connection is opened only if the
+ * existing ones have as many streams as {@link Builder#maxConcurrentStreams(int)} allows.
+ * </p>
+ *
+ * <p>
+ * The bodies are mapped onto the flow control of HTTP/2: a chunk of the request body is requested
+ * only when the previous one is sent within the windows that the server allows, and the server is
+ * allowed to send more of the response body only when the listener of the body processed the
+ * previous chunks. The size of the window of a stream, i.e. the number of bytes that are received
+ * ahead of the listener, can be set with {@link Builder#initialWindowSize(int)}.
+ * </p>
+ */
+public class NioHttp2Client implements HttpClient {
+
+  /**
+   * Builder to build {@link NioHttp2Client}.
+   */
+  @Generated("SparkTools")
+  public static final class Builder {
+
+    private ByteBufferPool bufferPool = ByteBufferPool.getDefault();
+
+    private final ConnectionPool.Builder connectionPool = ConnectionPool.builder()
+        .maxLeasesPerConnection(NioHttp2Client.DEFAULT_MAX_CONCURRENT_STREAMS);
+
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+    private int initialWindowSize = NioHttp2Client.DEFAULT_INITIAL_WINDOW_SIZE;
+
+    private int maxHeaderListSize = NioHttp2Client.DEFAULT_MAX_HEADER_LIST_SIZE;
+
+    private Builder() {
+    }
+
+    /**
+     * The maximum time that a request waits for a connection if the connection limits are
+     * reached. Default is 30 seconds.
+     */
+    public Builder acquireTimeout(long acquireTimeout, TimeUnit unit) {
+      this.connectionPool.acquireTimeout(acquireTimeout, unit);
+      return this;
+    }
+
+    /**
+     * The pool that the buffers of the connections are leased from. Default is
+     * {@link ByteBufferPool#getDefault()}.
+     */
+    public Builder bufferPool(ByteBufferPool bufferPool) {
+      this.bufferPool = Objects.requireNonNull(bufferPool);
+      return this;
+    }
+
+    /**
+     * Builder method of the builder.
+     *
+     * @return built class
+     */
+    public NioHttp2Client build() {
+      return new NioHttp2Client(this);
+    }
+
+    /**
+     * The number of event loop threads. Default is the number of available processors.
+     */
+    public Builder eventLoopCount(int eventLoopCount) {
+      if (eventLoopCount <= 0) {
+        throw new IllegalArgumentException("Event loop count must be greater than zero");
+      }
+      this.eventLoopCount = eventLoopCount;
+      return this;
+    }
+
+    /**
+     * The time after that a connection without streams is closed. Default is 30 seconds.
+     */
+    public Builder idleTimeout(long idleTimeout, TimeUnit unit) {
+      this.connectionPool.idleTimeout(idleTimeout, unit);
+      return this;
+    }
+
+    /**
+     * The flow control window of the streams: the number of bytes of a response body that the
+     * server can send before the listener of the body processes them. Default is 256 KiB.
+     */
+    public Builder initialWindowSize(int initialWindowSize) {
+      if (initialWindowSize <= 0) {
+        throw new IllegalArgumentException("Initial window size must be greater than zero");
+      }
+      this.initialWindowSize = initialWindowSize;
+      return this;
+    }
+
+    /**
+     * The maximum number of concurrent streams that the client opens on one connection. The
+     * server may allow less. Default is 100.
+     */
+    public Builder maxConcurrentStreams(int maxConcurrentStreams) {
+      this.connectionPool.maxLeasesPerConnection(maxConcurrentStreams);
+      return this;
+    }
+
+    /**
+     * The maximum number of connections to all servers together. Default is 1024.
+     */
+    public Builder maxConnections(int maxConnections) {
+      this.connectionPool.maxConnections(maxConnections);
+      return this;
+    }
+
+    /**
+     * The maximum number of connections to one server address. Default is 64.
+     */
+    public Builder maxConnectionsPerHost(int maxConnectionsPerHost) {
+      this.connectionPool.maxConnectionsPerHost(maxConnectionsPerHost);
+      return this;
+    }
+
+    /**
+     * The maximum size of the compressed header block of a response. Default is 64 KiB.
+     */
+    public Builder maxHeaderListSize(int maxHeaderListSize) {
+      if (maxHeaderListSize <= 0) {
+        throw new IllegalArgumentException("Maximum header list size must be greater than zero");
+      }
+      this.maxHeaderListSize = maxHeaderListSize;
+      return this;
+    }
+  }
+
+  /**
+   * Opens the connections of the pool on the event loops in round robin order and starts HTTP/2
+   * on them.
+   */
+  private final class Http2Connector
+      implements ConnectionPool.Connector<InetSocketAddress, Http2Connection> {
+
+    @Override
+    public void close(Http2Connection connection) {
+      try {
+        connection.getEventLoop().execute(connection::shutdown);
+      } catch (RejectedExecutionException e) {
+        // The event loop closed the connection when it was closed
+      }
+    }
+
+    @Override
+    public Single<Http2Connection> connect(InetSocketAddress address) {
+      return Single.create(emitter -> {
+        EventLoop eventLoop = nextEventLoop();
+        Http1Connection socket = new Http1Connection(eventLoop, NioHttp2Client.this.bufferPool,
+            NioHttp2Client.READ_BUFFER_SIZE);
+        eventLoop.execute(() -> socket.connect(address, new AsyncCallback() {
+
+          @Override
+          public void failed(Throwable e) {
+            emitter.tryOnError(e);
+          }
+
+          @Override
+          public void processed() {
+            Http2Connection connection = new Http2Connection(socket,
+                NioHttp2Client.this.bufferPool, NioHttp2Client.this.initialWindowSize,
+                NioHttp2Client.this.maxHeaderListSize);
+            connection.start();
+            emitter.onSuccess(connection);
+          }
+        }));
+      });
+    }
+
+    @Override
+    public boolean isUsable(Http2Connection connection) {
+      return connection.isUsable();
+    }
+  }
+
+  private static final int DEFAULT_INITIAL_WINDOW_SIZE = 256 * 1024;
+
+  private static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+  private static final int DEFAULT_MAX_HEADER_LIST_SIZE = 64 * 1024;
+
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * Creates builder to build {@link NioHttp2Client}.
+   *
+   * @return created builder
+   */
+  @Generated("SparkTools")
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private static URI parseUri(String url) {
+    URI uri;
+    try {
+      uri = new URI(url);
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Invalid URL: " + url, e);
+    }
+    if (!"http".equalsIgnoreCase(uri.getScheme())) {
+      throw new IllegalArgumentException("Only http URLs are supported: " + url);
+    }
+    if (uri.getHost() == null) {
+      throw new IllegalArgumentException("URL without host: " + url);
+    }
+    return uri;
+  }
+
+  private final ByteBufferPool bufferPool;
+
+  private final ConnectionPool<InetSocketAddress, Http2Connection> connectionPool;
+
+  private final EventLoop[] eventLoops;
+
+  private final int initialWindowSize;
+
+  private final int maxHeaderListSize;
+
+  private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+  /**
+   * Constructor of a client with the default configuration.
+   */
+  public NioHttp2Client() {
+    this(NioHttp2Client.builder());
+  }
+
+  private NioHttp2Client(Builder builder) {
+    this.bufferPool = builder.bufferPool;
+    this.initialWindowSize = builder.initialWindowSize;
+    this.maxHeaderListSize = builder.maxHeaderListSize;
+    this.eventLoops = new EventLoop[builder.eventLoopCount];
+    this.connectionPool = builder.connectionPool.build(new Http2Connector());
+    try {
+      for (int i = 0; i < this.eventLoops.length; i++) {
+        this.eventLoops[i] = new EventLoop("everit-httpclient-nio-h2-" + i);
+      }
+    } catch (IOException e) {
+      close();
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Opens a stream for the request on a connection leased from the pool.
+   *
+   * @param cancellation
+   *          Holds what should be cancelled if the subscriber of the response disposes the
+   *          subscription: the acquisition of the connection first, then the stream.
+   */
+  private void acquireConnectionAndSend(HttpRequest request, URI uri, InetSocketAddress address,
+      SingleEmitter<HttpResponse> emitter, SerialDisposable cancellation) {
+
+    this.connectionPool.acquireShared(address)
+        .doOnSubscribe(cancellation::replace)
+        .subscribe(lease -> {
+          Http2Stream stream = new Http2Stream(request, uri, emitter, lease,
+              () -> acquireConnectionAndSend(request, uri, address, emitter, cancellation));
+          cancellation.replace(Disposables.fromAction(stream::cancel));
+          stream.runOnEventLoop(stream::start);
+        }, emitter::tryOnError);
+  }
+
+  /**
+   * Stops the event loop threads and closes all connections. The requests that are in progress
+   * fail.
+   */
+  @Override
+  public void close() {
+    this.connectionPool.close();
+    for (EventLoop eventLoop : this.eventLoops) {
+      if (eventLoop != null) {
+        eventLoop.close();
+      }
+    }
+  }
+
+  /**
+   * Returns a snapshot of the state and the counters of the connection pool of the client.
+   */
+  public ConnectionPoolStatistics getConnectionPoolStatistics() {
+    return this.connectionPool.getStatistics();
+  }
+
+  private EventLoop nextEventLoop() {
+    int index = Math.floorMod(this.nextEventLoop.getAndIncrement(), this.eventLoops.length);
+    return this.eventLoops[index];
+  }
+
+  @Override
+  public Single<HttpResponse> send(HttpRequest request) {
+    Objects.requireNonNull(request);
+    return Single.create(emitter -> {
+      if (request.getMethod() == null) {
+        throw new IllegalArgumentException("Method of the request is not specified");
+      }
+      URI uri = NioHttp2Client.parseUri(request.getUrl());
+      int port = uri.getPort() >= 0 ? uri.getPort() : uri.toURL().getDefaultPort();
+      InetSocketAddress address = new InetSocketAddress(uri.getHost(), port);
+      if (address.isUnresolved()) {
+        throw new UnknownHostException(uri.getHost());
+      }
+      SerialDisposable cancellation = new SerialDisposable();
+      emitter.setDisposable(cancellation);
+      acquireConnectionAndSend(request, uri, address, emitter, cancellation);
+    });
+  }
+}
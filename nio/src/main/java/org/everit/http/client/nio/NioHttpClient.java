@@ -0,0 +1,392 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Generated;
+
+import org.everit.http.client.HttpClient;
+import org.everit.http.client.HttpMethod;
+import org.everit.http.client.HttpRequest;
+import org.everit.http.client.HttpResponse;
+import org.everit.http.client.async.AsyncCallback;
+import org.everit.http.client.async.ByteBufferPool;
+import org.everit.http.client.pool.ConnectionPool;
+import org.everit.http.client.pool.ConnectionPoolStatistics;
+
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import io.reactivex.disposables.Disposables;
+import io.reactivex.disposables.SerialDisposable;
+
+/**
+ * <p>
+ * {@link HttpClient} implementation that speaks HTTP/1.1 over non-blocking socket channels
+ * without any third party HTTP library. The connections are distributed among a fixed number of
+ * event loop threads, each waiting for the I/O events of its connections with one selector.
+ * </p>
+ *
+ * <p>
+ * The bodies are mapped directly onto the socket: a chunk of the request body is requested only
+ * when the previous one is written to the socket, and the socket is read only when the listener of
+ * the response body asks for the next chunk. The socket is read into direct buffers that are
+ * leased from a {@link ByteBufferPool} and passed to the listener of the response body without
+ * copying.
+ * </p>
+ *
+ * <p>
+ * The connections are kept alive in a {@link ConnectionPool} per server address, so the next
+ * request to the same server reuses the connection that was released last instead of opening a
+ * new one. A connection is released when the response body is read until its end; closing the
+ * response body before that closes the connection. Only the <code>http</code> scheme is supported.
+ * </p>
+ *
+ * <p>
+ * Pipelining can be enabled with {@link Builder#pipelining(int)}: then GET, HEAD and OPTIONS
+ * requests without a body are written on a connection that is still waiting for the responses of
+ * previous requests, saving the round trips. The responses are read in the order of the requests,
+ * so a slow response delays the ones behind it. If the server closes the connection, the requests
+ * that were not answered are sent again on another connection, at most
+ * {@value #MAX_RETRY_COUNT} times per request, so a server that always resets connections with
+ * pipelined requests is not called in an endless loop.
+ * </p>
+ */
+public class NioHttpClient implements HttpClient {
+
+  /**
+   * Builder to build {@link NioHttpClient}.
+   */
+  @Generated("SparkTools")
+  public static final class Builder {
+
+    private ByteBufferPool bufferPool = ByteBufferPool.getDefault();
+
+    private final ConnectionPool.Builder connectionPool = ConnectionPool.builder();
+
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+    private int maxResponseHeadSize = NioHttpClient.DEFAULT_MAX_RESPONSE_HEAD_SIZE;
+
+    private int pipelining = 1;
+
+    private int readBufferSize = NioHttpClient.DEFAULT_READ_BUFFER_SIZE;
+
+    private Builder() {
+    }
+
+    /**
+     * The maximum time that a request waits for a connection if the connection limits are
+     * reached. Default is 30 seconds.
+     */
+    public Builder acquireTimeout(long acquireTimeout, TimeUnit unit) {
+      this.connectionPool.acquireTimeout(acquireTimeout, unit);
+      return this;
+    }
+
+    /**
+     * The pool that the buffers of the connections are leased from. Default is
+     * {@link ByteBufferPool#getDefault()}.
+     */
+    public Builder bufferPool(ByteBufferPool bufferPool) {
+      this.bufferPool = Objects.requireNonNull(bufferPool);
+      return this;
+    }
+
+    /**
+     * Builder method of the builder.
+     *
+     * @return built class
+     */
+    public NioHttpClient build() {
+      return new NioHttpClient(this);
+    }
+
+    /**
+     * The number of event loop threads. Default is the number of available processors.
+     */
+    public Builder eventLoopCount(int eventLoopCount) {
+      if (eventLoopCount <= 0) {
+        throw new IllegalArgumentException("Event loop count must be greater than zero");
+      }
+      this.eventLoopCount = eventLoopCount;
+      return this;
+    }
+
+    /**
+     * The time after that an idle keep-alive connection is closed. Default is 30 seconds.
+     */
+    public Builder idleTimeout(long idleTimeout, TimeUnit unit) {
+      this.connectionPool.idleTimeout(idleTimeout, unit);
+      return this;
+    }
+
+    /**
+     * The maximum number of connections to all servers together. Default is 1024.
+     */
+    public Builder maxConnections(int maxConnections) {
+      this.connectionPool.maxConnections(maxConnections);
+      return this;
+    }
+
+    /**
+     * The maximum number of connections to one server address. Default is 64.
+     */
+    public Builder maxConnectionsPerHost(int maxConnectionsPerHost) {
+      this.connectionPool.maxConnectionsPerHost(maxConnectionsPerHost);
+      return this;
+    }
+
+    /**
+     * The maximum size of the status line and the header fields of a response. Default is 64 KiB.
+     */
+    public Builder maxResponseHeadSize(int maxResponseHeadSize) {
+      if (maxResponseHeadSize <= 0) {
+        throw new IllegalArgumentException("Maximum response head size must be greater than zero");
+      }
+      this.maxResponseHeadSize = maxResponseHeadSize;
+      return this;
+    }
+
+    /**
+     * The maximum number of idempotent requests (GET, HEAD and OPTIONS without a body) that are
+     * sent on one connection before their responses arrive. Default is 1, so pipelining is
+     * disabled.
+     */
+    public Builder pipelining(int maxPipelinedRequests) {
+      this.connectionPool.maxLeasesPerConnection(maxPipelinedRequests);
+      this.pipelining = maxPipelinedRequests;
+      return this;
+    }
+
+    /**
+     * The size of the buffers that the connections are read into. Default is 16 KiB.
+     */
+    public Builder readBufferSize(int readBufferSize) {
+      if (readBufferSize <= 0) {
+        throw new IllegalArgumentException("Read buffer size must be greater than zero");
+      }
+      this.readBufferSize = readBufferSize;
+      return this;
+    }
+  }
+
+  /**
+   * Opens the connections of the pool on the event loops in round robin order.
+   */
+  private final class Http1Connector
+      implements ConnectionPool.Connector<InetSocketAddress, Http1Connection> {
+
+    @Override
+    public void close(Http1Connection connection) {
+      try {
+        connection.getEventLoop().execute(() -> connection.close(new ClosedChannelException()));
+      } catch (RejectedExecutionException e) {
+        // The event loop closed the connection when it was closed
+      }
+    }
+
+    @Override
+    public Single<Http1Connection> connect(InetSocketAddress address) {
+      return Single.create(emitter -> {
+        EventLoop eventLoop = nextEventLoop();
+        Http1Connection connection = new Http1Connection(eventLoop, NioHttpClient.this.bufferPool,
+            NioHttpClient.this.readBufferSize);
+        eventLoop.execute(() -> connection.connect(address, new AsyncCallback() {
+
+          @Override
+          public void failed(Throwable e) {
+            emitter.tryOnError(e);
+          }
+
+          @Override
+          public void processed() {
+            emitter.onSuccess(connection);
+          }
+        }));
+      });
+    }
+
+    @Override
+    public boolean isUsable(Http1Connection connection) {
+      return connection.isReusable();
+    }
+  }
+
+  private static final int DEFAULT_MAX_RESPONSE_HEAD_SIZE = 64 * 1024;
+
+  private static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
+
+  /**
+   * The number of times a request is sent again on another connection after its connection failed
+   * before the response started.
+   */
+  static final int MAX_RETRY_COUNT = 3;
+
+  /**
+   * Creates builder to build {@link NioHttpClient}.
+   *
+   * @return created builder
+   */
+  @Generated("SparkTools")
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private static boolean isPipelinable(HttpRequest request) {
+    HttpMethod method = request.getMethod();
+    return (method == HttpMethod.GET || method == HttpMethod.HEAD
+        || method == HttpMethod.OPTIONS) && !request.getBody().isPresent();
+  }
+
+  private static URI parseUri(String url) {
+    URI uri;
+    try {
+      uri = new URI(url);
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Invalid URL: " + url, e);
+    }
+    if (!"http".equalsIgnoreCase(uri.getScheme())) {
+      throw new IllegalArgumentException("Only http URLs are supported: " + url);
+    }
+    if (uri.getHost() == null) {
+      throw new IllegalArgumentException("URL without host: " + url);
+    }
+    return uri;
+  }
+
+  private final ByteBufferPool bufferPool;
+
+  private final ConnectionPool<InetSocketAddress, Http1Connection> connectionPool;
+
+  private final EventLoop[] eventLoops;
+
+  private final int maxResponseHeadSize;
+
+  private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+  private final boolean pipelining;
+
+  private final int readBufferSize;
+
+  /**
+   * Constructor of a client with the default configuration.
+   */
+  public NioHttpClient() {
+    this(NioHttpClient.builder());
+  }
+
+  private NioHttpClient(Builder builder) {
+    this.bufferPool = builder.bufferPool;
+    this.maxResponseHeadSize = builder.maxResponseHeadSize;
+    this.readBufferSize = builder.readBufferSize;
+    this.pipelining = builder.pipelining > 1;
+    this.eventLoops = new EventLoop[builder.eventLoopCount];
+    this.connectionPool = builder.connectionPool.build(new Http1Connector());
+    try {
+      for (int i = 0; i < this.eventLoops.length; i++) {
+        this.eventLoops[i] = new EventLoop("everit-httpclient-nio-" + i);
+      }
+    } catch (IOException e) {
+      close();
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Sends the request on a connection leased from the pool.
+   *
+   * @param cancellation
+   *          Holds what should be cancelled if the subscriber of the response disposes the
+   *          subscription: the acquisition of the connection first, then the exchange.
+   * @param retryCount
+   *          The number of times the request was sent again already.
+   */
+  private void acquireConnectionAndSend(HttpRequest request, URI uri, InetSocketAddress address,
+      SingleEmitter<HttpResponse> emitter, SerialDisposable cancellation, int retryCount) {
+
+    Single<ConnectionPool.Lease<Http1Connection>> acquisition =
+        this.pipelining && NioHttpClient.isPipelinable(request)
+            ? this.connectionPool.acquireShared(address)
+            : this.connectionPool.acquire(address);
+    acquisition.doOnSubscribe(cancellation::replace)
+        .subscribe(lease -> {
+          Runnable retry = retryCount < NioHttpClient.MAX_RETRY_COUNT
+              ? () -> acquireConnectionAndSend(request, uri, address, emitter, cancellation,
+                  retryCount + 1)
+              : null;
+          Http1Exchange exchange = new Http1Exchange(request, uri, emitter, lease,
+              this.bufferPool, this.maxResponseHeadSize, retry);
+          cancellation.replace(Disposables.fromAction(exchange::cancel));
+          exchange.runOnEventLoop(exchange::start);
+        }, emitter::tryOnError);
+  }
+
+  /**
+   * Stops the event loop threads and closes all connections. The requests that are in progress
+   * fail.
+   */
+  @Override
+  public void close() {
+    this.connectionPool.close();
+    for (EventLoop eventLoop : this.eventLoops) {
+      if (eventLoop != null) {
+        eventLoop.close();
+      }
+    }
+  }
+
+  /**
+   * Returns a snapshot of the state and the counters of the connection pool of the client.
+   */
+  public ConnectionPoolStatistics getConnectionPoolStatistics() {
+    return this.connectionPool.getStatistics();
+  }
+
+  private EventLoop nextEventLoop() {
+    int index = Math.floorMod(this.nextEventLoop.getAndIncrement(), this.eventLoops.length);
+    return this.eventLoops[index];
+  }
+
+  @Override
+  public Single<HttpResponse> send(HttpRequest request) {
+    Objects.requireNonNull(request);
+    return Single.create(emitter -> {
+      if (request.getMethod() == null) {
+        throw new IllegalArgumentException("Method of the request is not specified");
+      }
+      URI uri = NioHttpClient.parseUri(request.getUrl());
+      int port = uri.getPort() >= 0 ? uri.getPort() : uri.toURL().getDefaultPort();
+      InetSocketAddress address = new InetSocketAddress(uri.getHost(), port);
+      if (address.isUnresolved()) {
+        throw new UnknownHostException(uri.getHost());
+      }
+      SerialDisposable cancellation = new SerialDisposable();
+      emitter.setDisposable(cancellation);
+      acquireConnectionAndSend(request, uri, address, emitter, cancellation, 0);
+    });
+  }
+}
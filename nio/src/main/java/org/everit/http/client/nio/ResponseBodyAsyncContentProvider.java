@@ -0,0 +1,266 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.everit.http.client.HttpResponseAbortException;
+import org.everit.http.client.MediaType;
+import org.everit.http.client.async.AbstractAsyncContentProvider;
+import org.everit.http.client.async.ByteBufferPool;
+
+/**
+ * <p>
+ * Provides the bytes of a response body as they are read from the connection. The connection is
+ * read only when the listener asks for the next chunk, so a slow listener stops reading the socket
+ * and the TCP flow control of the connection slows down the server.
+ * </p>
+ *
+ * <p>
+ * The chunks are the read buffers of the connection. If the length of the body is known, the
+ * provider stops at the end of the body; otherwise it provides the bytes until the server closes
+ * the connection. The chunked transfer coding is decoded by a wrapping provider, and this provider
+ * stops reading the connection as soon as the wrapping provider decoded the end of the body.
+ * </p>
+ *
+ * <p>
+ * The bytes that were read after the end of the body belong to the next response of a pipelined
+ * connection, so they are copied and given back to the connection.
+ * </p>
+ */
+final class ResponseBodyAsyncContentProvider extends AbstractAsyncContentProvider {
+
+  /**
+   * Reads the next chunk on the thread of the event loop.
+   */
+  private final class ChunkReader implements Http1Connection.ReadListener {
+
+    private final Consumer<ByteBuffer> callback;
+
+    ChunkReader(Consumer<ByteBuffer> callback) {
+      this.callback = callback;
+    }
+
+    @Override
+    public void onEof() {
+      long remaining = ResponseBodyAsyncContentProvider.this.remaining;
+      if (remaining != ResponseBodyAsyncContentProvider.UNTIL_EOF && remaining > 0) {
+        fail(new EOFException("Connection closed "
+            + remaining + " bytes before the end of the response body"));
+      } else {
+        ResponseBodyAsyncContentProvider.this.eof = true;
+        finish();
+      }
+    }
+
+    @Override
+    public void onFailure(Throwable cause) {
+      fail(cause);
+    }
+
+    @Override
+    public void onRead(ByteBuffer buffer) {
+      provide(buffer, this.callback);
+    }
+  }
+
+  /**
+   * The value of {@link #remaining} if the body lasts until the end of the connection.
+   */
+  static final long UNTIL_EOF = Long.MAX_VALUE;
+
+  private final ByteBufferPool bufferPool;
+
+  private final Optional<Long> contentLength;
+
+  private final Optional<MediaType> contentType;
+
+  /**
+   * Whether the server closed the connection. Only accessed from the thread of the event loop.
+   */
+  private boolean eof = false;
+
+  private final Http1Exchange exchange;
+
+  /**
+   * The bytes of the body that were read together with the response head.
+   */
+  private ByteBuffer pending;
+
+  /**
+   * The number of bytes of the body that are not read yet, or {@link #UNTIL_EOF}.
+   */
+  private volatile long remaining;
+
+  /**
+   * Constructor.
+   *
+   * @param exchange
+   *          The exchange that the body belongs to.
+   * @param pending
+   *          The bytes of the body that were read together with the response head or null.
+   * @param length
+   *          The length of the body or {@link #UNTIL_EOF}.
+   * @param contentLength
+   *          The value of the Content-Length header.
+   * @param contentType
+   *          The value of the Content-Type header.
+   * @param bufferPool
+   *          The pool that the buffers of the chunks are released to.
+   */
+  ResponseBodyAsyncContentProvider(Http1Exchange exchange, ByteBuffer pending, long length,
+      Optional<Long> contentLength, Optional<MediaType> contentType, ByteBufferPool bufferPool) {
+    this.exchange = Objects.requireNonNull(exchange);
+    this.pending = pending;
+    this.remaining = length;
+    this.contentLength = Objects.requireNonNull(contentLength);
+    this.contentType = Objects.requireNonNull(contentType);
+    this.bufferPool = Objects.requireNonNull(bufferPool);
+  }
+
+  @Override
+  protected void doClose() {
+    boolean bodyRead = isBodyRead();
+    if (!bodyRead && !getFailure().isPresent()) {
+      handleErrorFromInput(new HttpResponseAbortException());
+    }
+    this.exchange.runOnEventLoop(() -> {
+      if (bodyRead) {
+        // E.g. the empty body of a HEAD response that is closed without reading it
+        this.exchange.onResponseBodyFinished(isReusable());
+      }
+      releasePending();
+      this.exchange.onResponseBodyClosed();
+    });
+  }
+
+  /**
+   * Fails the body because of an error of the connection or the exchange. Must be called on the
+   * thread of the event loop.
+   */
+  void fail(Throwable cause) {
+    releasePending();
+    if (!isClosed() && !isFinished() && !getFailure().isPresent()) {
+      handleErrorFromInput(cause);
+    }
+  }
+
+  private void finish() {
+    this.remaining = 0;
+    // The connection is released before the listener is notified, so the next request that the
+    // listener sends can reuse it
+    this.exchange.onResponseBodyFinished(isReusable());
+    releasePending();
+    handleSuccess();
+  }
+
+  @Override
+  public Optional<Long> getContentLength() {
+    return this.contentLength;
+  }
+
+  @Override
+  public Optional<MediaType> getContentType() {
+    return this.contentType;
+  }
+
+  /**
+   * Returns whether every byte of the body was read from the connection.
+   */
+  private boolean isBodyRead() {
+    return this.remaining == 0 || this.exchange.isChunkedBodyComplete();
+  }
+
+  private boolean isFinished() {
+    return this.remaining == 0;
+  }
+
+  private boolean isReusable() {
+    return !this.eof;
+  }
+
+  private void provide(ByteBuffer buffer, Consumer<ByteBuffer> callback) {
+    if (this.remaining != ResponseBodyAsyncContentProvider.UNTIL_EOF) {
+      if (buffer.remaining() > this.remaining) {
+        int end = buffer.position() + (int) this.remaining;
+        ByteBuffer excess = buffer.duplicate();
+        excess.position(end);
+        unread(excess);
+        buffer.limit(end);
+      }
+      this.remaining -= buffer.remaining();
+    }
+    try {
+      callback.accept(buffer);
+    } catch (RuntimeException e) {
+      // The listener is called on the event loop, so the provider must handle its errors
+      handleErrorFromInput(e);
+      this.exchange.fail(e);
+    }
+  }
+
+  @Override
+  protected void provideNextChunk(Consumer<ByteBuffer> callback) {
+    this.exchange.runOnEventLoop(() -> {
+      if (isBodyRead()) {
+        finish();
+      } else if (this.pending != null) {
+        ByteBuffer buffer = this.pending;
+        this.pending = null;
+        provide(buffer, callback);
+      } else {
+        this.exchange.getConnection().read(new ChunkReader(callback));
+      }
+    });
+  }
+
+  @Override
+  protected void releaseChunk(ByteBuffer chunk) {
+    if (chunk.hasRemaining() && this.exchange.isChunkedBodyComplete()) {
+      // The chunked decoder consumes every byte until the end of the body, so the rest is the
+      // beginning of the next response. It is given back before the next chunk is asked, so
+      // before the connection is released.
+      ByteBuffer excess = this.bufferPool.acquire(chunk.remaining(), true);
+      excess.put(chunk).flip();
+      this.exchange.runOnEventLoop(() -> this.exchange.getConnection().unread(excess));
+    }
+    this.bufferPool.release(chunk);
+    if (getFailure().isPresent()) {
+      this.exchange.runOnEventLoop(() -> this.exchange.fail(getFailure().get()));
+    }
+  }
+
+  private void releasePending() {
+    if (this.pending != null) {
+      this.bufferPool.release(this.pending);
+      this.pending = null;
+    }
+  }
+
+  /**
+   * Gives a copy of the bytes after the end of the body back to the connection. Must be called on
+   * the thread of the event loop.
+   */
+  private void unread(ByteBuffer excess) {
+    ByteBuffer copy = this.bufferPool.acquire(excess.remaining(), true);
+    copy.put(excess).flip();
+    this.exchange.getConnection().unread(copy);
+  }
+}
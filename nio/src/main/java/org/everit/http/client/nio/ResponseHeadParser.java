@@ -0,0 +1,222 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Incremental parser of the status line and the header fields of an HTTP/1.x response. The head
+ * may arrive in any number of buffers; the parser consumes the buffers only until the end of the
+ * head, so the remaining bytes of the last buffer are the beginning of the body.
+ * </p>
+ *
+ * <p>
+ * Header fields that occur more than once are combined into one value separated by commas. Line
+ * folding and bare LF line terminators are accepted.
+ * </p>
+ */
+final class ResponseHeadParser {
+
+  private static final int INITIAL_CAPACITY = 512;
+
+  private static final int STATUS_CODE_LENGTH = 3;
+
+  private static final String STATUS_LINE_PREFIX = "HTTP/1.";
+
+  private boolean complete = false;
+
+  private byte[] head = new byte[ResponseHeadParser.INITIAL_CAPACITY];
+
+  private Map<String, String> headers;
+
+  private int length = 0;
+
+  /**
+   * The number of bytes in the current line without the line terminator.
+   */
+  private int lineLength = 0;
+
+  private final int maxHeadSize;
+
+  private int minorVersion;
+
+  private String reasonPhrase;
+
+  /**
+   * The number of consumed bytes of the head including the line terminators.
+   */
+  private int size = 0;
+
+  private int status;
+
+  /**
+   * Constructor.
+   *
+   * @param maxHeadSize
+   *          The maximum size of the head in bytes.
+   */
+  ResponseHeadParser(int maxHeadSize) {
+    this.maxHeadSize = maxHeadSize;
+  }
+
+  private void append(byte b) {
+    if (this.length == this.head.length) {
+      this.head = Arrays.copyOf(this.head, Math.min(this.head.length * 2, this.maxHeadSize));
+    }
+    this.head[this.length++] = b;
+  }
+
+  /**
+   * Returns the value of a header field with a case insensitive name.
+   */
+  Optional<String> getHeader(String name) {
+    return Optional.ofNullable(this.headers.get(name));
+  }
+
+  /**
+   * Returns the header fields with case insensitive names.
+   */
+  Map<String, String> getHeaders() {
+    return this.headers;
+  }
+
+  /**
+   * Returns the minor version of the HTTP/1.x response.
+   */
+  int getMinorVersion() {
+    return this.minorVersion;
+  }
+
+  String getReasonPhrase() {
+    return this.reasonPhrase;
+  }
+
+  int getStatus() {
+    return this.status;
+  }
+
+  /**
+   * Consumes the bytes of the buffer until the end of the response head.
+   *
+   * @param buffer
+   *          The buffer in read mode. Its position is moved after the consumed bytes.
+   * @return Whether the head is complete. If true, the remaining bytes of the buffer belong to the
+   *         body.
+   * @throws ProtocolException
+   *           if the head is malformed or too long.
+   */
+  boolean parse(ByteBuffer buffer) throws ProtocolException {
+    while (!this.complete && buffer.hasRemaining()) {
+      if (this.size == this.maxHeadSize) {
+        throw new ProtocolException(
+            "Response head is longer than " + this.maxHeadSize + " bytes");
+      }
+      this.size++;
+      byte b = buffer.get();
+      if (b == '\n') {
+        if (this.lineLength == 0 && this.length > 0) {
+          this.complete = true;
+          parseHead();
+        } else if (this.length > 0) {
+          append(b);
+        }
+        this.lineLength = 0;
+      } else if (b != '\r') {
+        append(b);
+        this.lineLength++;
+      }
+    }
+    return this.complete;
+  }
+
+  private void parseHead() throws ProtocolException {
+    String[] lines = new String(this.head, 0, this.length, StandardCharsets.ISO_8859_1)
+        .split("\n");
+    parseStatusLine(lines[0]);
+
+    this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    String name = null;
+    StringBuilder value = new StringBuilder();
+    for (int i = 1; i < lines.length; i++) {
+      String line = lines[i];
+      char first = line.charAt(0);
+      if (first == ' ' || first == '\t') {
+        if (name == null) {
+          throw new ProtocolException("Continuation of a missing header field: " + line);
+        }
+        value.append(' ').append(line.trim());
+        continue;
+      }
+
+      if (name != null) {
+        putHeader(name, value.toString());
+      }
+      int colon = line.indexOf(':');
+      if (colon <= 0) {
+        throw new ProtocolException("Header field is not formatted correctly: " + line);
+      }
+      name = line.substring(0, colon).trim();
+      value.setLength(0);
+      value.append(line.substring(colon + 1).trim());
+    }
+    if (name != null) {
+      putHeader(name, value.toString());
+    }
+  }
+
+  private void parseStatusLine(String line) throws ProtocolException {
+    int versionEnd = ResponseHeadParser.STATUS_LINE_PREFIX.length() + 1;
+    int statusEnd = versionEnd + 1 + ResponseHeadParser.STATUS_CODE_LENGTH;
+    if (!line.startsWith(ResponseHeadParser.STATUS_LINE_PREFIX) || line.length() < statusEnd
+        || line.charAt(versionEnd) != ' '
+        || line.length() > statusEnd && line.charAt(statusEnd) != ' ') {
+      throw new ProtocolException("Status line is not formatted correctly: " + line);
+    }
+
+    try {
+      this.minorVersion = Integer.parseInt(line.substring(versionEnd - 1, versionEnd));
+      this.status = Integer.parseInt(line.substring(versionEnd + 1, statusEnd));
+    } catch (NumberFormatException e) {
+      ProtocolException protocolException =
+          new ProtocolException("Status line is not formatted correctly: " + line);
+      protocolException.initCause(e);
+      throw protocolException;
+    }
+    this.reasonPhrase = line.length() > statusEnd ? line.substring(statusEnd + 1) : "";
+  }
+
+  private void putHeader(String name, String value) {
+    this.headers.merge(name, value, (previous, next) -> previous + ", " + next);
+  }
+
+  /**
+   * Resets the parser, so it can parse the next response head, e.g. after an interim response.
+   */
+  void reset() {
+    this.complete = false;
+    this.length = 0;
+    this.lineLength = 0;
+    this.size = 0;
+    this.headers = null;
+  }
+}
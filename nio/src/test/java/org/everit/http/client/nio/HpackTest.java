@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HpackTest {
+
+  /**
+   * The requests of RFC 7541, Appendix C.4 that are encoded with Huffman coding and the dynamic
+   * table.
+   */
+  private static final String[][][] REQUESTS = {
+      {
+          { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" },
+          { ":authority", "www.example.com" } },
+      {
+          { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" },
+          { ":authority", "www.example.com" }, { "cache-control", "no-cache" } },
+      {
+          { ":method", "GET" }, { ":scheme", "https" }, { ":path", "/index.html" },
+          { ":authority", "www.example.com" }, { "custom-key", "custom-value" } } };
+
+  private static final String[] REQUEST_BLOCKS = {
+      "828684418cf1e3c2e5f23a6ba0ab90f4ff",
+      "828684be5886a8eb10649cbf",
+      "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf" };
+
+  private static ByteBuffer hex(String value) {
+    final int radix = 16;
+    byte[] bytes = new byte[value.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(value.substring(2 * i, 2 * i + 2), radix);
+    }
+    return ByteBuffer.wrap(bytes);
+  }
+
+  private static void assertHeaders(String[][] expected, List<String[]> actual) {
+    Assert.assertEquals(expected.length, actual.size());
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertArrayEquals(expected[i], actual.get(i));
+    }
+  }
+
+  @Test
+  public void testDecoderDecodesRfcExamples() throws ProtocolException {
+    HpackDecoder decoder = new HpackDecoder(HpackEncoder.MAX_DYNAMIC_TABLE_SIZE);
+    for (int i = 0; i < HpackTest.REQUESTS.length; i++) {
+      HpackTest.assertHeaders(HpackTest.REQUESTS[i],
+          decoder.decode(HpackTest.hex(HpackTest.REQUEST_BLOCKS[i])));
+    }
+  }
+
+  @Test
+  public void testEncoderEncodesRfcExamples() {
+    HpackEncoder encoder = new HpackEncoder();
+    for (int i = 0; i < HpackTest.REQUESTS.length; i++) {
+      byte[] block = encoder.encode(Arrays.asList(HpackTest.REQUESTS[i]));
+      Assert.assertEquals(HpackTest.hex(HpackTest.REQUEST_BLOCKS[i]), ByteBuffer.wrap(block));
+    }
+  }
+
+  @Test(expected = ProtocolException.class)
+  public void testInvalidIndexIsRejected() throws ProtocolException {
+    new HpackDecoder(HpackEncoder.MAX_DYNAMIC_TABLE_SIZE).decode(HpackTest.hex("be"));
+  }
+
+  @Test
+  public void testRoundTripWithTableSizeUpdate() throws ProtocolException {
+    HpackEncoder encoder = new HpackEncoder();
+    HpackDecoder decoder = new HpackDecoder(HpackEncoder.MAX_DYNAMIC_TABLE_SIZE);
+    List<String[]> headers = Arrays.asList(new String[][] {
+        { ":method", "POST" }, { "content-type", "application/json; charset=é" },
+        { "authorization", "Bearer secret" }, { "x-empty", "" } });
+
+    HpackTest.assertHeaders(headers.toArray(new String[0][]),
+        decoder.decode(ByteBuffer.wrap(encoder.encode(headers))));
+
+    final int headerTableSize = 64;
+    encoder.setHeaderTableSize(headerTableSize);
+    byte[] block = encoder.encode(headers);
+    // The block starts with a dynamic table size update
+    final int sizeUpdateMask = 0xe0;
+    final int sizeUpdatePattern = 0x20;
+    Assert.assertEquals(sizeUpdatePattern, block[0] & sizeUpdateMask);
+    HpackTest.assertHeaders(headers.toArray(new String[0][]),
+        decoder.decode(ByteBuffer.wrap(block)));
+  }
+
+  @Test
+  public void testSensitiveHeaderIsNeverIndexed() {
+    byte[] block = new HpackEncoder().encode(Arrays.<String[]> asList(
+        new String[] { "authorization", "Bearer secret" }));
+    // Literal header field never indexed with the name of static table entry 23
+    final int neverIndexedMask = 0xf0;
+    final int neverIndexedPattern = 0x10;
+    Assert.assertEquals(neverIndexedPattern, block[0] & neverIndexedMask);
+  }
+}
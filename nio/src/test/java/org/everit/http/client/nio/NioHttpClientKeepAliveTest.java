@@ -0,0 +1,201 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.http.client.HttpMethod;
+import org.everit.http.client.HttpRequest;
+import org.everit.http.client.HttpResponse;
+import org.everit.http.client.async.AsyncContentUtil;
+import org.everit.http.client.pool.ConnectionPoolStatistics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the reuse of the connections with a minimal server that answers the requests with
+ * prepared responses.
+ */
+public class NioHttpClientKeepAliveTest {
+
+  /**
+   * A response that makes the server close the connection without answering.
+   */
+  private static final String CLOSE = "";
+
+  private static final String CONTENT_LENGTH_RESPONSE =
+      "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello";
+
+  private NioHttpClient client;
+
+  private final AtomicInteger connectionCount = new AtomicInteger();
+
+  private final Queue<String> responses = new ConcurrentLinkedQueue<>();
+
+  private ServerSocket serverSocket;
+
+  @After
+  public void after() throws IOException {
+    this.client.close();
+    this.serverSocket.close();
+  }
+
+  private void awaitIdleConnection() throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    while (this.client.getConnectionPoolStatistics().getIdle() == 0) {
+      Assert.assertTrue("Connection was not released", System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  @Before
+  public void before() throws IOException {
+    this.serverSocket = new ServerSocket(0);
+    Thread acceptor = new Thread(() -> {
+      try {
+        while (true) {
+          Socket socket = this.serverSocket.accept();
+          this.connectionCount.incrementAndGet();
+          Thread handler = new Thread(() -> serve(socket));
+          handler.setDaemon(true);
+          handler.start();
+        }
+      } catch (IOException e) {
+        // Server socket is closed
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    this.client = NioHttpClient.builder().eventLoopCount(1).build();
+  }
+
+  private String get() {
+    HttpRequest request = HttpRequest.builder()
+        .method(HttpMethod.GET)
+        .url("http://localhost:" + this.serverSocket.getLocalPort() + "/")
+        .build();
+    try (HttpResponse response = this.client.send(request).blockingGet()) {
+      Assert.assertEquals(200, response.getStatus());
+      return AsyncContentUtil.readString(response.getBody(), StandardCharsets.UTF_8)
+          .blockingGet();
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket;
+        InputStream in = s.getInputStream();
+        OutputStream out = s.getOutputStream()) {
+
+      while (skipRequestHead(in)) {
+        String response = this.responses.poll();
+        if (response == null || NioHttpClientKeepAliveTest.CLOSE.equals(response)) {
+          return;
+        }
+        out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+      }
+    } catch (IOException e) {
+      // Client closed the connection
+    }
+  }
+
+  /**
+   * Reads a request head without body.
+   *
+   * @return Whether a request head was read before the end of the stream.
+   */
+  private boolean skipRequestHead(InputStream in) throws IOException {
+    int matched = 0;
+    final byte[] end = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    while (matched < end.length) {
+      int b = in.read();
+      if (b < 0) {
+        return false;
+      }
+      matched = b == end[matched] ? matched + 1 : (b == end[0] ? 1 : 0);
+    }
+    return true;
+  }
+
+  @Test
+  public void testChunkedResponseConnectionIsReused() throws InterruptedException {
+    final String chunkedResponse = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+        + "3\r\nhel\r\n2\r\nlo\r\n0\r\n\r\n";
+    this.responses.add(chunkedResponse);
+    this.responses.add(chunkedResponse);
+
+    Assert.assertEquals("hello", get());
+    awaitIdleConnection();
+    Assert.assertEquals("hello", get());
+    Assert.assertEquals(1, this.connectionCount.get());
+  }
+
+  @Test
+  public void testConnectionCloseResponseIsNotReused() {
+    final String closingResponse =
+        "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nConnection: close\r\n\r\nhello";
+    this.responses.add(closingResponse);
+    this.responses.add(NioHttpClientKeepAliveTest.CONTENT_LENGTH_RESPONSE);
+
+    Assert.assertEquals("hello", get());
+    Assert.assertEquals("hello", get());
+    Assert.assertEquals(2, this.connectionCount.get());
+    Assert.assertEquals(0, this.client.getConnectionPoolStatistics().getReused());
+  }
+
+  @Test
+  public void testConnectionIsReused() throws InterruptedException {
+    final int requestCount = 3;
+    for (int i = 0; i < requestCount; i++) {
+      this.responses.add(NioHttpClientKeepAliveTest.CONTENT_LENGTH_RESPONSE);
+    }
+
+    for (int i = 0; i < requestCount; i++) {
+      Assert.assertEquals("hello", get());
+      awaitIdleConnection();
+    }
+
+    Assert.assertEquals(1, this.connectionCount.get());
+    ConnectionPoolStatistics statistics = this.client.getConnectionPoolStatistics();
+    Assert.assertEquals(1, statistics.getCreated());
+    Assert.assertEquals(requestCount - 1, statistics.getReused());
+    Assert.assertEquals(1, statistics.getIdle());
+  }
+
+  @Test
+  public void testRequestIsRetriedIfReusedConnectionIsClosed() throws InterruptedException {
+    this.responses.add(NioHttpClientKeepAliveTest.CONTENT_LENGTH_RESPONSE);
+    this.responses.add(NioHttpClientKeepAliveTest.CLOSE);
+    this.responses.add(NioHttpClientKeepAliveTest.CONTENT_LENGTH_RESPONSE);
+
+    Assert.assertEquals("hello", get());
+    awaitIdleConnection();
+    Assert.assertEquals("hello", get());
+    Assert.assertEquals(2, this.connectionCount.get());
+  }
+}
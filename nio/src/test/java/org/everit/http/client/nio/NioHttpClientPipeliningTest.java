@@ -0,0 +1,241 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.http.client.HttpMethod;
+import org.everit.http.client.HttpRequest;
+import org.everit.http.client.async.AsyncContentUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests pipelining with a minimal server that reads a batch of requests before answering them
+ * and echoes the path of the requests in the responses.
+ */
+public class NioHttpClientPipeliningTest {
+
+  private static final int MAX_PIPELINED_REQUESTS = 4;
+
+  private static final long TIMEOUT_SECONDS = 5;
+
+  /**
+   * The number of requests that the server reads before writing their responses in one go.
+   */
+  private volatile int batchSize = 1;
+
+  private NioHttpClient client;
+
+  /**
+   * The number of responses after that the server closes a connection without answering the next
+   * request. The server closes only one connection.
+   */
+  private final AtomicInteger closeAfter = new AtomicInteger(Integer.MAX_VALUE);
+
+  private final AtomicInteger connectionCount = new AtomicInteger();
+
+  /**
+   * Whether the server resets every connection after reading the first request.
+   */
+  private volatile boolean resetConnections = false;
+
+  private ServerSocket serverSocket;
+
+  @After
+  public void after() throws IOException {
+    this.client.close();
+    this.serverSocket.close();
+  }
+
+  @Before
+  public void before() throws IOException {
+    this.serverSocket = new ServerSocket(0);
+    Thread acceptor = new Thread(() -> {
+      try {
+        while (true) {
+          Socket socket = this.serverSocket.accept();
+          this.connectionCount.incrementAndGet();
+          Thread handler = new Thread(() -> serve(socket));
+          handler.setDaemon(true);
+          handler.start();
+        }
+      } catch (IOException e) {
+        // Server socket is closed
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    this.client = NioHttpClient.builder()
+        .eventLoopCount(1)
+        .maxConnectionsPerHost(1)
+        .pipelining(NioHttpClientPipeliningTest.MAX_PIPELINED_REQUESTS)
+        .build();
+  }
+
+  private String createResponse(String path) {
+    if (path.startsWith("/chunked")) {
+      return "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+          + Integer.toHexString(path.length()) + "\r\n" + path + "\r\n0\r\n\r\n";
+    }
+    if (path.startsWith("/nocontent")) {
+      return "HTTP/1.1 204 No Content\r\n\r\n";
+    }
+    return "HTTP/1.1 200 OK\r\nContent-Length: " + path.length() + "\r\n\r\n" + path;
+  }
+
+  /**
+   * Sends GET requests to the paths at the same time and returns the bodies of the responses in
+   * the order of the paths.
+   */
+  private List<String> getAll(String... paths) throws Exception {
+    List<String> bodies = new ArrayList<>();
+    for (Future<String> future : sendAll(paths)) {
+      bodies.add(future.get(NioHttpClientPipeliningTest.TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+    return bodies;
+  }
+
+  /**
+   * Reads a request head without body.
+   *
+   * @return The path of the request or null if the stream ended.
+   */
+  private String readRequestPath(InputStream in) throws IOException {
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    int matched = 0;
+    final byte[] end = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    while (matched < end.length) {
+      int b = in.read();
+      if (b < 0) {
+        return null;
+      }
+      head.write(b);
+      matched = b == end[matched] ? matched + 1 : (b == end[0] ? 1 : 0);
+    }
+    return new String(head.toByteArray(), StandardCharsets.ISO_8859_1).split(" ")[1];
+  }
+
+  /**
+   * Sends GET requests to the paths at the same time and returns the futures of the bodies of the
+   * responses in the order of the paths.
+   */
+  private List<Future<String>> sendAll(String... paths) {
+    List<Future<String>> futures = new ArrayList<>();
+    for (String path : paths) {
+      HttpRequest request = HttpRequest.builder()
+          .method(HttpMethod.GET)
+          .url("http://localhost:" + this.serverSocket.getLocalPort() + path)
+          .build();
+      futures.add(this.client.send(request)
+          .flatMap(response -> AsyncContentUtil
+              .readString(response.getBody(), StandardCharsets.UTF_8)
+              .doFinally(response::close))
+          .toFuture());
+    }
+    return futures;
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket;
+        InputStream in = s.getInputStream();
+        OutputStream out = s.getOutputStream()) {
+
+      while (true) {
+        StringBuilder responses = new StringBuilder();
+        for (int i = 0; i < this.batchSize; i++) {
+          String path = readRequestPath(in);
+          if (path == null) {
+            return;
+          }
+          if (this.resetConnections) {
+            s.setSoLinger(true, 0);
+            return;
+          }
+          if (this.closeAfter.getAndDecrement() == 0) {
+            this.closeAfter.set(Integer.MAX_VALUE);
+            return;
+          }
+          responses.append(createResponse(path));
+        }
+        // All responses of the batch are written at once, so the client reads them together
+        out.write(responses.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+      }
+    } catch (IOException e) {
+      // Client closed the connection
+    }
+  }
+
+  @Test
+  public void testResponsesArriveInOrder() throws Exception {
+    this.batchSize = NioHttpClientPipeliningTest.MAX_PIPELINED_REQUESTS;
+
+    List<String> bodies = getAll("/first", "/chunked", "/nocontent", "/last");
+
+    Assert.assertEquals("/first", bodies.get(0));
+    Assert.assertEquals("/chunked", bodies.get(1));
+    Assert.assertEquals("", bodies.get(2));
+    Assert.assertEquals("/last", bodies.get(bodies.size() - 1));
+    Assert.assertEquals(1, this.connectionCount.get());
+  }
+
+  @Test
+  public void testRetriesAreBoundedIfServerAlwaysResets() throws Exception {
+    this.resetConnections = true;
+
+    String[] paths = { "/1", "/2", "/3", "/4" };
+    for (Future<String> future : sendAll(paths)) {
+      try {
+        future.get(NioHttpClientPipeliningTest.TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Assert.fail("Request should have failed");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof IOException);
+      }
+    }
+    Assert.assertTrue(
+        this.connectionCount.get() <= paths.length * (NioHttpClient.MAX_RETRY_COUNT + 1));
+  }
+
+  @Test
+  public void testUnansweredRequestsAreRetried() throws Exception {
+    final int answeredBeforeClose = 2;
+    this.closeAfter.set(answeredBeforeClose);
+
+    String[] paths = { "/1", "/2", "/3", "/4" };
+    List<String> bodies = getAll(paths);
+
+    for (int i = 0; i < paths.length; i++) {
+      Assert.assertEquals(paths[i], bodies.get(i));
+    }
+    Assert.assertEquals(2, this.connectionCount.get());
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.http.client.nio;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResponseHeadParserTest {
+
+  private static final int MAX_HEAD_SIZE = 1024;
+
+  private static ByteBuffer bytes(String value) {
+    return ByteBuffer.wrap(value.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  @Test
+  public void testBodyIsNotConsumed() throws ProtocolException {
+    ResponseHeadParser parser = new ResponseHeadParser(ResponseHeadParserTest.MAX_HEAD_SIZE);
+    ByteBuffer buffer = ResponseHeadParserTest.bytes("HTTP/1.0 404 Not Found\nA: 1\n\nbody");
+
+    Assert.assertTrue(parser.parse(buffer));
+    Assert.assertEquals(0, parser.getMinorVersion());
+    Assert.assertEquals(404, parser.getStatus());
+    Assert.assertEquals("Not Found", parser.getReasonPhrase());
+    Assert.assertEquals("body", StandardCharsets.ISO_8859_1.decode(buffer).toString());
+  }
+
+  @Test
+  public void testHeadInMoreBuffers() throws ProtocolException {
+    String head = "HTTP/1.1 200 OK\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "X-Folded: first\r\n"
+        + "  second\r\n"
+        + "Vary: Accept\r\n"
+        + "vary: Origin\r\n"
+        + "\r\n";
+
+    ResponseHeadParser parser = new ResponseHeadParser(ResponseHeadParserTest.MAX_HEAD_SIZE);
+    for (int i = 0; i < head.length() - 1; i++) {
+      Assert.assertFalse(parser.parse(ResponseHeadParserTest.bytes(head.substring(i, i + 1))));
+    }
+    Assert.assertTrue(parser.parse(ResponseHeadParserTest.bytes("\n")));
+
+    Assert.assertEquals(200, parser.getStatus());
+    Assert.assertEquals("OK", parser.getReasonPhrase());
+    Assert.assertEquals("text/plain", parser.getHeader("content-type").get());
+    Assert.assertEquals("first second", parser.getHeader("X-Folded").get());
+    Assert.assertEquals("Accept, Origin", parser.getHeader("Vary").get());
+    Assert.assertFalse(parser.getHeader("Content-Length").isPresent());
+  }
+
+  @Test
+  public void testMalformed() {
+    String[] heads = new String[] {
+        "HTTP/2 200 OK\r\n\r\n",
+        "HTTP/1.1 2000 OK\r\n\r\n",
+        "HTTP/1.1 abc OK\r\n\r\n",
+        "HTTP/1.1 200 OK\r\nNo colon\r\n\r\n",
+        "HTTP/1.1 200 OK\r\n folded\r\n\r\n" };
+
+    for (String head : heads) {
+      ResponseHeadParser parser = new ResponseHeadParser(ResponseHeadParserTest.MAX_HEAD_SIZE);
+      try {
+        parser.parse(ResponseHeadParserTest.bytes(head));
+        Assert.fail("Malformed head is accepted: " + head);
+      } catch (ProtocolException e) {
+        Assert.assertNotNull(e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void testReset() throws ProtocolException {
+    ResponseHeadParser parser = new ResponseHeadParser(ResponseHeadParserTest.MAX_HEAD_SIZE);
+    ByteBuffer buffer = ResponseHeadParserTest.bytes(
+        "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 201 Created\r\nLocation: /a\r\n\r\n");
+
+    Assert.assertTrue(parser.parse(buffer));
+    Assert.assertEquals(100, parser.getStatus());
+    Assert.assertTrue(parser.getHeaders().isEmpty());
+
+    parser.reset();
+    Assert.assertTrue(parser.parse(buffer));
+    Assert.assertEquals(201, parser.getStatus());
+    Assert.assertEquals("/a", parser.getHeader("location").get());
+    Assert.assertFalse(buffer.hasRemaining());
+  }
+
+  @Test(expected = ProtocolException.class)
+  public void testTooLong() throws ProtocolException {
+    StringBuilder sb = new StringBuilder("HTTP/1.1 200 OK\r\n");
+    while (sb.length() < ResponseHeadParserTest.MAX_HEAD_SIZE) {
+      sb.append("X-Padding: 0123456789\r\n");
+    }
+    new ResponseHeadParser(ResponseHeadParserTest.MAX_HEAD_SIZE)
+        .parse(ResponseHeadParserTest.bytes(sb.toString()));
+  }
+}
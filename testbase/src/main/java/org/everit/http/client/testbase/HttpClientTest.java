@@ -31,7 +31,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
 import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.NetworkConnector;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
@@ -96,7 +99,11 @@ public abstract class HttpClientTest {
         new ServletContextHandler(HttpClientTest.server, HttpClientTest.CONTEXT_PATH);
     servletContextHandler.addServlet(new ServletHolder(HttpClientTest.TEST_SERVLET), "/*");
     HttpClientTest.server.setHandler(servletContextHandler);
-    ServerConnector serverConnector = new ServerConnector(HttpClientTest.server);
+    // HTTP/1.1 connections and HTTP/2 connections with prior knowledge are accepted on the port
+    HttpConfiguration httpConfiguration = new HttpConfiguration();
+    ServerConnector serverConnector = new ServerConnector(HttpClientTest.server,
+        new HttpConnectionFactory(httpConfiguration),
+        new HTTP2CServerConnectionFactory(httpConfiguration));
     final int thirtySecondsInMillisecs = 30000;
     serverConnector.setIdleTimeout(thirtySecondsInMillisecs);
     HttpClientTest.server.addConnector(serverConnector);